@@ -0,0 +1,10453 @@
+package railway;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Train details, read through to the TimetableStore columns of one slot
+class Train {
+    private final TimetableStore store;
+    private final int slot;
+
+    Train(TimetableStore store, int slot) {
+        this.store = store;
+        this.slot = slot;
+    }
+
+    int slot() {
+        return slot;
+    }
+
+    public int trainNumber() {
+        return store.number(slot);
+    }
+
+    public String name() {
+        return store.name(slot);
+    }
+
+    public String source() {
+        return store.source(slot);
+    }
+
+    public String destination() {
+        return store.destination(slot);
+    }
+
+    // Intermediate stops in running order
+    public String[] via() {
+        return store.via(slot);
+    }
+
+    // Number of stops, source and destination included; seats are sold per segment between consecutive stops
+    public int stopCount() {
+        return store.viaCount(slot) + 2;
+    }
+
+    // Index of the stop named station (ignoring case and surrounding spaces), searching from index from, or -1
+    public int stopIndex(String station, int from) {
+        String wanted = station == null ? "" : station.trim();
+        for (int stop = from; stop < stopCount(); stop++) {
+            if (stop(stop).trim().equalsIgnoreCase(wanted)) {
+                return stop;
+            }
+        }
+        return -1;
+    }
+
+    public String stop(int index) {
+        if (index == 0) {
+            return source();
+        }
+        return index == stopCount() - 1 ? destination() : store.viaStop(slot, index - 1);
+    }
+
+    public String startTime() {
+        return TrainSpec.formatTime(store.startMinute(slot));
+    }
+
+    public String reachTime() {
+        return TrainSpec.formatTime(store.reachMinute(slot));
+    }
+
+    public int startMinute() {
+        return store.startMinute(slot);
+    }
+
+    public int reachMinute() {
+        return store.reachMinute(slot);
+    }
+
+    // True if the train reaches its destination on a later day than it starts
+    public boolean overnight() {
+        return store.reachMinute(slot) <= store.startMinute(slot);
+    }
+
+    public int totalSeats() {
+        return store.totalSeats(slot);
+    }
+
+    // Open seats when the train was added to the timetable
+    public int balance() {
+        return store.balance(slot);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Train && ((Train) other).store == store && ((Train) other).slot == slot;
+    }
+
+    @Override
+    public int hashCode() {
+        return slot;
+    }
+
+    @Override
+    public String toString() {
+        return "Train No: " + trainNumber() + ", Name: " + name() + ", Source: " + source() + " (Start: " + startTime() + "), Destination: " + destination() + " (Reach: " + reachTime() + ")";
+    }
+}
+
+// Train details before they are added to a timetable: seed data, admin input, snapshots and journal records
+class TrainSpec {
+    static final String[] NO_STOPS = new String[0];
+    static final int MAX_STOPS = 256; // source and destination included; the stop count is journaled as a byte
+
+    final int trainNumber;
+    final String name;
+    final String source;
+    final String destination;
+    final int startMinute;
+    final int reachMinute;
+    final int totalSeats;
+    final int balance;
+    final String[] via; // intermediate stops in running order
+
+    public TrainSpec(int trainNumber, String name, String source, String destination, String startTime, String reachTime, int totalSeats, int balance) {
+        this(trainNumber, name, source, destination, startTime, reachTime, totalSeats, balance, NO_STOPS);
+    }
+
+    public TrainSpec(int trainNumber, String name, String source, String destination, String startTime, String reachTime,
+                     int totalSeats, int balance, String[] via) {
+        this.trainNumber = trainNumber;
+        this.name = name;
+        this.source = source;
+        this.destination = destination;
+        this.startMinute = parseTime(startTime);
+        this.reachMinute = parseTime(reachTime);
+        this.totalSeats = totalSeats;
+        this.balance = balance;
+        this.via = via.length == 0 ? NO_STOPS : via.clone();
+        if (this.via.length + 2 > MAX_STOPS) {
+            throw new IllegalArgumentException("A train may call at no more than " + MAX_STOPS + " stops");
+        }
+    }
+
+    static TrainSpec of(Train train) {
+        return new TrainSpec(train.trainNumber(), train.name(), train.source(), train.destination(),
+                train.startTime(), train.reachTime(), train.totalSeats(), train.balance(), train.via());
+    }
+
+    // Minutes past midnight for an "HH:mm" time
+    static int parseTime(String time) {
+        String text = time == null ? "" : time.trim();
+        int colon = text.indexOf(':');
+        try {
+            if (colon > 0) {
+                int hours = Integer.parseInt(text.substring(0, colon));
+                int minutes = Integer.parseInt(text.substring(colon + 1));
+                if (hours >= 0 && hours < 24 && minutes >= 0 && minutes < 60 && text.length() - colon == 3) {
+                    return hours * 60 + minutes;
+                }
+            }
+        } catch (NumberFormatException ignored) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid time \"" + time + "\", expected HH:mm");
+    }
+
+    static String formatTime(int minuteOfDay) {
+        int hours = minuteOfDay / 60;
+        int minutes = minuteOfDay % 60;
+        return (hours < 10 ? "0" : "") + hours + (minutes < 10 ? ":0" : ":") + minutes;
+    }
+
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(trainNumber);
+            BookingJournal.writeString(out, name);
+            BookingJournal.writeString(out, source);
+            BookingJournal.writeString(out, destination);
+            BookingJournal.writeString(out, formatTime(startMinute));
+            BookingJournal.writeString(out, formatTime(reachMinute));
+            out.writeInt(totalSeats);
+            out.writeInt(balance);
+            out.writeByte(via.length);
+            for (String stop : via) {
+                BookingJournal.writeString(out, stop);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Journal records written before trains had intermediate stops end after the balance
+    static TrainSpec decode(ByteBuffer in) {
+        return decode(in, true);
+    }
+
+    // Decodes one train; withStops is false for snapshots written before trains had intermediate stops
+    static TrainSpec decode(ByteBuffer in, boolean withStops) {
+        int trainNumber = in.getInt();
+        String name = BookingJournal.readString(in);
+        String source = BookingJournal.readString(in);
+        String destination = BookingJournal.readString(in);
+        String startTime = BookingJournal.readString(in);
+        String reachTime = BookingJournal.readString(in);
+        int totalSeats = in.getInt();
+        int balance = in.getInt();
+        String[] via = NO_STOPS;
+        if (withStops && in.hasRemaining()) {
+            via = new String[in.get() & 0xff];
+            for (int i = 0; i < via.length; i++) {
+                via[i] = BookingJournal.readString(in);
+            }
+        }
+        return new TrainSpec(trainNumber, name, source, destination, startTime, reachTime, totalSeats, balance, via);
+    }
+}
+
+// Interns strings to dense int ids, so repeated station and train names are stored once.
+// Ids are never reused; lookups by id need no lock.
+class StringDictionary {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private volatile String[] values = new String[64];
+    private int size;
+
+    public synchronized int intern(String value) {
+        Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = value;
+        ids.put(value, size);
+        return size++;
+    }
+
+    public String value(int id) {
+        return values[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
+
+// Open-addressing int -> int hash map with linear probing and no boxing. Integer.MIN_VALUE marks
+// a free cell and cannot be used as a key; entries are never removed. One writer may put while
+// readers get: cells are AtomicIntegerArray elements, a value is written before its key, and a
+// grown table is filled completely before it is published.
+class IntIntMap {
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private volatile AtomicIntegerArray table; // key, value, key, value, ...
+    private int size;
+
+    public IntIntMap() {
+        table = newTable(16);
+    }
+
+    public int get(int key, int missing) {
+        AtomicIntegerArray cells = table;
+        int mask = cells.length() / 2 - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            int found = cells.get(2 * i);
+            if (found == key) {
+                return cells.get(2 * i + 1);
+            }
+            if (found == FREE) {
+                return missing;
+            }
+        }
+    }
+
+    public void put(int key, int value) {
+        if (key == FREE) {
+            throw new IllegalArgumentException("Reserved key " + key);
+        }
+        if (insert(table, key, value)) {
+            size++;
+            if (size * 2 > table.length() / 2) {
+                AtomicIntegerArray grown = newTable(table.length());
+                for (int i = 0; i < table.length(); i += 2) {
+                    if (table.get(i) != FREE) {
+                        insert(grown, table.get(i), table.get(i + 1));
+                    }
+                }
+                table = grown;
+            }
+        }
+    }
+
+    // Returns true if the key was new
+    private static boolean insert(AtomicIntegerArray cells, int key, int value) {
+        int mask = cells.length() / 2 - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            int found = cells.get(2 * i);
+            if (found == key) {
+                cells.set(2 * i + 1, value);
+                return false;
+            }
+            if (found == FREE) {
+                cells.set(2 * i + 1, value);
+                cells.set(2 * i, key);
+                return true;
+            }
+        }
+    }
+
+    private static AtomicIntegerArray newTable(int capacity) {
+        AtomicIntegerArray cells = new AtomicIntegerArray(capacity * 2);
+        for (int i = 0; i < cells.length(); i += 2) {
+            cells.set(i, FREE);
+        }
+        return cells;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+// Ascending list of slots that only ever grows, used for index postings.
+// One writer appends while any number of readers scan it without locking: an element is written
+// before the volatile size that publishes it.
+class AppendOnlyIntList {
+    private volatile int[] values = new int[4];
+    private volatile int size;
+
+    void append(int value) {
+        int[] current = values;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+            values = current;
+        }
+        current[size] = value;
+        size = size + 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Elements below the size read before it
+    int[] elements() {
+        return values;
+    }
+}
+
+// Struct-of-arrays timetable columns. Each train occupies a slot of primitive columns: station and
+// train names are dictionary ids and times are minutes past midnight. Slots are only ever appended
+// and never change or get reused, so a slot identifies one train for good; which slots are live is
+// recorded per version by TimetableSnapshot.
+// Train numbers map to their newest slot; each slot links to the previous slot with the same
+// number, so a snapshot finds its own slot for a number by walking back past newer ones.
+// Appends must be serialized by the caller and published through a new snapshot. Readers never lock:
+// the columns sit in one Columns holder behind a volatile field, and a grown holder is filled
+// completely before it replaces the old one, so a reader sees either array with its elements.
+class TimetableStore {
+    private final StringDictionary stations = new StringDictionary();
+    private final StringDictionary names = new StringDictionary();
+
+    private static final class Columns {
+        final int[] numbers;
+        final int[] nameIds;
+        final int[] sourceIds;
+        final int[] destinationIds;
+        final short[] startMinutes;
+        final short[] reachMinutes;
+        final int[] totalSeats;
+        final int[] balances;
+        final int[] previousSlots;
+        final int[][] viaIds; // null when the train runs non-stop
+
+        Columns(int capacity) {
+            numbers = new int[capacity];
+            nameIds = new int[capacity];
+            sourceIds = new int[capacity];
+            destinationIds = new int[capacity];
+            startMinutes = new short[capacity];
+            reachMinutes = new short[capacity];
+            totalSeats = new int[capacity];
+            balances = new int[capacity];
+            previousSlots = new int[capacity];
+            viaIds = new int[capacity][];
+        }
+
+        Columns(Columns old, int capacity) {
+            numbers = Arrays.copyOf(old.numbers, capacity);
+            nameIds = Arrays.copyOf(old.nameIds, capacity);
+            sourceIds = Arrays.copyOf(old.sourceIds, capacity);
+            destinationIds = Arrays.copyOf(old.destinationIds, capacity);
+            startMinutes = Arrays.copyOf(old.startMinutes, capacity);
+            reachMinutes = Arrays.copyOf(old.reachMinutes, capacity);
+            totalSeats = Arrays.copyOf(old.totalSeats, capacity);
+            balances = Arrays.copyOf(old.balances, capacity);
+            previousSlots = Arrays.copyOf(old.previousSlots, capacity);
+            viaIds = Arrays.copyOf(old.viaIds, capacity);
+        }
+    }
+
+    private volatile Columns columns = new Columns(64);
+    private int slots;
+    private final IntIntMap newestSlots = new IntIntMap();
+
+    public int add(TrainSpec spec) {
+        Columns columns = this.columns;
+        if (slots == columns.numbers.length) {
+            columns = new Columns(columns, slots * 2);
+            this.columns = columns;
+        }
+        int slot = slots++;
+        columns.numbers[slot] = spec.trainNumber;
+        columns.nameIds[slot] = names.intern(spec.name);
+        columns.sourceIds[slot] = stations.intern(spec.source);
+        columns.destinationIds[slot] = stations.intern(spec.destination);
+        columns.startMinutes[slot] = (short) spec.startMinute;
+        columns.reachMinutes[slot] = (short) spec.reachMinute;
+        columns.totalSeats[slot] = spec.totalSeats;
+        columns.balances[slot] = spec.balance;
+        columns.previousSlots[slot] = newestSlots.get(spec.trainNumber, -1);
+        if (spec.via.length > 0) {
+            int[] via = new int[spec.via.length];
+            for (int i = 0; i < via.length; i++) {
+                via[i] = stations.intern(spec.via[i]);
+            }
+            columns.viaIds[slot] = via;
+        }
+        newestSlots.put(spec.trainNumber, slot);
+        return slot;
+    }
+
+    // Newest slot ever allocated to the train number, or -1
+    int newestSlot(int trainNumber) {
+        return newestSlots.get(trainNumber, -1);
+    }
+
+    // Slot allocated to the same train number before this one, or -1
+    int previousSlot(int slot) {
+        return columns.previousSlots[slot];
+    }
+
+    // Slots allocated so far, live or not
+    public int slotCount() {
+        return slots;
+    }
+
+    public Train train(int slot) {
+        return new Train(this, slot);
+    }
+
+    StringDictionary stations() {
+        return stations;
+    }
+
+    int number(int slot) {
+        return columns.numbers[slot];
+    }
+
+    String name(int slot) {
+        return names.value(columns.nameIds[slot]);
+    }
+
+    int sourceId(int slot) {
+        return columns.sourceIds[slot];
+    }
+
+    int destinationId(int slot) {
+        return columns.destinationIds[slot];
+    }
+
+    String source(int slot) {
+        return stations.value(columns.sourceIds[slot]);
+    }
+
+    String destination(int slot) {
+        return stations.value(columns.destinationIds[slot]);
+    }
+
+    int startMinute(int slot) {
+        return columns.startMinutes[slot];
+    }
+
+    int reachMinute(int slot) {
+        return columns.reachMinutes[slot];
+    }
+
+    int totalSeats(int slot) {
+        return columns.totalSeats[slot];
+    }
+
+    int balance(int slot) {
+        return columns.balances[slot];
+    }
+
+    int[] viaIds(int slot) {
+        return columns.viaIds[slot];
+    }
+
+    int viaCount(int slot) {
+        int[] ids = columns.viaIds[slot];
+        return ids == null ? 0 : ids.length;
+    }
+
+    String viaStop(int slot, int index) {
+        return stations.value(columns.viaIds[slot][index]);
+    }
+
+    String[] via(int slot) {
+        int[] ids = columns.viaIds[slot];
+        if (ids == null) {
+            return TrainSpec.NO_STOPS;
+        }
+        String[] via = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            via[i] = stations.value(ids[i]);
+        }
+        return via;
+    }
+}
+
+// One immutable version of the timetable: which slots are live, in timetable order, and the
+// indexes to search them. Liveness is a bitmap in chunks of 4096 slots with a running count of
+// live slots before each chunk, so row <-> slot lookups are a binary search plus a popcount.
+// A new version copies only the chunks its edits touch and shares the rest with the old one.
+// Column data and the append-only indexes are shared too; each version filters them by its own
+// bitmap, so readers never lock and never see a later edit.
+class TimetableSnapshot {
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_WORDS = 1 << (CHUNK_SHIFT - 6);
+    private static final long[] EMPTY_CHUNK = new long[CHUNK_WORDS];
+
+    private final long version;
+    private final TimetableStore store;
+    private final int slotLimit;
+    private final long[][] live;
+    private final int[] liveBefore; // live slots in the chunks before each chunk; the last entry is the total
+    private final StationIndex stationIndex;
+    private final TimeIndex timeIndex;
+    private JourneyPlanner planner;
+
+    private TimetableSnapshot(long version, TimetableStore store, int slotLimit, long[][] live,
+                              StationIndex stationIndex, TimeIndex timeIndex) {
+        this.version = version;
+        this.store = store;
+        this.slotLimit = slotLimit;
+        this.live = live;
+        this.stationIndex = stationIndex;
+        this.timeIndex = timeIndex;
+        liveBefore = new int[live.length + 1];
+        for (int chunk = 0; chunk < live.length; chunk++) {
+            int count = 0;
+            for (long word : live[chunk]) {
+                count += Long.bitCount(word);
+            }
+            liveBefore[chunk + 1] = liveBefore[chunk] + count;
+        }
+    }
+
+    static TimetableSnapshot empty(TimetableStore store) {
+        return new TimetableSnapshot(0, store, 0, new long[0][], new StationIndex(store), new TimeIndex());
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public int size() {
+        return liveBefore[live.length];
+    }
+
+    public boolean isLive(int slot) {
+        return slot < slotLimit && isSet(live, slot);
+    }
+
+    // The bitmap may end before slotLimit, as after Builder.clear(); slots past its end are not live
+    private static boolean isSet(long[][] live, int slot) {
+        int chunk = slot >>> CHUNK_SHIFT;
+        return chunk < live.length && (live[chunk][(slot >>> 6) & (CHUNK_WORDS - 1)] & (1L << slot)) != 0;
+    }
+
+    public int slotAt(int row) {
+        if (row < 0 || row >= size()) {
+            throw new IndexOutOfBoundsException("row " + row + " of " + size());
+        }
+        int low = 0;
+        int high = live.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (liveBefore[mid] <= row) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int remaining = row - liveBefore[low];
+        long[] words = live[low];
+        for (int w = 0; ; w++) {
+            int count = Long.bitCount(words[w]);
+            if (remaining < count) {
+                long word = words[w];
+                for (int i = 0; i < remaining; i++) {
+                    word &= word - 1;
+                }
+                return (low << CHUNK_SHIFT) + (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            remaining -= count;
+        }
+    }
+
+    // Row of the slot in timetable order, or -1 if it is not live in this version
+    public int rowOf(int slot) {
+        if (!isLive(slot)) {
+            return -1;
+        }
+        long[] words = live[slot >>> CHUNK_SHIFT];
+        int word = (slot >>> 6) & (CHUNK_WORDS - 1);
+        int row = liveBefore[slot >>> CHUNK_SHIFT];
+        for (int w = 0; w < word; w++) {
+            row += Long.bitCount(words[w]);
+        }
+        return row + Long.bitCount(words[word] & ((1L << slot) - 1));
+    }
+
+    public Train trainAt(int row) {
+        return store.train(slotAt(row));
+    }
+
+    public List<Train> trains() {
+        List<Train> trains = new ArrayList<>(size());
+        for (int slot : liveSlots()) {
+            trains.add(store.train(slot));
+        }
+        return trains;
+    }
+
+    // Live slots in timetable order
+    int[] liveSlots() {
+        int[] slots = new int[size()];
+        int count = 0;
+        for (int chunk = 0; chunk < live.length; chunk++) {
+            for (int w = 0; w < CHUNK_WORDS; w++) {
+                long word = live[chunk][w];
+                while (word != 0) {
+                    slots[count++] = (chunk << CHUNK_SHIFT) + (w << 6) + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+        }
+        return slots;
+    }
+
+    // Keeps the slots live in this version, in place; returns how many were kept
+    int retainLive(int[] slots, int count) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (isLive(slots[i])) {
+                slots[kept++] = slots[i];
+            }
+        }
+        return kept;
+    }
+
+    public List<Train> search(String sourceText, String destinationText, TimeWindow departing, TimeWindow arriving) {
+        int[] slots = searchSlots(sourceText, destinationText, departing, arriving);
+        List<Train> trains = new ArrayList<>(slots.length);
+        for (int slot : slots) {
+            trains.add(store.train(slot));
+        }
+        return trains;
+    }
+
+    // Slots of the trains search would return, in timetable order, without materializing them
+    int[] searchSlots(String sourceText, String destinationText, TimeWindow departing, TimeWindow arriving) {
+        long started = System.nanoTime();
+        int[] slots = StationIndex.normalize(sourceText).isEmpty() && StationIndex.normalize(destinationText).isEmpty()
+                ? liveSlots() : stationIndex.search(this, sourceText, destinationText);
+        if (departing != null) {
+            slots = StationIndex.intersect(slots, timeIndex.departing(this, departing));
+        }
+        if (arriving != null) {
+            slots = StationIndex.intersect(slots, timeIndex.arriving(this, arriving));
+        }
+        Metrics.SEARCH.record(System.nanoTime() - started);
+        return slots;
+    }
+
+    Train train(int slot) {
+        return store.train(slot);
+    }
+
+    public Train findExact(String source, String destination) {
+        int slot = stationIndex.findExact(this, source, destination);
+        return slot < 0 ? null : store.train(slot);
+    }
+
+    // First train calling at source and later at destination, either possibly an intermediate stop; null if none
+    public Train findServing(String source, String destination) {
+        int slot = stationIndex.findServing(this, source, destination);
+        return slot < 0 ? null : store.train(slot);
+    }
+
+    // The train with the given number, or null
+    public Train findByNumber(int trainNumber) {
+        int slot = slotOf(trainNumber);
+        return slot < 0 ? null : store.train(slot);
+    }
+
+    // Live slot of the train number in this version, or -1. Numbers are unique among live trains and a
+    // deleted slot never comes back, so the newest slot this version knows of is the only candidate.
+    int slotOf(int trainNumber) {
+        int slot = store.newestSlot(trainNumber);
+        while (slot >= slotLimit) {
+            slot = store.previousSlot(slot);
+        }
+        return slot >= 0 && isLive(slot) ? slot : -1;
+    }
+
+    // Journey planner over this version, built on first use
+    public synchronized JourneyPlanner planner() {
+        if (planner == null) {
+            planner = new JourneyPlanner(store, liveSlots());
+        }
+        return planner;
+    }
+
+    Builder edit() {
+        return new Builder(this);
+    }
+
+    // Accumulates the edits for the next version. Chunks are copied the first time a batch touches them.
+    // Slots added here must also be added to the indexes, which the builder hands on unchanged unless
+    // reindex() swaps in fresh ones.
+    static class Builder {
+        private final TimetableSnapshot base;
+        private long[][] live;
+        private boolean[] owned; // chunks this batch allocated or copied, so it may write them
+        private int slotLimit;
+        private StationIndex stationIndex;
+        private TimeIndex timeIndex;
+
+        private Builder(TimetableSnapshot base) {
+            this.base = base;
+            this.live = base.live.clone();
+            this.owned = new boolean[live.length];
+            this.slotLimit = base.slotLimit;
+            this.stationIndex = base.stationIndex;
+            this.timeIndex = base.timeIndex;
+        }
+
+        boolean isLive(int slot) {
+            return slot < slotLimit && isSet(live, slot);
+        }
+
+        // Live slot of the train number with this batch's edits applied, or -1
+        int slotOf(int trainNumber) {
+            int slot = base.store.newestSlot(trainNumber);
+            return slot >= 0 && isLive(slot) ? slot : -1;
+        }
+
+        // Marks a newly allocated slot live; slots must be added in allocation order
+        void add(int slot) {
+            writable(slot >>> CHUNK_SHIFT)[(slot >>> 6) & (CHUNK_WORDS - 1)] |= 1L << slot;
+            slotLimit = slot + 1;
+            stationIndex.add(slot);
+            timeIndex.add(base.store, slot);
+        }
+
+        void remove(int slot) {
+            if (isLive(slot)) {
+                writable(slot >>> CHUNK_SHIFT)[(slot >>> 6) & (CHUNK_WORDS - 1)] &= ~(1L << slot);
+            }
+        }
+
+        private long[] writable(int chunk) {
+            if (chunk >= live.length) {
+                int chunks = live.length;
+                live = Arrays.copyOf(live, chunk + 1);
+                Arrays.fill(live, chunks, live.length, EMPTY_CHUNK);
+                owned = Arrays.copyOf(owned, live.length);
+            }
+            if (!owned[chunk]) {
+                live[chunk] = live[chunk].clone();
+                owned[chunk] = true;
+            }
+            return live[chunk];
+        }
+
+        // Drops every live slot and starts the indexes afresh, e.g. before loading a whole new timetable
+        void clear() {
+            live = new long[0][];
+            owned = new boolean[0];
+            stationIndex = new StationIndex(base.store);
+            timeIndex = new TimeIndex();
+        }
+
+        // Rebuilds the indexes over the live slots only, shedding postings of deleted trains
+        void reindex() {
+            TimetableSnapshot current = build();
+            stationIndex = new StationIndex(base.store);
+            timeIndex = new TimeIndex();
+            for (int slot : current.liveSlots()) {
+                stationIndex.add(slot);
+                timeIndex.add(base.store, slot);
+            }
+        }
+
+        TimetableSnapshot build() {
+            return new TimetableSnapshot(base.version + 1, base.store, slotLimit, live, stationIndex, timeIndex);
+        }
+    }
+}
+
+// Search index over train source and destination stations.
+// Station names are normalized once, exact source/destination pairs are a hash lookup,
+// and substring queries go through an n-gram index built over the distinct station names.
+// Postings hold store slots, which are allocated in timetable order. The index is append-only:
+// one writer adds slots while readers search without locking, keeping only the slots live in
+// their TimetableSnapshot, so deleted trains simply stop matching.
+class StationIndex {
+    private static final int GRAM_LENGTH = 3;
+
+    private final TimetableStore store;
+
+    // Normalized station names get their own ids; differently-cased dictionary entries share one.
+    // An id is put in normalizedIds only after its name and postings exist, which publishes them.
+    private final Map<String, Integer> normalizedIds = new ConcurrentHashMap<>();
+    private volatile String[] normalizedNames = new String[64];
+    private int[] normalizedOf = new int[64]; // dictionary station id -> normalized id + 1; writer only
+
+    private volatile AppendOnlyIntList[] bySource = new AppendOnlyIntList[64];
+    private volatile AppendOnlyIntList[] byDestination = new AppendOnlyIntList[64];
+    private volatile AppendOnlyIntList[] byVia = new AppendOnlyIntList[64]; // trains calling at the station on the way
+    private final Map<Long, AppendOnlyIntList> byPair = new ConcurrentHashMap<>();
+    // n-gram (length 1..GRAM_LENGTH) -> normalized station ids containing it
+    private final Map<String, AppendOnlyIntList> grams = new ConcurrentHashMap<>();
+
+    public StationIndex(TimetableStore store) {
+        this.store = store;
+    }
+
+    static String normalize(String station) {
+        return station == null ? "" : station.trim().toLowerCase(Locale.ROOT);
+    }
+
+    // Adds a newly allocated slot; callers serialize adds
+    public void add(int slot) {
+        int source = normalizedId(store.sourceId(slot));
+        int destination = normalizedId(store.destinationId(slot));
+        bySource[source].append(slot);
+        byDestination[destination].append(slot);
+        byPair.computeIfAbsent(pairKey(source, destination), key -> new AppendOnlyIntList()).append(slot);
+        int[] via = store.viaIds(slot);
+        if (via != null) {
+            for (int stop : via) {
+                byVia[normalizedId(stop)].append(slot);
+            }
+        }
+    }
+
+    // Slot of the first live train (in timetable order) running exactly from source to destination, or -1
+    public int findExact(TimetableSnapshot snapshot, String source, String destination) {
+        Integer sourceId = normalizedIds.get(normalize(source));
+        Integer destinationId = normalizedIds.get(normalize(destination));
+        if (sourceId == null || destinationId == null) {
+            return -1;
+        }
+        AppendOnlyIntList trains = byPair.get(pairKey(sourceId, destinationId));
+        if (trains == null) {
+            return -1;
+        }
+        int size = trains.size();
+        int[] slots = trains.elements();
+        for (int i = 0; i < size; i++) {
+            if (snapshot.isLive(slots[i])) {
+                return slots[i];
+            }
+        }
+        return -1;
+    }
+
+    // Slot of the first live train (in timetable order) that calls at source and later at destination,
+    // either of which may be an intermediate stop; -1 if there is none
+    public int findServing(TimetableSnapshot snapshot, String source, String destination) {
+        Integer sourceId = normalizedIds.get(normalize(source));
+        Integer destinationId = normalizedIds.get(normalize(destination));
+        if (sourceId == null || destinationId == null) {
+            return -1;
+        }
+        int[] boarding = union(bySource[sourceId], byVia[sourceId]);
+        int[] alighting = union(byVia[destinationId], byDestination[destinationId]);
+        for (int slot : intersect(boarding, alighting)) {
+            if (snapshot.isLive(slot)) {
+                Train train = store.train(slot);
+                int from = train.stopIndex(source, 0);
+                if (from >= 0 && train.stopIndex(destination, from + 1) > 0) {
+                    return slot;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Merges two postings, each already in slot order
+    private static int[] union(AppendOnlyIntList left, AppendOnlyIntList right) {
+        int leftSize = left.size();
+        int rightSize = right.size();
+        int[] a = left.elements();
+        int[] b = right.elements();
+        int[] merged = new int[leftSize + rightSize];
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i < leftSize || j < rightSize) {
+            if (j == rightSize || (i < leftSize && a[i] < b[j])) {
+                merged[count++] = a[i++];
+            } else if (i == leftSize || b[j] < a[i]) {
+                merged[count++] = b[j++];
+            } else {
+                merged[count++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(merged, count);
+    }
+
+    // Live slots of trains whose source contains sourceText and whose destination contains destinationText,
+    // in timetable order. An empty text matches every station.
+    public int[] search(TimetableSnapshot snapshot, String sourceText, String destinationText) {
+        String source = normalize(sourceText);
+        String destination = normalize(destinationText);
+
+        if (source.isEmpty() && destination.isEmpty()) {
+            return snapshot.liveSlots();
+        }
+        if (destination.isEmpty()) {
+            return collect(snapshot, bySource, matchingStations(source));
+        }
+        if (source.isEmpty()) {
+            return collect(snapshot, byDestination, matchingStations(destination));
+        }
+        return intersect(collect(snapshot, bySource, matchingStations(source)),
+                collect(snapshot, byDestination, matchingStations(destination)));
+    }
+
+    private int[] matchingStations(String text) {
+        if (text.length() <= GRAM_LENGTH) {
+            AppendOnlyIntList stations = grams.get(text);
+            return stations == null ? new int[0] : Arrays.copyOf(stations.elements(), stations.size());
+        }
+
+        // Intersect the postings of every trigram in the query, starting from the rarest,
+        // then verify the candidates since trigram hits do not imply a contiguous match.
+        AppendOnlyIntList smallest = null;
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            AppendOnlyIntList stations = grams.get(text.substring(i, i + GRAM_LENGTH));
+            if (stations == null) {
+                return new int[0];
+            }
+            if (smallest == null || stations.size() < smallest.size()) {
+                smallest = stations;
+            }
+        }
+        int size = smallest.size();
+        int[] candidates = smallest.elements();
+        String[] names = normalizedNames;
+        int[] matches = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (names[candidates[i]].contains(text)) {
+                matches[count++] = candidates[i];
+            }
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    // Union of the live postings of the given stations; each train has one source and one destination
+    // so the postings are disjoint and only need sorting back into timetable order
+    private static int[] collect(TimetableSnapshot snapshot, AppendOnlyIntList[] postings, int[] stations) {
+        int[] sizes = new int[stations.length];
+        int total = 0;
+        for (int i = 0; i < stations.length; i++) {
+            sizes[i] = postings[stations[i]].size();
+            total += sizes[i];
+        }
+        int[] slots = new int[total];
+        int count = 0;
+        for (int i = 0; i < stations.length; i++) {
+            System.arraycopy(postings[stations[i]].elements(), 0, slots, count, sizes[i]);
+            count += sizes[i];
+        }
+        count = snapshot.retainLive(slots, count);
+        if (stations.length > 1) {
+            Arrays.sort(slots, 0, count);
+        }
+        return Arrays.copyOf(slots, count);
+    }
+
+    static int[] intersect(int[] left, int[] right) {
+        int[] result = new int[Math.min(left.length, right.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < left.length && j < right.length) {
+            if (left[i] < right[j]) {
+                i++;
+            } else if (left[i] > right[j]) {
+                j++;
+            } else {
+                result[count++] = left[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private int normalizedId(int stationId) {
+        if (stationId >= normalizedOf.length) {
+            normalizedOf = Arrays.copyOf(normalizedOf, Math.max(stationId + 1, normalizedOf.length * 2));
+        }
+        if (normalizedOf[stationId] == 0) {
+            String name = normalize(store.stations().value(stationId));
+            Integer id = normalizedIds.get(name);
+            if (id == null) {
+                id = normalizedIds.size();
+                if (id >= bySource.length) {
+                    int capacity = bySource.length * 2;
+                    normalizedNames = Arrays.copyOf(normalizedNames, capacity);
+                    bySource = Arrays.copyOf(bySource, capacity);
+                    byDestination = Arrays.copyOf(byDestination, capacity);
+                    byVia = Arrays.copyOf(byVia, capacity);
+                }
+                normalizedNames[id] = name;
+                bySource[id] = new AppendOnlyIntList();
+                byDestination[id] = new AppendOnlyIntList();
+                byVia[id] = new AppendOnlyIntList();
+                for (String gram : gramsOf(name)) {
+                    grams.computeIfAbsent(gram, key -> new AppendOnlyIntList()).append(id);
+                }
+                normalizedIds.put(name, id);
+            }
+            normalizedOf[stationId] = id + 1;
+        }
+        return normalizedOf[stationId] - 1;
+    }
+
+    private static Set<String> gramsOf(String station) {
+        Set<String> result = new LinkedHashSet<>();
+        for (int length = 1; length <= GRAM_LENGTH; length++) {
+            for (int i = 0; i + length <= station.length(); i++) {
+                result.add(station.substring(i, i + length));
+            }
+        }
+        return result;
+    }
+
+    private static long pairKey(int source, int destination) {
+        return ((long) source << 32) | destination;
+    }
+}
+
+// Inclusive range of clock times in minutes past midnight. A window whose start is after its end
+// wraps past midnight, so 22:00-02:00 covers late evening and early morning.
+class TimeWindow {
+    static final TimeWindow ALL_DAY = new TimeWindow(0, 24 * 60 - 1);
+
+    final int from;
+    final int to;
+
+    public TimeWindow(int from, int to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    // Parses "HH:mm" bounds; an empty bound is open, so ("", "10:00") means at or before 10:00
+    static TimeWindow parse(String from, String to) {
+        from = from == null ? "" : from.trim();
+        to = to == null ? "" : to.trim();
+        return new TimeWindow(from.isEmpty() ? ALL_DAY.from : TrainSpec.parseTime(from),
+                to.isEmpty() ? ALL_DAY.to : TrainSpec.parseTime(to));
+    }
+
+    boolean wraps() {
+        return from > to;
+    }
+}
+
+// Index of trains by departure and arrival clock time: for each end, a sorted set of (minute << 32 | slot)
+// keys. A window is one range of keys, or two when it wraps past midnight, found by an O(log n) descent
+// of the skip list and then read off in order, so a query costs O(log n + k) for k matches before they
+// are put in timetable order. Arrivals are indexed by clock time, so an overnight train departing 16:35
+// and arriving 08:35 matches "arriving before 10:00". Like StationIndex it only grows and readers
+// filter by their snapshot; the skip list lets them read while the writer adds.
+class TimeIndex {
+    private static final int MINUTES = 24 * 60;
+
+    private final ConcurrentSkipListSet<Long> byDeparture = new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListSet<Long> byArrival = new ConcurrentSkipListSet<>();
+
+    // Adds a newly allocated slot; callers serialize adds
+    public void add(TimetableStore store, int slot) {
+        byDeparture.add(key(store.startMinute(slot), slot));
+        byArrival.add(key(store.reachMinute(slot), slot));
+    }
+
+    // Live slots of trains departing within the window, in timetable order
+    public int[] departing(TimetableSnapshot snapshot, TimeWindow window) {
+        return range(snapshot, byDeparture, window);
+    }
+
+    // Live slots of trains arriving within the window, in timetable order
+    public int[] arriving(TimetableSnapshot snapshot, TimeWindow window) {
+        return range(snapshot, byArrival, window);
+    }
+
+    private static long key(int minute, int slot) {
+        return (long) minute << 32 | slot;
+    }
+
+    private static int[] range(TimetableSnapshot snapshot, ConcurrentSkipListSet<Long> keys, TimeWindow window) {
+        List<Long> matches = new ArrayList<>();
+        if (window.wraps()) {
+            matches.addAll(keys.subSet(key(window.from, 0), key(MINUTES, 0)));
+            matches.addAll(keys.headSet(key(window.to + 1, 0)));
+        } else {
+            matches.addAll(keys.subSet(key(window.from, 0), key(window.to + 1, 0)));
+        }
+        int[] slots = new int[matches.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = (int) matches.get(i).longValue();
+        }
+        int count = snapshot.retainLive(slots, slots.length);
+        Arrays.sort(slots, 0, count);
+        return Arrays.copyOf(slots, count);
+    }
+}
+
+// Seats of one train as per-coach bitmaps over the segments of its route, segment i running from
+// stop i to stop i + 1. Each division's seats are laid out in coaches of COACH_SEATS, and word
+// [coach * segments + segment] has bit s set while seat s of the coach is taken on that segment,
+// so the seats free for a sub-journey are the complement of a few ORed words per coach.
+// Seat numbers are relative to the division: seat n sits in coach n / COACH_SEATS.
+class SeatMap {
+    static final int COACH_SEATS = Long.SIZE;
+
+    private final int segments;
+    private final int[] capacity;   // seats per division
+    private final int[] firstCoach; // per division, then the total number of coaches
+    private final long[] taken;
+    private boolean retired;
+
+    SeatMap(int segments, int[] capacity) {
+        this.segments = segments;
+        this.capacity = capacity.clone();
+        firstCoach = new int[capacity.length + 1];
+        for (int division = 0; division < capacity.length; division++) {
+            firstCoach[division + 1] = firstCoach[division] + (capacity[division] + COACH_SEATS - 1) / COACH_SEATS;
+        }
+        taken = new long[firstCoach[capacity.length] * segments];
+    }
+
+    // A map restored from the words of an earlier one with the same layout
+    SeatMap(int segments, int[] capacity, long[] words) {
+        this(segments, capacity);
+        if (words.length != taken.length) {
+            throw new IllegalArgumentException("Expected " + taken.length + " seat words, got " + words.length);
+        }
+        System.arraycopy(words, 0, taken, 0, words.length);
+    }
+
+    // Takes count seats free from stop from to stop to, or returns null if there are not enough.
+    // Prefers the smallest run of adjacent free seats in one coach that fits, and among equal runs
+    // the one whose seats are taken just before and after the journey, so sub-journeys fill the
+    // gaps left by others and long stretches stay free for long journeys. If no coach has a run
+    // that long, the lowest free seats of the division are taken instead.
+    synchronized int[] allocate(int division, int from, int to, int count) {
+        if (retired) {
+            return null;
+        }
+        int bestCoach = -1;
+        int bestStart = 0;
+        int bestWaste = Integer.MAX_VALUE;
+        int bestAdjacent = -1;
+        int free = 0;
+        for (int coach = firstCoach[division]; coach < firstCoach[division + 1]; coach++) {
+            long open = free(division, coach, from, to);
+            free += Long.bitCount(open);
+            if (count > COACH_SEATS || Long.bitCount(open) < count) {
+                continue;
+            }
+            int base = coach * segments;
+            long neighbours = (from > 0 ? taken[base + from - 1] : 0) | (to < segments ? taken[base + to] : 0);
+            long rest = open;
+            while (rest != 0) {
+                int start = Long.numberOfTrailingZeros(rest);
+                int length = Long.numberOfTrailingZeros(~(rest >>> start));
+                if (length >= count) {
+                    int waste = length - count;
+                    int adjacent = Long.bitCount((run(count) << start) & neighbours);
+                    if (waste < bestWaste || (waste == bestWaste && adjacent > bestAdjacent)) {
+                        bestCoach = coach;
+                        bestStart = start;
+                        bestWaste = waste;
+                        bestAdjacent = adjacent;
+                    }
+                }
+                rest &= ~(run(length) << start);
+            }
+            if (bestWaste == 0 && bestAdjacent == count) {
+                break;
+            }
+        }
+        if (bestCoach >= 0) {
+            mark(bestCoach, from, to, run(count) << bestStart, true);
+            int[] seats = new int[count];
+            for (int i = 0; i < count; i++) {
+                seats[i] = (bestCoach - firstCoach[division]) * COACH_SEATS + bestStart + i;
+            }
+            return seats;
+        }
+        if (free < count) {
+            return null;
+        }
+        int[] seats = new int[count];
+        int found = 0;
+        for (int coach = firstCoach[division]; found < count; coach++) {
+            long open = free(division, coach, from, to);
+            long chosen = 0;
+            while (open != 0 && found < count) {
+                long seat = Long.lowestOneBit(open);
+                chosen |= seat;
+                open &= ~seat;
+                seats[found++] = (coach - firstCoach[division]) * COACH_SEATS + Long.numberOfTrailingZeros(seat);
+            }
+            mark(coach, from, to, chosen, true);
+        }
+        return seats;
+    }
+
+    // Marks the given seats taken, as when replaying a booking; false if the map was retired
+    synchronized boolean occupy(int division, int from, int to, int[] seats) {
+        return !retired && markSeats(division, from, to, seats, true);
+    }
+
+    // Frees the given seats; false if the map was retired and they belong to the replacement
+    synchronized boolean release(int division, int from, int to, int[] seats) {
+        return !retired && markSeats(division, from, to, seats, false);
+    }
+
+    // Frees the lowest count seats taken over the whole journey, for bookings that predate seat numbers
+    synchronized boolean releaseAny(int division, int from, int to, int count) {
+        if (retired) {
+            return false;
+        }
+        for (int coach = firstCoach[division]; coach < firstCoach[division + 1] && count > 0; coach++) {
+            long held = valid(division, coach);
+            for (int segment = from; segment < to; segment++) {
+                held &= taken[coach * segments + segment];
+            }
+            long chosen = 0;
+            while (held != 0 && count > 0) {
+                chosen |= Long.lowestOneBit(held);
+                held &= held - 1;
+                count--;
+            }
+            mark(coach, from, to, chosen, false);
+        }
+        return true;
+    }
+
+    // Seats of the division free from stop from to stop to
+    synchronized int available(int division, int from, int to) {
+        int free = 0;
+        for (int coach = firstCoach[division]; coach < firstCoach[division + 1]; coach++) {
+            free += Long.bitCount(free(division, coach, from, to));
+        }
+        return free;
+    }
+
+    // Sum over every seat of the segments it is sold for
+    synchronized long soldSeatSegments() {
+        long sold = 0;
+        for (long word : taken) {
+            sold += Long.bitCount(word);
+        }
+        return sold;
+    }
+
+    synchronized long[] words() {
+        return taken.clone();
+    }
+
+    synchronized boolean isRetired() {
+        return retired;
+    }
+
+    // Retires this map and copies its sales onto the replacement map of an updated train. A seat keeps
+    // its number, and each stretch it is sold for is carried over between the same stations; if the
+    // replacement no longer calls at them, the seat is held for its whole route.
+    synchronized void retireInto(SeatMap replacement, Train from, Train to) {
+        retired = true;
+        for (int division = 0; division < capacity.length && division < replacement.capacity.length; division++) {
+            int seats = Math.min(capacity[division], replacement.capacity[division]);
+            for (int seat = 0; seat < seats; seat++) {
+                int base = (firstCoach[division] + seat / COACH_SEATS) * segments;
+                long bit = 1L << (seat % COACH_SEATS);
+                int segment = 0;
+                while (segment < segments) {
+                    if ((taken[base + segment] & bit) == 0) {
+                        segment++;
+                        continue;
+                    }
+                    int end = segment;
+                    while (end < segments && (taken[base + end] & bit) != 0) {
+                        end++;
+                    }
+                    int first = to.stopIndex(from.stop(segment), 0);
+                    int last = first < 0 ? -1 : to.stopIndex(from.stop(end), first + 1);
+                    int[] one = {seat};
+                    if (last < 0) {
+                        replacement.markSeats(division, 0, replacement.segments, one, true);
+                    } else {
+                        replacement.markSeats(division, first, last, one, true);
+                    }
+                    segment = end;
+                }
+            }
+        }
+    }
+
+    // A map that sells nothing, for trains that were deleted or replaced
+    static SeatMap closed(int divisions, boolean retired) {
+        SeatMap map = new SeatMap(1, new int[divisions]);
+        map.retired = retired;
+        return map;
+    }
+
+    private boolean markSeats(int division, int from, int to, int[] seats, boolean take) {
+        for (int seat : seats) {
+            if (seat >= 0 && seat < capacity[division]) {
+                mark(firstCoach[division] + seat / COACH_SEATS, from, to, 1L << (seat % COACH_SEATS), take);
+            }
+        }
+        return true;
+    }
+
+    private void mark(int coach, int from, int to, long seats, boolean take) {
+        int base = coach * segments;
+        for (int segment = from; segment < to; segment++) {
+            taken[base + segment] = take ? taken[base + segment] | seats : taken[base + segment] & ~seats;
+        }
+    }
+
+    private long free(int division, int coach, int from, int to) {
+        int base = coach * segments;
+        long used = 0;
+        for (int segment = from; segment < to; segment++) {
+            used |= taken[base + segment];
+        }
+        return ~used & valid(division, coach);
+    }
+
+    // Seats that exist in the coach; the last coach of a division may be partly filled
+    private long valid(int division, int coach) {
+        return run(Math.min(COACH_SEATS, capacity[division] - (coach - firstCoach[division]) * COACH_SEATS));
+    }
+
+    private static long run(int length) {
+        return length >= COACH_SEATS ? -1L : (1L << length) - 1;
+    }
+}
+
+// Seat inventory owning a SeatMap per train. A train's map is created on its first sale, so
+// unsold trains cost one null reference; until then every seat of its route is free.
+// A booking claims its seats under the lock of that train's map alone, so bookings on different
+// trains never contend, and it either gets all of its seats or none of them.
+// Maps live in chunked arrays indexed by timetable slot.
+class SeatInventory {
+    static final String[] DIVISIONS = {"1st Class", "2nd Class", "3rd Class"};
+    static final String[] DIVISION_CODES = {"A", "B", "C"};
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SLOTS = 1 << CHUNK_BITS;
+
+    private static final SeatMap RETIRED = SeatMap.closed(DIVISIONS.length, true); // train replaced by an update
+    private static final SeatMap CLOSED = SeatMap.closed(DIVISIONS.length, false); // train deleted
+
+    private volatile List<AtomicReferenceArray<SeatMap>> chunks = Collections.emptyList();
+
+    static int divisionOf(String division) {
+        for (int i = 0; i < DIVISIONS.length; i++) {
+            if (DIVISIONS[i].equalsIgnoreCase(division)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown division: " + division);
+    }
+
+    // Coach and seat, e.g. "B3-12" for seat 12 of the third 2nd Class coach
+    static String seatLabel(int division, int seat) {
+        return DIVISION_CODES[division] + (seat / SeatMap.COACH_SEATS + 1) + "-" + (seat % SeatMap.COACH_SEATS + 1);
+    }
+
+    // Segments from source to destination along the train's stops, as {from, to}; the whole route
+    // if the train does not call at both in that order
+    static int[] segments(Train train, String source, String destination) {
+        int from = train.stopIndex(source, 0);
+        int to = from < 0 ? -1 : train.stopIndex(destination, from + 1);
+        return to < 0 ? new int[] {0, train.stopCount() - 1} : new int[] {from, to};
+    }
+
+    // Opens every seat of the train, its balance split evenly across the divisions
+    public void register(Train train) {
+        ensureChunk(train.slot()).set(index(train.slot()), null);
+    }
+
+    // Seats of each division: the balance split evenly, earlier divisions taking the remainder
+    private static int[] shares(Train train) {
+        int share = train.balance() / DIVISIONS.length;
+        int remainder = train.balance() % DIVISIONS.length;
+        int[] values = new int[DIVISIONS.length];
+        for (int i = 0; i < DIVISIONS.length; i++) {
+            values[i] = share + (i < remainder ? 1 : 0);
+        }
+        return values;
+    }
+
+    public void unregister(Train train) {
+        ensureChunk(train.slot()).set(index(train.slot()), CLOSED);
+    }
+
+    // Moves a train's sales onto its replacement. The old train is retired, so a reserve or release
+    // racing with the move fails there and the caller retries on the replacement.
+    public void transfer(Train from, Train to) {
+        AtomicReferenceArray<SeatMap> chunk = ensureChunk(from.slot());
+        int index = index(from.slot());
+        SeatMap old = chunk.get(index);
+        while (old == null && !chunk.compareAndSet(index, null, RETIRED)) {
+            old = chunk.get(index);
+        }
+        SeatMap replacement = null;
+        if (old != null) {
+            replacement = new SeatMap(to.stopCount() - 1, shares(to));
+            old.retireInto(replacement, from, to);
+            chunk.set(index, RETIRED);
+        }
+        ensureChunk(to.slot()).set(index(to.slot()), replacement);
+    }
+
+    // Claims count seats in the division from stop from to stop to, all or nothing; returns the seat
+    // numbers, or null if there are not enough free seats or an update retired the train
+    public int[] reserve(Train train, int division, int from, int to, int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Seat count must be positive: " + count);
+        }
+        SeatMap map = map(train, true);
+        return map == null ? null : map.allocate(division, from, to, count);
+    }
+
+    // Marks seats taken by a booking being replayed from the journal
+    public void occupy(Train train, int division, int from, int to, int[] seats) {
+        SeatMap map = map(train, true);
+        if (map != null) {
+            map.occupy(division, from, to, seats);
+        }
+    }
+
+    // Returns the seats to the division; false if an update retired the train and they belong on its
+    // replacement. A null seats array frees any count seats, for bookings made before seat numbers.
+    public boolean release(Train train, int division, int from, int to, int[] seats, int count) {
+        SeatMap map = map(train, false);
+        if (map == null) {
+            return true;
+        }
+        return seats == null ? map.releaseAny(division, from, to, count) : map.release(division, from, to, seats);
+    }
+
+    // Whether an update replaced the train, so its seats are now counted on the replacement
+    public boolean isRetired(Train train) {
+        SeatMap map = map(train, false);
+        return map != null && map.isRetired();
+    }
+
+    // Seats the division has in all
+    public int capacity(Train train, int division) {
+        return shares(train)[division];
+    }
+
+    // Seats of the division free from stop from to stop to
+    public int available(Train train, int division, int from, int to) {
+        SeatMap map = map(train, false);
+        return map == null ? shares(train)[division] : map.available(division, from, to);
+    }
+
+    // Seats of the division free for the whole route
+    public int available(Train train, int division) {
+        return available(train, division, 0, train.stopCount() - 1);
+    }
+
+    public int available(Train train) {
+        int total = 0;
+        for (int i = 0; i < DIVISIONS.length; i++) {
+            total += available(train, i);
+        }
+        return total;
+    }
+
+    // Sum over the train's seats of the segments each is sold for
+    public long soldSeatSegments(Train train) {
+        SeatMap map = map(train, false);
+        return map == null ? 0 : map.soldSeatSegments();
+    }
+
+    // The train's seat words for a snapshot, or null if it has sold nothing
+    public long[] seatWords(Train train) {
+        SeatMap map = map(train, false);
+        return map == null ? null : map.words();
+    }
+
+    // Restores the seat words saved by seatWords
+    public void restore(Train train, long[] words) {
+        ensureChunk(train.slot()).set(index(train.slot()), words == null ? null
+                : new SeatMap(train.stopCount() - 1, shares(train), words));
+    }
+
+    // Restores per-division counts of open seats from a snapshot taken before seats were numbered:
+    // the seats sold are taken from the lowest numbers, for the whole route
+    public void restoreCounters(Train train, int[] available) {
+        register(train);
+        int[] shares = shares(train);
+        for (int division = 0; division < available.length && division < DIVISIONS.length; division++) {
+            int sold = shares[division] - Math.max(0, available[division]);
+            if (sold > 0) {
+                int[] seats = new int[sold];
+                for (int seat = 0; seat < sold; seat++) {
+                    seats[seat] = seat;
+                }
+                occupy(train, division, 0, train.stopCount() - 1, seats);
+            }
+        }
+    }
+
+    // The train's map; created on first use if create is set, otherwise null while nothing is sold
+    private SeatMap map(Train train, boolean create) {
+        List<AtomicReferenceArray<SeatMap>> current = chunks;
+        int chunk = train.slot() >>> CHUNK_BITS;
+        if (chunk >= current.size()) {
+            return null;
+        }
+        AtomicReferenceArray<SeatMap> maps = current.get(chunk);
+        int index = index(train.slot());
+        SeatMap map = maps.get(index);
+        while (map == null && create) {
+            SeatMap fresh = new SeatMap(train.stopCount() - 1, shares(train));
+            map = maps.compareAndSet(index, null, fresh) ? fresh : maps.get(index);
+        }
+        return map;
+    }
+
+    private synchronized AtomicReferenceArray<SeatMap> ensureChunk(int slot) {
+        int chunk = slot >>> CHUNK_BITS;
+        if (chunk >= chunks.size()) {
+            List<AtomicReferenceArray<SeatMap>> grown = new ArrayList<>(chunks);
+            while (grown.size() <= chunk) {
+                grown.add(new AtomicReferenceArray<>(CHUNK_SLOTS));
+            }
+            chunks = grown;
+        }
+        return chunks.get(chunk);
+    }
+
+    private static int index(int slot) {
+        return slot & (CHUNK_SLOTS - 1);
+    }
+}
+
+// Passenger travelling on a booking
+class Passenger {
+    final String name;
+    final int age;
+
+    public Passenger(String name, int age) {
+        this.name = name;
+        this.age = age;
+    }
+}
+
+// Booking request as submitted by the Book Ticket screen or a headless caller
+class BookingRequest {
+    final String source;
+    final String destination;
+    final String division;
+    final int seats;
+    final List<Passenger> passengers;
+
+    public BookingRequest(String source, String destination, String division, int seats, List<Passenger> passengers) {
+        this.source = source;
+        this.destination = destination;
+        this.division = division;
+        this.seats = seats;
+        this.passengers = passengers;
+    }
+}
+
+// Outcome of a booking attempt
+class BookingResult {
+    // UNAVAILABLE: in a cluster, no node holding the train answered, or none of its backups could keep the booking.
+    // WAITLISTED: too few seats, so the request joined the train's waitlist and is booked when seats free up.
+    enum Status { CONFIRMED, NO_TRAIN, INSUFFICIENT_SEATS, INVALID, UNAVAILABLE, WAITLISTED }
+
+    final Status status;
+    final String message;
+    final long bookingId;
+    final Train train;
+    // One booking id per leg of a journey; just bookingId for a direct train
+    final long[] legBookingIds;
+    final long waitlistId;      // for WAITLISTED; 0 otherwise
+    final int waitlistPosition; // for WAITLISTED, 1 being next; 0 otherwise
+
+    private BookingResult(Status status, String message, long[] legBookingIds, Train train, long waitlistId, int waitlistPosition) {
+        this.status = status;
+        this.message = message;
+        this.bookingId = legBookingIds.length == 0 ? -1 : legBookingIds[0];
+        this.train = train;
+        this.legBookingIds = legBookingIds;
+        this.waitlistId = waitlistId;
+        this.waitlistPosition = waitlistPosition;
+    }
+
+    static BookingResult confirmed(long[] legBookingIds, Train train, String seats) {
+        return new BookingResult(Status.CONFIRMED, seats.isEmpty() ? "Booking Successful!" : "Booking Successful! Seats: " + seats,
+                legBookingIds, train, 0, 0);
+    }
+
+    static BookingResult waitlisted(long waitlistId, Train train, int position) {
+        return new BookingResult(Status.WAITLISTED, "Waitlisted at position " + position + " (waitlist id " + waitlistId + ")",
+                new long[0], train, waitlistId, position);
+    }
+
+    static BookingResult rejected(Status status, String message) {
+        return new BookingResult(status, message, new long[0], null, 0, 0);
+    }
+
+    boolean isConfirmed() {
+        return status == Status.CONFIRMED;
+    }
+}
+
+// Structured booking as written to the journal; toString() gives the booking history line
+class Booking {
+    final long id;
+    final int trainNumber;
+    final String source;
+    final String destination;
+    final int division;
+    final List<Passenger> passengers;
+    final long timestamp;
+    final int[] seatNumbers; // one per passenger within the division; null for bookings made before seats were numbered
+    final long waitlistId;   // the waitlist entry this booking was promoted from; 0 if it was booked directly
+
+    public Booking(long id, int trainNumber, String source, String destination, int division, List<Passenger> passengers, long timestamp) {
+        this(id, trainNumber, source, destination, division, passengers, timestamp, null);
+    }
+
+    public Booking(long id, int trainNumber, String source, String destination, int division, List<Passenger> passengers,
+                   long timestamp, int[] seatNumbers) {
+        this(id, trainNumber, source, destination, division, passengers, timestamp, seatNumbers, 0);
+    }
+
+    public Booking(long id, int trainNumber, String source, String destination, int division, List<Passenger> passengers,
+                   long timestamp, int[] seatNumbers, long waitlistId) {
+        this.id = id;
+        this.trainNumber = trainNumber;
+        this.source = source;
+        this.destination = destination;
+        this.division = division;
+        this.passengers = passengers;
+        this.timestamp = timestamp;
+        this.seatNumbers = seatNumbers;
+        this.waitlistId = waitlistId;
+    }
+
+    int seats() {
+        return passengers.size();
+    }
+
+    // Seat labels such as "B3-12", comma separated; empty if the seats were not numbered
+    String seatLabels() {
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; seatNumbers != null && i < seatNumbers.length; i++) {
+            labels.append(i == 0 ? "" : ", ").append(SeatInventory.seatLabel(division, seatNumbers[i]));
+        }
+        return labels.toString();
+    }
+
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + passengers.size() * 24);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(id);
+            out.writeInt(trainNumber);
+            BookingJournal.writeString(out, source);
+            BookingJournal.writeString(out, destination);
+            out.writeByte(division);
+            out.writeLong(timestamp);
+            out.writeInt(passengers.size());
+            for (Passenger passenger : passengers) {
+                BookingJournal.writeString(out, passenger.name);
+                out.writeInt(passenger.age);
+            }
+            if (seatNumbers != null) {
+                for (int seat : seatNumbers) {
+                    out.writeInt(seat);
+                }
+                if (waitlistId != 0) {
+                    out.writeLong(waitlistId);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Booking decode(ByteBuffer in) {
+        long id = in.getLong();
+        int trainNumber = in.getInt();
+        String source = BookingJournal.readString(in);
+        String destination = BookingJournal.readString(in);
+        int division = in.get();
+        long timestamp = in.getLong();
+        int count = in.getInt();
+        List<Passenger> passengers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = BookingJournal.readString(in);
+            passengers.add(new Passenger(name, in.getInt()));
+        }
+        // records written before seats were numbered end after the passengers; only promoted bookings go on
+        // to the waitlist id
+        int[] seatNumbers = null;
+        long waitlistId = 0;
+        if (in.hasRemaining()) {
+            seatNumbers = new int[count];
+            for (int i = 0; i < count; i++) {
+                seatNumbers[i] = in.getInt();
+            }
+            if (in.remaining() >= Long.BYTES) {
+                waitlistId = in.getLong();
+            }
+        }
+        return new Booking(id, trainNumber, source, destination, division, passengers, timestamp, seatNumbers, waitlistId);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder record = new StringBuilder();
+        for (Passenger passenger : passengers) {
+            record.append("Name: ").append(passenger.name).append(", Age: ").append(passenger.age).append(", ");
+        }
+        return record + "Source: " + source + ", Destination: " + destination
+                + ", Division: " + SeatInventory.DIVISIONS[division] + ", Seats: " + seats()
+                + (seatNumbers == null ? "" : " (" + seatLabels() + ")");
+    }
+}
+
+// Ordered set of long keys in a treap whose nodes count their subtrees, so besides adding, removing and
+// finding the smallest key it tells how many keys are smaller than a given one; each in O(log n) expected time.
+class RankedQueue {
+    private static final class Node {
+        final long key;
+        final int weight; // heap order; random, which keeps the tree balanced in expectation
+        int size = 1;
+        Node left;
+        Node right;
+
+        Node(long key, int weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    private final SplittableRandom random = new SplittableRandom();
+    private Node root;
+
+    int size() {
+        return size(root);
+    }
+
+    boolean isEmpty() {
+        return root == null;
+    }
+
+    // Adds the key; false if it was already there
+    boolean add(long key) {
+        if (contains(key)) {
+            return false;
+        }
+        root = insert(root, new Node(key, random.nextInt()));
+        return true;
+    }
+
+    // Removes the key; false if it was not there
+    boolean remove(long key) {
+        int before = size(root);
+        root = delete(root, key);
+        return size(root) < before;
+    }
+
+    boolean contains(long key) {
+        Node node = root;
+        while (node != null && node.key != key) {
+            node = key < node.key ? node.left : node.right;
+        }
+        return node != null;
+    }
+
+    // The smallest key; the queue must not be empty
+    long first() {
+        Node node = root;
+        if (node == null) {
+            throw new IllegalStateException("Empty queue");
+        }
+        while (node.left != null) {
+            node = node.left;
+        }
+        return node.key;
+    }
+
+    // How many keys are smaller than key
+    int rank(long key) {
+        int smaller = 0;
+        Node node = root;
+        while (node != null) {
+            if (key <= node.key) {
+                node = node.left;
+            } else {
+                smaller += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return smaller;
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static Node resize(Node node) {
+        node.size = 1 + size(node.left) + size(node.right);
+        return node;
+    }
+
+    private static Node insert(Node node, Node fresh) {
+        if (node == null) {
+            return fresh;
+        }
+        if (fresh.key < node.key) {
+            node.left = insert(node.left, fresh);
+            return node.left.weight > node.weight ? rotateRight(node) : resize(node);
+        }
+        node.right = insert(node.right, fresh);
+        return node.right.weight > node.weight ? rotateLeft(node) : resize(node);
+    }
+
+    private static Node delete(Node node, long key) {
+        if (node == null) {
+            return null;
+        }
+        if (key == node.key) {
+            return merge(node.left, node.right);
+        }
+        if (key < node.key) {
+            node.left = delete(node.left, key);
+        } else {
+            node.right = delete(node.right, key);
+        }
+        return resize(node);
+    }
+
+    // Joins two treaps where every key of left is smaller than every key of right
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.weight > right.weight) {
+            left.right = merge(left.right, right);
+            return resize(left);
+        }
+        right.left = merge(left, right.left);
+        return resize(right);
+    }
+
+    private static Node rotateRight(Node node) {
+        Node left = node.left;
+        node.left = left.right;
+        left.right = resize(node);
+        return resize(left);
+    }
+
+    private static Node rotateLeft(Node node) {
+        Node right = node.right;
+        node.right = right.left;
+        right.left = resize(node);
+        return resize(right);
+    }
+}
+
+// A request waiting for seats on a train: the booking it becomes once enough seats free up
+class WaitlistEntry {
+    final long id;
+    final int trainNumber;
+    final String source;
+    final String destination;
+    final int division;
+    final List<Passenger> passengers;
+    final int priority;
+    final long timestamp;
+
+    public WaitlistEntry(long id, int trainNumber, String source, String destination, int division, List<Passenger> passengers,
+                         int priority, long timestamp) {
+        this.id = id;
+        this.trainNumber = trainNumber;
+        this.source = source;
+        this.destination = destination;
+        this.division = division;
+        this.passengers = passengers;
+        this.priority = priority;
+        this.timestamp = timestamp;
+    }
+
+    int seats() {
+        return passengers.size();
+    }
+
+    BookingRequest request() {
+        return new BookingRequest(source, destination, SeatInventory.DIVISIONS[division], passengers.size(), passengers);
+    }
+
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + passengers.size() * 24);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(id);
+            out.writeInt(trainNumber);
+            BookingJournal.writeString(out, source);
+            BookingJournal.writeString(out, destination);
+            out.writeByte(division);
+            out.writeByte(priority);
+            out.writeLong(timestamp);
+            out.writeInt(passengers.size());
+            for (Passenger passenger : passengers) {
+                BookingJournal.writeString(out, passenger.name);
+                out.writeInt(passenger.age);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static WaitlistEntry decode(ByteBuffer in) {
+        long id = in.getLong();
+        int trainNumber = in.getInt();
+        String source = BookingJournal.readString(in);
+        String destination = BookingJournal.readString(in);
+        int division = in.get();
+        int priority = in.get();
+        long timestamp = in.getLong();
+        int count = in.getInt();
+        List<Passenger> passengers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = BookingJournal.readString(in);
+            passengers.add(new Passenger(name, in.getInt()));
+        }
+        return new WaitlistEntry(id, trainNumber, source, destination, division, passengers, priority, timestamp);
+    }
+}
+
+// Waitlists of every train and division. Each list is a RankedQueue of keys that order its entries by
+// priority, highest first, then by id, so first come first served within a priority. Joining, finding the
+// next entry to book, removing one and telling an entry its position are each O(log n) in the list's length;
+// nothing scans the lists or the booking history.
+// Each list is its own lock, so waitlists of different trains never contend; only the id -> entry map is
+// shared, and it is concurrent. An entry is in that map exactly while it is on its list, both changed under
+// the list's lock. A list that empties stays in place, at most one per train number and division.
+class Waitlists {
+    static final int MAX_PRIORITY = 9;
+    private static final int ID_BITS = 56;
+    private static final long ID_MASK = (1L << ID_BITS) - 1;
+
+    private final Map<Long, RankedQueue> queues = new ConcurrentHashMap<>(); // by train number and division
+    private final Map<Long, WaitlistEntry> waiting = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    // Adds a new entry at the back of its priority on the train's list for the division
+    public WaitlistEntry join(int trainNumber, String source, String destination, int division,
+                              List<Passenger> passengers, int priority) {
+        WaitlistEntry entry = new WaitlistEntry(nextId.getAndIncrement(), trainNumber, source, destination, division,
+                passengers, priority, System.currentTimeMillis());
+        add(entry);
+        return entry;
+    }
+
+    // Puts back an entry from the journal or a snapshot
+    public void add(WaitlistEntry entry) {
+        RankedQueue entries = queues.computeIfAbsent(queue(entry.trainNumber, entry.division), key -> new RankedQueue());
+        synchronized (entries) {
+            entries.add(key(entry));
+            waiting.put(entry.id, entry);
+        }
+        nextId.accumulateAndGet(entry.id + 1, Math::max);
+    }
+
+    // Takes the entry off its list; null if it is not waiting
+    public WaitlistEntry remove(long id) {
+        WaitlistEntry entry = waiting.get(id);
+        if (entry == null) {
+            return null;
+        }
+        RankedQueue entries = queues.get(queue(entry.trainNumber, entry.division));
+        synchronized (entries) {
+            if (!waiting.remove(id, entry)) {
+                return null;
+            }
+            entries.remove(key(entry));
+        }
+        return entry;
+    }
+
+    // The entry to book next on the train's list for the division, or null if nobody is waiting
+    public WaitlistEntry head(int trainNumber, int division) {
+        RankedQueue entries = queues.get(queue(trainNumber, division));
+        if (entries == null) {
+            return null;
+        }
+        synchronized (entries) {
+            return entries.isEmpty() ? null : waiting.get(entries.first() & ID_MASK);
+        }
+    }
+
+    public int waiting(int trainNumber, int division) {
+        RankedQueue entries = queues.get(queue(trainNumber, division));
+        if (entries == null) {
+            return 0;
+        }
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    // 1 for the entry to be booked next on its list; 0 if the entry is no longer waiting
+    public int position(long id) {
+        WaitlistEntry entry = waiting.get(id);
+        if (entry == null) {
+            return 0;
+        }
+        RankedQueue entries = queues.get(queue(entry.trainNumber, entry.division));
+        synchronized (entries) {
+            return waiting.get(id) == entry ? entries.rank(key(entry)) + 1 : 0;
+        }
+    }
+
+    public WaitlistEntry entry(long id) {
+        return waiting.get(id);
+    }
+
+    public int size() {
+        return waiting.size();
+    }
+
+    // Train number and division of every list someone is waiting on, as {trainNumber, division}
+    public List<int[]> lists() {
+        List<int[]> lists = new ArrayList<>();
+        for (Map.Entry<Long, RankedQueue> list : queues.entrySet()) {
+            synchronized (list.getValue()) {
+                if (list.getValue().isEmpty()) {
+                    continue;
+                }
+            }
+            long queue = list.getKey();
+            lists.add(new int[] {(int) (queue >> 2), (int) (queue & 3)});
+        }
+        return lists;
+    }
+
+    private static long queue(int trainNumber, int division) {
+        return (long) trainNumber << 2 | division;
+    }
+
+    private static long key(WaitlistEntry entry) {
+        return (long) (MAX_PRIORITY - entry.priority) << ID_BITS | entry.id;
+    }
+
+    // The caller holds the journal's checkpoint write lock, so no list changes meanwhile
+    public byte[] encode() {
+        List<WaitlistEntry> entries = new ArrayList<>(waiting.values());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + entries.size() * 96);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(nextId.get());
+            out.writeInt(entries.size());
+            for (WaitlistEntry entry : entries) {
+                out.write(entry.encode());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Waitlists decode(ByteBuffer in) {
+        Waitlists waitlists = new Waitlists();
+        waitlists.nextId.set(in.getLong());
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            waitlists.add(WaitlistEntry.decode(in));
+        }
+        return waitlists;
+    }
+}
+
+// Append-only binary journal of bookings, cancellations and admin edits.
+// The file is memory-mapped in fixed-size regions. Writers append under a short lock and a
+// background flusher forces the written range to disk, so concurrent appends share one fsync.
+// Record layout: type (1 byte, 0 = free space), payload length (int), CRC32 of the payload, payload.
+class BookingJournal implements Closeable {
+    static final byte BOOK = 1;
+    static final byte CANCEL = 2;
+    static final byte INSERT_TRAIN = 3;
+    static final byte DELETE_TRAIN = 4;
+    static final byte UPDATE_TRAIN = 5;
+    // A booking or cancellation of another cluster node, kept here as that train's backup (see ClusterNode)
+    static final byte REPLICA = 6;
+    // A request joining a waitlist, and one leaving it without being booked; a booking promoted from the
+    // waitlist is a BOOK record carrying the entry's id
+    static final byte WAITLIST = 7;
+    static final byte WAITLIST_CANCEL = 8;
+    // A record taken back when the rest of its batch could not be written; scans skip it
+    static final byte VOID = 9;
+
+    static final int REGION_SIZE = 16 * 1024 * 1024;
+    private static final int RECORD_HEADER = 9;
+
+    interface RecordHandler {
+        void apply(byte type, ByteBuffer payload, long position);
+    }
+
+    private final FileChannel channel;
+    // Appliers of journaled changes hold the read lock; checkpoints take the write lock
+    // so a snapshot never captures a change whose record lies past its journal position.
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private final Object flushMonitor = new Object();
+    private final Thread flusher;
+
+    private MappedByteBuffer region;
+    private long regionStart = -1;
+    private long position;
+    private long appendedRecords;
+    private volatile long written;
+    private long durable; // guarded by flushMonitor
+    private final TreeMap<Long, Runnable> onDurable = new TreeMap<>(); // guarded by flushMonitor
+    private volatile boolean closed;
+
+    public BookingJournal(Path file) {
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+    }
+
+    ReentrantReadWriteLock checkpointLock() {
+        return checkpointLock;
+    }
+
+    // Replays the records from a known record boundary to the end of the journal and
+    // positions the journal for appending after the last intact record.
+    public synchronized void recover(long from, RecordHandler handler) {
+        long end = scan(from, Long.MAX_VALUE, handler);
+        try {
+            // Anything past the last intact record was never acknowledged; drop later regions
+            // and clear the rest of this one so a torn write can never be read back as a record.
+            if (channel.size() > regionOf(end) + REGION_SIZE) {
+                channel.truncate(regionOf(end) + REGION_SIZE);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        mapRegion(regionOf(end));
+        int tail = (int) (end - regionStart);
+        if (!isClear(tail)) {
+            for (int i = tail; i < REGION_SIZE; i++) {
+                region.put(i, (byte) 0);
+            }
+        }
+        position = end;
+        written = end;
+        durable = end;
+        if (!flusher.isAlive()) {
+            flusher.start();
+        }
+    }
+
+    // Reads the records in [from, to) without changing the append position
+    public void replay(long from, long to, RecordHandler handler) {
+        scan(from, to, handler);
+    }
+
+    // Reads the payload of the record starting at position
+    public ByteBuffer read(long position) {
+        ByteBuffer buffer = regionBuffer(regionOf(position));
+        int offset = (int) (position - regionOf(position));
+        int length = buffer.getInt(offset + 1);
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(offset + RECORD_HEADER).limit(offset + RECORD_HEADER + length);
+        return payload.slice();
+    }
+
+    // Appends a record and returns its position; call awaitDurable(position) before acknowledging it
+    public long append(byte type, byte[] payload) {
+        int crc = checksum(payload);
+        long recordPosition;
+        synchronized (this) {
+            recordPosition = put(type, payload, crc);
+        }
+        synchronized (flushMonitor) {
+            flushMonitor.notifyAll();
+        }
+        return recordPosition;
+    }
+
+    // Appends a batch of records under one lock and one flusher wake-up; returns their positions.
+    // awaitDurable on the last position covers the whole batch.
+    public long[] appendAll(byte type, List<byte[]> payloads) {
+        byte[] types = new byte[payloads.size()];
+        Arrays.fill(types, type);
+        return appendAll(types, payloads);
+    }
+
+    // As appendAll, with a type per record. The batch is all or nothing: if a record cannot be written,
+    // as when the next region cannot be mapped, the records before it are taken back and the error rethrown.
+    public long[] appendAll(byte[] types, List<byte[]> payloads) {
+        int[] crcs = new int[payloads.size()];
+        for (int i = 0; i < crcs.length; i++) {
+            crcs[i] = checksum(payloads.get(i));
+        }
+        long[] positions = new long[crcs.length];
+        synchronized (this) {
+            int i = 0;
+            try {
+                for (; i < crcs.length; i++) {
+                    positions[i] = put(types[i], payloads.get(i), crcs[i]);
+                }
+            } catch (RuntimeException e) {
+                unput(positions, i);
+                throw e;
+            }
+        }
+        synchronized (flushMonitor) {
+            flushMonitor.notifyAll();
+        }
+        return positions;
+    }
+
+    private static int checksum(byte[] payload) {
+        if (RECORD_HEADER + payload.length > REGION_SIZE) {
+            throw new IllegalArgumentException("Journal record too large: " + payload.length + " bytes");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    // Writes one record at the append position; the caller holds the journal's lock
+    private long put(byte type, byte[] payload, int crc) {
+        int size = RECORD_HEADER + payload.length;
+        if (position - regionStart + size > REGION_SIZE) {
+            // The rest of this region stays zeroed; readers skip to the next region
+            region.force();
+            mapRegion(regionStart + REGION_SIZE);
+            position = regionStart;
+        }
+        int offset = (int) (position - regionStart);
+        region.putInt(offset + 1, payload.length);
+        region.putInt(offset + 5, crc);
+        region.put(offset + RECORD_HEADER, payload);
+        region.put(offset, type);
+        long recordPosition = position;
+        position += size;
+        written = position;
+        appendedRecords++;
+        return recordPosition;
+    }
+
+    // Takes back the first count records of a failed batch by retyping them VOID, which scans skip. The space
+    // stays used, since the flusher may already have reported it durable. A region switch only fails before
+    // the new region replaces the current one, so the records are all in the current region.
+    private void unput(long[] positions, int count) {
+        for (int i = 0; i < count; i++) {
+            region.put((int) (positions[i] - regionStart), VOID);
+        }
+        if (count > 0) {
+            try {
+                region.force();
+            } catch (RuntimeException e) {
+                // the flusher forces the region again with the next record
+            }
+        }
+    }
+
+    // Blocks until the record at position has been forced to disk by the flusher
+    public void awaitDurable(long position) {
+        synchronized (flushMonitor) {
+            while (durable <= position && !closed) {
+                try {
+                    flushMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Runs action once the record at position is durable: on the thread that forces it to disk,
+    // or right away if it already is. Lets a writer go on appending instead of waiting for the flush.
+    public void whenDurable(long position, Runnable action) {
+        synchronized (flushMonitor) {
+            if (durable <= position && !closed) {
+                onDurable.put(position, action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    public synchronized long position() {
+        return position;
+    }
+
+    public synchronized long appendedRecords() {
+        return appendedRecords;
+    }
+
+    // Forces everything appended so far
+    public void sync() {
+        long target;
+        MappedByteBuffer current;
+        synchronized (this) {
+            target = position;
+            current = region;
+        }
+        current.force();
+        List<Runnable> actions;
+        synchronized (flushMonitor) {
+            durable = Math.max(durable, target);
+            flushMonitor.notifyAll();
+            actions = takeActions(closed ? Long.MAX_VALUE : durable);
+        }
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+
+    // Removes the whenDurable actions for records before end; the caller holds flushMonitor
+    private List<Runnable> takeActions(long end) {
+        if (onDurable.isEmpty()) {
+            return Collections.emptyList();
+        }
+        SortedMap<Long, Runnable> due = onDurable.headMap(end);
+        List<Runnable> actions = new ArrayList<>(due.values());
+        due.clear();
+        return actions;
+    }
+
+    @Override
+    public void close() {
+        sync();
+        closed = true;
+        List<Runnable> actions;
+        synchronized (flushMonitor) {
+            flushMonitor.notifyAll();
+            actions = takeActions(Long.MAX_VALUE);
+        }
+        for (Runnable action : actions) {
+            action.run();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            synchronized (flushMonitor) {
+                while (!closed && durable >= written) {
+                    try {
+                        flushMonitor.wait(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            if (!closed) {
+                sync();
+            }
+        }
+    }
+
+    private long scan(long from, long to, RecordHandler handler) {
+        long cursor = from;
+        while (cursor < to) {
+            long start = regionOf(cursor);
+            ByteBuffer buffer = regionBuffer(start);
+            int offset = (int) (cursor - start);
+            if (offset + RECORD_HEADER > REGION_SIZE || buffer.get(offset) == 0) {
+                if (offset == 0 || start + REGION_SIZE >= size()) {
+                    return cursor;
+                }
+                cursor = start + REGION_SIZE;
+                continue;
+            }
+            byte type = buffer.get(offset);
+            int length = buffer.getInt(offset + 1);
+            if (length < 0 || offset + RECORD_HEADER + length > REGION_SIZE) {
+                return cursor;
+            }
+            ByteBuffer payload = buffer.duplicate();
+            payload.position(offset + RECORD_HEADER).limit(offset + RECORD_HEADER + length);
+            payload = payload.slice();
+            CRC32 crc = new CRC32();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != buffer.getInt(offset + 5)) {
+                return cursor;
+            }
+            if (type != VOID) {
+                handler.apply(type, payload, cursor);
+            }
+            cursor += RECORD_HEADER + length;
+        }
+        return cursor;
+    }
+
+    private boolean isClear(int from) {
+        int i = from;
+        for (; i < REGION_SIZE && i % Long.BYTES != 0; i++) {
+            if (region.get(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < REGION_SIZE; i += Long.BYTES) {
+            if (region.getLong(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer regionBuffer(long start) {
+        synchronized (this) {
+            if (start == regionStart) {
+                return region.duplicate();
+            }
+        }
+        try {
+            long length = Math.max(0, Math.min(REGION_SIZE, channel.size() - start));
+            if (length < REGION_SIZE) {
+                // Never map past the end for reading; pad with an empty buffer instead
+                ByteBuffer padded = ByteBuffer.allocate(REGION_SIZE);
+                if (length > 0) {
+                    padded.put(channel.map(FileChannel.MapMode.READ_ONLY, start, length));
+                    padded.clear();
+                }
+                return padded;
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, REGION_SIZE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void mapRegion(long start) {
+        try {
+            region = channel.map(FileChannel.MapMode.READ_WRITE, start, REGION_SIZE);
+            regionStart = start;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long size() {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long regionOf(long position) {
+        return position - position % REGION_SIZE;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// Memory-mapped table from booking id to the journal position of its BOOK record.
+// Entries hold position + 1 so that zero means unknown; a negative entry marks a cancelled booking.
+class BookingIdIndex implements Closeable {
+    private static final int ENTRIES_PER_CHUNK = 1 << 20;
+
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+
+    public BookingIdIndex(Path file) {
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized void put(long bookingId, long position) {
+        chunk(bookingId).putLong(slot(bookingId), position + 1);
+    }
+
+    // Journal position of the booking's BOOK record, or -1 if the id is unknown
+    public synchronized long position(long bookingId) {
+        long entry = chunk(bookingId).getLong(slot(bookingId));
+        return entry == 0 ? -1 : Math.abs(entry) - 1;
+    }
+
+    public synchronized boolean isCancelled(long bookingId) {
+        return chunk(bookingId).getLong(slot(bookingId)) < 0;
+    }
+
+    // Marks the booking cancelled; returns false if it is unknown or already cancelled
+    public synchronized boolean markCancelled(long bookingId) {
+        MappedByteBuffer chunk = chunk(bookingId);
+        long entry = chunk.getLong(slot(bookingId));
+        if (entry <= 0) {
+            return false;
+        }
+        chunk.putLong(slot(bookingId), -entry);
+        return true;
+    }
+
+    public synchronized void force() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        force();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private MappedByteBuffer chunk(long bookingId) {
+        int index = (int) (bookingId / ENTRIES_PER_CHUNK);
+        try {
+            while (chunks.size() <= index) {
+                long start = (long) chunks.size() * ENTRIES_PER_CHUNK * Long.BYTES;
+                chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, start, (long) ENTRIES_PER_CHUNK * Long.BYTES));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return chunks.get(index);
+    }
+
+    private static int slot(long bookingId) {
+        return (int) (bookingId % ENTRIES_PER_CHUNK) * Long.BYTES;
+    }
+}
+
+// Compact binary snapshot of the timetable, seat maps and booking aggregates at a journal position.
+// Written to a temporary file and atomically renamed, then memory-mapped on startup.
+// Older versions are still read: version 1 kept per-division seat counters instead of seat maps,
+// and neither it nor version 2 kept aggregates. Version 3 kept no waitlists, and version 4 not where each
+// train's current sales begin in the journal.
+class SnapshotFile {
+    private static final int MAGIC = 0x524d5353; // "RMSS"
+    private static final int VERSION = 5;
+    private static final int WAITLISTS_VERSION = 4;
+    private static final int AGGREGATES_VERSION = 3;
+    private static final int SEAT_MAPS_VERSION = 2;
+    private static final int COUNTERS_VERSION = 1;
+
+    static class State {
+        final long journalPosition;
+        final long nextBookingId;
+        final List<TrainSpec> trains;
+        final List<long[]> seatWords; // per train, null if it has sold nothing
+        final List<int[]> counters;   // per train, from version 1 files only; otherwise null
+        final byte[] aggregates;      // encoded BookingAggregates; null from files older than version 3
+        final byte[] waitlists;       // encoded Waitlists; null from files older than version 4
+        final byte[] salesStarts;     // encoded by TimetableService.encodeSalesStarts; null from files older than version 5
+
+        State(long journalPosition, long nextBookingId, List<TrainSpec> trains, List<long[]> seatWords, List<int[]> counters,
+              byte[] aggregates, byte[] waitlists, byte[] salesStarts) {
+            this.journalPosition = journalPosition;
+            this.nextBookingId = nextBookingId;
+            this.trains = trains;
+            this.seatWords = seatWords;
+            this.counters = counters;
+            this.aggregates = aggregates;
+            this.waitlists = waitlists;
+            this.salesStarts = salesStarts;
+        }
+    }
+
+    static void write(Path file, State state) {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(state.journalPosition);
+            out.writeLong(state.nextBookingId);
+            out.writeInt(state.trains.size());
+            for (int i = 0; i < state.trains.size(); i++) {
+                out.write(state.trains.get(i).encode());
+                long[] words = state.seatWords.get(i);
+                out.writeInt(words == null ? -1 : words.length);
+                for (int w = 0; words != null && w < words.length; w++) {
+                    out.writeLong(words[w]);
+                }
+            }
+            out.writeInt(state.aggregates.length);
+            out.write(state.aggregates);
+            out.writeInt(state.waitlists.length);
+            out.write(state.waitlists);
+            out.writeInt(state.salesStarts.length);
+            out.write(state.salesStarts);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Returns null when there is no snapshot yet
+    static State read(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int version = in.getInt() == MAGIC ? in.getInt() : -1;
+            if (version != VERSION && version != WAITLISTS_VERSION && version != AGGREGATES_VERSION && version != SEAT_MAPS_VERSION && version != COUNTERS_VERSION) {
+                throw new IOException("Unrecognized snapshot file: " + file);
+            }
+            long journalPosition = in.getLong();
+            long nextBookingId = in.getLong();
+            int count = in.getInt();
+            List<TrainSpec> trains = new ArrayList<>(count);
+            List<long[]> seatWords = new ArrayList<>(count);
+            List<int[]> counters = version == COUNTERS_VERSION ? new ArrayList<>(count) : null;
+            for (int i = 0; i < count; i++) {
+                if (version == COUNTERS_VERSION) {
+                    trains.add(TrainSpec.decode(in, false));
+                    int[] divisions = new int[in.get()];
+                    for (int d = 0; d < divisions.length; d++) {
+                        divisions[d] = in.getInt();
+                    }
+                    counters.add(divisions);
+                    seatWords.add(null);
+                } else {
+                    trains.add(TrainSpec.decode(in));
+                    int length = in.getInt();
+                    long[] words = length < 0 ? null : new long[length];
+                    for (int w = 0; w < length; w++) {
+                        words[w] = in.getLong();
+                    }
+                    seatWords.add(words);
+                }
+            }
+            byte[] aggregates = null;
+            if (version >= AGGREGATES_VERSION) {
+                aggregates = new byte[in.getInt()];
+                in.get(aggregates);
+            }
+            byte[] waitlists = null;
+            if (version >= WAITLISTS_VERSION) {
+                waitlists = new byte[in.getInt()];
+                in.get(waitlists);
+            }
+            byte[] salesStarts = null;
+            if (version >= VERSION) {
+                salesStarts = new byte[in.getInt()];
+                in.get(salesStarts);
+            }
+            return new State(journalPosition, nextBookingId, trains, seatWords, counters, aggregates, waitlists, salesStarts);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+// Prebuilt binary image of the seed timetable: the trains of trains.csv encoded the way snapshots hold them,
+// so a first start decodes them instead of parsing and validating CSV. Generated at build time with
+// --build-image and bundled next to trains.csv. The header carries the CRC of the CSV it was built from,
+// and an image that no longer matches the bundled CSV is ignored.
+class TimetableImage {
+    static final String RESOURCE = "timetable.bin";
+    private static final int MAGIC = 0x524d5449; // "RMTI"
+    private static final int VERSION = 1;
+
+    static void write(Path file, byte[] csv, List<TrainSpec> trains) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(checksum(csv));
+            out.writeInt(trains.size());
+            for (TrainSpec train : trains) {
+                out.write(train.encode());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The trains in the bundled image, or null if there is no image or it was built from a different CSV.
+    // An image on the file system is memory-mapped; one inside a jar is read in one go.
+    static List<TrainSpec> load(ClassLoader loader, byte[] csv) {
+        URL url = loader.getResource(RESOURCE);
+        if (url == null) {
+            return null;
+        }
+        try {
+            ByteBuffer in;
+            if (url.getProtocol().equals("file")) {
+                try (FileChannel channel = FileChannel.open(Paths.get(url.toURI()), StandardOpenOption.READ)) {
+                    in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            } else {
+                try (InputStream stream = url.openStream()) {
+                    in = ByteBuffer.wrap(stream.readAllBytes());
+                }
+            }
+            if (in.remaining() < 20 || in.getInt() != MAGIC || in.getInt() != VERSION || in.getLong() != checksum(csv)) {
+                return null;
+            }
+            int count = in.getInt();
+            List<TrainSpec> trains = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                trains.add(TrainSpec.decode(in));
+            }
+            return trains;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long checksum(byte[] csv) {
+        CRC32 crc = new CRC32();
+        crc.update(csv);
+        return crc.getValue();
+    }
+
+    // Builds the image from the bundled trains.csv, or csv=<file>, into out=<file>
+    static void main(Map<String, String> options) {
+        String out = options.get("out");
+        if (out == null) {
+            throw new IllegalArgumentException("--build-image needs out=<file>");
+        }
+        byte[] csv;
+        try {
+            csv = options.containsKey("csv") ? Files.readAllBytes(Paths.get(options.get("csv"))) : RailwayManagementSystem.seedCsv();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<TrainSpec> trains = RailwayManagementSystem.parseSeed(csv);
+        write(Paths.get(out), csv, trains);
+        System.out.println("Wrote " + trains.size() + " trains to " + out);
+    }
+}
+
+// Told how far restoring a data directory has got, so a window opened before the data can show it.
+// Called on the thread doing the restore.
+interface StartupProgress {
+    StartupProgress NONE = (step, percent) -> { };
+
+    void step(String description, int percent);
+}
+
+// Opens the data directory, restores the services from the latest snapshot plus the journal tail,
+// and takes a fresh snapshot whenever enough records have been appended since the last one.
+class PersistenceManager implements Closeable {
+    private static final long CHECKPOINT_EVERY_RECORDS = 10_000;
+
+    private final Path snapshotFile;
+    private final BookingJournal journal;
+    private final BookingIdIndex bookingIndex;
+    private final TimetableService timetable;
+    private final BookingService bookings;
+    private final ScheduledExecutorService checkpointer;
+    private long lastCheckpointRecords;
+    private boolean closed;
+
+    public PersistenceManager(Path dataDirectory, Supplier<List<TrainSpec>> seed) {
+        this(dataDirectory, seed, StartupProgress.NONE);
+    }
+
+    public PersistenceManager(Path dataDirectory, Supplier<List<TrainSpec>> seed, StartupProgress progress) {
+        try {
+            Files.createDirectories(dataDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        snapshotFile = dataDirectory.resolve("snapshot.bin");
+        journal = new BookingJournal(dataDirectory.resolve("journal.bin"));
+        bookingIndex = new BookingIdIndex(dataDirectory.resolve("bookings.idx"));
+
+        progress.step("Reading snapshot", 5);
+        SnapshotFile.State snapshot = SnapshotFile.read(snapshotFile);
+        if (snapshot == null) {
+            progress.step("Loading the seed timetable", 15);
+        }
+        List<TrainSpec> trains = snapshot == null ? seed.get() : snapshot.trains;
+        progress.step("Building the timetable (" + trains.size() + " trains)", 30);
+        timetable = new TimetableService(trains, journal);
+        if (snapshot != null && snapshot.salesStarts != null) {
+            timetable.restoreSalesStarts(ByteBuffer.wrap(snapshot.salesStarts));
+        }
+        if (snapshot != null) {
+            progress.step("Restoring seat maps", 50);
+            // Older snapshots may list a train number twice; the timetable kept only the first of them
+            int row = 0;
+            for (int i = 0; i < trains.size() && row < timetable.trainCount(); i++) {
+                Train train = timetable.trainAt(row);
+                if (train.trainNumber() == trains.get(i).trainNumber) {
+                    if (snapshot.counters != null) {
+                        timetable.inventory().restoreCounters(train, snapshot.counters.get(i));
+                    } else {
+                        timetable.inventory().restore(train, snapshot.seatWords.get(i));
+                    }
+                    row++;
+                }
+            }
+        }
+        BookingAggregates aggregates = snapshot != null && snapshot.aggregates != null
+                ? BookingAggregates.decode(ByteBuffer.wrap(snapshot.aggregates)) : new BookingAggregates();
+        Waitlists waitlists = snapshot != null && snapshot.waitlists != null
+                ? Waitlists.decode(ByteBuffer.wrap(snapshot.waitlists)) : new Waitlists();
+        bookings = new BookingService(timetable, journal, bookingIndex, aggregates, waitlists,
+                snapshot == null ? 1 : snapshot.nextBookingId);
+        if (snapshot != null && snapshot.aggregates == null) {
+            progress.step("Counting bookings for the dashboard", 60);
+            // Snapshots older than the aggregates: count the bookings they cover once, from the journal
+            journal.replay(0, snapshot.journalPosition, new BookingJournal.RecordHandler() {
+                @Override
+                public void apply(byte type, ByteBuffer payload, long position) {
+                    if (type == BookingJournal.BOOK) {
+                        Booking booking = Booking.decode(payload);
+                        aggregates.booked(booking, timetable.findByNumber(booking.trainNumber));
+                    } else if (type == BookingJournal.CANCEL) {
+                        Booking booking = Booking.decode(journal.read(bookingIndex.position(payload.getLong())));
+                        aggregates.cancelled(booking, timetable.findByNumber(booking.trainNumber));
+                    }
+                }
+            });
+        }
+
+        progress.step("Replaying the journal", 70);
+        journal.recover(snapshot == null ? 0 : snapshot.journalPosition, new BookingJournal.RecordHandler() {
+            @Override
+            public void apply(byte type, ByteBuffer payload, long position) {
+                switch (type) {
+                    case BookingJournal.BOOK:
+                        bookings.replayBooking(Booking.decode(payload), position);
+                        break;
+                    case BookingJournal.CANCEL:
+                        bookings.replayCancel(payload.getLong());
+                        break;
+                    case BookingJournal.INSERT_TRAIN:
+                        timetable.replayInsert(TrainSpec.decode(payload), position);
+                        break;
+                    case BookingJournal.DELETE_TRAIN:
+                        timetable.replayDelete(payload.getInt());
+                        break;
+                    case BookingJournal.UPDATE_TRAIN:
+                        timetable.replayUpdate(TrainSpec.decode(payload));
+                        break;
+                    case BookingJournal.REPLICA:
+                        bookings.replayReplica(payload);
+                        break;
+                    case BookingJournal.WAITLIST:
+                        bookings.replayWaitlist(WaitlistEntry.decode(payload));
+                        break;
+                    case BookingJournal.WAITLIST_CANCEL:
+                        bookings.replayLeaveWaitlist(payload.getLong());
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown journal record type " + type + " at " + position);
+                }
+            }
+        });
+        progress.step("Opening booking history", 90);
+        bookings.openHistory(journal.position());
+        // A cancellation journaled just before a crash may have freed seats its promotions never got to
+        bookings.promoteWaiting();
+        lastCheckpointRecords = journal.appendedRecords();
+        if (snapshot == null) {
+            progress.step("Writing the first snapshot", 95);
+            checkpoint();
+        }
+
+        checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshot-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (journal.appendedRecords() - lastCheckpointRecords >= CHECKPOINT_EVERY_RECORDS) {
+                    checkpoint();
+                }
+            }
+        }, 5, 5, TimeUnit.SECONDS);
+    }
+
+    public TimetableService timetable() {
+        return timetable;
+    }
+
+    public BookingService bookings() {
+        return bookings;
+    }
+
+    // Captures a consistent cut of the timetable and seat maps, then writes it outside the lock
+    public synchronized void checkpoint() {
+        SnapshotFile.State state;
+        long records;
+        Lock lock = journal.checkpointLock().writeLock();
+        lock.lock();
+        try {
+            state = capture();
+            records = journal.appendedRecords();
+        } finally {
+            lock.unlock();
+        }
+        writeSnapshot(state, records);
+    }
+
+    // Replaces the whole timetable with every seat open. The snapshot is the commit point,
+    // so bookings wait until it is written and never land in the journal ahead of the new timetable.
+    public synchronized void replaceTimetable(List<TrainSpec> trains) {
+        Lock lock = journal.checkpointLock().writeLock();
+        lock.lock();
+        try {
+            timetable.replaceAll(trains, journal.position());
+            writeSnapshot(capture(), journal.appendedRecords());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private SnapshotFile.State capture() {
+        List<TrainSpec> trains = new ArrayList<>(timetable.trainCount());
+        List<long[]> seatWords = new ArrayList<>(timetable.trainCount());
+        for (Train train : timetable.trains()) {
+            trains.add(TrainSpec.of(train));
+            seatWords.add(timetable.inventory().seatWords(train));
+        }
+        return new SnapshotFile.State(journal.position(), bookings.nextBookingId(), trains, seatWords, null,
+                bookings.aggregates().encode(), bookings.waitlists().encode(), timetable.encodeSalesStarts());
+    }
+
+    private void writeSnapshot(SnapshotFile.State state, long records) {
+        journal.sync();
+        bookingIndex.force();
+        SnapshotFile.write(snapshotFile, state);
+        lastCheckpointRecords = records;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        checkpointer.shutdownNow();
+        bookings.close();
+        checkpoint();
+        journal.close();
+        bookingIndex.close();
+    }
+}
+
+// Filter for booking history queries; null fields match every booking
+class HistoryFilter {
+    static final HistoryFilter ALL = new HistoryFilter(null, null, null);
+
+    final Integer trainNumber;
+    final LocalDate date;
+    final String passenger;
+
+    public HistoryFilter(Integer trainNumber, LocalDate date, String passenger) {
+        this.trainNumber = trainNumber;
+        this.date = date;
+        this.passenger = passenger == null || passenger.trim().isEmpty() ? null : passenger;
+    }
+
+    boolean isEmpty() {
+        return trainNumber == null && date == null && passenger == null;
+    }
+}
+
+// A booking as listed in the history, with its current status
+class HistoryEntry {
+    final Booking booking;
+    final boolean cancelled;
+
+    HistoryEntry(Booking booking, boolean cancelled) {
+        this.booking = booking;
+        this.cancelled = cancelled;
+    }
+}
+
+// Booking history store. Records stay in the journal and are decoded a page at a time through
+// the booking id index; secondary indexes by train, booking day and passenger name hold only
+// booking ids, and are built by a background scan of the journal so startup does not wait for them.
+// Ids are handed out in order but not every one is stored: partitions acknowledge out of order, and a
+// batch that fails keeps its ids. The store tracks those missing ids so the unfiltered history skips them.
+class BookingStore {
+    private static final int ID_CHUNK_BITS = 30;
+    private static final long ID_CHUNK = 1L << ID_CHUNK_BITS;
+
+    // Result of a history query: either every booking id in order but the missing ones, or the matching ids
+    static class Query {
+        private final long[] ids;
+        private final int size;
+        private final long[] missing; // ascending; unfiltered queries only
+
+        private Query(long[] ids, int size) {
+            this(ids, size, null);
+        }
+
+        private Query(long[] ids, int size, long[] missing) {
+            this.ids = ids;
+            this.size = size;
+            this.missing = missing;
+        }
+
+        int size() {
+            return size;
+        }
+
+        // The row's id is row + 1 plus the missing ids at or below it. The missing id at index i lies at or
+        // below that id exactly when missing[i] - i <= row + 1, which only grows with i, so this is a binary search.
+        long idAt(int row) {
+            if (ids != null) {
+                return ids[row];
+            }
+            int low = 0;
+            int high = missing.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (missing[mid] - mid <= row + 1) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return row + 1 + low;
+        }
+    }
+
+    // Growable, ascending list of booking ids
+    private static class IdList {
+        private long[] ids = new long[4];
+        private int size;
+
+        void add(long id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            // Concurrent bookings can be acknowledged out of id order; keep the list sorted
+            int at = size;
+            while (at > 0 && ids[at - 1] > id) {
+                ids[at] = ids[at - 1];
+                at--;
+            }
+            ids[at] = id;
+            size++;
+        }
+    }
+
+    private final BookingJournal journal;
+    private final BookingIdIndex bookingIndex;
+    private final Map<Integer, IdList> byTrain = new HashMap<>();
+    private final Map<Long, IdList> byDay = new HashMap<>();
+    private final Map<String, IdList> byPassenger = new HashMap<>();
+    private final CountDownLatch indexed = new CountDownLatch(1);
+    private final List<Booking> arrivedWhileIndexing = new ArrayList<>();
+    private boolean indexing = true;
+    private long lastId;
+    private long[] missing = new long[8]; // ids up to lastId with no booking stored, ascending
+    private int missingCount;
+
+    // Indexes the bookings journaled before historyEnd in the background
+    public BookingStore(BookingJournal journal, BookingIdIndex bookingIndex, long historyEnd, long lastId) {
+        this.journal = journal;
+        this.bookingIndex = bookingIndex;
+        this.lastId = lastId;
+        Thread indexer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                buildIndexes(historyEnd, lastId);
+            }
+        }, "history-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    // Records a newly confirmed booking
+    public synchronized void added(Booking booking) {
+        if (booking.id > lastId) {
+            // the ids in between are still on their way from other partitions, or were never journaled
+            for (long id = lastId + 1; id < booking.id; id++) {
+                addMissing(id);
+            }
+            lastId = booking.id;
+        } else {
+            removeMissing(booking.id);
+        }
+        if (indexing) {
+            arrivedWhileIndexing.add(booking);
+        } else {
+            index(booking);
+        }
+    }
+
+    public Query query(HistoryFilter filter) {
+        if (filter.isEmpty()) {
+            synchronized (this) {
+                return new Query(null, (int) (lastId - missingCount), Arrays.copyOf(missing, missingCount));
+            }
+        }
+        awaitIndexes();
+        synchronized (this) {
+            List<IdList> lists = new ArrayList<>();
+            if (filter.trainNumber != null) {
+                lists.add(byTrain.get(filter.trainNumber));
+            }
+            if (filter.date != null) {
+                lists.add(byDay.get(filter.date.toEpochDay()));
+            }
+            if (filter.passenger != null) {
+                lists.add(byPassenger.get(normalizeName(filter.passenger)));
+            }
+            long[] ids = null;
+            int size = 0;
+            for (IdList list : lists) {
+                if (list == null) {
+                    return new Query(new long[0], 0);
+                }
+                if (ids == null) {
+                    ids = Arrays.copyOf(list.ids, list.size);
+                    size = list.size;
+                } else {
+                    size = intersect(ids, size, list);
+                }
+            }
+            return new Query(ids, size);
+        }
+    }
+
+    // Decodes the rows [offset, offset + limit) of a query
+    public List<HistoryEntry> page(Query query, int offset, int limit) {
+        int end = Math.min(query.size(), offset + limit);
+        List<HistoryEntry> entries = new ArrayList<>(Math.max(0, end - offset));
+        for (int row = offset; row < end; row++) {
+            entries.add(get(query.idAt(row)));
+        }
+        return entries;
+    }
+
+    // The booking with the given id, or null if there is no such booking
+    public HistoryEntry get(long bookingId) {
+        long position = bookingIndex.position(bookingId);
+        if (position < 0) {
+            return null;
+        }
+        return new HistoryEntry(Booking.decode(journal.read(position)), bookingIndex.isCancelled(bookingId));
+    }
+
+    // Indexes the journaled bookings and notes which ids up to lastId none of them has
+    private void buildIndexes(long historyEnd, long lastId) {
+        // journaled ids, in bitsets of ID_CHUNK ids each, since a BitSet is indexed by int
+        Map<Long, BitSet> journaled = new HashMap<>();
+        try {
+            journal.replay(0, historyEnd, new BookingJournal.RecordHandler() {
+                @Override
+                public void apply(byte type, ByteBuffer payload, long position) {
+                    if (type == BookingJournal.BOOK) {
+                        Booking booking = Booking.decode(payload);
+                        if (booking.id <= lastId) {
+                            journaled.computeIfAbsent(booking.id >>> ID_CHUNK_BITS, chunk -> new BitSet())
+                                    .set((int) (booking.id & (ID_CHUNK - 1)));
+                        }
+                        synchronized (BookingStore.this) {
+                            index(booking);
+                        }
+                    }
+                }
+            });
+            synchronized (this) {
+                // bookings added since startup are all past lastId, so these go in front
+                long[] unjournaled = new long[8];
+                int count = 0;
+                for (long id = 1; id <= lastId; id++) {
+                    BitSet chunk = journaled.get(id >>> ID_CHUNK_BITS);
+                    int clear = chunk == null ? (int) (id & (ID_CHUNK - 1)) : chunk.nextClearBit((int) (id & (ID_CHUNK - 1)));
+                    id = (id & -ID_CHUNK) + clear;
+                    if (clear < ID_CHUNK && id <= lastId) {
+                        if (count == unjournaled.length) {
+                            unjournaled = Arrays.copyOf(unjournaled, count * 2);
+                        }
+                        unjournaled[count++] = id;
+                    } else {
+                        id--; // every id left in the chunk is journaled; go on with the next chunk
+                    }
+                }
+                long[] merged = new long[Math.max(8, count + missingCount)];
+                System.arraycopy(unjournaled, 0, merged, 0, count);
+                System.arraycopy(missing, 0, merged, count, missingCount);
+                missing = merged;
+                missingCount += count;
+            }
+        } finally {
+            synchronized (this) {
+                for (Booking booking : arrivedWhileIndexing) {
+                    index(booking);
+                }
+                arrivedWhileIndexing.clear();
+                indexing = false;
+            }
+            indexed.countDown();
+        }
+    }
+
+    private void addMissing(long id) {
+        if (missingCount == missing.length) {
+            missing = Arrays.copyOf(missing, missingCount * 2);
+        }
+        missing[missingCount++] = id;
+    }
+
+    private void removeMissing(long id) {
+        int at = Arrays.binarySearch(missing, 0, missingCount, id);
+        if (at >= 0) {
+            System.arraycopy(missing, at + 1, missing, at, missingCount - at - 1);
+            missingCount--;
+        }
+    }
+
+    public boolean isIndexed() {
+        return indexed.getCount() == 0;
+    }
+
+    private void awaitIndexes() {
+        try {
+            indexed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void index(Booking booking) {
+        byTrain.computeIfAbsent(booking.trainNumber, key -> new IdList()).add(booking.id);
+        long day = Instant.ofEpochMilli(booking.timestamp).atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+        byDay.computeIfAbsent(day, key -> new IdList()).add(booking.id);
+        Set<String> keys = new HashSet<>();
+        for (Passenger passenger : booking.passengers) {
+            String name = normalizeName(passenger.name);
+            keys.add(name);
+            keys.addAll(Arrays.asList(name.split(" ")));
+        }
+        for (String key : keys) {
+            byPassenger.computeIfAbsent(key, k -> new IdList()).add(booking.id);
+        }
+    }
+
+    // Passenger names match on the full name or any single word of it, ignoring case and spacing
+    private static String normalizeName(String name) {
+        return name.trim().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+    }
+
+    private static int intersect(long[] ids, int size, IdList other) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.ids[j] < ids[i]) {
+                j++;
+            }
+            if (j < other.size && other.ids[j] == ids[i]) {
+                ids[kept++] = ids[i];
+            }
+        }
+        return kept;
+    }
+}
+
+// Running booking totals, fed by every confirmed booking and cancellation as it is journaled, so
+// reports read them directly instead of scanning the history. Each event costs a few map lookups
+// and adder updates, plus at most TOP_ROUTES comparisons to keep the busiest routes ranked.
+// Seat-segments count each seat once per segment of the route it is booked for; with the seats
+// the train had already sold when it was added, they give the train's load factor.
+// The totals travel in snapshots, and the journal tail is replayed into them on startup.
+class BookingAggregates {
+    static final int TOP_ROUTES = 10;
+    private static final int HOURS = 24;
+
+    // Totals of one train number
+    static class TrainTotals {
+        final int trainNumber;
+        final LongAdder bookings = new LongAdder();
+        final LongAdder[] seats = adders(SeatInventory.DIVISIONS.length);
+        final LongAdder seatSegments = new LongAdder();
+
+        TrainTotals(int trainNumber) {
+            this.trainNumber = trainNumber;
+        }
+
+        long seats() {
+            long total = 0;
+            for (LongAdder division : seats) {
+                total += division.sum();
+            }
+            return total;
+        }
+
+        double loadFactor(Train train) {
+            return BookingAggregates.loadFactor(train, seatSegments.sum());
+        }
+    }
+
+    // Totals of one source and destination, as typed when booking
+    static class RouteTotals {
+        final String source;
+        final String destination;
+        final LongAdder bookings = new LongAdder();
+        final AtomicLong seats = new AtomicLong();
+        boolean ranked; // in the top routes; guarded by the aggregates' top lock
+
+        RouteTotals(String source, String destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public String toString() {
+            return source + " - " + destination;
+        }
+    }
+
+    private final ZoneRules zoneRules = ZoneId.systemDefault().getRules(); // hours are local to where the totals are kept
+    private final LongAdder bookings = new LongAdder();
+    private final LongAdder cancellations = new LongAdder();
+    private final LongAdder[] divisionSeats = adders(SeatInventory.DIVISIONS.length);
+    private final LongAdder[] hourBookings = adders(HOURS);
+    private final LongAdder[] hourSeats = adders(HOURS);
+    private final ConcurrentHashMap<Integer, TrainTotals> trains = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, RouteTotals> routes = new ConcurrentHashMap<>();
+    private final Object topLock = new Object();
+    private final List<RouteTotals> top = new ArrayList<>(TOP_ROUTES);
+    private volatile long topFloor; // fewest seats of a ranked route once all TOP_ROUTES places are taken
+    private boolean topStale;       // a ranked route lost seats, so an unranked one may now be busier
+
+    // Share of the train's seat-segments taken: those sold before it was added plus seatSegments booked since
+    static double loadFactor(Train train, long seatSegments) {
+        if (train == null || train.totalSeats() == 0) {
+            return 0;
+        }
+        double booked = (double) seatSegments / (train.stopCount() - 1);
+        return (train.totalSeats() - train.balance() + booked) / train.totalSeats();
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    // Counts a confirmed booking on the given train, or on no train if it has since been deleted
+    public void booked(Booking booking, Train train) {
+        add(booking, train, 1);
+        bookings.increment();
+    }
+
+    public void cancelled(Booking booking, Train train) {
+        add(booking, train, -1);
+        cancellations.increment();
+    }
+
+    private void add(Booking booking, Train train, int sign) {
+        int seats = sign * booking.seats();
+        divisionSeats[booking.division].add(seats);
+        Instant bookedAt = Instant.ofEpochMilli(booking.timestamp);
+        long localSeconds = bookedAt.getEpochSecond() + zoneRules.getOffset(bookedAt).getTotalSeconds();
+        int hour = (int) Math.floorMod(localSeconds / 3600, (long) HOURS);
+        hourBookings[hour].add(sign);
+        hourSeats[hour].add(seats);
+
+        TrainTotals totals = trains.computeIfAbsent(booking.trainNumber, TrainTotals::new);
+        totals.bookings.add(sign);
+        totals.seats[booking.division].add(seats);
+        if (train != null) {
+            int[] segments = SeatInventory.segments(train, booking.source, booking.destination);
+            totals.seatSegments.add((long) seats * (segments[1] - segments[0]));
+        }
+
+        RouteTotals route = routes.computeIfAbsent(routeKey(booking.source, booking.destination),
+                key -> new RouteTotals(booking.source, booking.destination));
+        route.bookings.add(sign);
+        long routeSeats = route.seats.addAndGet(seats);
+        if (sign > 0 && routeSeats > topFloor || sign < 0 && route.ranked) {
+            rank(route, sign < 0);
+        }
+    }
+
+    // Keeps the TOP_ROUTES busiest routes: a route that gains seats may take the place of the
+    // least busy one; one that loses seats may have fallen behind an unranked route, which is
+    // only found by a full pass, so that is left to the next read
+    private void rank(RouteTotals route, boolean lostSeats) {
+        synchronized (topLock) {
+            if (lostSeats) {
+                topStale = true;
+                return;
+            }
+            if (!route.ranked) {
+                if (top.size() < TOP_ROUTES) {
+                    top.add(route);
+                    route.ranked = true;
+                } else {
+                    RouteTotals least = least();
+                    if (route.seats.get() <= least.seats.get()) {
+                        return;
+                    }
+                    least.ranked = false;
+                    top.set(top.indexOf(least), route);
+                    route.ranked = true;
+                }
+            }
+            topFloor = top.size() < TOP_ROUTES ? 0 : least().seats.get();
+        }
+    }
+
+    private RouteTotals least() {
+        RouteTotals least = top.get(0);
+        for (RouteTotals candidate : top) {
+            if (candidate.seats.get() < least.seats.get()) {
+                least = candidate;
+            }
+        }
+        return least;
+    }
+
+    // The busiest routes by seats booked, busiest first
+    public List<RouteTotals> topRoutes() {
+        synchronized (topLock) {
+            if (topStale) {
+                for (RouteTotals route : top) {
+                    route.ranked = false;
+                }
+                top.clear();
+                List<RouteTotals> all = new ArrayList<>(routes.values());
+                all.sort(Comparator.comparingLong((RouteTotals route) -> route.seats.get()).reversed());
+                for (RouteTotals route : all.subList(0, Math.min(TOP_ROUTES, all.size()))) {
+                    if (route.seats.get() > 0) {
+                        top.add(route);
+                        route.ranked = true;
+                    }
+                }
+                topFloor = top.size() < TOP_ROUTES ? 0 : least().seats.get();
+                topStale = false;
+            }
+            List<RouteTotals> ranked = new ArrayList<>(top);
+            ranked.sort(Comparator.comparingLong((RouteTotals route) -> route.seats.get()).reversed());
+            return ranked;
+        }
+    }
+
+    public long bookings() {
+        return bookings.sum();
+    }
+
+    public long cancellations() {
+        return cancellations.sum();
+    }
+
+    public long seats() {
+        long total = 0;
+        for (LongAdder division : divisionSeats) {
+            total += division.sum();
+        }
+        return total;
+    }
+
+    public long divisionSeats(int division) {
+        return divisionSeats[division].sum();
+    }
+
+    // Net bookings and seats made during each hour of the day
+    public long hourBookings(int hour) {
+        return hourBookings[hour].sum();
+    }
+
+    public long hourSeats(int hour) {
+        return hourSeats[hour].sum();
+    }
+
+    // Totals of the train number, or null if it was never booked
+    public TrainTotals train(int trainNumber) {
+        return trains.get(trainNumber);
+    }
+
+    // Totals of every train number ever booked, in no particular order
+    public List<TrainTotals> trains() {
+        return new ArrayList<>(trains.values());
+    }
+
+    private static String routeKey(String source, String destination) {
+        return StationIndex.normalize(source) + '\n' + StationIndex.normalize(destination);
+    }
+
+    // For snapshots; call while no bookings are being journaled
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(bookings.sum());
+            out.writeLong(cancellations.sum());
+            for (LongAdder adder : divisionSeats) {
+                out.writeLong(adder.sum());
+            }
+            for (int hour = 0; hour < HOURS; hour++) {
+                out.writeLong(hourBookings[hour].sum());
+                out.writeLong(hourSeats[hour].sum());
+            }
+            out.writeInt(trains.size());
+            for (TrainTotals totals : trains.values()) {
+                out.writeInt(totals.trainNumber);
+                out.writeLong(totals.bookings.sum());
+                for (LongAdder adder : totals.seats) {
+                    out.writeLong(adder.sum());
+                }
+                out.writeLong(totals.seatSegments.sum());
+            }
+            out.writeInt(routes.size());
+            for (RouteTotals route : routes.values()) {
+                BookingJournal.writeString(out, route.source);
+                BookingJournal.writeString(out, route.destination);
+                out.writeLong(route.bookings.sum());
+                out.writeLong(route.seats.get());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static BookingAggregates decode(ByteBuffer in) {
+        BookingAggregates aggregates = new BookingAggregates();
+        aggregates.bookings.add(in.getLong());
+        aggregates.cancellations.add(in.getLong());
+        for (LongAdder adder : aggregates.divisionSeats) {
+            adder.add(in.getLong());
+        }
+        for (int hour = 0; hour < HOURS; hour++) {
+            aggregates.hourBookings[hour].add(in.getLong());
+            aggregates.hourSeats[hour].add(in.getLong());
+        }
+        for (int count = in.getInt(); count > 0; count--) {
+            TrainTotals totals = new TrainTotals(in.getInt());
+            totals.bookings.add(in.getLong());
+            for (LongAdder adder : totals.seats) {
+                adder.add(in.getLong());
+            }
+            totals.seatSegments.add(in.getLong());
+            aggregates.trains.put(totals.trainNumber, totals);
+        }
+        for (int count = in.getInt(); count > 0; count--) {
+            RouteTotals route = new RouteTotals(BookingJournal.readString(in), BookingJournal.readString(in));
+            route.bookings.add(in.getLong());
+            route.seats.set(in.getLong());
+            aggregates.routes.put(routeKey(route.source, route.destination), route);
+        }
+        aggregates.topStale = true;
+        return aggregates;
+    }
+}
+
+// Timetable operations shared by the Swing screens and headless callers.
+// Readers work on the current TimetableSnapshot without locking. Edits are serialized on this
+// service, journaled, and published as one new snapshot per batch.
+class TimetableService {
+    // Rebuild the indexes once they carry more deleted trains than live ones
+    private static final int REINDEX_MIN_DEAD = 1024;
+
+    private final TimetableStore store = new TimetableStore();
+    private final SeatInventory inventory = new SeatInventory();
+    private final BookingJournal journal;
+    private volatile TimetableSnapshot current;
+    private int deadInIndexes;
+    // Journal position from which the live train of a number holds its seats. Bookings journaled earlier
+    // were sold on a train since deleted or replaced, whose seats went with it.
+    private volatile long replacedAt;
+    private final Map<Integer, Long> insertedAt = new ConcurrentHashMap<>();
+
+    // Trains repeating an earlier train number are skipped; older data directories may hold such duplicates
+    public TimetableService(List<TrainSpec> trains, BookingJournal journal) {
+        TimetableSnapshot.Builder batch = TimetableSnapshot.empty(store).edit();
+        for (TrainSpec spec : trains) {
+            if (batch.slotOf(spec.trainNumber) < 0) {
+                add(batch, spec);
+            }
+        }
+        this.current = batch.build();
+        this.journal = journal;
+    }
+
+    // The current version; it never changes, so a caller can use it for as long as it likes
+    public TimetableSnapshot snapshot() {
+        return current;
+    }
+
+    public List<Train> trains() {
+        return current.trains();
+    }
+
+    public int trainCount() {
+        return current.size();
+    }
+
+    public Train trainAt(int index) {
+        return current.trainAt(index);
+    }
+
+    public List<Train> search(String sourceText, String destinationText) {
+        return search(sourceText, destinationText, null, null);
+    }
+
+    // Trains matching the station texts that also depart and arrive within the given windows; a null window matches any time
+    public List<Train> search(String sourceText, String destinationText, TimeWindow departing, TimeWindow arriving) {
+        return current.search(sourceText, destinationText, departing, arriving);
+    }
+
+    public Train findExact(String source, String destination) {
+        return current.findExact(source, destination);
+    }
+
+    public Train findServing(String source, String destination) {
+        return current.findServing(source, destination);
+    }
+
+    // First train with the given number, or null
+    public Train findByNumber(int trainNumber) {
+        return current.findByNumber(trainNumber);
+    }
+
+    public int availableSeats(Train train) {
+        return inventory.available(train);
+    }
+
+    // Planner over the current timetable; each version builds its own on first use
+    public JourneyPlanner planner() {
+        return current.planner();
+    }
+
+    SeatInventory inventory() {
+        return inventory;
+    }
+
+    // Inserts, updates and deletes applied in order and published together as one new version
+    static class Edit {
+        private final List<TrainSpec> trains = new ArrayList<>();
+        private final List<Byte> types = new ArrayList<>(); // BookingJournal record type of each step
+        private final List<Integer> numbers = new ArrayList<>();
+        private TimetableSnapshot appliedTo;
+
+        // Adds a train; its number must not be in use
+        public Edit insert(TrainSpec train) {
+            return step(BookingJournal.INSERT_TRAIN, train, train.trainNumber);
+        }
+
+        // Replaces the details of the train with the same number, keeping the seats already sold
+        public Edit update(TrainSpec train) {
+            return step(BookingJournal.UPDATE_TRAIN, train, train.trainNumber);
+        }
+
+        public Edit delete(int trainNumber) {
+            return step(BookingJournal.DELETE_TRAIN, null, trainNumber);
+        }
+
+        private Edit step(byte type, TrainSpec train, int trainNumber) {
+            types.add(type);
+            trains.add(train);
+            numbers.add(trainNumber);
+            return this;
+        }
+    }
+
+    // Checks, journals and publishes the edits as one version, then waits until they are durable.
+    // Throws IllegalArgumentException, leaving the timetable untouched, if an insert reuses a live
+    // train number, an update names a train that does not exist or changes the stops of a train
+    // with seats sold.
+    public TimetableSnapshot apply(Edit edit) {
+        long started = System.nanoTime();
+        TimetableSnapshot published;
+        long position = -1;
+        Lock lock = journal.checkpointLock().readLock();
+        lock.lock();
+        try {
+            synchronized (this) {
+                check(edit);
+                edit.appliedTo = current;
+                // Every step is journaled, all or nothing, before the store or the seats change, so a failed
+                // append leaves nothing in memory that a restart would not also have
+                byte[] types = new byte[edit.types.size()];
+                List<byte[]> payloads = new ArrayList<>(types.length);
+                for (int step = 0; step < types.length; step++) {
+                    types[step] = edit.types.get(step);
+                    payloads.add(types[step] == BookingJournal.DELETE_TRAIN
+                            ? ByteBuffer.allocate(Integer.BYTES).putInt(edit.numbers.get(step)).array()
+                            : edit.trains.get(step).encode());
+                }
+                long[] positions = types.length == 0 ? new long[0] : journal.appendAll(types, payloads);
+                TimetableSnapshot.Builder batch = current.edit();
+                for (int step = 0; step < types.length; step++) {
+                    TrainSpec train = edit.trains.get(step);
+                    int trainNumber = edit.numbers.get(step);
+                    if (types[step] == BookingJournal.INSERT_TRAIN) {
+                        add(batch, train);
+                        insertedAt.put(trainNumber, positions[step]);
+                    } else if (types[step] == BookingJournal.UPDATE_TRAIN) {
+                        update(batch, train);
+                    } else {
+                        remove(batch, trainNumber);
+                        insertedAt.remove(trainNumber);
+                    }
+                    position = positions[step];
+                }
+                published = publish(batch);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (position >= 0) {
+            journal.awaitDurable(position);
+        }
+        for (byte type : edit.types) {
+            (type == BookingJournal.INSERT_TRAIN ? Metrics.TRAINS_INSERTED
+                    : type == BookingJournal.UPDATE_TRAIN ? Metrics.TRAINS_UPDATED : Metrics.TRAINS_DELETED).increment();
+        }
+        Metrics.ADMIN_EDIT.record(System.nanoTime() - started);
+        return published;
+    }
+
+    // Replays the edit's steps against train numbers alone, before anything is allocated or journaled
+    private void check(Edit edit) {
+        IntIntMap live = new IntIntMap(); // number -> 1 if live, 0 if not, after the steps so far
+        for (int step = 0; step < edit.types.size(); step++) {
+            int trainNumber = edit.numbers.get(step);
+            boolean exists = live.get(trainNumber, current.slotOf(trainNumber) >= 0 ? 1 : 0) == 1;
+            byte type = edit.types.get(step);
+            if (type == BookingJournal.INSERT_TRAIN && exists) {
+                throw new IllegalArgumentException("Train number " + trainNumber + " already exists");
+            }
+            if (type == BookingJournal.UPDATE_TRAIN && !exists) {
+                throw new IllegalArgumentException("No train numbered " + trainNumber);
+            }
+            Train train = current.findByNumber(trainNumber);
+            if (type == BookingJournal.UPDATE_TRAIN && train != null && !sameStops(train, edit.trains.get(step))
+                    && inventory.soldSeatSegments(train) > 0) {
+                throw new IllegalArgumentException("Train " + trainNumber + " has seats sold; its stops cannot change");
+            }
+            live.put(trainNumber, type == BookingJournal.DELETE_TRAIN ? 0 : 1);
+        }
+    }
+
+    private static boolean sameStops(Train train, TrainSpec spec) {
+        return train.source().equals(spec.source) && train.destination().equals(spec.destination)
+                && Arrays.equals(train.via(), spec.via);
+    }
+
+    // Appends the train and returns its index in the timetable
+    public int insertTrain(TrainSpec train) {
+        TimetableSnapshot published = apply(new Edit().insert(train));
+        // the new train has the highest slot, so it is the last row
+        return published.size() - 1;
+    }
+
+    // Replaces the train's details; returns its new index in the timetable
+    public int updateTrain(TrainSpec train) {
+        TimetableSnapshot published = apply(new Edit().update(train));
+        return published.rowOf(published.slotOf(train.trainNumber));
+    }
+
+    // Removes the train with the given number and returns its former index, or -1 if there was none
+    public int deleteTrain(int trainNumber) {
+        Edit edit = new Edit().delete(trainNumber);
+        apply(edit);
+        int slot = edit.appliedTo.slotOf(trainNumber);
+        return slot < 0 ? -1 : edit.appliedTo.rowOf(slot);
+    }
+
+    synchronized void replayInsert(TrainSpec spec, long position) {
+        TimetableSnapshot.Builder batch = current.edit();
+        // journals written before numbers were unique may insert one twice; keep the first
+        if (batch.slotOf(spec.trainNumber) < 0) {
+            add(batch, spec);
+            insertedAt.put(spec.trainNumber, position);
+            publish(batch);
+        }
+    }
+
+    synchronized void replayUpdate(TrainSpec spec) {
+        TimetableSnapshot.Builder batch = current.edit();
+        update(batch, spec);
+        publish(batch);
+    }
+
+    synchronized void replayDelete(int trainNumber) {
+        TimetableSnapshot.Builder batch = current.edit();
+        remove(batch, trainNumber);
+        insertedAt.remove(trainNumber);
+        publish(batch);
+    }
+
+    // Swaps in a whole new timetable at the given journal position; the caller holds the checkpoint
+    // write lock and makes it durable
+    synchronized void replaceAll(List<TrainSpec> trains, long position) {
+        IntIntMap numbers = new IntIntMap();
+        for (TrainSpec spec : trains) {
+            if (numbers.get(spec.trainNumber, 0) != 0) {
+                throw new IllegalArgumentException("Train number " + spec.trainNumber + " appears twice");
+            }
+            numbers.put(spec.trainNumber, 1);
+        }
+        TimetableSnapshot.Builder batch = current.edit();
+        for (int slot : current.liveSlots()) {
+            inventory.unregister(store.train(slot));
+        }
+        batch.clear();
+        deadInIndexes = 0;
+        replacedAt = position;
+        insertedAt.clear();
+        for (TrainSpec spec : trains) {
+            add(batch, spec);
+        }
+        publish(batch);
+    }
+
+    // Whether the booking journaled at position holds seats on the live train of its number,
+    // rather than on one deleted or replaced since
+    boolean soldOnLiveTrain(int trainNumber, long position) {
+        return position >= Math.max(replacedAt, insertedAt.getOrDefault(trainNumber, 0L));
+    }
+
+    // replacedAt, then the trains inserted since with the journal position of each
+    byte[] encodeSalesStarts() {
+        Map<Integer, Long> inserted = new HashMap<>(insertedAt);
+        ByteBuffer out = ByteBuffer.allocate(Long.BYTES + Integer.BYTES + inserted.size() * (Integer.BYTES + Long.BYTES));
+        out.putLong(replacedAt).putInt(inserted.size());
+        for (Map.Entry<Integer, Long> entry : inserted.entrySet()) {
+            out.putInt(entry.getKey()).putLong(entry.getValue());
+        }
+        return out.array();
+    }
+
+    synchronized void restoreSalesStarts(ByteBuffer in) {
+        replacedAt = in.getLong();
+        insertedAt.clear();
+        for (int count = in.getInt(); count > 0; count--) {
+            insertedAt.put(in.getInt(), in.getLong());
+        }
+    }
+
+    private void add(TimetableSnapshot.Builder batch, TrainSpec spec) {
+        int slot = store.add(spec);
+        inventory.register(store.train(slot));
+        batch.add(slot);
+    }
+
+    private void update(TimetableSnapshot.Builder batch, TrainSpec spec) {
+        int old = batch.slotOf(spec.trainNumber);
+        if (old < 0) {
+            return;
+        }
+        batch.remove(old);
+        deadInIndexes++;
+        int slot = store.add(spec);
+        inventory.transfer(store.train(old), store.train(slot));
+        batch.add(slot);
+    }
+
+    private void remove(TimetableSnapshot.Builder batch, int trainNumber) {
+        int slot = batch.slotOf(trainNumber);
+        if (slot >= 0) {
+            batch.remove(slot);
+            inventory.unregister(store.train(slot));
+            deadInIndexes++;
+        }
+    }
+
+    private TimetableSnapshot publish(TimetableSnapshot.Builder batch) {
+        TimetableSnapshot next = batch.build();
+        if (deadInIndexes >= REINDEX_MIN_DEAD && deadInIndexes > next.size()) {
+            batch.reindex();
+            deadInIndexes = 0;
+            next = batch.build();
+        }
+        current = next;
+        return next;
+    }
+}
+
+// Journey planner over the station graph, using the Connection Scan Algorithm.
+// Every segment between consecutive stops of a train is one connection, so a journey may board or alight
+// at any stop. The timetable only has each train's start and reach times, so the times of its intermediate
+// stops are spread evenly between them. Connections are laid out for several consecutive days in primitive
+// arrays sorted by departure, so a journey can change trains overnight; each day's run of a train is one
+// trip, which a rider stays on from segment to segment without changing. Earliest-arrival queries take one
+// scan; fewest-transfer queries take one scan per leg.
+class JourneyPlanner {
+    static final int DEFAULT_MIN_CONNECTION_MINUTES = 30;
+    static final int MAX_LEGS = 4;
+    private static final int DAY = 24 * 60;
+    // Days of departures laid out, which bounds how long a journey may take
+    private static final int DAYS = 3;
+    private static final int UNREACHED = Integer.MAX_VALUE;
+
+    enum Objective { EARLIEST_ARRIVAL, FEWEST_TRANSFERS }
+
+    // One train ride from the stop boarded at to the stop alighted at; times are minutes after midnight of the first day
+    static class Leg {
+        final Train train;
+        final String source;
+        final String destination;
+        final int departure;
+        final int arrival;
+
+        Leg(Train train, String source, String destination, int departure, int arrival) {
+            this.train = train;
+            this.source = source;
+            this.destination = destination;
+            this.departure = departure;
+            this.arrival = arrival;
+        }
+
+        @Override
+        public String toString() {
+            return train.trainNumber() + " " + train.name() + ": " + source + " " + clock(departure)
+                    + " -> " + destination + " " + clock(arrival);
+        }
+    }
+
+    static class Journey {
+        final List<Leg> legs;
+
+        Journey(List<Leg> legs) {
+            this.legs = legs;
+        }
+
+        int departure() {
+            return legs.get(0).departure;
+        }
+
+        int arrival() {
+            return legs.get(legs.size() - 1).arrival;
+        }
+
+        int transfers() {
+            return legs.size() - 1;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (Leg leg : legs) {
+                text.append(leg).append('\n');
+            }
+            return text.toString();
+        }
+    }
+
+    private final TimetableStore store;
+    private final Map<String, Integer> stationIds = new HashMap<>();
+    private final int[] departures;
+    private final int[] arrivals;
+    private final int[] fromStations;
+    private final int[] toStations;
+    private final int[] slots;
+    private final int[] trips; // row * DAYS + day of the train run the connection belongs to
+    private final int[] fromStops; // index of the connection's first stop along its train
+    private final int tripCount;
+
+    // Builds the sorted connection arrays for the given live slots
+    JourneyPlanner(TimetableStore store, int[] liveSlots) {
+        this.store = store;
+        int trains = liveSlots.length;
+        int[] firstSegment = new int[trains + 1]; // segments of row r are firstSegment[r] until firstSegment[r + 1]
+        for (int row = 0; row < trains; row++) {
+            firstSegment[row + 1] = firstSegment[row] + store.viaCount(liveSlots[row]) + 1;
+        }
+        int segments = firstSegment[trains];
+        tripCount = trains * DAYS;
+        long[] keys = new long[segments * DAYS];
+        for (int row = 0; row < trains; row++) {
+            int slot = liveSlots[row];
+            for (int day = 0; day < DAYS; day++) {
+                for (int segment = firstSegment[row]; segment < firstSegment[row + 1]; segment++) {
+                    int stop = segment - firstSegment[row];
+                    // departure in the high bits sorts the connections; the low bits carry the day and segment,
+                    // which grow along the route, so a train's segments stay in running order on equal times
+                    int id = day * segments + segment;
+                    keys[id] = ((long) (stopMinute(slot, stop) + day * DAY) << 32) | id;
+                }
+            }
+        }
+        Arrays.sort(keys);
+
+        departures = new int[keys.length];
+        arrivals = new int[keys.length];
+        fromStations = new int[keys.length];
+        toStations = new int[keys.length];
+        slots = new int[keys.length];
+        trips = new int[keys.length];
+        fromStops = new int[keys.length];
+        for (int c = 0; c < keys.length; c++) {
+            int id = (int) keys[c];
+            int segment = id % segments;
+            int row = rowOf(firstSegment, segment);
+            int slot = liveSlots[row];
+            int stop = segment - firstSegment[row];
+            int day = id / segments;
+            departures[c] = (int) (keys[c] >>> 32);
+            arrivals[c] = stopMinute(slot, stop + 1) + day * DAY;
+            fromStations[c] = stationId(stopName(slot, stop));
+            toStations[c] = stationId(stopName(slot, stop + 1));
+            slots[c] = slot;
+            trips[c] = row * DAYS + day;
+            fromStops[c] = stop;
+        }
+    }
+
+    // Minutes after midnight of the train's first day at which it calls at the stop, spread evenly from start to reach
+    private int stopMinute(int slot, int stop) {
+        int start = store.startMinute(slot);
+        int reach = store.reachMinute(slot);
+        // a reach time at or before the start time means the train arrives the next day
+        int duration = reach > start ? reach - start : reach + DAY - start;
+        return start + (int) ((long) duration * stop / (store.viaCount(slot) + 1));
+    }
+
+    private String stopName(int slot, int stop) {
+        if (stop == 0) {
+            return store.source(slot);
+        }
+        return stop == store.viaCount(slot) + 1 ? store.destination(slot) : store.viaStop(slot, stop - 1);
+    }
+
+    // Row whose segments include the given one
+    private static int rowOf(int[] firstSegment, int segment) {
+        int low = 0;
+        int high = firstSegment.length - 2;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (firstSegment[mid] <= segment) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // Best journey leaving source no earlier than departAfter (minutes after midnight), or null
+    public Journey plan(String source, String destination, int departAfter, int minConnection, Objective objective) {
+        Integer from = stationIds.get(StationIndex.normalize(source));
+        Integer to = stationIds.get(StationIndex.normalize(destination));
+        if (from == null || to == null || from.equals(to)) {
+            return null;
+        }
+        if (objective == Objective.EARLIEST_ARRIVAL) {
+            int[] arrival = new int[stationIds.size()];
+            int[] inbound = new int[stationIds.size()];
+            int[] boarded = new int[stationIds.size()];
+            Arrays.fill(arrival, UNREACHED);
+            Arrays.fill(inbound, -1);
+            arrival[from] = departAfter;
+            scan(from, to, departAfter, minConnection, arrival, arrival, inbound, boarded);
+            return arrival[to] == UNREACHED ? null
+                    : journey(from, to, Collections.singletonList(inbound), Collections.singletonList(boarded));
+        }
+
+        // Fewest transfers: round k only extends journeys found with k - 1 legs
+        List<int[]> rounds = new ArrayList<>();
+        List<int[]> boardedRounds = new ArrayList<>();
+        int[] previous = new int[stationIds.size()];
+        Arrays.fill(previous, UNREACHED);
+        previous[from] = departAfter;
+        int[] previousInbound = new int[stationIds.size()];
+        Arrays.fill(previousInbound, -1);
+        int[] previousBoarded = new int[stationIds.size()];
+        for (int legs = 1; legs <= MAX_LEGS; legs++) {
+            int[] arrival = previous.clone();
+            int[] inbound = previousInbound.clone();
+            int[] boarded = previousBoarded.clone();
+            scan(from, to, departAfter, minConnection, previous, arrival, inbound, boarded);
+            rounds.add(inbound);
+            boardedRounds.add(boarded);
+            if (arrival[to] != UNREACHED) {
+                return journey(from, to, rounds, boardedRounds);
+            }
+            previous = arrival;
+            previousInbound = inbound;
+            previousBoarded = boarded;
+        }
+        return null;
+    }
+
+    // Relaxes every connection in departure order. inbound[s] is the connection a best journey reaches s on,
+    // boarded[s] the connection at whose first stop it got on that train.
+    private void scan(int from, int to, int departAfter, int minConnection, int[] ready, int[] arrival, int[] inbound,
+                      int[] boarded) {
+        int[] boardedTrip = new int[tripCount]; // connection each trip was first boarded on, or -1
+        Arrays.fill(boardedTrip, -1);
+        for (int c = firstDepartingAt(departAfter); c < departures.length; c++) {
+            if (departures[c] >= arrival[to]) {
+                break;
+            }
+            int trip = trips[c];
+            if (boardedTrip[trip] < 0) {
+                int station = fromStations[c];
+                int readyAt = ready[station];
+                if (readyAt == UNREACHED) {
+                    continue;
+                }
+                if (station != from) {
+                    readyAt += minConnection;
+                }
+                if (departures[c] < readyAt) {
+                    continue;
+                }
+                boardedTrip[trip] = c;
+            }
+            if (arrivals[c] < arrival[toStations[c]]) {
+                arrival[toStations[c]] = arrivals[c];
+                inbound[toStations[c]] = c;
+                boarded[toStations[c]] = boardedTrip[trip];
+            }
+        }
+    }
+
+    // Walks the inbound connections back from the destination; round i holds the best journeys of at most i + 1 legs
+    private Journey journey(int from, int to, List<int[]> rounds, List<int[]> boardedRounds) {
+        List<Leg> legs = new ArrayList<>();
+        int station = to;
+        int round = rounds.size() - 1;
+        while (station != from) {
+            int c = rounds.get(Math.max(round, 0))[station];
+            int first = boardedRounds.get(Math.max(round, 0))[station];
+            int slot = slots[c];
+            legs.add(0, new Leg(store.train(slot), stopName(slot, fromStops[first]), stopName(slot, fromStops[c] + 1),
+                    departures[first], arrivals[c]));
+            station = fromStations[first];
+            if (rounds.size() > 1) {
+                round--;
+            }
+        }
+        return new Journey(legs);
+    }
+
+    private int firstDepartingAt(int minute) {
+        int low = 0;
+        int high = departures.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (departures[mid] < minute) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int stationId(String station) {
+        return stationIds.computeIfAbsent(StationIndex.normalize(station), key -> stationIds.size());
+    }
+
+    static String clock(int minutes) {
+        String time = TrainSpec.formatTime(minutes % DAY);
+        return minutes >= DAY ? time + " (+" + minutes / DAY + ")" : time;
+    }
+}
+
+// Work queues partitioned by key, each drained by its own single writer thread. Items with the same key
+// are handled one at a time in submission order; different partitions never wait on each other.
+// A writer takes everything queued, up to MAX_BATCH, and hands it to the handler as one batch.
+// A joint item spans several partitions: it is queued on each of them, and every one of their writers hands
+// over what it queued before the item and then waits at it. The last writer to arrive handles the item as a
+// batch of its own while the others wait, so the item falls at one point in the order of every partition.
+// Joint items are queued under one lock, so any two of them are in the same order on every partition they
+// share and no two writers can wait on each other.
+class BookingPipeline<T> implements Closeable {
+    static final int DEFAULT_PARTITIONS = Integer.getInteger("railway.booking.partitions", Runtime.getRuntime().availableProcessors());
+    static final int MAX_BATCH = 256;
+    private static final int QUEUE_CAPACITY = 4096;
+
+    interface BatchHandler<T> {
+        // Handles the batch; if it throws, failed is called with the same batch
+        void apply(List<T> batch);
+
+        void failed(List<T> batch, RuntimeException cause);
+    }
+
+    // A joint item as queued on each of its partitions
+    private static final class Joint<T> {
+        final T item;
+        final AtomicInteger arriving; // partitions whose writers have yet to reach it
+        final CountDownLatch handled = new CountDownLatch(1);
+
+        Joint(T item, int partitions) {
+            this.item = item;
+            this.arriving = new AtomicInteger(partitions);
+        }
+    }
+
+    private final BatchHandler<T> handler;
+    private final List<BlockingQueue<Object>> queues = new ArrayList<>(); // items, and the Joint of joint items
+    private final Object jointOrder = new Object();
+    private final List<Thread> writers = new ArrayList<>();
+    // Submitters hold the read lock, so once close() has the write lock nothing more is queued
+    private final ReentrantReadWriteLock closing = new ReentrantReadWriteLock();
+    private volatile boolean closed;
+
+    public BookingPipeline(String name, int partitions, BatchHandler<T> handler) {
+        this.handler = handler;
+        for (int i = 0; i < Math.max(1, partitions); i++) {
+            BlockingQueue<Object> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            Thread writer = new Thread(() -> drain(queue), name + "-" + i);
+            writer.setDaemon(true);
+            queues.add(queue);
+            writers.add(writer);
+            writer.start();
+        }
+    }
+
+    public int partitions() {
+        return queues.size();
+    }
+
+    public int partitionOf(int key) {
+        return Math.floorMod(key, queues.size());
+    }
+
+    // Queues the item on the partition for key, waiting for room if it is full
+    public void submit(int key, T item) {
+        if (!offer(key, item)) {
+            throw new IllegalStateException("Booking pipeline is closed");
+        }
+    }
+
+    // As submit, but returns false instead of throwing once the pipeline is closed
+    public boolean offer(int key, T item) {
+        Lock lock = closing.readLock();
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            queues.get(partitionOf(key)).put(item);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing a booking", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Queues the item as a joint item on the partitions of every key, waiting for room if they are full;
+    // an item whose keys all share one partition is queued as submit does
+    public void submitJoint(int[] keys, T item) {
+        Set<Integer> partitions = new LinkedHashSet<>();
+        for (int key : keys) {
+            partitions.add(partitionOf(key));
+        }
+        if (partitions.size() == 1) {
+            submit(keys[0], item);
+            return;
+        }
+        Joint<T> joint = new Joint<>(item, partitions.size());
+        Lock lock = closing.readLock();
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Booking pipeline is closed");
+            }
+            synchronized (jointOrder) {
+                for (int partition : partitions) {
+                    queues.get(partition).put(joint);
+                }
+            }
+        } catch (InterruptedException e) {
+            // the writers that reached it would wait for the rest for good; a queued joint item cannot be taken back
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing a booking", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drain(BlockingQueue<Object> queue) {
+        List<Object> taken = new ArrayList<>(MAX_BATCH);
+        List<T> batch = new ArrayList<>(MAX_BATCH);
+        while (!closed || !queue.isEmpty()) {
+            Object first;
+            try {
+                first = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                continue;
+            }
+            taken.add(first);
+            queue.drainTo(taken, MAX_BATCH - 1);
+            for (Object item : taken) {
+                if (item instanceof Joint) {
+                    handle(batch);
+                    arrive((Joint<T>) item);
+                } else {
+                    batch.add((T) item);
+                }
+            }
+            handle(batch);
+            taken.clear();
+        }
+    }
+
+    private void handle(List<T> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            handler.apply(batch);
+        } catch (RuntimeException e) {
+            handler.failed(batch, e);
+        }
+        batch.clear();
+    }
+
+    // Waits at the joint item until the writers of its other partitions reach it too; the last one handles it
+    private void arrive(Joint<T> joint) {
+        if (joint.arriving.decrementAndGet() > 0) {
+            boolean interrupted = false;
+            while (joint.handled.getCount() > 0) {
+                try {
+                    joint.handled.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        try {
+            handle(new ArrayList<>(Collections.singletonList(joint.item)));
+        } finally {
+            joint.handled.countDown();
+        }
+    }
+
+    // Stops taking items and waits for the writers to finish what is already queued
+    @Override
+    public void close() {
+        Lock lock = closing.writeLock();
+        lock.lock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        for (Thread writer : writers) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
+
+// Booking operations: search-and-book, bulk booking, cancellation and history.
+// Safe to call from any thread. A booking is matched and validated on the caller's thread, then queued on the
+// BookingPipeline partition of its train, whose single writer claims seats for a whole batch of bookings,
+// journals them with one append and acknowledges them together once that append is durable. Bookings for one
+// train are therefore applied strictly in arrival order, and trains in different partitions never contend.
+// Cancellations go through the partition of their train too, and a journey is a joint item on the partitions
+// of all its trains, so nothing else claims or frees a partition's seats out of that order.
+// A booking that may wait joins its train's Waitlists queue when the seats are gone; the writer that frees
+// seats by a cancellation books the entries at the head of the queue right after it, and a withdrawal
+// queues a promotion on the partition that does the same.
+class BookingService implements Closeable {
+    // How long a release waits for an update that retired its train to publish the replacement
+    private static final long RETIRED_WAIT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long RETIRED_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final TimetableService timetable;
+    private final BookingJournal journal;
+    private final BookingIdIndex bookingIndex;
+    private final BookingAggregates aggregates;
+    private final Waitlists waitlists;
+    private final AtomicLong nextBookingId;
+    private final BookingPipeline<PendingBooking> pipeline;
+    private BookingStore history;
+
+    // A booking on its way through the pipeline; the writer fills in the seats and bookings.
+    // One without a request asks the writer to promote waiting entries of its train and division,
+    // or to cancel the booking it carries.
+    private static final class PendingBooking {
+        static final int NOT_WAITLISTED = -1;
+
+        final BookingRequest request;
+        final List<Train> trains;
+        final String[] sources;
+        final String[] destinations;
+        final long started;
+        final int priority;        // waitlist priority if the request may join its train's waitlist; else NOT_WAITLISTED
+        final WaitlistEntry entry; // the waitlist entry this books, for a promotion
+        final CompletableFuture<BookingResult> result = new CompletableFuture<>();
+        int division;
+        List<Passenger> passengers;
+        int[][] seats;
+        Booking[] bookings;
+        WaitlistEntry joined;      // the entry created when the request joined the waitlist instead
+        int position;              // and its position then
+        int firstRecord;           // index in its batch's append of the record of its first booking, or of its cancellation
+        Booking cancelling;        // the booking a cancellation cancels, as journaled at bookingPosition
+        long bookingPosition;
+        Train cancelledOn;         // the live train the cancellation freed seats on, or null if it was sold on an older one
+        boolean cancelled;         // whether the cancellation took effect
+
+        PendingBooking(BookingRequest request, List<Train> trains, String[] sources, String[] destinations, long started) {
+            this(request, trains, sources, destinations, started, NOT_WAITLISTED, null);
+        }
+
+        PendingBooking(BookingRequest request, List<Train> trains, String[] sources, String[] destinations, long started,
+                       int priority, WaitlistEntry entry) {
+            this.request = request;
+            this.trains = new ArrayList<>(trains);
+            this.sources = sources;
+            this.destinations = destinations;
+            this.started = started;
+            this.priority = priority;
+            this.entry = entry;
+        }
+
+        static PendingBooking promotion(Train train, int division) {
+            PendingBooking promotion = new PendingBooking(null, Collections.singletonList(train), null, null, System.nanoTime());
+            promotion.division = division;
+            return promotion;
+        }
+
+        static PendingBooking cancellation(Booking booking, long bookingPosition, long started) {
+            PendingBooking cancellation = new PendingBooking(null, Collections.emptyList(), null, null, started);
+            cancellation.cancelling = booking;
+            cancellation.bookingPosition = bookingPosition;
+            return cancellation;
+        }
+    }
+
+    public BookingService(TimetableService timetable, BookingJournal journal, BookingIdIndex bookingIndex,
+                          BookingAggregates aggregates, Waitlists waitlists, long nextBookingId) {
+        this.timetable = timetable;
+        this.journal = journal;
+        this.bookingIndex = bookingIndex;
+        this.aggregates = aggregates;
+        this.waitlists = waitlists;
+        this.nextBookingId = new AtomicLong(nextBookingId);
+        this.pipeline = new BookingPipeline<>("booking-partition", BookingPipeline.DEFAULT_PARTITIONS,
+                new BookingPipeline.BatchHandler<PendingBooking>() {
+                    @Override
+                    public void apply(List<PendingBooking> batch) {
+                        applyBatch(batch);
+                    }
+
+                    @Override
+                    public void failed(List<PendingBooking> batch, RuntimeException cause) {
+                        for (PendingBooking pending : batch) {
+                            pending.result.completeExceptionally(cause);
+                        }
+                    }
+                });
+    }
+
+    // Finishes the bookings already queued; later ones are refused
+    @Override
+    public void close() {
+        pipeline.close();
+    }
+
+    // Running totals of the bookings and cancellations so far
+    public BookingAggregates aggregates() {
+        return aggregates;
+    }
+
+    // Waiting requests of every train, for snapshots
+    Waitlists waitlists() {
+        return waitlists;
+    }
+
+    public BookingResult book(BookingRequest request) {
+        return await(submit(request, PendingBooking.NOT_WAITLISTED));
+    }
+
+    // Books the request, or if its train has too few seats, or others are already waiting for seats in the
+    // division, puts it on the train's waitlist for the division at priority 0 to Waitlists.MAX_PRIORITY,
+    // higher first. The result of a waitlisted request gives its waitlist id and position; it is booked when
+    // cancellations free enough seats, on the same partition writer and seat maps as any other booking.
+    public BookingResult bookOrWaitlist(BookingRequest request, int priority) {
+        if (priority < 0 || priority > Waitlists.MAX_PRIORITY) {
+            return BookingResult.rejected(BookingResult.Status.INVALID, "Priority must be between 0 and " + Waitlists.MAX_PRIORITY + ".");
+        }
+        return await(submit(request, priority));
+    }
+
+    // Books the request on a train the caller has already matched, as a cluster router does
+    public BookingResult bookOn(Train train, BookingRequest request) {
+        return await(submit(train, request, System.nanoTime(), PendingBooking.NOT_WAITLISTED));
+    }
+
+    // Matches the request to a train, then validates it and queues it on the train's partition
+    private CompletableFuture<BookingResult> submit(BookingRequest request, int priority) {
+        long started = System.nanoTime();
+        Train train = timetable.findExact(request.source, request.destination);
+        if (train == null) {
+            train = timetable.findServing(request.source, request.destination);
+        }
+        Metrics.BOOK_MATCH.record(System.nanoTime() - started);
+        if (train == null) {
+            return CompletableFuture.completedFuture(recorded(started, BookingResult.rejected(BookingResult.Status.NO_TRAIN,
+                    "Invalid source or destination. Please select from available trains.")));
+        }
+        return submit(train, request, started, priority);
+    }
+
+    private CompletableFuture<BookingResult> submit(Train train, BookingRequest request, long started, int priority) {
+        PendingBooking pending = new PendingBooking(request, Collections.singletonList(train),
+                new String[] {request.source}, new String[] {request.destination}, started, priority, null);
+        BookingResult rejection = validate(pending);
+        if (rejection != null) {
+            return CompletableFuture.completedFuture(recorded(started, rejection));
+        }
+        pipeline.submit(train.trainNumber(), pending);
+        return pending.result;
+    }
+
+    private static BookingResult await(CompletableFuture<BookingResult> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    // Fastest journey, or the one with the fewest changes, from source to destination; null if none
+    public JourneyPlanner.Journey planJourney(String source, String destination, JourneyPlanner.Objective objective) {
+        return timetable.planner().plan(source, destination, 0, JourneyPlanner.DEFAULT_MIN_CONNECTION_MINUTES, objective);
+    }
+
+    // Books the same division and passengers on every leg, or on none of them. The legs span partitions, so
+    // the journey is queued as a joint item on all of them and claimed at one point in the order of each.
+    public BookingResult bookJourney(JourneyPlanner.Journey journey, BookingRequest request) {
+        long started = System.nanoTime();
+        List<Train> trains = new ArrayList<>(journey.legs.size());
+        String[] sources = new String[journey.legs.size()];
+        String[] destinations = new String[journey.legs.size()];
+        for (int i = 0; i < journey.legs.size(); i++) {
+            JourneyPlanner.Leg leg = journey.legs.get(i);
+            trains.add(leg.train);
+            sources[i] = leg.source;
+            destinations[i] = leg.destination;
+        }
+        PendingBooking pending = new PendingBooking(request, trains, sources, destinations, started);
+        BookingResult rejection = validate(pending);
+        if (rejection != null) {
+            return recorded(started, rejection);
+        }
+        int[] trainNumbers = new int[trains.size()];
+        for (int i = 0; i < trainNumbers.length; i++) {
+            trainNumbers[i] = trains.get(i).trainNumber();
+        }
+        pipeline.submitJoint(trainNumbers, pending);
+        return await(pending.result);
+    }
+
+    private static BookingResult recorded(long started, BookingResult result) {
+        Metrics.BOOK.record(System.nanoTime() - started);
+        if (result.status == BookingResult.Status.WAITLISTED) {
+            Metrics.WAITLIST_JOINED.increment();
+        } else {
+            (result.isConfirmed() ? Metrics.BOOKINGS_CONFIRMED : Metrics.BOOKINGS_REJECTED).increment();
+        }
+        return result;
+    }
+
+    private static void complete(PendingBooking pending, BookingResult result) {
+        pending.result.complete(recorded(pending.started, result));
+    }
+
+    // Checks the request against the trains as they stand; returns the rejection, or null if it may proceed
+    private BookingResult validate(PendingBooking pending) {
+        long validating = System.nanoTime();
+        BookingRequest request = pending.request;
+        try {
+            pending.division = SeatInventory.divisionOf(request.division);
+        } catch (IllegalArgumentException ex) {
+            return BookingResult.rejected(BookingResult.Status.INVALID, ex.getMessage());
+        }
+        if (request.seats <= 0) {
+            return BookingResult.rejected(BookingResult.Status.INVALID, "Please enter a valid number of seats.");
+        }
+
+        SeatInventory inventory = timetable.inventory();
+        for (int i = 0; i < pending.trains.size(); i++) {
+            Train train = pending.trains.get(i);
+            if (pending.priority != PendingBooking.NOT_WAITLISTED) {
+                // it may wait for any number of seats the division could ever free up
+                if (request.seats > inventory.capacity(train, pending.division)) {
+                    return BookingResult.rejected(BookingResult.Status.INSUFFICIENT_SEATS, "The division does not have that many seats.");
+                }
+                continue;
+            }
+            int[] segments = SeatInventory.segments(train, pending.sources[i], pending.destinations[i]);
+            boolean full = inventory.available(train, pending.division, segments[0], segments[1]) < request.seats
+                    || waitlists.waiting(train.trainNumber(), pending.division) > 0;
+            if (full && !inventory.isRetired(train)) {
+                return BookingResult.rejected(BookingResult.Status.INSUFFICIENT_SEATS, "Insufficient seats available.");
+            }
+        }
+
+        if (request.passengers == null || request.passengers.size() != request.seats) {
+            return BookingResult.rejected(BookingResult.Status.INVALID, "Please fill in all fields.");
+        }
+        List<Passenger> passengers = new ArrayList<>(request.passengers.size());
+        for (Passenger passenger : request.passengers) {
+            if (passenger.name == null || passenger.name.trim().isEmpty()) {
+                return BookingResult.rejected(BookingResult.Status.INVALID, "Please fill in all fields.");
+            }
+            passengers.add(new Passenger(passenger.name.trim(), passenger.age));
+        }
+        pending.passengers = passengers;
+        Metrics.BOOK_VALIDATE.record(System.nanoTime() - validating);
+        return null;
+    }
+
+    // Claims seats for every booking in the batch and frees those of its cancellations, journals them and the
+    // requests that joined a waitlist with one append, and acknowledges the batch once that append is durable
+    private void applyBatch(List<PendingBooking> batch) {
+        List<PendingBooking> claimed = new ArrayList<>(batch.size());
+        List<PendingBooking> joined = new ArrayList<>();
+        List<PendingBooking> cancelled = new ArrayList<>();
+        long[] positions;
+        long journaling;
+        Lock lock = journal.checkpointLock().readLock();
+        lock.lock();
+        try {
+            try {
+                positions = claimAndJournal(batch, claimed, joined, cancelled);
+            } catch (RuntimeException e) {
+                // the handler fails the whole batch; nothing of it may stay claimed, freed, waiting or dequeued
+                rollBack(claimed, joined, cancelled);
+                throw e;
+            }
+            if (positions == null) {
+                return;
+            }
+            journaling = System.nanoTime();
+            for (PendingBooking pending : claimed) {
+                for (int i = 0; i < pending.bookings.length; i++) {
+                    bookingIndex.put(pending.bookings[i].id, positions[pending.firstRecord + i]);
+                    // counted while the checkpoint lock is held, so a snapshot includes exactly the bookings before it
+                    aggregates.booked(pending.bookings[i], pending.trains.get(i));
+                }
+            }
+            for (PendingBooking pending : cancelled) {
+                bookingIndex.markCancelled(pending.cancelling.id);
+                aggregates.cancelled(pending.cancelling, pending.cancelledOn);
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Records are flushed in order, so the last one being durable covers the whole batch. The writer
+        // goes on to its next batch meanwhile; the flush acknowledges this one.
+        Metrics.BOOKING_BATCHES.increment();
+        long started = journaling;
+        journal.whenDurable(positions[positions.length - 1], () -> acknowledge(claimed, joined, cancelled, started));
+    }
+
+    // Claims seats or waitlist places for the batch, frees the seats of its cancellations, and journals all of it
+    // in one all-or-nothing append, in the order it was applied: an entry joins a waitlist before any promotion
+    // books it, and a cancellation comes before the promotions into the seats it freed.
+    // Returns the records' positions, or null if the batch has nothing to journal.
+    private long[] claimAndJournal(List<PendingBooking> batch, List<PendingBooking> claimed, List<PendingBooking> joined,
+                                   List<PendingBooking> cancelled) {
+        List<Byte> types = new ArrayList<>(batch.size());
+        List<byte[]> records = new ArrayList<>(batch.size());
+        for (PendingBooking pending : batch) {
+            if (pending.cancelling != null) {
+                cancel(pending, cancelled, claimed, types, records);
+                continue;
+            }
+            if (pending.request == null) {
+                promote(pending, claimed, types, records);
+                continue;
+            }
+            BookingResult rejection = claim(pending);
+            if (rejection != null && pending.priority != PendingBooking.NOT_WAITLISTED) {
+                Train train = pending.trains.get(0);
+                pending.joined = waitlists.join(train.trainNumber(), pending.sources[0], pending.destinations[0],
+                        pending.division, pending.passengers, pending.priority);
+                pending.position = waitlists.position(pending.joined.id);
+                types.add(BookingJournal.WAITLIST);
+                records.add(pending.joined.encode());
+                joined.add(pending);
+                continue;
+            }
+            if (rejection != null) {
+                complete(pending, rejection);
+                continue;
+            }
+            addBookings(pending, types, records);
+            claimed.add(pending);
+        }
+        if (records.isEmpty()) {
+            return null;
+        }
+        byte[] recordTypes = new byte[types.size()];
+        for (int i = 0; i < recordTypes.length; i++) {
+            recordTypes[i] = types.get(i);
+        }
+        return journal.appendAll(recordTypes, records);
+    }
+
+    // Frees the seats of the cancelled booking, then books waiting entries into them. The booking is flagged
+    // cancelled once the batch is journaled; until then this writer, the only one cancelling bookings of the
+    // train, tells a second cancellation of it in the same batch apart by the cancelled list.
+    private void cancel(PendingBooking cancellation, List<PendingBooking> cancelled, List<PendingBooking> claimed,
+                        List<Byte> types, List<byte[]> records) {
+        Booking booking = cancellation.cancelling;
+        if (bookingIndex.isCancelled(booking.id) || cancelledInBatch(booking.id, cancelled)) {
+            cancellation.result.complete(null);
+            return;
+        }
+        cancellation.cancelledOn = trainSoldOn(booking, cancellation.bookingPosition);
+        cancellation.cancelled = true;
+        release(booking, cancellation.cancelledOn);
+        cancellation.firstRecord = records.size();
+        types.add(BookingJournal.CANCEL);
+        records.add(ByteBuffer.allocate(Long.BYTES).putLong(booking.id).array());
+        cancelled.add(cancellation);
+        if (cancellation.cancelledOn != null) {
+            bookWaiting(booking.trainNumber, booking.division, cancellation.started, claimed, types, records);
+        }
+    }
+
+    private static boolean cancelledInBatch(long bookingId, List<PendingBooking> cancelled) {
+        for (PendingBooking pending : cancelled) {
+            if (pending.cancelling.id == bookingId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Undoes a batch that could not be journaled: frees the seats claimed for it, puts promoted entries back
+    // on their waitlists, takes off the entries that joined and takes back the seats its cancellations freed.
+    // Their booking and waitlist ids stay unused.
+    private void rollBack(List<PendingBooking> claimed, List<PendingBooking> joined, List<PendingBooking> cancelled) {
+        for (PendingBooking pending : claimed) {
+            for (int i = 0; i < pending.trains.size(); i++) {
+                releaseSeats(pending.trains.get(i), pending.division, pending.sources[i], pending.destinations[i],
+                        pending.seats[i], pending.request.seats);
+            }
+            if (pending.entry != null) {
+                waitlists.add(pending.entry);
+            }
+        }
+        for (PendingBooking pending : joined) {
+            waitlists.remove(pending.joined.id);
+        }
+        for (PendingBooking pending : cancelled) {
+            hold(pending.cancelling, pending.cancelledOn);
+        }
+    }
+
+    private void addBookings(PendingBooking pending, List<Byte> types, List<byte[]> records) {
+        pending.firstRecord = records.size();
+        pending.bookings = new Booking[pending.trains.size()];
+        for (int i = 0; i < pending.bookings.length; i++) {
+            pending.bookings[i] = new Booking(nextBookingId.getAndIncrement(), pending.trains.get(i).trainNumber(),
+                    pending.sources[i], pending.destinations[i], pending.division, pending.passengers,
+                    System.currentTimeMillis(), pending.seats[i], pending.entry == null ? 0 : pending.entry.id);
+            types.add(BookingJournal.BOOK);
+            records.add(pending.bookings[i].encode());
+        }
+    }
+
+    private void promote(PendingBooking promotion, List<PendingBooking> claimed, List<Byte> types, List<byte[]> records) {
+        bookWaiting(promotion.trains.get(0).trainNumber(), promotion.division, promotion.started, claimed, types, records);
+        promotion.result.complete(null);
+    }
+
+    // Books waiting entries of the train and division into the seats free now, in waitlist order.
+    // It stops at the first entry the free seats do not cover, so no later entry overtakes it.
+    private void bookWaiting(int trainNumber, int division, long started, List<PendingBooking> claimed, List<Byte> types,
+                             List<byte[]> records) {
+        WaitlistEntry entry;
+        while ((entry = waitlists.head(trainNumber, division)) != null) {
+            Train train = timetable.findByNumber(trainNumber);
+            if (train == null) {
+                break;
+            }
+            PendingBooking pending = new PendingBooking(entry.request(), Collections.singletonList(train),
+                    new String[] {entry.source}, new String[] {entry.destination}, started, PendingBooking.NOT_WAITLISTED, entry);
+            pending.division = entry.division;
+            pending.passengers = entry.passengers;
+            if (claim(pending) != null) {
+                break;
+            }
+            if (waitlists.remove(entry.id) == null) {
+                // withdrawn since it was found at the head
+                releaseSeats(pending.trains.get(0), entry.division, entry.source, entry.destination, pending.seats[0], entry.seats());
+                continue;
+            }
+            addBookings(pending, types, records);
+            claimed.add(pending);
+            Metrics.WAITLIST_PROMOTED.increment();
+        }
+    }
+
+    private void acknowledge(List<PendingBooking> claimed, List<PendingBooking> joined, List<PendingBooking> cancelled,
+                             long journaling) {
+        long journaled = System.nanoTime() - journaling;
+        for (PendingBooking pending : claimed) {
+            long[] ids = new long[pending.bookings.length];
+            for (int i = 0; i < pending.bookings.length; i++) {
+                history.added(pending.bookings[i]);
+                ids[i] = pending.bookings[i].id;
+                Metrics.seatsSold(pending.bookings[i].trainNumber, pending.request.seats);
+            }
+            Metrics.BOOK_JOURNAL.record(journaled);
+            complete(pending, BookingResult.confirmed(ids, pending.trains.get(0), pending.bookings[0].seatLabels()));
+        }
+        for (PendingBooking pending : joined) {
+            complete(pending, BookingResult.waitlisted(pending.joined.id, pending.trains.get(0), pending.position));
+        }
+        for (PendingBooking pending : cancelled) {
+            Metrics.seatsSold(pending.cancelling.trainNumber, -pending.cancelling.seats());
+            Metrics.BOOKINGS_CANCELLED.increment();
+            Metrics.CANCEL.record(System.nanoTime() - pending.started);
+            pending.result.complete(null);
+        }
+    }
+
+    // Claims the seats on every leg, or on none; another booking may have taken them since validation,
+    // or an admin update may have replaced a train, in which case its replacement is claimed
+    private BookingResult claim(PendingBooking pending) {
+        long reserving = System.nanoTime();
+        List<Train> trains = pending.trains;
+        int seatCount = pending.request.seats;
+        pending.seats = new int[trains.size()][];
+        for (int i = 0; i < trains.size(); i++) {
+            while ((pending.seats[i] = reserveLeg(pending, i)) == null) {
+                Train replacement = timetable.inventory().isRetired(trains.get(i)) ? current(trains.get(i)) : null;
+                if (replacement == null) {
+                    for (int j = 0; j < i; j++) {
+                        releaseSeats(trains.get(j), pending.division, pending.sources[j], pending.destinations[j], pending.seats[j], seatCount);
+                    }
+                    Metrics.BOOK_RESERVE.record(System.nanoTime() - reserving);
+                    return BookingResult.rejected(BookingResult.Status.INSUFFICIENT_SEATS, "Insufficient seats available.");
+                }
+                trains.set(i, replacement);
+            }
+        }
+        Metrics.BOOK_RESERVE.record(System.nanoTime() - reserving);
+        return null;
+    }
+
+    private int[] reserveSeats(Train train, int division, String source, String destination, int count) {
+        int[] segments = SeatInventory.segments(train, source, destination);
+        return timetable.inventory().reserve(train, division, segments[0], segments[1], count);
+    }
+
+    // Seats for one leg of the booking; none while others wait for seats in the division, unless this is
+    // the promotion of one of them
+    private int[] reserveLeg(PendingBooking pending, int leg) {
+        Train train = pending.trains.get(leg);
+        if (pending.entry == null && waitlists.waiting(train.trainNumber(), pending.division) > 0) {
+            return null;
+        }
+        return reserveSeats(train, pending.division, pending.sources[leg], pending.destinations[leg], pending.request.seats);
+    }
+
+    // Books every request; all are queued before any is awaited, so each partition takes them in large batches.
+    // Results are returned in request order.
+    public List<BookingResult> bookAll(List<BookingRequest> requests) {
+        List<CompletableFuture<BookingResult>> results = new ArrayList<>(requests.size());
+        for (BookingRequest request : requests) {
+            results.add(submit(request, PendingBooking.NOT_WAITLISTED));
+        }
+        List<BookingResult> booked = new ArrayList<>(results.size());
+        for (CompletableFuture<BookingResult> result : results) {
+            booked.add(await(result));
+        }
+        return booked;
+    }
+
+    // As bookAll, for requests the caller has already matched to trains[i], as a cluster node does
+    public List<BookingResult> bookAllOn(List<Train> trains, List<BookingRequest> requests) {
+        long started = System.nanoTime();
+        List<CompletableFuture<BookingResult>> results = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            results.add(submit(trains.get(i), requests.get(i), started, PendingBooking.NOT_WAITLISTED));
+        }
+        List<BookingResult> booked = new ArrayList<>(results.size());
+        for (CompletableFuture<BookingResult> result : results) {
+            booked.add(await(result));
+        }
+        return booked;
+    }
+
+    // Releases the seats of a confirmed booking, to be offered to its train's waitlist first;
+    // returns false if it is unknown or already cancelled
+    public boolean cancel(long bookingId) {
+        return cancelAll(new long[] {bookingId})[0];
+    }
+
+    // Cancels each booking as cancel does, on the partition of its train, and returns once they are durable;
+    // cancelled[i] is false if bookingIds[i] is unknown or already cancelled
+    public boolean[] cancelAll(long[] bookingIds) {
+        long started = System.nanoTime();
+        PendingBooking[] cancellations = new PendingBooking[bookingIds.length];
+        for (int i = 0; i < bookingIds.length; i++) {
+            long bookingPosition = bookingIndex.position(bookingIds[i]);
+            if (bookingPosition < 0 || bookingIndex.isCancelled(bookingIds[i])) {
+                continue;
+            }
+            Booking booking = Booking.decode(journal.read(bookingPosition));
+            cancellations[i] = PendingBooking.cancellation(booking, bookingPosition, started);
+            pipeline.submit(booking.trainNumber, cancellations[i]);
+        }
+        boolean[] cancelled = new boolean[bookingIds.length];
+        for (int i = 0; i < bookingIds.length; i++) {
+            if (cancellations[i] != null) {
+                await(cancellations[i].result);
+                cancelled[i] = cancellations[i].cancelled;
+            }
+        }
+        return cancelled;
+    }
+
+    // Takes a request off its waitlist; false if it is not waiting, having been booked or withdrawn already
+    public boolean leaveWaitlist(long waitlistId) {
+        WaitlistEntry entry;
+        long position;
+        Lock lock = journal.checkpointLock().readLock();
+        lock.lock();
+        try {
+            entry = waitlists.remove(waitlistId);
+            if (entry == null) {
+                return false;
+            }
+            position = journal.append(BookingJournal.WAITLIST_CANCEL, ByteBuffer.allocate(Long.BYTES).putLong(waitlistId).array());
+        } finally {
+            lock.unlock();
+        }
+        journal.awaitDurable(position);
+        Metrics.WAITLIST_WITHDRAWN.increment();
+        // the entries behind it may fit the seats it was waiting for
+        promoteWaiting(entry.trainNumber, entry.division);
+        return true;
+    }
+
+    // Where the entry stands on its waitlist, 1 being booked next; 0 if it is no longer waiting
+    public int waitlistPosition(long waitlistId) {
+        return waitlists.position(waitlistId);
+    }
+
+    // The waiting entry with the given id, or null if it is not waiting
+    public WaitlistEntry waitlistEntry(long waitlistId) {
+        return waitlists.entry(waitlistId);
+    }
+
+    // Asks the train's writer to book waiting entries of the division into seats that have just been freed
+    private void promoteWaiting(int trainNumber, int division) {
+        Train train = timetable.findByNumber(trainNumber);
+        if (train != null && waitlists.waiting(trainNumber, division) > 0) {
+            // once the pipeline closes the entries wait for the next start, which promotes them then
+            pipeline.offer(trainNumber, PendingBooking.promotion(train, division));
+        }
+    }
+
+    // Promotes into whatever seats are free on every waitlist, as after recovery
+    void promoteWaiting() {
+        for (int[] list : waitlists.lists()) {
+            promoteWaiting(list[0], list[1]);
+        }
+    }
+    // Bookings matching the filter, oldest first; fetch rows with historyPage
+    public BookingStore.Query history(HistoryFilter filter) {
+        return history.query(filter);
+    }
+
+    // Whether filtered history queries answer straight away, rather than waiting for the background index scan
+    public boolean historyIndexed() {
+        return history.isIndexed();
+    }
+
+    public List<HistoryEntry> historyPage(BookingStore.Query query, int offset, int limit) {
+        return history.page(query, offset, limit);
+    }
+
+    // The booking with the given id and whether it was cancelled, or null if there is none
+    public HistoryEntry historyEntry(long bookingId) {
+        return history.get(bookingId);
+    }
+
+    long nextBookingId() {
+        return nextBookingId.get();
+    }
+
+    // Opens the history store once recovery has replayed the journal up to journalEnd
+    void openHistory(long journalEnd) {
+        history = new BookingStore(journal, bookingIndex, journalEnd, nextBookingId.get() - 1);
+    }
+
+    void replayBooking(Booking booking, long position) {
+        Train train = timetable.findByNumber(booking.trainNumber);
+        hold(booking, train);
+        aggregates.booked(booking, train);
+        bookingIndex.put(booking.id, position);
+        if (booking.id >= nextBookingId.get()) {
+            nextBookingId.set(booking.id + 1);
+        }
+        if (booking.waitlistId != 0) {
+            waitlists.remove(booking.waitlistId);
+        }
+    }
+
+    void replayWaitlist(WaitlistEntry entry) {
+        waitlists.add(entry);
+    }
+
+    void replayLeaveWaitlist(long waitlistId) {
+        waitlists.remove(waitlistId);
+    }
+
+    void replayCancel(long bookingId) {
+        long bookingPosition = bookingIndex.position(bookingId);
+        if (bookingPosition >= 0) {
+            bookingIndex.markCancelled(bookingId);
+            Booking booking = Booking.decode(journal.read(bookingPosition));
+            Train train = trainSoldOn(booking, bookingPosition);
+            release(booking, train);
+            aggregates.cancelled(booking, train);
+        }
+    }
+
+    // The live train holding the seats of the booking journaled at position; null once the train it was
+    // sold on has been deleted or replaced, even if another train now carries its number
+    private Train trainSoldOn(Booking booking, long position) {
+        Train train = timetable.findByNumber(booking.trainNumber);
+        return train != null && timetable.soldOnLiveTrain(booking.trainNumber, position) ? train : null;
+    }
+
+    // Applies bookings and cancellations replicated from the node selling their trains. They are journaled as
+    // REPLICA records and held in the seat maps, so this node can go on selling a train from the same seats if
+    // that node fails; they are not this node's bookings and stay out of its history and aggregates.
+    // Returns once the records are durable.
+    public void applyReplicas(List<byte[]> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        long[] positions;
+        Lock lock = journal.checkpointLock().readLock();
+        lock.lock();
+        try {
+            positions = journal.appendAll(BookingJournal.REPLICA, records);
+            for (byte[] record : records) {
+                applyReplica(ByteBuffer.wrap(record));
+            }
+        } finally {
+            lock.unlock();
+        }
+        journal.awaitDurable(positions[positions.length - 1]);
+    }
+
+    void replayReplica(ByteBuffer record) {
+        applyReplica(record);
+    }
+
+    // A REPLICA record: BOOK or CANCEL, then the booking as its own node journaled it
+    static byte[] replicaRecord(byte type, Booking booking) {
+        byte[] encoded = booking.encode();
+        return ByteBuffer.allocate(1 + encoded.length).put(type).put(encoded).array();
+    }
+
+    private void applyReplica(ByteBuffer record) {
+        byte type = record.get();
+        Booking booking = Booking.decode(record.slice());
+        Train train = timetable.findByNumber(booking.trainNumber);
+        if (train == null || booking.seatNumbers == null) {
+            return;
+        }
+        if (type == BookingJournal.BOOK) {
+            int[] segments = SeatInventory.segments(train, booking.source, booking.destination);
+            timetable.inventory().occupy(train, booking.division, segments[0], segments[1], booking.seatNumbers);
+        } else {
+            releaseSeats(train, booking.division, booking.source, booking.destination, booking.seatNumbers, booking.seats());
+        }
+    }
+
+    private void release(Booking booking, Train train) {
+        releaseSeats(train, booking.division, booking.source, booking.destination, booking.seatNumbers, booking.seats());
+    }
+
+    // Takes the booking's seats on the train again, as replay does; nothing if train is null
+    private void hold(Booking booking, Train train) {
+        if (train == null) {
+            return;
+        }
+        int[] segments = SeatInventory.segments(train, booking.source, booking.destination);
+        if (booking.seatNumbers == null) {
+            timetable.inventory().reserve(train, booking.division, segments[0], segments[1], booking.seats());
+        } else {
+            timetable.inventory().occupy(train, booking.division, segments[0], segments[1], booking.seatNumbers);
+        }
+    }
+
+    // Returns seats to the train, following it to its replacement if an update retired it meanwhile;
+    // null seats frees any count seats held over the journey
+    private void releaseSeats(Train train, int division, String source, String destination, int[] seats, int count) {
+        while (train != null) {
+            int[] segments = SeatInventory.segments(train, source, destination);
+            if (timetable.inventory().release(train, division, segments[0], segments[1], seats, count)) {
+                return;
+            }
+            train = current(train);
+        }
+    }
+
+    // The live train with the same number; the update that retired train publishes its replacement right after,
+    // without touching the journal in between. Throws IllegalStateException if it does not within RETIRED_WAIT_NANOS.
+    private Train current(Train train) {
+        long deadline = System.nanoTime() + RETIRED_WAIT_NANOS;
+        Train latest = timetable.findByNumber(train.trainNumber());
+        while (latest != null && latest.slot() == train.slot()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException("Train " + train.trainNumber() + " was retired but never replaced");
+            }
+            LockSupport.parkNanos(RETIRED_POLL_NANOS);
+            latest = timetable.findByNumber(train.trainNumber());
+        }
+        return latest;
+    }
+}
+
+// Outcome of an import: how many rows were accepted and which were rejected and why.
+// Only the first MAX_REPORTED errors are kept; the rest are just counted.
+class ImportReport {
+    static final int MAX_REPORTED = 100;
+
+    private long rows;
+    private long badRows;
+    private final List<String> errors = new ArrayList<>();
+
+    void accepted(int count) {
+        rows += count;
+    }
+
+    void rejected(String file, long line, String message) {
+        badRows++;
+        if (errors.size() < MAX_REPORTED) {
+            errors.add(line > 0 ? file + ":" + line + ": " + message : file + ": " + message);
+        }
+    }
+
+    public long rows() {
+        return rows;
+    }
+
+    public long badRows() {
+        return badRows;
+    }
+
+    public List<String> errors() {
+        return errors;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(rows + " trains read, " + badRows + " rows rejected");
+        for (String error : errors) {
+            text.append('\n').append(error);
+        }
+        if (badRows > errors.size()) {
+            text.append("\n... and ").append(badRows - errors.size()).append(" more");
+        }
+        return text.toString();
+    }
+}
+
+// Bulk timetable import and export.
+// CSV files need a header naming the COLUMNS in any order. A directory is read as a GTFS-like feed:
+// stops.txt (stop_id, stop_name), trips.txt (trip_id, trip_short_name as the train number,
+// trip_headsign as its name, total_seats and optional balance) and stop_times.txt (trip_id,
+// stop_sequence, stop_id, arrival_time, departure_time); each trip runs from its first to its last stop,
+// calling at the others in stop_sequence order. The CSV via column lists intermediate stops as "A|B".
+// Input is streamed through NIO in windows of whole lines; each window is cut into slices that are
+// parsed and validated in parallel and handed on in file order. Bad rows are reported, not fatal.
+// Quoted fields may contain commas and doubled quotes but not line breaks.
+class TimetableCsv {
+    static final String[] COLUMNS = {"train_number", "name", "source", "destination", "start_time", "reach_time", "total_seats",
+            "balance", "via"};
+    private static final int REQUIRED_COLUMNS = 7;
+
+    private static final int WINDOW = 8 << 20;
+    private static final int SLICE = 256 << 10;
+
+    // Parses one data row; throws IllegalArgumentException to reject it
+    interface RowParser<T> {
+        T parse(String[] fields);
+    }
+
+    public static List<TrainSpec> read(Path path, ImportReport report) {
+        return Files.isDirectory(path) ? readGtfs(path, report) : readCsv(path, report);
+    }
+
+    public static List<TrainSpec> readCsv(Path file, ImportReport report) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readCsv(channel, file.getFileName().toString(), report);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static List<TrainSpec> readCsv(ReadableByteChannel in, String file, ImportReport report) {
+        List<TrainSpec> trains = new ArrayList<>();
+        IntIntMap numbers = new IntIntMap();
+        stream(in, file, report, header -> {
+            int[] columns = Arrays.copyOf(columns(file, header, Arrays.copyOf(COLUMNS, REQUIRED_COLUMNS)), COLUMNS.length);
+            for (int i = REQUIRED_COLUMNS; i < COLUMNS.length; i++) {
+                columns[i] = optionalColumn(header, COLUMNS[i]);
+            }
+            return fields -> {
+                String[] values = new String[COLUMNS.length];
+                for (int i = 0; i < columns.length; i++) {
+                    values[i] = field(fields, columns[i]);
+                }
+                return parseTrain(values);
+            };
+        }, rows -> {
+            for (TrainSpec train : rows) {
+                if (unique(numbers, train, file, report)) {
+                    trains.add(train);
+                    report.accepted(1);
+                }
+            }
+        });
+        return trains;
+    }
+
+    // Train numbers are the timetable's key; later rows repeating one are rejected
+    private static boolean unique(IntIntMap numbers, TrainSpec train, String file, ImportReport report) {
+        if (numbers.get(train.trainNumber, 0) != 0) {
+            report.rejected(file, 0, "Duplicate train_number " + train.trainNumber + " (" + train.name + ") skipped");
+            return false;
+        }
+        numbers.put(train.trainNumber, 1);
+        return true;
+    }
+
+    // Validates one train given its values in COLUMNS order; the optional trailing ones may be missing
+    static TrainSpec parseTrain(String[] values) {
+        int trainNumber = parseNumber(COLUMNS[0], values[0]);
+        if (trainNumber <= 0) {
+            throw new IllegalArgumentException(COLUMNS[0] + " must be positive");
+        }
+        String name = required(COLUMNS[1], values[1]);
+        String source = required(COLUMNS[2], values[2]);
+        String destination = required(COLUMNS[3], values[3]);
+        int totalSeats = parseNumber(COLUMNS[6], values[6]);
+        int balance = values[7] == null || values[7].trim().isEmpty() ? totalSeats : parseNumber(COLUMNS[7], values[7]);
+        if (totalSeats < 0 || balance < 0) {
+            throw new IllegalArgumentException("Seat counts must not be negative");
+        }
+        String[] via = values.length > 8 ? parseStops(values[8]) : TrainSpec.NO_STOPS;
+        return new TrainSpec(trainNumber, name, source, destination, values[4], values[5], totalSeats, balance, via);
+    }
+
+    // Intermediate stops written as "A|B|C"; blank for a train running non-stop
+    static String[] parseStops(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return TrainSpec.NO_STOPS;
+        }
+        String[] stops = value.split("\\|");
+        for (int i = 0; i < stops.length; i++) {
+            stops[i] = required(COLUMNS[8], stops[i]);
+        }
+        return stops;
+    }
+
+    public static List<TrainSpec> readGtfs(Path directory, ImportReport report) {
+        Map<String, String> stops = new HashMap<>();
+        readGtfsFile(directory, "stops.txt", report, header -> {
+            int[] columns = columns("stops.txt", header, "stop_id", "stop_name");
+            return fields -> new String[] {required("stop_id", field(fields, columns[0])), required("stop_name", field(fields, columns[1]))};
+        }, rows -> {
+            for (String[] stop : rows) {
+                stops.put(stop[0], stop[1]);
+            }
+        });
+
+        Map<String, GtfsTrip> trips = new LinkedHashMap<>();
+        readGtfsFile(directory, "trips.txt", report, header -> {
+            int[] columns = columns("trips.txt", header, "trip_id", "trip_short_name", "trip_headsign", "total_seats");
+            int balanceColumn = optionalColumn(header, "balance");
+            return fields -> {
+                GtfsTrip trip = new GtfsTrip(required("trip_id", field(fields, columns[0])),
+                        parseNumber("trip_short_name", field(fields, columns[1])), required("trip_headsign", field(fields, columns[2])),
+                        parseNumber("total_seats", field(fields, columns[3])), field(fields, balanceColumn));
+                if (trip.number <= 0 || trip.totalSeats < 0) {
+                    throw new IllegalArgumentException("trip_short_name must be positive and total_seats not negative");
+                }
+                return trip;
+            };
+        }, rows -> {
+            for (GtfsTrip trip : rows) {
+                trips.put(trip.id, trip);
+            }
+        });
+
+        readGtfsFile(directory, "stop_times.txt", report, header -> {
+            int[] columns = columns("stop_times.txt", header, "trip_id", "stop_sequence", "stop_id", "arrival_time", "departure_time");
+            return fields -> new GtfsStopTime(required("trip_id", field(fields, columns[0])),
+                    parseNumber("stop_sequence", field(fields, columns[1])), required("stop_id", field(fields, columns[2])),
+                    field(fields, columns[3]), field(fields, columns[4]));
+        }, rows -> {
+            for (GtfsStopTime stopTime : rows) {
+                GtfsTrip trip = trips.get(stopTime.tripId);
+                if (trip == null) {
+                    report.rejected("stop_times.txt", 0, "Unknown trip_id " + stopTime.tripId);
+                } else {
+                    trip.visit(stopTime);
+                }
+            }
+        });
+
+        List<TrainSpec> trains = new ArrayList<>(trips.size());
+        IntIntMap numbers = new IntIntMap();
+        for (GtfsTrip trip : trips.values()) {
+            try {
+                TrainSpec train = trip.toSpec(stops);
+                if (unique(numbers, train, "trips.txt", report)) {
+                    trains.add(train);
+                    report.accepted(1);
+                }
+            } catch (IllegalArgumentException ex) {
+                report.rejected("trips.txt", 0, "trip " + trip.id + ": " + ex.getMessage());
+            }
+        }
+        return trains;
+    }
+
+    private static <T> void readGtfsFile(Path directory, String file, ImportReport report,
+                                         Function<String[], RowParser<T>> parserForHeader, Consumer<List<T>> sink) {
+        try (FileChannel channel = FileChannel.open(directory.resolve(file), StandardOpenOption.READ)) {
+            stream(channel, file, report, parserForHeader, sink);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Streams data rows to sink in file order, one batch per window; the first line is the header
+    static <T> void stream(ReadableByteChannel in, String file, ImportReport report,
+                           Function<String[], RowParser<T>> parserForHeader, Consumer<List<T>> sink) {
+        ByteBuffer buffer = ByteBuffer.allocate(WINDOW);
+        RowParser<T> parser = null;
+        long linesBefore = 0;
+        try {
+            while (true) {
+                boolean eof = in.read(buffer) < 0;
+                byte[] bytes = buffer.array();
+                int end = buffer.position();
+                int complete = eof ? end : lastLineEnd(bytes, end);
+                if (complete == 0 && !eof) {
+                    if (!buffer.hasRemaining()) {
+                        // a single line longer than the window
+                        buffer = ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length * 2)).position(end);
+                    }
+                    continue;
+                }
+
+                int start = 0;
+                if (parser == null && complete > 0) {
+                    int headerEnd = lineEnd(bytes, 0, complete);
+                    String header = line(bytes, 0, headerEnd);
+                    if (header.startsWith("\uFEFF")) {
+                        header = header.substring(1);
+                    }
+                    parser = parserForHeader.apply(split(header));
+                    start = Math.min(headerEnd + 1, complete);
+                    linesBefore = 1;
+                }
+                if (parser != null) {
+                    linesBefore = parseWindow(bytes, start, complete, linesBefore, file, parser, report, sink);
+                }
+
+                System.arraycopy(bytes, complete, bytes, 0, end - complete);
+                buffer.position(end - complete);
+                if (eof) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (parser == null) {
+            throw new IllegalArgumentException(file + " is empty");
+        }
+    }
+
+    private static <T> long parseWindow(byte[] bytes, int start, int end, long linesBefore, String file,
+                                        RowParser<T> parser, ImportReport report, Consumer<List<T>> sink) {
+        List<int[]> bounds = new ArrayList<>();
+        for (int from = start; from < end; ) {
+            int to = from + SLICE >= end ? end : lineEnd(bytes, from + SLICE, end) + 1;
+            bounds.add(new int[] {from, Math.min(to, end)});
+            from = to;
+        }
+        List<Slice<T>> slices = bounds.parallelStream()
+                .map(bound -> parseSlice(bytes, bound[0], bound[1], parser))
+                .collect(Collectors.toList());
+
+        List<T> rows = new ArrayList<>();
+        for (Slice<T> slice : slices) {
+            rows.addAll(slice.rows);
+            for (int i = 0; i < slice.errorLines.size(); i++) {
+                report.rejected(file, linesBefore + slice.errorLines.get(i), slice.errorMessages.get(i));
+            }
+            linesBefore += slice.lines;
+        }
+        sink.accept(rows);
+        return linesBefore;
+    }
+
+    private static <T> Slice<T> parseSlice(byte[] bytes, int start, int end, RowParser<T> parser) {
+        Slice<T> slice = new Slice<>();
+        for (int from = start; from < end; ) {
+            int to = lineEnd(bytes, from, end);
+            slice.lines++;
+            String line = line(bytes, from, to);
+            if (!line.trim().isEmpty()) {
+                try {
+                    slice.rows.add(parser.parse(split(line)));
+                } catch (IllegalArgumentException ex) {
+                    slice.errorLines.add(slice.lines);
+                    slice.errorMessages.add(ex.getMessage());
+                }
+            }
+            from = to + 1;
+        }
+        return slice;
+    }
+
+    private static class Slice<T> {
+        final List<T> rows = new ArrayList<>();
+        final List<Integer> errorLines = new ArrayList<>();
+        final List<String> errorMessages = new ArrayList<>();
+        int lines;
+    }
+
+    // Writes the trains as CSV with a COLUMNS header
+    public static void write(List<Train> trains, Path file) {
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write(String.join(",", COLUMNS));
+            out.newLine();
+            for (Train train : trains) {
+                out.write(train.trainNumber() + "," + quote(train.name()) + "," + quote(train.source()) + ","
+                        + quote(train.destination()) + "," + train.startTime() + "," + train.reachTime() + ","
+                        + train.totalSeats() + "," + train.balance() + "," + quote(String.join("|", train.via())));
+                out.newLine();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static String[] split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    private static String quote(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static int[] columns(String file, String[] header, String... names) {
+        int[] columns = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            columns[i] = optionalColumn(header, names[i]);
+            if (columns[i] < 0) {
+                throw new IllegalArgumentException(file + " has no " + names[i] + " column");
+            }
+        }
+        return columns;
+    }
+
+    private static int optionalColumn(String[] header, String name) {
+        for (int i = 0; i < header.length; i++) {
+            if (header[i].trim().equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String field(String[] fields, int column) {
+        return column >= 0 && column < fields.length ? fields[column].trim() : null;
+    }
+
+    private static String required(String column, String value) {
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException(column + " is required");
+        }
+        return value.trim();
+    }
+
+    private static int parseNumber(String column, String value) {
+        try {
+            return Integer.parseInt(required(column, value));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid " + column + " \"" + value + "\"");
+        }
+    }
+
+    // GTFS times are HH:MM:SS and may pass 24:00:00 for trips running past midnight
+    private static int parseGtfsTime(String time) {
+        String[] parts = required("time", time).split(":");
+        try {
+            if (parts.length >= 2) {
+                return (Integer.parseInt(parts[0]) * 60 + Integer.parseInt(parts[1])) % (24 * 60);
+            }
+        } catch (NumberFormatException ignored) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid time \"" + time + "\", expected HH:MM:SS");
+    }
+
+    private static int lastLineEnd(byte[] bytes, int end) {
+        for (int i = end - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static int lineEnd(byte[] bytes, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static String line(byte[] bytes, int from, int to) {
+        if (to > from && bytes[to - 1] == '\r') {
+            to--;
+        }
+        return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    private static class GtfsStopTime {
+        final String tripId;
+        final int sequence;
+        final String stopId;
+        final String arrival;
+        final String departure;
+
+        GtfsStopTime(String tripId, int sequence, String stopId, String arrival, String departure) {
+            this.tripId = tripId;
+            this.sequence = sequence;
+            this.stopId = stopId;
+            this.arrival = arrival;
+            this.departure = departure;
+        }
+    }
+
+    private static class GtfsTrip {
+        final String id;
+        final int number;
+        final String name;
+        final int totalSeats;
+        final String balance;
+        final List<GtfsStopTime> stopTimes = new ArrayList<>();
+
+        GtfsTrip(String id, int number, String name, int totalSeats, String balance) {
+            this.id = id;
+            this.number = number;
+            this.name = name;
+            this.totalSeats = totalSeats;
+            this.balance = balance;
+        }
+
+        void visit(GtfsStopTime stopTime) {
+            stopTimes.add(stopTime);
+        }
+
+        TrainSpec toSpec(Map<String, String> stops) {
+            if (stopTimes.size() < 2) {
+                throw new IllegalArgumentException("needs at least two stop times");
+            }
+            stopTimes.sort(Comparator.comparingInt(stopTime -> stopTime.sequence));
+            String[] names = new String[stopTimes.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = stops.get(stopTimes.get(i).stopId);
+                if (names[i] == null) {
+                    throw new IllegalArgumentException("unknown stop_id " + stopTimes.get(i).stopId);
+                }
+            }
+            GtfsStopTime first = stopTimes.get(0);
+            GtfsStopTime last = stopTimes.get(stopTimes.size() - 1);
+            String departure = first.departure == null || first.departure.isEmpty() ? first.arrival : first.departure;
+            String arrival = last.arrival == null || last.arrival.isEmpty() ? last.departure : last.arrival;
+            return parseTrain(new String[] {String.valueOf(number), name, names[0], names[names.length - 1],
+                    TrainSpec.formatTime(parseGtfsTime(departure)), TrainSpec.formatTime(parseGtfsTime(arrival)),
+                    String.valueOf(totalSeats), balance, String.join("|", Arrays.copyOfRange(names, 1, names.length - 1))});
+        }
+    }
+}
+
+// Images from the classpath, each decoded once and shared by every panel that shows it.
+// A missing image is remembered too, so it is reported once rather than on every lookup.
+final class ImageCache {
+    private static final BufferedImage MISSING = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+    private static final ConcurrentHashMap<String, BufferedImage> IMAGES = new ConcurrentHashMap<>();
+
+    private ImageCache() {
+    }
+
+    // The decoded image, or null if there is no such resource
+    static BufferedImage get(String imagePath) {
+        BufferedImage image = IMAGES.computeIfAbsent(imagePath, ImageCache::load);
+        return image == MISSING ? null : image;
+    }
+
+    // Hands the decoded image, or null if there is none, to action on the event dispatch thread. An image not
+    // decoded yet is decoded on a background thread, so a panel can go on screen before its image is ready.
+    static void whenLoaded(String imagePath, Consumer<BufferedImage> action) {
+        BufferedImage cached = IMAGES.get(imagePath);
+        if (cached != null) {
+            action.accept(cached == MISSING ? null : cached);
+            return;
+        }
+        Thread loader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BufferedImage image = get(imagePath);
+                SwingUtilities.invokeLater(() -> action.accept(image));
+            }
+        }, "image-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    private static BufferedImage load(String imagePath) {
+        URL imageURL = ImageCache.class.getClassLoader().getResource(imagePath);
+        if (imageURL == null) {
+            System.out.println("Background image not found at: " + imagePath);
+            return MISSING;
+        }
+        try {
+            BufferedImage image = ImageIO.read(imageURL);
+            return image == null ? MISSING : image;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+// Custom JPanel for background image. The cached image is scaled to the panel once, into an image
+// compatible with the screen, and that copy is redrawn unscaled until the panel changes size.
+// The panel paints without its image until the image has been decoded.
+class BackgroundPanel extends JPanel {
+    private BufferedImage backgroundImage;
+    private BufferedImage scaled;
+
+    public BackgroundPanel(String imagePath) {
+        ImageCache.whenLoaded(imagePath, image -> {
+            backgroundImage = image;
+            scaled = null;
+            repaint();
+        });
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        if (backgroundImage == null || getWidth() <= 0 || getHeight() <= 0) {
+            return;
+        }
+        if (scaled == null || scaled.getWidth() != getWidth() || scaled.getHeight() != getHeight()) {
+            scaled = scale(getWidth(), getHeight());
+        }
+        g.drawImage(scaled, 0, 0, null);
+    }
+
+    private BufferedImage scale(int width, int height) {
+        GraphicsConfiguration configuration = getGraphicsConfiguration();
+        BufferedImage image = configuration != null
+                ? configuration.createCompatibleImage(width, height)
+                : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(backgroundImage, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+}
+
+// A view in the MainWindow. Views are built the first time they are shown and kept afterwards, so
+// these say when one comes on screen and when it leaves, to refresh its data or pause its work.
+interface Screen {
+    void shown();
+
+    void hidden();
+}
+
+// The main menu. It goes up before the data directory is restored: until then its buttons are disabled and a
+// progress bar along the bottom follows the restore.
+class MainMenuPanel extends JPanel {
+    private final List<JButton> buttons = new ArrayList<>();
+    private final JPanel statusRow = new JPanel(new BorderLayout(10, 0));
+    private final JProgressBar progressBar = new JProgressBar(0, 100);
+    private final JLabel status = new JLabel("Loading...");
+
+    public MainMenuPanel(Consumer<String> navigate) {
+        super(new BorderLayout());
+        JLabel heading = new JLabel("Welcome to the Railway Management System", JLabel.CENTER);
+        heading.setFont(new Font("Arial", Font.BOLD, 36)); // Set font size and style
+        heading.setForeground(Color.black);
+
+        // Create a BackgroundPanel with the path to your image
+        BackgroundPanel backgroundPanel = new BackgroundPanel("trai.jpg");
+        backgroundPanel.setLayout(new FlowLayout()); // Use FlowLayout or any layout you prefer
+        backgroundPanel.add(menuButton("View Train Schedule", MainWindow.SCHEDULE, navigate));
+        backgroundPanel.add(menuButton("Admin Panel", MainWindow.ADMIN, navigate));
+        backgroundPanel.add(menuButton("Book Ticket", MainWindow.BOOK, navigate));
+        backgroundPanel.add(menuButton("History", MainWindow.HISTORY, navigate));
+
+        progressBar.setStringPainted(true);
+        statusRow.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
+        statusRow.add(status, BorderLayout.WEST);
+        statusRow.add(progressBar);
+
+        add(heading, BorderLayout.NORTH);
+        add(backgroundPanel);
+        add(statusRow, BorderLayout.SOUTH);
+    }
+
+    public void progress(String step, int percent) {
+        status.setText(step);
+        progressBar.setValue(percent);
+    }
+
+    public void ready() {
+        for (JButton button : buttons) {
+            button.setEnabled(true);
+        }
+        statusRow.setVisible(false);
+    }
+
+    public void failed(String message) {
+        status.setText(message);
+        progressBar.setVisible(false);
+    }
+
+    private JButton menuButton(String label, String screen, Consumer<String> navigate) {
+        JButton button = new JButton(label);
+        button.setPreferredSize(new Dimension(200, 30));
+        button.setEnabled(false);
+        button.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                navigate.accept(screen);
+            }
+        });
+        buttons.add(button);
+        return button;
+    }
+}
+
+// The application's only window. Each view is a card, built on first use and reused from then on,
+// so moving between views swaps a card instead of building and laying out a new frame.
+// It can open before the system is restored, showing the main menu's progress until ready is called.
+class MainWindow extends JFrame {
+    static final String MAIN = "main";
+    static final String SCHEDULE = "schedule";
+    static final String ADMIN = "admin";
+    static final String BOOK = "book";
+    static final String HISTORY = "history";
+    static final String DASHBOARD = "dashboard";
+
+    private final CardLayout cards = new CardLayout();
+    private final JPanel cardPanel = new JPanel(cards);
+    private final Map<String, JComponent> screens = new HashMap<>();
+    private final MainMenuPanel menu = new MainMenuPanel(this::showScreen);
+    private RailwayManagementSystem system; // null until ready
+    private JComponent current;
+
+    public MainWindow() {
+        super("Railway Management System");
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setExtendedState(JFrame.MAXIMIZED_BOTH);  // Fullscreen
+        add(cardPanel);
+    }
+
+    public MainWindow(RailwayManagementSystem system) {
+        this();
+        ready(system);
+    }
+
+    public void progress(String step, int percent) {
+        menu.progress(step, percent);
+    }
+
+    // Enables the menu once the system's data is restored
+    public void ready(RailwayManagementSystem system) {
+        this.system = system;
+        menu.ready();
+    }
+
+    public void failed(String message) {
+        menu.failed(message);
+    }
+
+    public void showScreen(String name) {
+        JComponent screen = screens.get(name);
+        if (screen == null) {
+            screen = build(name);
+            screens.put(name, screen);
+            cardPanel.add(screen, name);
+        }
+        if (screen != current) {
+            if (current instanceof Screen) {
+                ((Screen) current).hidden();
+            }
+            current = screen;
+            if (screen instanceof Screen) {
+                ((Screen) screen).shown();
+            }
+            cards.show(cardPanel, name);
+        }
+        setTitle(title(name));
+        setVisible(true);
+    }
+
+    private JComponent build(String name) {
+        switch (name) {
+            case MAIN: return menu;
+            case SCHEDULE: return new TrainSchedulePanel(system, system.timetableService());
+            case ADMIN: return new AdminPanel(system, system.timetableService());
+            case BOOK: return new BookTicketPanel(system, system.bookingService());
+            case HISTORY: return new HistoryPanel(system, system.bookingService());
+            case DASHBOARD: return new DashboardPanel(system, system.bookingService().aggregates(), system.timetableService());
+            default: throw new IllegalArgumentException("No screen " + name);
+        }
+    }
+
+    private static String title(String name) {
+        switch (name) {
+            case SCHEDULE: return "Train Schedule";
+            case ADMIN: return "Admin Panel";
+            case BOOK: return "Book Ticket";
+            case HISTORY: return "Booking History";
+            case DASHBOARD: return "Dashboard";
+            default: return "Railway Management System";
+        }
+    }
+
+}
+
+// Table model that reads rows straight from the timetable instead of copying them.
+// JTable only asks for the cells it paints, so nothing is materialized for off-screen rows.
+// A filter narrows the view to an array of matching trains.
+class TrainTableModel extends AbstractTableModel {
+    private static final String[] COLUMN_NAMES = {"Train Number", "Name", "Source", "Destination", "Start Time", "Reach Time", "Total Seats", "Balance"};
+
+    private final TimetableService timetable;
+    private TimetableSnapshot all; // the version shown while every train is listed
+    private Train[] filtered;      // null shows every train
+    private int filteredCount;     // rows of filtered in use; results are appended as they arrive
+
+    public TrainTableModel(TimetableService timetable) {
+        this.timetable = timetable;
+        this.all = timetable.snapshot();
+    }
+
+    public void showAll() {
+        long started = System.nanoTime();
+        all = timetable.snapshot();
+        filtered = null;
+        fireTableDataChanged();
+        Metrics.TABLE_POPULATE.record(System.nanoTime() - started);
+    }
+
+    // Appends trains to the filtered view, or starts a new one with them if replace is set
+    public void resultsArrived(List<Train> trains, boolean replace) {
+        long started = System.nanoTime();
+        if (replace || filtered == null) {
+            filtered = new Train[Math.max(16, trains.size())];
+            filteredCount = 0;
+            fireTableDataChanged();
+        }
+        if (trains.isEmpty()) {
+            return;
+        }
+        if (filteredCount + trains.size() > filtered.length) {
+            filtered = Arrays.copyOf(filtered, Math.max(filtered.length * 2, filteredCount + trains.size()));
+        }
+        int first = filteredCount;
+        for (Train train : trains) {
+            filtered[filteredCount++] = train;
+        }
+        fireTableRowsInserted(first, filteredCount - 1);
+        Metrics.TABLE_POPULATE.record(System.nanoTime() - started);
+    }
+
+    public Train trainAt(int row) {
+        if (filtered == null) {
+            return all.trainAt(row);
+        }
+        if (row >= filteredCount) {
+            throw new IndexOutOfBoundsException("row " + row + " of " + filteredCount);
+        }
+        return filtered[row];
+    }
+
+    // Called after the timetable inserted a train at index
+    public void trainInserted(int index) {
+        all = timetable.snapshot();
+        if (filtered == null) {
+            fireTableRowsInserted(index, index);
+        }
+    }
+
+    // Called after the timetable removed the trains at the given indexes (ascending) and the given trains
+    public void trainsRemoved(int[] indexes, List<Train> removed) {
+        all = timetable.snapshot();
+        if (filtered == null) {
+            for (int i = indexes.length - 1; i >= 0; i--) {
+                fireTableRowsDeleted(indexes[i], indexes[i]);
+            }
+            return;
+        }
+        Set<Train> gone = Collections.newSetFromMap(new IdentityHashMap<>());
+        gone.addAll(removed);
+        int kept = 0;
+        for (int row = 0; row < filteredCount; row++) {
+            if (gone.contains(filtered[row])) {
+                fireTableRowsDeleted(kept, kept);
+            } else {
+                filtered[kept++] = filtered[row];
+            }
+        }
+        Arrays.fill(filtered, kept, filteredCount, null);
+        filteredCount = kept;
+    }
+
+    // Called after the timetable replaced a train's details; the replacement moves to the last row
+    public void trainUpdated(Train old, Train replacement) {
+        all = timetable.snapshot();
+        if (filtered == null) {
+            fireTableDataChanged();
+            return;
+        }
+        for (int row = 0; row < filteredCount; row++) {
+            if (filtered[row] == old) {
+                filtered[row] = replacement;
+                fireTableRowsUpdated(row, row);
+            }
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return filtered == null ? all.size() : filteredCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        switch (column) {
+            case 0:
+            case 6:
+            case 7:
+                return Integer.class;
+            default:
+                return String.class;
+        }
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Train train = trainAt(row);
+        switch (column) {
+            case 0: return train.trainNumber();
+            case 1: return train.name();
+            case 2: return train.source();
+            case 3: return train.destination();
+            case 4: return train.startTime();
+            case 5: return train.overnight() ? train.reachTime() + " (+1)" : train.reachTime();
+            case 6: return train.totalSeats();
+            case 7: return timetable.availableSeats(train);
+            default: throw new IndexOutOfBoundsException("column " + column);
+        }
+    }
+}
+
+// Train Schedule screen with search by source, destination and departure/arrival time.
+// The search reruns as the user types, once typing pauses for DEBOUNCE_MILLIS. Each search runs on a
+// SwingWorker against the snapshot current when it started and hands its results to the table in
+// chunks; a newer search cancels the one before it, whose remaining chunks are dropped. The EDT only
+// restarts the debounce timer and appends rows.
+class TrainSchedulePanel extends JPanel implements Screen {
+    private static final int DEBOUNCE_MILLIS = 150;
+    private static final int RESULT_CHUNK = 1000;
+
+    private TimetableService timetable;
+    private JTable table;
+    private TrainTableModel tableModel;
+    private RailwayManagementSystem system;
+    private JLabel statusLabel;
+    private SearchWorker pendingSearch;
+    private javax.swing.Timer debounce;
+
+    public TrainSchedulePanel(RailwayManagementSystem system, TimetableService timetable) {
+        this.system = system;
+        this.timetable = timetable;
+
+        JPanel searchPanel = new JPanel();
+        searchPanel.setLayout(new FlowLayout());
+
+        JLabel sourceLabel = new JLabel("Enter Source:");
+        JTextField sourceField = new JTextField(10);
+        JLabel destinationLabel = new JLabel("Enter Destination:");
+        JTextField destinationField = new JTextField(10);
+        JLabel departLabel = new JLabel("Departing (HH:mm):");
+        JTextField departFromField = new JTextField(4);
+        JTextField departToField = new JTextField(4);
+        JLabel arriveLabel = new JLabel("Arriving (HH:mm):");
+        JTextField arriveFromField = new JTextField(4);
+        JTextField arriveToField = new JTextField(4);
+        JButton searchButton = new JButton("Search");
+        searchButton.setPreferredSize(new Dimension(100, 30));
+
+        searchPanel.add(sourceLabel);
+        searchPanel.add(sourceField);
+        searchPanel.add(destinationLabel);
+        searchPanel.add(destinationField);
+        searchPanel.add(departLabel);
+        searchPanel.add(departFromField);
+        searchPanel.add(new JLabel("to"));
+        searchPanel.add(departToField);
+        searchPanel.add(arriveLabel);
+        searchPanel.add(arriveFromField);
+        searchPanel.add(new JLabel("to"));
+        searchPanel.add(arriveToField);
+        searchPanel.add(searchButton);
+
+        statusLabel = new JLabel(" ");
+        searchPanel.add(statusLabel);
+
+        tableModel = new TrainTableModel(timetable);
+        table = new JTable(tableModel);
+        JScrollPane scrollPane = new JScrollPane(table);
+
+        searchButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String sourceText = sourceField.getText().trim();
+                String destinationText = destinationField.getText().trim();
+                TimeWindow departing;
+                TimeWindow arriving;
+                try {
+                    departing = window(departFromField, departToField);
+                    arriving = window(arriveFromField, arriveToField);
+                } catch (IllegalArgumentException ex) {
+                    JOptionPane.showMessageDialog(null, ex.getMessage());
+                    return;
+                }
+                searchTrainSchedule(sourceText, destinationText, departing, arriving);
+            }
+        });
+
+        // Search as you type; half-typed times are ignored until they parse, the Search button reports them
+        debounce = new javax.swing.Timer(DEBOUNCE_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                TimeWindow departing;
+                TimeWindow arriving;
+                try {
+                    departing = window(departFromField, departToField);
+                    arriving = window(arriveFromField, arriveToField);
+                } catch (IllegalArgumentException ex) {
+                    return;
+                }
+                searchTrainSchedule(sourceField.getText().trim(), destinationField.getText().trim(), departing, arriving);
+            }
+        });
+        debounce.setRepeats(false);
+        DocumentListener typing = new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                debounce.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                debounce.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                debounce.restart();
+            }
+        };
+        for (JTextField field : new JTextField[] {sourceField, destinationField, departFromField, departToField, arriveFromField, arriveToField}) {
+            field.getDocument().addDocumentListener(typing);
+        }
+
+        JButton backButton = new JButton("Back");
+        backButton.setPreferredSize(new Dimension(100, 30));
+        backButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                system.showMainFrame();
+            }
+        });
+
+        setLayout(new BorderLayout());
+        add(searchPanel, BorderLayout.NORTH);
+        add(scrollPane, BorderLayout.CENTER);
+        add(backButton, BorderLayout.SOUTH);
+
+        populateTrainTable();
+    }
+
+    // Reruns the search in the fields against the current timetable, which may have changed while away
+    @Override
+    public void shown() {
+        debounce.restart();
+    }
+
+    @Override
+    public void hidden() {
+        debounce.stop();
+        cancelSearch();
+    }
+
+    private void populateTrainTable() {
+        cancelSearch();
+        tableModel.showAll();
+        statusLabel.setText(tableModel.getRowCount() + " trains");
+    }
+
+    private void searchTrainSchedule(String sourceText, String destinationText, TimeWindow departing, TimeWindow arriving) {
+        if (sourceText.isEmpty() && destinationText.isEmpty() && departing == null && arriving == null) {
+            populateTrainTable();
+            return;
+        }
+
+        cancelSearch();
+        statusLabel.setText("Searching...");
+        pendingSearch = new SearchWorker(timetable.snapshot(), sourceText, destinationText, departing, arriving);
+        pendingSearch.execute();
+    }
+
+    private void cancelSearch() {
+        if (pendingSearch != null) {
+            pendingSearch.cancel(false);
+            pendingSearch = null;
+        }
+    }
+
+    // One search; the first chunk it delivers replaces the rows of the search before it
+    private class SearchWorker extends SwingWorker<Integer, Train> {
+        private final TimetableSnapshot snapshot;
+        private final String sourceText;
+        private final String destinationText;
+        private final TimeWindow departing;
+        private final TimeWindow arriving;
+        private final long started = System.nanoTime();
+        private boolean shown; // touched only on the EDT
+
+        SearchWorker(TimetableSnapshot snapshot, String sourceText, String destinationText, TimeWindow departing, TimeWindow arriving) {
+            this.snapshot = snapshot;
+            this.sourceText = sourceText;
+            this.destinationText = destinationText;
+            this.departing = departing;
+            this.arriving = arriving;
+        }
+
+        @Override
+        protected Integer doInBackground() {
+            int[] slots = snapshot.searchSlots(sourceText, destinationText, departing, arriving);
+            for (int start = 0; start < slots.length && !isCancelled(); start += RESULT_CHUNK) {
+                Train[] chunk = new Train[Math.min(RESULT_CHUNK, slots.length - start)];
+                for (int i = 0; i < chunk.length; i++) {
+                    chunk[i] = snapshot.train(slots[start + i]);
+                }
+                publish(chunk);
+            }
+            return slots.length;
+        }
+
+        @Override
+        protected void process(List<Train> trains) {
+            if (pendingSearch != this) {
+                return;
+            }
+            tableModel.resultsArrived(trains, !shown);
+            shown = true;
+        }
+
+        @Override
+        protected void done() {
+            if (pendingSearch != this) {
+                return;
+            }
+            pendingSearch = null;
+            try {
+                int found = get();
+                if (!shown) {
+                    tableModel.resultsArrived(Collections.emptyList(), true);
+                }
+                statusLabel.setText(found + " trains");
+                Metrics.SCHEDULE_SEARCH.record(System.nanoTime() - started);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                statusLabel.setText(" ");
+                JOptionPane.showMessageDialog(null, "Search failed: " + ex.getCause().getMessage());
+            }
+        }
+    }
+
+    // Window from a pair of time fields, or null when both are blank
+    private static TimeWindow window(JTextField fromField, JTextField toField) {
+        String from = fromField.getText().trim();
+        String to = toField.getText().trim();
+        if (from.isEmpty() && to.isEmpty()) {
+            return null;
+        }
+        return TimeWindow.parse(from, to);
+    }
+}
+
+// Admin Panel with Insert and Back button added
+class AdminPanel extends JPanel implements Screen {
+    private TimetableService timetable;
+    private TrainTableModel tableModel;
+    private RailwayManagementSystem system;
+    // Disabled while an edit or import runs, so the table takes one change at a time
+    private final List<JButton> editButtons = new ArrayList<>();
+
+    public AdminPanel(RailwayManagementSystem system, TimetableService timetable) {
+        this.system = system;
+        this.timetable = timetable;
+
+        tableModel = new TrainTableModel(timetable);
+        JTable table = new JTable(tableModel);
+        JScrollPane scrollPane = new JScrollPane(table);
+
+        // Delete Train Button
+        JButton deleteButton = new JButton("Delete Train");
+        deleteButton.setPreferredSize(new Dimension(150, 30));
+        deleteButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                int selectedRow = table.getSelectedRow();
+                if (selectedRow != -1) {
+                    Train selected = tableModel.trainAt(selectedRow);
+                    edit(() -> timetable.deleteTrain(selected.trainNumber()), removed -> {
+                        if (removed >= 0) {
+                            tableModel.trainsRemoved(new int[]{removed}, Collections.singletonList(selected));
+                        }
+                    }, "Train deleted successfully!");
+                } else {
+                    JOptionPane.showMessageDialog(null, "Please select a train to delete.");
+                }
+            }
+        });
+
+        // Insert Train Button
+        JButton insertButton = new JButton("Insert Train");
+        insertButton.setPreferredSize(new Dimension(150, 30));
+        insertButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                TrainSpec newTrain = showTrainForm("Insert Train", null);
+                if (newTrain == null) {
+                    return;
+                }
+                edit(() -> timetable.insertTrain(newTrain), tableModel::trainInserted, "Train inserted successfully!");
+            }
+        });
+
+        // Update Train Button: edits the selected train's details; seats already sold stay sold
+        JButton updateButton = new JButton("Update Train");
+        updateButton.setPreferredSize(new Dimension(150, 30));
+        updateButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                int selectedRow = table.getSelectedRow();
+                if (selectedRow == -1) {
+                    JOptionPane.showMessageDialog(null, "Please select a train to update.");
+                    return;
+                }
+                Train selected = tableModel.trainAt(selectedRow);
+                TrainSpec changed = showTrainForm("Update Train", selected);
+                if (changed == null) {
+                    return;
+                }
+                if (changed.trainNumber != selected.trainNumber()) {
+                    JOptionPane.showMessageDialog(null, "The train number cannot be changed; delete and insert the train instead.");
+                    return;
+                }
+                edit(() -> timetable.updateTrain(changed),
+                        index -> tableModel.trainUpdated(selected, timetable.findByNumber(changed.trainNumber)),
+                        "Train updated successfully!");
+            }
+        });
+
+        // Import Button: replaces the whole timetable from a CSV file or a GTFS-like directory
+        JButton importButton = new JButton("Import");
+        importButton.setPreferredSize(new Dimension(150, 30));
+        importButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser chooser = new JFileChooser();
+                chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+                if (chooser.showOpenDialog(AdminPanel.this) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                Path path = chooser.getSelectedFile().toPath();
+                setEditing(true);
+                new SwingWorker<ImportReport, Void>() {
+                    @Override
+                    protected ImportReport doInBackground() {
+                        ImportReport report = new ImportReport();
+                        List<TrainSpec> trains = TimetableCsv.read(path, report);
+                        if (!trains.isEmpty()) {
+                            system.persistence().replaceTimetable(trains);
+                        }
+                        return report;
+                    }
+
+                    @Override
+                    protected void done() {
+                        setEditing(false);
+                        try {
+                            ImportReport report = get();
+                            tableModel.showAll();
+                            JTextArea text = new JTextArea(report.toString(), 15, 60);
+                            text.setEditable(false);
+                            JOptionPane.showMessageDialog(null, new JScrollPane(text),
+                                    report.rows() > 0 ? "Timetable imported" : "Nothing imported", JOptionPane.INFORMATION_MESSAGE);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        } catch (ExecutionException ex) {
+                            JOptionPane.showMessageDialog(null, "Import failed: " + ex.getCause().getMessage());
+                        }
+                    }
+                }.execute();
+            }
+        });
+
+        // Export Button
+        JButton exportButton = new JButton("Export");
+        exportButton.setPreferredSize(new Dimension(150, 30));
+        exportButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser chooser = new JFileChooser();
+                chooser.setSelectedFile(new File("trains.csv"));
+                if (chooser.showSaveDialog(AdminPanel.this) != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                try {
+                    TimetableCsv.write(timetable.trains(), chooser.getSelectedFile().toPath());
+                } catch (UncheckedIOException ex) {
+                    JOptionPane.showMessageDialog(null, "Export failed: " + ex.getCause().getMessage());
+                    return;
+                }
+                JOptionPane.showMessageDialog(null, "Timetable exported successfully!");
+            }
+        });
+
+        // Dashboard Button: occupancy and sales totals, kept up to date as bookings arrive
+        JButton dashboardButton = new JButton("Dashboard");
+        dashboardButton.setPreferredSize(new Dimension(150, 30));
+        dashboardButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                system.showScreen(MainWindow.DASHBOARD);
+            }
+        });
+
+        // Back Button
+        JButton backButton = new JButton("Back");
+        backButton.setPreferredSize(new Dimension(150, 30));
+        backButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                system.showMainFrame();
+            }
+        });
+
+        editButtons.addAll(Arrays.asList(deleteButton, insertButton, updateButton, importButton));
+        JPanel buttonPanel = new JPanel(new FlowLayout());
+        buttonPanel.add(deleteButton);
+        buttonPanel.add(insertButton);
+        buttonPanel.add(updateButton);
+        buttonPanel.add(importButton);
+        buttonPanel.add(exportButton);
+        buttonPanel.add(dashboardButton);
+        buttonPanel.add(backButton);
+
+        // Layout for admin panel
+        setLayout(new BorderLayout());
+        add(scrollPane, BorderLayout.CENTER);
+        add(buttonPanel, BorderLayout.SOUTH);
+    }
+
+    // Trains may have been booked, imported or changed over HTTP while the screen was away
+    @Override
+    public void shown() {
+        populateTrainTable();
+    }
+
+    @Override
+    public void hidden() {
+    }
+
+    private void populateTrainTable() {
+        tableModel.showAll();
+    }
+
+    // Runs a timetable edit on a SwingWorker, since it returns only once the journal has made it durable;
+    // then, on the EDT, hands its result to shown and reports success, or why the timetable refused it
+    private <T> void edit(Supplier<T> edit, Consumer<T> shown, String success) {
+        setEditing(true);
+        new SwingWorker<T, Void>() {
+            @Override
+            protected T doInBackground() {
+                return edit.get();
+            }
+
+            @Override
+            protected void done() {
+                setEditing(false);
+                try {
+                    shown.accept(get());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException ex) {
+                    JOptionPane.showMessageDialog(null, ex.getCause() instanceof IllegalArgumentException
+                            ? ex.getCause().getMessage() : "Edit failed: " + ex.getCause().getMessage());
+                    return;
+                }
+                JOptionPane.showMessageDialog(null, success);
+            }
+        }.execute();
+    }
+
+    private void setEditing(boolean editing) {
+        for (JButton button : editButtons) {
+            button.setEnabled(!editing);
+        }
+    }
+
+    // Form for a train's details, prefilled from the given train if any. Uses the same validation as a
+    // bulk import and stays open until it passes; returns null if cancelled.
+    private static TrainSpec showTrainForm(String title, Train train) {
+        String[] labels = {"Train Number:", "Train Name:", "Source:", "Destination:", "Start Time (HH:mm):",
+                "Reach Time (HH:mm):", "Total Seats:", "Balance:", "Via (stop|stop):"};
+        JTextField[] fields = new JTextField[labels.length];
+        JPanel form = new JPanel(new GridLayout(0, 2, 5, 5));
+        for (int i = 0; i < labels.length; i++) {
+            fields[i] = new JTextField(15);
+            form.add(new JLabel(labels[i]));
+            form.add(fields[i]);
+        }
+        if (train != null) {
+            Object[] values = {train.trainNumber(), train.name(), train.source(), train.destination(),
+                    train.startTime(), train.reachTime(), train.totalSeats(), train.balance(), String.join("|", train.via())};
+            for (int i = 0; i < fields.length; i++) {
+                fields[i].setText(String.valueOf(values[i]));
+            }
+        }
+
+        while (JOptionPane.showConfirmDialog(null, form, title, JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION) {
+            String[] values = new String[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = fields[i].getText();
+            }
+            try {
+                return TimetableCsv.parseTrain(values);
+            } catch (IllegalArgumentException ex) {
+                JOptionPane.showMessageDialog(null, "Invalid train details: " + ex.getMessage());
+            }
+        }
+        return null;
+    }
+}
+
+// Table model paging booking history in from the BookingStore as rows scroll into view
+class HistoryTableModel extends AbstractTableModel {
+    private static final String[] COLUMN_NAMES = {"Booking ID", "Train Number", "Source", "Destination", "Division", "Seats", "Passengers", "Booked At", "Status"};
+    private static final int PAGE_SIZE = 200;
+    private static final int CACHED_PAGES = 16;
+    private static final DateTimeFormatter BOOKED_AT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+    private final BookingService bookingService;
+    private BookingStore.Query query;
+    private final Map<Integer, List<HistoryEntry>> pages = new LinkedHashMap<Integer, List<HistoryEntry>>(CACHED_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<HistoryEntry>> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    public HistoryTableModel(BookingService bookingService) {
+        this.bookingService = bookingService;
+        this.query = bookingService.history(HistoryFilter.ALL);
+    }
+
+    // Shows the rows of a query run off the EDT; a filtered query waits for the history indexes
+    public void setQuery(BookingStore.Query query) {
+        this.query = query;
+        pages.clear();
+        fireTableDataChanged();
+    }
+
+    @Override
+    public int getRowCount() {
+        return query.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        List<HistoryEntry> page = pages.get(row / PAGE_SIZE);
+        if (page == null) {
+            page = bookingService.historyPage(query, row / PAGE_SIZE * PAGE_SIZE, PAGE_SIZE);
+            pages.put(row / PAGE_SIZE, page);
+        }
+        HistoryEntry entry = page.get(row % PAGE_SIZE);
+        if (entry == null) {
+            return column == 0 ? query.idAt(row) : "";
+        }
+        Booking booking = entry.booking;
+        switch (column) {
+            case 0: return booking.id;
+            case 1: return booking.trainNumber;
+            case 2: return booking.source;
+            case 3: return booking.destination;
+            case 4: return SeatInventory.DIVISIONS[booking.division];
+            case 5: return booking.seatNumbers == null ? String.valueOf(booking.seats()) : booking.seats() + " (" + booking.seatLabels() + ")";
+            case 6: return passengerList(booking);
+            case 7: return BOOKED_AT.format(Instant.ofEpochMilli(booking.timestamp).atZone(ZoneId.systemDefault()));
+            case 8: return entry.cancelled ? "Cancelled" : "Confirmed";
+            default: throw new IndexOutOfBoundsException("column " + column);
+        }
+    }
+
+    private static String passengerList(Booking booking) {
+        StringBuilder names = new StringBuilder();
+        for (Passenger passenger : booking.passengers) {
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+            names.append(passenger.name).append(" (").append(passenger.age).append(")");
+        }
+        return names.toString();
+    }
+}
+
+// Filtered queries run on a SwingWorker: until the background scan has indexed the history they wait for
+// it, and the table keeps its rows meanwhile under an "Indexing history..." status.
+class HistoryPanel extends JPanel implements Screen {
+    private final BookingService bookingService;
+    private final HistoryTableModel historyModel;
+    private final JLabel statusLabel = new JLabel(" ");
+    private HistoryFilter filter = HistoryFilter.ALL;
+    private SwingWorker<BookingStore.Query, Void> pendingQuery; // the latest query; touched only on the EDT
+
+    public HistoryPanel(RailwayManagementSystem system, BookingService bookingService) {
+        this.bookingService = bookingService;
+        historyModel = new HistoryTableModel(bookingService);
+        JTable historyTable = new JTable(historyModel);
+        historyTable.setFont(new Font("Arial", Font.PLAIN, 16));
+        historyTable.setRowHeight(24);
+
+        // Filter by train, booking date or passenger
+        JPanel filterPanel = new JPanel(new FlowLayout());
+        JTextField trainField = new JTextField(8);
+        JTextField dateField = new JTextField(10);
+        JTextField passengerField = new JTextField(12);
+        JButton filterButton = new JButton("Filter");
+        JButton clearButton = new JButton("Clear");
+        filterPanel.add(new JLabel("Train Number:"));
+        filterPanel.add(trainField);
+        filterPanel.add(new JLabel("Date (yyyy-mm-dd):"));
+        filterPanel.add(dateField);
+        filterPanel.add(new JLabel("Passenger:"));
+        filterPanel.add(passengerField);
+        filterPanel.add(filterButton);
+        filterPanel.add(clearButton);
+        filterPanel.add(statusLabel);
+
+        filterButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Integer trainNumber = null;
+                LocalDate date = null;
+                try {
+                    if (!trainField.getText().trim().isEmpty()) {
+                        trainNumber = Integer.parseInt(trainField.getText().trim());
+                    }
+                } catch (NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(null, "Please enter a valid train number.");
+                    return;
+                }
+                try {
+                    if (!dateField.getText().trim().isEmpty()) {
+                        date = LocalDate.parse(dateField.getText().trim());
+                    }
+                } catch (DateTimeParseException ex) {
+                    JOptionPane.showMessageDialog(null, "Please enter the date as yyyy-mm-dd.");
+                    return;
+                }
+                filter = new HistoryFilter(trainNumber, date, passengerField.getText());
+                refresh();
+            }
+        });
+        clearButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                trainField.setText("");
+                dateField.setText("");
+                passengerField.setText("");
+                filter = HistoryFilter.ALL;
+                refresh();
+            }
+        });
+
+        JScrollPane scrollPane = new JScrollPane(historyTable);
+        scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
+        JPanel buttonPanel = new JPanel();
+        // Cancelling frees the seats for the train's waitlist, which is promoted in its order
+        JButton cancelButton = new JButton("Cancel Booking");
+        cancelButton.setPreferredSize(new Dimension(160, 30));
+        cancelButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                int row = historyTable.getSelectedRow();
+                if (row < 0) {
+                    JOptionPane.showMessageDialog(null, "Please select a booking to cancel.");
+                    return;
+                }
+                long bookingId = ((Number) historyModel.getValueAt(historyTable.convertRowIndexToModel(row), 0)).longValue();
+                int choice = JOptionPane.showConfirmDialog(null, "Cancel booking " + bookingId + "?",
+                        "Cancel Booking", JOptionPane.YES_NO_OPTION);
+                if (choice != JOptionPane.YES_OPTION) {
+                    return;
+                }
+                // the cancellation returns once it is durable, so it runs off the EDT
+                cancelButton.setEnabled(false);
+                new SwingWorker<Boolean, Void>() {
+                    @Override
+                    protected Boolean doInBackground() {
+                        return bookingService.cancel(bookingId);
+                    }
+
+                    @Override
+                    protected void done() {
+                        cancelButton.setEnabled(true);
+                        try {
+                            if (!get()) {
+                                JOptionPane.showMessageDialog(null, "Booking " + bookingId + " is already cancelled.");
+                                return;
+                            }
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        } catch (ExecutionException ex) {
+                            JOptionPane.showMessageDialog(null, "Cancellation failed: " + ex.getCause().getMessage());
+                            return;
+                        }
+                        refresh();
+                    }
+                }.execute();
+            }
+        });
+        JButton backButton = new JButton("Back");
+        backButton.setPreferredSize(new Dimension(100, 30));
+        backButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                system.showMainFrame();
+            }
+        });
+        buttonPanel.add(cancelButton);
+        buttonPanel.add(backButton);
+
+        // Add components to the panel
+        setLayout(new BorderLayout());
+        add(filterPanel, BorderLayout.NORTH);
+        add(scrollPane, BorderLayout.CENTER);
+        add(buttonPanel, BorderLayout.SOUTH); 
+    }
+
+    // Requeries with the same filter so bookings made since the screen was last open show up
+    @Override
+    public void shown() {
+        refresh();
+    }
+
+    // Runs the current filter in the background; a query overtaken by a newer one is dropped
+    private void refresh() {
+        HistoryFilter query = filter;
+        statusLabel.setText(query.isEmpty() || bookingService.historyIndexed() ? "Searching..." : "Indexing history...");
+        SwingWorker<BookingStore.Query, Void> worker = new SwingWorker<BookingStore.Query, Void>() {
+            @Override
+            protected BookingStore.Query doInBackground() {
+                return bookingService.history(query);
+            }
+
+            @Override
+            protected void done() {
+                if (pendingQuery != this) {
+                    return;
+                }
+                pendingQuery = null;
+                try {
+                    BookingStore.Query found = get();
+                    historyModel.setQuery(found);
+                    statusLabel.setText(found.size() + " bookings");
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    statusLabel.setText(" ");
+                    JOptionPane.showMessageDialog(null, "History query failed: " + ex.getCause().getMessage());
+                }
+            }
+        };
+        pendingQuery = worker;
+        worker.execute();
+    }
+
+    @Override
+    public void hidden() {
+    }
+}
+
+
+// Admin dashboard over the BookingAggregates: totals, seats by division and by hour of booking,
+// the busiest routes and the load factor of every booked train. It rereads the running totals
+// every REFRESH_MILLIS on a background thread while on screen; nothing scans the booking history.
+class DashboardPanel extends JPanel implements Screen {
+    private static final int REFRESH_MILLIS = 2000;
+
+    private final BookingAggregates aggregates;
+    private final TimetableService timetable;
+    private final JLabel summaryLabel = new JLabel(" ", JLabel.CENTER);
+    private final RowsTableModel routesModel = new RowsTableModel("Route", "Bookings", "Seats");
+    private final RowsTableModel trainsModel = new RowsTableModel("Train Number", "Train Name", "Bookings", "Seats", "Load Factor");
+    private final RowsTableModel hoursModel = new RowsTableModel("Hour", "Bookings", "Seats");
+    private final javax.swing.Timer refreshTimer;
+    private boolean refreshing;
+
+    // Table model over rows computed elsewhere
+    private static class RowsTableModel extends AbstractTableModel {
+        private final String[] columnNames;
+        private List<Object[]> rows = Collections.emptyList();
+
+        RowsTableModel(String... columnNames) {
+            this.columnNames = columnNames;
+        }
+
+        void setRows(List<Object[]> rows) {
+            this.rows = rows;
+            fireTableDataChanged();
+        }
+
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columnNames.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columnNames[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            return rows.get(row)[column];
+        }
+    }
+
+    // One reading of the aggregates, taken off the EDT
+    private static class Reading {
+        String summary;
+        List<Object[]> routes = new ArrayList<>();
+        List<Object[]> trains = new ArrayList<>();
+        List<Object[]> hours = new ArrayList<>();
+    }
+
+    public DashboardPanel(RailwayManagementSystem system, BookingAggregates aggregates, TimetableService timetable) {
+        this.aggregates = aggregates;
+        this.timetable = timetable;
+
+        summaryLabel.setFont(new Font("Arial", Font.BOLD, 18));
+        JPanel tablesPanel = new JPanel(new GridLayout(1, 3, 10, 10));
+        tablesPanel.add(titled("Busiest Routes", routesModel));
+        tablesPanel.add(titled("Trains by Load Factor", trainsModel));
+        tablesPanel.add(titled("Bookings by Hour", hoursModel));
+
+        JPanel buttonPanel = new JPanel();
+        JButton backButton = new JButton("Back");
+        backButton.setPreferredSize(new Dimension(100, 30));
+        backButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                system.showScreen(MainWindow.ADMIN);
+            }
+        });
+        buttonPanel.add(backButton);
+
+        setLayout(new BorderLayout());
+        add(summaryLabel, BorderLayout.NORTH);
+        add(tablesPanel, BorderLayout.CENTER);
+        add(buttonPanel, BorderLayout.SOUTH);
+
+        refreshTimer = new javax.swing.Timer(REFRESH_MILLIS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refresh();
+            }
+        });
+    }
+
+    @Override
+    public void shown() {
+        refreshTimer.start();
+        refresh();
+    }
+
+    @Override
+    public void hidden() {
+        refreshTimer.stop();
+    }
+
+    private static JScrollPane titled(String title, RowsTableModel model) {
+        JScrollPane scrollPane = new JScrollPane(new JTable(model));
+        scrollPane.setBorder(BorderFactory.createTitledBorder(title));
+        return scrollPane;
+    }
+
+    private void refresh() {
+        if (refreshing) {
+            return;
+        }
+        refreshing = true;
+        new SwingWorker<Reading, Void>() {
+            @Override
+            protected Reading doInBackground() {
+                return read();
+            }
+
+            @Override
+            protected void done() {
+                refreshing = false;
+                try {
+                    Reading reading = get();
+                    summaryLabel.setText(reading.summary);
+                    routesModel.setRows(reading.routes);
+                    trainsModel.setRows(reading.trains);
+                    hoursModel.setRows(reading.hours);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    summaryLabel.setText("Dashboard unavailable: " + ex.getCause().getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    private Reading read() {
+        Reading reading = new Reading();
+        StringBuilder summary = new StringBuilder("Bookings: ").append(aggregates.bookings())
+                .append("   Cancellations: ").append(aggregates.cancellations())
+                .append("   Seats: ").append(aggregates.seats());
+        for (int division = 0; division < SeatInventory.DIVISIONS.length; division++) {
+            summary.append("   ").append(SeatInventory.DIVISIONS[division]).append(": ").append(aggregates.divisionSeats(division));
+        }
+        reading.summary = summary.toString();
+        for (BookingAggregates.RouteTotals route : aggregates.topRoutes()) {
+            reading.routes.add(new Object[] {route.toString(), route.bookings.sum(), route.seats.get()});
+        }
+        for (BookingAggregates.TrainTotals totals : aggregates.trains()) {
+            Train train = timetable.findByNumber(totals.trainNumber);
+            reading.trains.add(new Object[] {totals.trainNumber, train == null ? "(deleted)" : train.name(),
+                    totals.bookings.sum(), totals.seats(), totals.loadFactor(train)});
+        }
+        reading.trains.sort(Comparator.comparingDouble((Object[] row) -> (Double) row[4]).reversed());
+        for (Object[] row : reading.trains) {
+            row[4] = String.format(Locale.ROOT, "%.1f%%", 100 * (Double) row[4]);
+        }
+        for (int hour = 0; hour < 24; hour++) {
+            reading.hours.add(new Object[] {String.format(Locale.ROOT, "%02d:00", hour), aggregates.hourBookings(hour), aggregates.hourSeats(hour)});
+        }
+        return reading;
+    }
+}
+
+// Booking screen for ticket booking
+class BookTicketPanel extends JPanel implements Screen {
+    private RailwayManagementSystem system;
+    private BookingService bookingService;
+    private final JTextField sourceField = new JTextField(10);
+    private final JTextField destinationField = new JTextField(10);
+    private final JTextField seatsField = new JTextField(5);
+    private final JComboBox<String> divisionCombo = new JComboBox<>(SeatInventory.DIVISIONS);
+    private final JPanel dynamicFieldsPanel = new JPanel();
+    private final JButton bookButton = new JButton("Book Ticket");
+
+  
+    public BookTicketPanel(RailwayManagementSystem system, BookingService bookingService) {
+        this.system = system;
+        this.bookingService = bookingService;
+
+        // Create a background panel for the image
+        BackgroundPanel backgroundPanel = new BackgroundPanel("trraaii.jpg"); // Ensure this image file is available in the resources folder
+        backgroundPanel.setLayout(new BorderLayout());
+
+        // Create a panel for the form
+        JPanel formPanel = new JPanel();
+        formPanel.setOpaque(false); // Make the form panel transparent
+        formPanel.setLayout(new GridBagLayout());
+        GridBagConstraints gbc = new GridBagConstraints();
+        gbc.insets = new Insets(10, 10, 10, 10);
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+
+        // Create source and destination fields
+        JLabel sourceLabel = new JLabel("Source:");
+        JLabel destinationLabel = new JLabel("Destination:");
+
+        // Create number of seats field
+        JLabel seatsLabel = new JLabel("Number of Seats:");
+        JLabel divisionLabel = new JLabel("Division:");
+
+        // Panel for dynamically generated name and age fields
+        dynamicFieldsPanel.setOpaque(false);
+        dynamicFieldsPanel.setLayout(new BoxLayout(dynamicFieldsPanel, BoxLayout.Y_AXIS));
+
+        // Adding components to the form panel
+        gbc.gridx = 0; gbc.gridy = 0; formPanel.add(sourceLabel, gbc);
+        gbc.gridx = 1; formPanel.add(sourceField, gbc);
+        gbc.gridx = 0; gbc.gridy = 1; formPanel.add(destinationLabel, gbc);
+        gbc.gridx = 1; formPanel.add(destinationField, gbc);
+        gbc.gridx = 0; gbc.gridy = 2; formPanel.add(seatsLabel, gbc);
+        gbc.gridx = 1; formPanel.add(seatsField, gbc);
+        gbc.gridx = 0; gbc.gridy = 3; formPanel.add(divisionLabel, gbc);
+        gbc.gridx = 1; formPanel.add(divisionCombo, gbc);
+        gbc.gridx = 0; gbc.gridy = 4; gbc.gridwidth = 2; formPanel.add(dynamicFieldsPanel, gbc);
+
+        // Seats Input Listener
+        seatsField.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dynamicFieldsPanel.removeAll(); // Clear previous fields
+                int numberOfSeats;
+                try {
+                    numberOfSeats = Integer.parseInt(seatsField.getText().trim());
+                } catch (NumberFormatException ex) {
+                    numberOfSeats = 0;
+                }
+
+                for (int i = 0; i < numberOfSeats; i++) {
+                    JPanel seatPanel = new JPanel(new FlowLayout());
+                    seatPanel.setOpaque(false); // Make the seat panel transparent
+                    JTextField nameField = new JTextField(10);
+                    JTextField ageField = new JTextField(5);
+                    seatPanel.add(new JLabel("Name " + (i + 1) + ":"));
+                    seatPanel.add(nameField);
+                    seatPanel.add(new JLabel("Age " + (i + 1) + ":"));
+                    seatPanel.add(ageField);
+                    dynamicFieldsPanel.add(seatPanel);
+                }
+                dynamicFieldsPanel.revalidate();
+                dynamicFieldsPanel.repaint();
+            }
+        });
+
+        // Booking Button
+        bookButton.setPreferredSize(new Dimension(150, 30));
+        bookButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String source = sourceField.getText().trim();
+                String destination = destinationField.getText().trim();
+                String division = (String) divisionCombo.getSelectedItem();
+                int seats;
+                try {
+                    seats = Integer.parseInt(seatsField.getText().trim());
+                } catch (NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(null, "Please enter a valid number of seats.");
+                    return;
+                }
+
+                // Collecting names and ages
+                List<Passenger> passengers = new ArrayList<>();
+                for (Component component : dynamicFieldsPanel.getComponents()) {
+                    if (component instanceof JPanel) {
+                        JPanel seatPanel = (JPanel) component;
+                        JTextField nameField = (JTextField) seatPanel.getComponent(1);
+                        JTextField ageField = (JTextField) seatPanel.getComponent(3);
+                        String name = nameField.getText().trim();
+                        String ageText = ageField.getText().trim();
+
+                        if (name.isEmpty() || ageText.isEmpty()) {
+                            JOptionPane.showMessageDialog(null, "Please fill in all fields.");
+                            return;
+                        }
+                        int age;
+                        try {
+                            age = Integer.parseInt(ageText);
+                        } catch (NumberFormatException ex) {
+                            JOptionPane.showMessageDialog(null, "Please enter a valid age for " + name + ".");
+                            return;
+                        }
+                        passengers.add(new Passenger(name, age));
+                    }
+                }
+
+                BookingRequest request = new BookingRequest(source, destination, division, seats, passengers);
+                submit(() -> bookingService.book(request), result -> {
+                    if (result.status == BookingResult.Status.NO_TRAIN) {
+                        // No direct train; offer a connecting journey instead
+                        JourneyPlanner.Journey journey = bookingService.planJourney(source, destination,
+                                JourneyPlanner.Objective.FEWEST_TRANSFERS);
+                        if (journey != null) {
+                            int choice = JOptionPane.showConfirmDialog(null,
+                                    "No direct train. Book this journey with " + journey.transfers() + " change(s)?\n\n" + journey,
+                                    "Connecting Journey", JOptionPane.YES_NO_OPTION);
+                            if (choice == JOptionPane.YES_OPTION) {
+                                submit(() -> bookingService.bookJourney(journey, request), BookTicketPanel.this::finish);
+                            }
+                            return;
+                        }
+                    } else if (result.status == BookingResult.Status.INSUFFICIENT_SEATS) {
+                        // Sold out; offer a place on the waitlist, booked as soon as cancellations free the seats
+                        int choice = JOptionPane.showConfirmDialog(null,
+                                result.message + " Join the waitlist for these seats?",
+                                "Waitlist", JOptionPane.YES_NO_OPTION);
+                        if (choice == JOptionPane.YES_OPTION) {
+                            submit(() -> bookingService.bookOrWaitlist(request, 0), BookTicketPanel.this::finish);
+                        }
+                        return;
+                    }
+                    finish(result);
+                });
+            }
+        });
+
+        // Back Button
+        JButton backButton = new JButton("Back");
+        backButton.setPreferredSize(new Dimension(150, 30));
+        backButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                system.showMainFrame();
+            }
+        });
+
+        
+        gbc.gridy = 5; formPanel.add(bookButton, gbc);
+        gbc.gridy = 6; formPanel.add(backButton, gbc);
+
+        backgroundPanel.add(formPanel, BorderLayout.CENTER);
+        setLayout(new BorderLayout());
+        add(backgroundPanel);
+    }
+
+    // Runs a booking on a SwingWorker, since it returns only once the journal has made it durable, and hands
+    // the result to then on the EDT; the Book button stays disabled meanwhile
+    private void submit(Supplier<BookingResult> booking, Consumer<BookingResult> then) {
+        bookButton.setEnabled(false);
+        new SwingWorker<BookingResult, Void>() {
+            @Override
+            protected BookingResult doInBackground() {
+                return booking.get();
+            }
+
+            @Override
+            protected void done() {
+                bookButton.setEnabled(true);
+                try {
+                    then.accept(get());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    JOptionPane.showMessageDialog(null, "Booking failed: " + ex.getCause().getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    private void finish(BookingResult result) {
+        JOptionPane.showMessageDialog(null, result.message);
+        if (result.isConfirmed() || result.status == BookingResult.Status.WAITLISTED) {
+            system.showMainFrame();
+        }
+    }
+
+    // Every visit starts from an empty form, as a newly opened one did
+    @Override
+    public void shown() {
+        sourceField.setText("");
+        destinationField.setText("");
+        seatsField.setText("");
+        divisionCombo.setSelectedIndex(0);
+        dynamicFieldsPanel.removeAll();
+        dynamicFieldsPanel.revalidate();
+    }
+
+    @Override
+    public void hidden() {
+    }
+}
+
+// Log-linear latency histogram in the style of HdrHistogram. Values below SUB_BUCKETS nanoseconds are
+// counted exactly; above that every power of two is split into SUB_BUCKETS / 2 buckets, so a reported
+// value is within about 3% of the true one. Recording is lock-free: one atomic increment per bucket.
+class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int MAX_EXPONENT = 42; // about 73 minutes; anything longer lands in the last bucket
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 3) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, (1L << (MAX_EXPONENT + 1)) - 1));
+        counts.incrementAndGet(bucket(value));
+        totalNanos.add(value);
+        long seen = max.get();
+        while (value > seen && !max.compareAndSet(seen, value)) {
+            seen = max.get();
+        }
+    }
+
+    // Copy of the bucket counts, for percentiles over everything recorded so far or, diffed, over an interval
+    public long[] counts() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long totalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+    // Highest value in the bucket holding the given percentile of counts, or 0 if nothing was recorded
+    static long percentile(long[] counts, double percentile) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestValue(i);
+            }
+        }
+        return highestValue(counts.length - 1);
+    }
+
+    private static int bucket(long value) {
+        int shift = 63 - Long.numberOfLeadingZeros(value | (SUB_BUCKETS - 1)) - (SUB_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / HALF - 1;
+        long sub = bucket - (long) shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
+
+// Process-wide metrics for the hot paths: LongAdder counters, latency histograms and seats sold per
+// train. register() publishes them as MBeans under railway:*, and startDump appends them to a
+// rolling log every DUMP_SECONDS, together with each train's seat depletion over that interval.
+// Recording costs a System.nanoTime() pair and a few uncontended atomic adds.
+final class Metrics {
+    static final String DOMAIN = "railway";
+    static final long DUMP_SECONDS = Long.getLong("railway.metrics.dumpSeconds", 60);
+    private static final long MAX_DUMP_BYTES = 10 << 20;
+    private static final int DUMP_GENERATIONS = 3;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private static final Map<String, LatencyHistogram> LATENCIES = new LinkedHashMap<>();
+    private static final Map<String, LongAdder> COUNTERS = new LinkedHashMap<>();
+    private static final ConcurrentHashMap<Integer, LongAdder> SEATS_SOLD = new ConcurrentHashMap<>();
+    private static volatile Map<Integer, Double> depletionPerMinute = Collections.emptyMap();
+
+    static final LatencyHistogram SEARCH = latency("search");
+    static final LatencyHistogram BOOK = latency("book");
+    static final LatencyHistogram BOOK_MATCH = latency("book.match");
+    static final LatencyHistogram BOOK_VALIDATE = latency("book.validate");
+    static final LatencyHistogram BOOK_RESERVE = latency("book.reserve");
+    static final LatencyHistogram BOOK_JOURNAL = latency("book.journal");
+    static final LatencyHistogram CANCEL = latency("cancel");
+    static final LatencyHistogram ADMIN_EDIT = latency("admin.edit");
+    static final LatencyHistogram TABLE_POPULATE = latency("table.populate");
+    static final LatencyHistogram SCHEDULE_SEARCH = latency("schedule.search");
+
+    static final LongAdder BOOKINGS_CONFIRMED = counter("bookings.confirmed");
+    static final LongAdder BOOKINGS_REJECTED = counter("bookings.rejected");
+    static final LongAdder BOOKINGS_CANCELLED = counter("bookings.cancelled");
+    static final LongAdder BOOKING_BATCHES = counter("bookings.batches");
+    static final LongAdder WAITLIST_JOINED = counter("waitlist.joined");
+    static final LongAdder WAITLIST_PROMOTED = counter("waitlist.promoted");
+    static final LongAdder WAITLIST_WITHDRAWN = counter("waitlist.withdrawn");
+    static final LongAdder TRAINS_INSERTED = counter("trains.inserted");
+    static final LongAdder TRAINS_UPDATED = counter("trains.updated");
+    static final LongAdder TRAINS_DELETED = counter("trains.deleted");
+
+    private Metrics() {
+    }
+
+    private static LatencyHistogram latency(String name) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        LATENCIES.put(name, histogram);
+        return histogram;
+    }
+
+    private static LongAdder counter(String name) {
+        LongAdder counter = new LongAdder();
+        COUNTERS.put(name, counter);
+        return counter;
+    }
+
+    // Net seats taken from a train; cancellations pass a negative count
+    static void seatsSold(int trainNumber, int seats) {
+        LongAdder sold = SEATS_SOLD.get(trainNumber);
+        if (sold == null) {
+            sold = SEATS_SOLD.computeIfAbsent(trainNumber, number -> new LongAdder());
+        }
+        sold.add(seats);
+    }
+
+    // Publishes the metrics on the platform MBean server; later calls do nothing
+    static synchronized void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName counters = new ObjectName(DOMAIN + ":type=Counters");
+            if (server.isRegistered(counters)) {
+                return;
+            }
+            server.registerMBean(new MapMBean("Event counts", () -> {
+                Map<String, Object> values = new LinkedHashMap<>();
+                for (Map.Entry<String, LongAdder> counter : COUNTERS.entrySet()) {
+                    values.put(counter.getKey(), counter.getValue().sum());
+                }
+                return values;
+            }), counters);
+            for (Map.Entry<String, LatencyHistogram> latency : LATENCIES.entrySet()) {
+                LatencyHistogram histogram = latency.getValue();
+                server.registerMBean(new MapMBean("Latency of " + latency.getKey() + " in microseconds", () -> {
+                    Map<String, Object> values = new LinkedHashMap<>();
+                    long[] counts = histogram.counts();
+                    long count = 0;
+                    for (long bucket : counts) {
+                        count += bucket;
+                    }
+                    values.put("Count", count);
+                    values.put("MeanMicros", count == 0 ? 0.0 : histogram.totalNanos() / 1000.0 / count);
+                    for (double percentile : PERCENTILES) {
+                        values.put("P" + label(percentile).replace(".", "") + "Micros",
+                                Math.min(LatencyHistogram.percentile(counts, percentile), histogram.maxNanos()) / 1000.0);
+                    }
+                    values.put("MaxMicros", histogram.maxNanos() / 1000.0);
+                    return values;
+                }), new ObjectName(DOMAIN + ":type=Latency,name=" + latency.getKey()));
+            }
+            server.registerMBean(new MapMBean("Seats sold per train, and per minute over the last dump interval", () -> {
+                Map<String, Object> values = new TreeMap<>();
+                Map<Integer, Double> rates = depletionPerMinute;
+                for (Map.Entry<Integer, LongAdder> sold : SEATS_SOLD.entrySet()) {
+                    values.put("Train" + sold.getKey() + "SeatsSold", sold.getValue().sum());
+                    values.put("Train" + sold.getKey() + "SeatsPerMinute", rates.getOrDefault(sold.getKey(), 0.0));
+                }
+                return values;
+            }), new ObjectName(DOMAIN + ":type=SeatDepletion"));
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register metrics MBeans", e);
+        }
+    }
+
+    // Appends all metrics to file every DUMP_SECONDS, rolling it over at MAX_DUMP_BYTES; shut the returned executor down to stop
+    static ScheduledExecutorService startDump(Path file) {
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<String, long[]> previousCounts = new HashMap<>();
+        Map<Integer, Long> previousSold = new HashMap<>();
+        long[] previousTime = {System.nanoTime()};
+        dumper.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                updateDepletion(previousSold, (now - previousTime[0]) / 60e9);
+                previousTime[0] = now;
+                try {
+                    roll(file);
+                    Files.write(file, dump(previousCounts).getBytes(StandardCharsets.UTF_8),
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                } catch (IOException e) {
+                    // metrics must never take the application down; try again next interval
+                }
+            }
+        }, DUMP_SECONDS, DUMP_SECONDS, TimeUnit.SECONDS);
+        return dumper;
+    }
+
+    private static void updateDepletion(Map<Integer, Long> previousSold, double minutes) {
+        Map<Integer, Double> rates = new HashMap<>();
+        for (Map.Entry<Integer, LongAdder> sold : SEATS_SOLD.entrySet()) {
+            long total = sold.getValue().sum();
+            Long before = previousSold.put(sold.getKey(), total);
+            rates.put(sold.getKey(), minutes <= 0 ? 0.0 : (total - (before == null ? 0 : before)) / minutes);
+        }
+        depletionPerMinute = rates;
+    }
+
+    // One block of "name key=value ..." lines; latencies show the interval since the last dump and the run so far
+    static String dump(Map<String, long[]> previousCounts) {
+        StringBuilder text = new StringBuilder("# ").append(Instant.now()).append('\n');
+        for (Map.Entry<String, LongAdder> counter : COUNTERS.entrySet()) {
+            text.append(counter.getKey()).append(" count=").append(counter.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> latency : LATENCIES.entrySet()) {
+            long[] counts = latency.getValue().counts();
+            long[] interval = counts.clone();
+            long[] before = previousCounts.put(latency.getKey(), counts);
+            if (before != null) {
+                for (int i = 0; i < interval.length; i++) {
+                    interval[i] -= before[i];
+                }
+            }
+            text.append(latency.getKey());
+            appendLatencies(text, "", counts, latency.getValue().maxNanos());
+            appendLatencies(text, "interval.", interval, latency.getValue().maxNanos());
+            text.append(" maxUs=").append(latency.getValue().maxNanos() / 1000).append('\n');
+        }
+        Map<Integer, Double> rates = new TreeMap<>(depletionPerMinute);
+        for (Map.Entry<Integer, Double> rate : rates.entrySet()) {
+            text.append("seats.train").append(rate.getKey()).append(" sold=").append(SEATS_SOLD.get(rate.getKey()).sum())
+                    .append(String.format(Locale.ROOT, " perMinute=%.1f", rate.getValue())).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void appendLatencies(StringBuilder text, String prefix, long[] counts, long maxNanos) {
+        long count = 0;
+        for (long bucket : counts) {
+            count += bucket;
+        }
+        text.append(' ').append(prefix).append("count=").append(count);
+        for (double percentile : PERCENTILES) {
+            text.append(' ').append(prefix).append('p').append(label(percentile)).append("Us=")
+                    .append(Math.min(LatencyHistogram.percentile(counts, percentile), maxNanos) / 1000);
+        }
+    }
+
+    private static String label(double percentile) {
+        return percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile);
+    }
+
+    // Shifts file to file.1, file.1 to file.2 and so on once it grows past MAX_DUMP_BYTES
+    private static void roll(Path file) throws IOException {
+        if (!Files.exists(file) || Files.size(file) < MAX_DUMP_BYTES) {
+            return;
+        }
+        for (int generation = DUMP_GENERATIONS - 1; generation >= 1; generation--) {
+            Path older = file.resolveSibling(file.getFileName() + "." + generation);
+            if (Files.exists(older)) {
+                Files.move(older, file.resolveSibling(file.getFileName() + "." + (generation + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Read-only MBean whose attributes are whatever the supplier returns when asked
+    private static class MapMBean implements DynamicMBean {
+        private final String description;
+        private final Supplier<Map<String, Object>> values;
+
+        MapMBean(String description, Supplier<Map<String, Object>> values) {
+            this.description = description;
+            this.values = values;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = values.get().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> current = values.get();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (current.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, current.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Object> current = values.get();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[current.size()];
+            int i = 0;
+            for (Map.Entry<String, Object> value : current.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                        value.getKey(), true, false, false);
+            }
+            return new MBeanInfo(getClass().getName(), description, attributes, null, null, null);
+        }
+    }
+}
+
+// Executors for tasks that spend most of their time blocked. On JDK 21+ each task gets a virtual
+// thread; the build targets 17, so the factory is looked up reflectively and, where it is missing,
+// a fixed pool of daemon platform threads stands in.
+class VirtualThreads {
+    static ExecutorService perTaskExecutor(String name, int platformThreads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicLong threads = new AtomicLong();
+            return Executors.newFixedThreadPool(platformThreads, runnable -> {
+                Thread thread = new Thread(runnable, name + "-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
+
+// Headless booking-storm simulator, started with --simulate key=value ...
+// Opens a fresh data directory seeded with the bundled timetable (or timetable=<csv>), releases all
+// simulated users at once, as when Tatkal booking opens, and has each run its share of a mix of
+// searches, bookings, cancellations and admin edits against the services directly. Trains are
+// picked with Zipf-skewed popularity, the hot= trains ranking first. Every user draws from its own
+// generator seeded from seed=, so a run always issues the same operations; only their interleaving
+// and timings vary. Bookings are for a random stretch of the train's route. Afterwards every train's
+// seat map is checked against the confirmed and cancelled bookings, counting each seat once per
+// segment it is sold for: seat-segments sold beyond what was booked count as oversold, ones taken
+// but booked by nobody as undersold. With waitlist=<percent>, that share of bookings joins the train's
+// waitlist when it is full; entries promoted by the time the run ends count as sold.
+// The report lists one key: value per line, in a fixed order, for diffing.
+class BookingStorm {
+    enum Operation { SEARCH, BOOK, CANCEL, EDIT }
+
+    private static final int PLATFORM_THREADS = 256;
+    private static final int MAX_PASSENGERS = 6;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 100};
+
+    private final Map<String, String> config = new LinkedHashMap<>();
+    private final int users;
+    private final int operations;
+    private final long seed;
+    private final double skew;
+    private final int[] mix; // weight of each Operation
+    private final int waitlist; // percentage of bookings that may wait for seats
+
+    private RailwayManagementSystem system;
+    private int[] ranked;      // train numbers, most popular first
+    private double[] popularity; // cumulative probability of each rank
+    private final ConcurrentHashMap<Long, Booking> open = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicLong> netSold = new ConcurrentHashMap<>(); // train -> seat-segments booked
+    private final ConcurrentHashMap<Long, Booking> waiting = new ConcurrentHashMap<>(); // by waitlist id
+
+    public BookingStorm(Map<String, String> options) {
+        config.put("users", "1000");
+        config.put("operations", "100000");
+        config.put("seed", "42");
+        config.put("mix", "70:25:4:1");
+        config.put("skew", "1.1");
+        config.put("hot", "12951");
+        config.put("timetable", "");
+        config.put("waitlist", "0");
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (option.getKey().equals("report")) {
+                continue;
+            }
+            if (!config.containsKey(option.getKey())) {
+                throw new IllegalArgumentException("Unknown option " + option.getKey() + "; expected one of " + config.keySet() + " or report");
+            }
+            config.put(option.getKey(), option.getValue());
+        }
+        users = Integer.parseInt(config.get("users"));
+        operations = Integer.parseInt(config.get("operations"));
+        seed = Long.parseLong(config.get("seed"));
+        skew = Double.parseDouble(config.get("skew"));
+        waitlist = Integer.parseInt(config.get("waitlist"));
+        String[] weights = config.get("mix").split(":");
+        if (weights.length != Operation.values().length || users <= 0 || operations < 0) {
+            throw new IllegalArgumentException("mix needs search:book:cancel:edit weights; users and operations must be positive");
+        }
+        mix = new int[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            mix[i] = Integer.parseInt(weights[i].trim());
+        }
+    }
+
+    // What a user did: the operations it issued, their latencies and outcomes
+    private static class UserLog {
+        final long[][] latencies = new long[Operation.values().length][];
+        final int[] counts = new int[Operation.values().length];
+        final Map<String, Integer> outcomes = new TreeMap<>();
+
+        void record(Operation operation, long nanos, String outcome) {
+            int op = operation.ordinal();
+            if (latencies[op] == null) {
+                latencies[op] = new long[64];
+            } else if (counts[op] == latencies[op].length) {
+                latencies[op] = Arrays.copyOf(latencies[op], counts[op] * 2);
+            }
+            latencies[op][counts[op]++] = nanos;
+            outcomes.merge(operation + " " + outcome, 1, Integer::sum);
+        }
+    }
+
+    public String run() throws InterruptedException {
+        Path directory;
+        try {
+            directory = Files.createTempDirectory("railway-storm");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            system = new RailwayManagementSystem(directory);
+            if (!config.get("timetable").isEmpty()) {
+                ImportReport report = new ImportReport();
+                system.persistence().replaceTimetable(TimetableCsv.read(Paths.get(config.get("timetable")), report));
+            }
+            rankTrains();
+
+            UserLog[] logs = new UserLog[users];
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = VirtualThreads.perTaskExecutor("storm-user", PLATFORM_THREADS);
+            for (int user = 0; user < users; user++) {
+                UserLog log = new UserLog();
+                logs[user] = log;
+                int share = operations / users + (user < operations % users ? 1 : 0);
+                SplittableRandom random = new SplittableRandom(seed * 1_000_003 + user);
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < share; i++) {
+                            step(random, log);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            long began = System.nanoTime();
+            start.countDown();
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            long elapsed = System.nanoTime() - began;
+            // lets the writers finish promotions set off by the last cancellations
+            system.bookingService().close();
+            return report(logs, elapsed);
+        } finally {
+            if (system != null) {
+                system.close();
+            }
+            deleteRecursively(directory);
+        }
+    }
+
+    private void rankTrains() {
+        List<Train> trains = system.timetableService().trains();
+        List<Integer> numbers = new ArrayList<>(trains.size());
+        for (Train train : trains) {
+            numbers.add(train.trainNumber());
+        }
+        Collections.shuffle(numbers, new Random(seed));
+        List<Integer> order = new ArrayList<>();
+        for (String hot : config.get("hot").split(",")) {
+            if (!hot.trim().isEmpty() && numbers.remove(Integer.valueOf(hot.trim()))) {
+                order.add(Integer.valueOf(hot.trim()));
+            }
+        }
+        order.addAll(numbers);
+        ranked = new int[order.size()];
+        popularity = new double[order.size()];
+        double total = 0;
+        for (int rank = 0; rank < ranked.length; rank++) {
+            ranked[rank] = order.get(rank);
+            total += 1 / Math.pow(rank + 1, skew);
+            popularity[rank] = total;
+        }
+        for (int rank = 0; rank < ranked.length; rank++) {
+            popularity[rank] /= total;
+        }
+    }
+
+    private int pickTrain(SplittableRandom random) {
+        int rank = Arrays.binarySearch(popularity, random.nextDouble());
+        return ranked[Math.min(ranked.length - 1, rank < 0 ? -rank - 1 : rank)];
+    }
+
+    private void step(SplittableRandom random, UserLog log) {
+        int choice = random.nextInt(Arrays.stream(mix).sum());
+        Operation operation = Operation.values()[0];
+        for (int i = 0; choice >= mix[i]; i++) {
+            choice -= mix[i];
+            operation = Operation.values()[i + 1];
+        }
+        TimetableService timetable = system.timetableService();
+        BookingService bookings = system.bookingService();
+        int trainNumber = pickTrain(random);
+        long started = System.nanoTime();
+        String outcome;
+        switch (operation) {
+            case SEARCH: {
+                Train train = timetable.findByNumber(trainNumber);
+                String source = train == null ? "" : train.source();
+                outcome = timetable.search(source.substring(0, Math.min(source.length(), 1 + random.nextInt(4))), "").isEmpty() ? "EMPTY" : "FOUND";
+                break;
+            }
+            case BOOK: {
+                Train train = timetable.findByNumber(trainNumber);
+                int from = random.nextInt(train.stopCount() - 1);
+                String source = train.stop(from);
+                String destination = train.stop(from + 1 + random.nextInt(train.stopCount() - 1 - from));
+                int division = random.nextInt(SeatInventory.DIVISIONS.length);
+                int seats = 1 + random.nextInt(MAX_PASSENGERS);
+                List<Passenger> passengers = new ArrayList<>(seats);
+                for (int i = 0; i < seats; i++) {
+                    passengers.add(new Passenger("P" + random.nextInt(100_000), 5 + random.nextInt(80)));
+                }
+                BookingRequest request = new BookingRequest(source, destination, SeatInventory.DIVISIONS[division], seats, passengers);
+                BookingResult result = waitlist > 0 && random.nextInt(100) < waitlist
+                        ? bookings.bookOrWaitlist(request, random.nextInt(Waitlists.MAX_PRIORITY + 1))
+                        : bookings.book(request);
+                if (result.isConfirmed()) {
+                    Booking booking = new Booking(result.bookingId, result.train.trainNumber(), source, destination, division, passengers, 0);
+                    sold(result.train, booking, seats);
+                    open.put(result.bookingId, booking);
+                } else if (result.status == BookingResult.Status.WAITLISTED) {
+                    waiting.put(result.waitlistId, new Booking(0, result.train.trainNumber(), source, destination, division, passengers, 0));
+                }
+                outcome = result.status.toString();
+                break;
+            }
+            case CANCEL: {
+                Booking booking = null;
+                Iterator<Booking> candidates = open.values().iterator();
+                if (candidates.hasNext()) {
+                    booking = candidates.next();
+                }
+                if (booking == null || open.remove(booking.id) == null) {
+                    outcome = "NOTHING_OPEN";
+                } else if (bookings.cancel(booking.id)) {
+                    sold(timetable.findByNumber(booking.trainNumber), booking, -booking.seats());
+                    outcome = "CANCELLED";
+                } else {
+                    outcome = "REFUSED";
+                }
+                break;
+            }
+            default: {
+                // Reschedules the train by a few minutes; its stops and seats stay as they are
+                Train train = timetable.findByNumber(trainNumber);
+                int shift = random.nextInt(-5, 6);
+                TrainSpec spec = new TrainSpec(train.trainNumber(), train.name(), train.source(), train.destination(),
+                        shift(train.startTime(), shift), shift(train.reachTime(), shift), train.totalSeats(), train.balance(), train.via());
+                try {
+                    timetable.updateTrain(spec);
+                    outcome = "UPDATED";
+                } catch (IllegalArgumentException ex) {
+                    outcome = "REJECTED";
+                }
+                break;
+            }
+        }
+        log.record(operation, System.nanoTime() - started, outcome);
+    }
+
+    private static String shift(String time, int minutes) {
+        int minute = Math.floorMod(TrainSpec.parseTime(time) + minutes, 24 * 60);
+        return TrainSpec.formatTime(minute);
+    }
+
+    // Edits never change a train's stops, so the booking covers the same segments of whichever version of it is live
+    private void sold(Train train, Booking booking, int seats) {
+        int[] segments = SeatInventory.segments(train, booking.source, booking.destination);
+        netSold.computeIfAbsent(booking.trainNumber, number -> new AtomicLong()).addAndGet((long) seats * (segments[1] - segments[0]));
+    }
+
+    private String report(UserLog[] logs, long elapsed) {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, String> option : config.entrySet()) {
+            report.append("config.").append(option.getKey()).append(": ").append(option.getValue()).append('\n');
+        }
+        report.append("java.version: ").append(System.getProperty("java.version")).append('\n');
+        report.append("trains: ").append(ranked.length).append('\n');
+        report.append("elapsed.ms: ").append(elapsed / 1_000_000).append('\n');
+
+        long total = 0;
+        Map<String, Integer> outcomes = new TreeMap<>();
+        for (UserLog log : logs) {
+            for (Map.Entry<String, Integer> outcome : log.outcomes.entrySet()) {
+                outcomes.merge(outcome.getKey(), outcome.getValue(), Integer::sum);
+            }
+        }
+        for (Operation operation : Operation.values()) {
+            int count = 0;
+            for (UserLog log : logs) {
+                count += log.counts[operation.ordinal()];
+            }
+            long[] latencies = new long[count];
+            int next = 0;
+            for (UserLog log : logs) {
+                int op = operation.ordinal();
+                if (log.counts[op] > 0) {
+                    System.arraycopy(log.latencies[op], 0, latencies, next, log.counts[op]);
+                    next += log.counts[op];
+                }
+            }
+            Arrays.sort(latencies);
+            total += count;
+            String name = operation.toString().toLowerCase(Locale.ROOT);
+            report.append(name).append(".count: ").append(count).append('\n');
+            for (double percentile : PERCENTILES) {
+                long value = count == 0 ? 0 : latencies[(int) Math.min(count - 1, Math.ceil(percentile / 100 * count) - 1)];
+                report.append(name).append(".latency.p").append(percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile))
+                        .append(".us: ").append(value / 1000).append('\n');
+            }
+            for (Map.Entry<String, Integer> outcome : outcomes.entrySet()) {
+                if (outcome.getKey().startsWith(operation + " ")) {
+                    String status = outcome.getKey().substring(operation.toString().length() + 1).toLowerCase(Locale.ROOT);
+                    report.append(name).append(".outcome.").append(status).append(": ").append(outcome.getValue())
+                            .append(String.format(Locale.ROOT, " (%.2f%%)", 100.0 * outcome.getValue() / count)).append('\n');
+                }
+            }
+        }
+        report.append("throughput.ops_per_s: ").append(elapsed == 0 ? 0 : total * 1_000_000_000L / elapsed).append('\n');
+
+        // Entries no longer waiting were promoted into bookings
+        TimetableService timetable = system.timetableService();
+        BookingService bookings = system.bookingService();
+        long promoted = 0;
+        for (Map.Entry<Long, Booking> entry : waiting.entrySet()) {
+            if (bookings.waitlistPosition(entry.getKey()) == 0) {
+                Booking booking = entry.getValue();
+                sold(timetable.findByNumber(booking.trainNumber), booking, booking.seats());
+                promoted++;
+            }
+        }
+        report.append("waitlist.joined: ").append(waiting.size()).append('\n');
+        report.append("waitlist.promoted: ").append(promoted).append('\n');
+        report.append("waitlist.waiting: ").append(waiting.size() - promoted).append('\n');
+
+        // Seat accounting: the seat-segments taken in each train's map must equal the net seat-segments booked
+        long oversold = 0;
+        long undersold = 0;
+        long sold = 0;
+        for (Train train : timetable.trains()) {
+            AtomicLong booked = netSold.get(train.trainNumber());
+            long taken = timetable.inventory().soldSeatSegments(train);
+            long expected = booked == null ? 0 : booked.get();
+            sold += expected;
+            if (taken < expected) {
+                oversold += expected - taken;
+            } else {
+                undersold += taken - expected;
+            }
+        }
+        report.append("seat_segments.sold: ").append(sold).append('\n');
+        report.append("seat_segments.oversold: ").append(oversold).append('\n');
+        report.append("seat_segments.undersold: ").append(undersold).append('\n');
+        return report.toString();
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Runs a storm from key=value arguments and prints the report, also writing it to report=<file> if given
+    static void main(Map<String, String> options) throws InterruptedException {
+        String report = new BookingStorm(options).run();
+        System.out.print(report);
+        if (options.containsKey("report")) {
+            try {
+                Files.write(Paths.get(options.get("report")), report.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
+
+// Headless HTTP API over the same services as the Swing screens, started with --server.
+// Requests take form-encoded parameters in the query string or body; responses are compact JSON.
+//   GET    /trains?source=&destination=&departFrom=&departTo=&arriveFrom=&arriveTo=&limit=
+//   GET    /trains/{number}
+//   POST   /bookings  source, destination, division, passenger=name:age (repeated), connections=true,
+//                      waitlist=true&priority=0..9 to wait for seats on a full train (202 with the waitlist id)
+//   GET    /bookings?train=&date=yyyy-MM-dd&passenger=&offset=&limit=
+//   GET    /bookings/{id}
+//   DELETE /bookings/{id}
+//   GET    /waitlist/{id}     a waiting request and its position
+//   DELETE /waitlist/{id}     withdraws it
+//   GET    /stats             booking totals by division and hour, and the busiest routes
+//   GET    /stats/{number}    one train's totals and load factor
+// HttpServer keeps connections alive as long as every response has a known length, which they all do.
+// Each exchange runs on its own virtual thread where the JDK has them (see VirtualThreads);
+// bookings block until their journal record is durable, so a pool needs far more threads than cores.
+class HttpApi {
+    static final int DEFAULT_PORT = 8080;
+    static final int DEFAULT_LIMIT = 100;
+    static final int MAX_LIMIT = 10000;
+    private static final int PLATFORM_THREADS = 256;
+    private static final DateTimeFormatter BOOKED_AT = DateTimeFormatter.ISO_OFFSET_DATE_TIME.withZone(ZoneId.systemDefault());
+
+    private final TimetableService timetable;
+    private final BookingService bookings;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public HttpApi(TimetableService timetable, BookingService bookings, int port) {
+        this.timetable = timetable;
+        this.bookings = bookings;
+        // Without TCP_NODELAY, Nagle's algorithm and delayed ACKs hold small keep-alive responses for ~40 ms.
+        // The JDK server reads this property once, when the first server is created.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        try {
+            server = HttpServer.create(new InetSocketAddress(port), 1024);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        executor = VirtualThreads.perTaskExecutor("http", PLATFORM_THREADS);
+        server.setExecutor(executor);
+        server.createContext("/trains", this::trains);
+        server.createContext("/bookings", this::bookings);
+        server.createContext("/stats", this::stats);
+        server.createContext("/waitlist", this::waitlist);
+    }
+
+    // Serves path with handler alongside the API's own endpoints
+    public void context(String path, HttpHandler handler) {
+        server.createContext(path, handler);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    private void trains(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                send(exchange, 405, error("Use GET"));
+                return;
+            }
+            String id = pathId(exchange, "/trains");
+            if (id != null) {
+                Train train = timetable.findByNumber(parseInt("number", id));
+                if (train == null) {
+                    send(exchange, 404, error("No train numbered " + id));
+                } else {
+                    send(exchange, 200, train(new StringBuilder(), train));
+                }
+                return;
+            }
+            Map<String, List<String>> params = params(exchange);
+            int[] slots = timetable.snapshot().searchSlots(param(params, "source", ""), param(params, "destination", ""),
+                    window(params, "departFrom", "departTo"), window(params, "arriveFrom", "arriveTo"));
+            int limit = limit(params);
+            TimetableSnapshot snapshot = timetable.snapshot();
+            StringBuilder json = new StringBuilder(64 + Math.min(limit, slots.length) * 160);
+            json.append("{\"total\":").append(slots.length).append(",\"trains\":[");
+            int shown = 0;
+            for (int slot : slots) {
+                if (shown == limit) {
+                    break;
+                }
+                if (shown++ > 0) {
+                    json.append(',');
+                }
+                train(json, snapshot.train(slot));
+            }
+            send(exchange, 200, json.append("]}"));
+        } catch (IllegalArgumentException ex) {
+            send(exchange, 400, error(ex.getMessage()));
+        } catch (RuntimeException ex) {
+            send(exchange, 500, error(String.valueOf(ex.getMessage())));
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                send(exchange, 405, error("Use GET"));
+                return;
+            }
+            BookingAggregates aggregates = bookings.aggregates();
+            String id = pathId(exchange, "/stats");
+            if (id != null) {
+                int trainNumber = parseInt("number", id);
+                BookingAggregates.TrainTotals totals = aggregates.train(trainNumber);
+                Train train = timetable.findByNumber(trainNumber);
+                if (totals == null && train == null) {
+                    send(exchange, 404, error("No train numbered " + id));
+                    return;
+                }
+                StringBuilder json = new StringBuilder("{\"train\":").append(trainNumber)
+                        .append(",\"bookings\":").append(totals == null ? 0 : totals.bookings.sum()).append(",\"seats\":{");
+                for (int division = 0; division < SeatInventory.DIVISIONS.length; division++) {
+                    string(division > 0 ? json.append(',') : json, SeatInventory.DIVISIONS[division])
+                            .append(':').append(totals == null ? 0 : totals.seats[division].sum());
+                }
+                json.append("},\"seatSegments\":").append(totals == null ? 0 : totals.seatSegments.sum())
+                        .append(",\"loadFactor\":").append(String.format(Locale.ROOT, "%.4f",
+                                BookingAggregates.loadFactor(train, totals == null ? 0 : totals.seatSegments.sum())));
+                send(exchange, 200, json.append('}'));
+                return;
+            }
+            StringBuilder json = new StringBuilder(2048).append("{\"bookings\":").append(aggregates.bookings())
+                    .append(",\"cancellations\":").append(aggregates.cancellations())
+                    .append(",\"seats\":").append(aggregates.seats()).append(",\"divisions\":{");
+            for (int division = 0; division < SeatInventory.DIVISIONS.length; division++) {
+                string(division > 0 ? json.append(',') : json, SeatInventory.DIVISIONS[division])
+                        .append(':').append(aggregates.divisionSeats(division));
+            }
+            json.append("},\"hours\":[");
+            for (int hour = 0; hour < 24; hour++) {
+                json.append(hour > 0 ? ",{\"hour\":" : "{\"hour\":").append(hour)
+                        .append(",\"bookings\":").append(aggregates.hourBookings(hour))
+                        .append(",\"seats\":").append(aggregates.hourSeats(hour)).append('}');
+            }
+            json.append("],\"topRoutes\":[");
+            List<BookingAggregates.RouteTotals> routes = aggregates.topRoutes();
+            for (int i = 0; i < routes.size(); i++) {
+                BookingAggregates.RouteTotals route = routes.get(i);
+                string(json.append(i > 0 ? ",{\"source\":" : "{\"source\":"), route.source).append(",\"destination\":");
+                string(json, route.destination).append(",\"bookings\":").append(route.bookings.sum())
+                        .append(",\"seats\":").append(route.seats.get()).append('}');
+            }
+            send(exchange, 200, json.append("]}"));
+        } catch (IllegalArgumentException ex) {
+            send(exchange, 400, error(ex.getMessage()));
+        } catch (RuntimeException ex) {
+            send(exchange, 500, error(String.valueOf(ex.getMessage())));
+        }
+    }
+
+    private void bookings(HttpExchange exchange) throws IOException {
+        try {
+            String id = pathId(exchange, "/bookings");
+            String method = exchange.getRequestMethod();
+            if (id == null && method.equals("POST")) {
+                book(exchange);
+            } else if (id == null && method.equals("GET")) {
+                history(exchange);
+            } else if (id != null && method.equals("GET")) {
+                HistoryEntry entry = bookings.historyEntry(parseLong("id", id));
+                if (entry == null) {
+                    send(exchange, 404, error("No booking " + id));
+                } else {
+                    send(exchange, 200, booking(new StringBuilder(), entry));
+                }
+            } else if (id != null && method.equals("DELETE")) {
+                long bookingId = parseLong("id", id);
+                if (bookings.cancel(bookingId)) {
+                    send(exchange, 200, new StringBuilder("{\"cancelled\":").append(bookingId).append('}'));
+                } else {
+                    send(exchange, 404, error("No open booking " + id));
+                }
+            } else {
+                send(exchange, 405, error("Unsupported method " + method));
+            }
+        } catch (IllegalArgumentException ex) {
+            send(exchange, 400, error(ex.getMessage()));
+        } catch (RuntimeException ex) {
+            send(exchange, 500, error(String.valueOf(ex.getMessage())));
+        }
+    }
+
+    private void book(HttpExchange exchange) throws IOException {
+        Map<String, List<String>> params = params(exchange);
+        BookingRequest request = bookingRequest(params);
+        BookingResult result = Boolean.parseBoolean(param(params, "waitlist", "false"))
+                ? bookings.bookOrWaitlist(request, parseInt("priority", param(params, "priority", "0")))
+                : bookings.book(request);
+        if (result.status == BookingResult.Status.NO_TRAIN && Boolean.parseBoolean(param(params, "connections", "false"))) {
+            JourneyPlanner.Journey journey = bookings.planJourney(request.source, request.destination, JourneyPlanner.Objective.EARLIEST_ARRIVAL);
+            if (journey != null) {
+                result = bookings.bookJourney(journey, request);
+            }
+        }
+        sendResult(exchange, result);
+    }
+
+    // source, destination, division and passenger=name:age (repeated)
+    static BookingRequest bookingRequest(Map<String, List<String>> params) {
+        List<Passenger> passengers = new ArrayList<>();
+        for (String passenger : params.getOrDefault("passenger", Collections.emptyList())) {
+            int colon = passenger.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("passenger must be name:age");
+            }
+            passengers.add(new Passenger(passenger.substring(0, colon), parseInt("age", passenger.substring(colon + 1))));
+        }
+        return new BookingRequest(param(params, "source", ""), param(params, "destination", ""),
+                param(params, "division", SeatInventory.DIVISIONS[0]), passengers.size(), passengers);
+    }
+
+    static void sendResult(HttpExchange exchange, BookingResult result) throws IOException {
+        StringBuilder json = result(result);
+        switch (result.status) {
+            case CONFIRMED: send(exchange, 201, json); break;
+            case WAITLISTED: send(exchange, 202, json); break;
+            case INVALID: send(exchange, 400, json); break;
+            case NO_TRAIN: send(exchange, 404, json); break;
+            case UNAVAILABLE: send(exchange, 503, json); break;
+            default: send(exchange, 409, json); break;
+        }
+    }
+
+    static StringBuilder result(BookingResult result) {
+        StringBuilder json = new StringBuilder(128);
+        json.append("{\"status\":\"").append(result.status).append("\",\"message\":");
+        string(json, result.message);
+        if (result.isConfirmed()) {
+            json.append(",\"bookingIds\":[");
+            for (int i = 0; i < result.legBookingIds.length; i++) {
+                json.append(i > 0 ? "," : "").append(result.legBookingIds[i]);
+            }
+            json.append("],\"train\":").append(result.train.trainNumber());
+        } else if (result.status == BookingResult.Status.WAITLISTED) {
+            json.append(",\"waitlistId\":").append(result.waitlistId).append(",\"position\":").append(result.waitlistPosition)
+                    .append(",\"train\":").append(result.train.trainNumber());
+        }
+        return json.append('}');
+    }
+
+    private void waitlist(HttpExchange exchange) throws IOException {
+        try {
+            String id = pathId(exchange, "/waitlist");
+            String method = exchange.getRequestMethod();
+            if (id == null) {
+                send(exchange, 404, error("No waitlist id"));
+                return;
+            }
+            long waitlistId = parseLong("id", id);
+            if (method.equals("GET")) {
+                WaitlistEntry entry = bookings.waitlistEntry(waitlistId);
+                int position = bookings.waitlistPosition(waitlistId);
+                if (entry == null || position == 0) {
+                    send(exchange, 404, error("Nothing waiting as " + id));
+                    return;
+                }
+                StringBuilder json = new StringBuilder(192).append("{\"id\":").append(entry.id)
+                        .append(",\"train\":").append(entry.trainNumber).append(",\"source\":");
+                string(json, entry.source).append(",\"destination\":");
+                string(json, entry.destination).append(",\"division\":");
+                string(json, SeatInventory.DIVISIONS[entry.division]).append(",\"seats\":").append(entry.seats())
+                        .append(",\"priority\":").append(entry.priority).append(",\"position\":").append(position)
+                        .append(",\"waiting\":").append(bookings.waitlists().waiting(entry.trainNumber, entry.division));
+                send(exchange, 200, json.append('}'));
+            } else if (method.equals("DELETE")) {
+                if (bookings.leaveWaitlist(waitlistId)) {
+                    send(exchange, 200, new StringBuilder("{\"withdrawn\":").append(waitlistId).append('}'));
+                } else {
+                    send(exchange, 404, error("Nothing waiting as " + id));
+                }
+            } else {
+                send(exchange, 405, error("Unsupported method " + method));
+            }
+        } catch (IllegalArgumentException ex) {
+            send(exchange, 400, error(ex.getMessage()));
+        } catch (RuntimeException ex) {
+            send(exchange, 500, error(String.valueOf(ex.getMessage())));
+        }
+    }
+
+    private void history(HttpExchange exchange) throws IOException {
+        Map<String, List<String>> params = params(exchange);
+        String train = param(params, "train", "");
+        String date = param(params, "date", "");
+        LocalDate day;
+        try {
+            day = date.isEmpty() ? null : LocalDate.parse(date);
+        } catch (DateTimeParseException ex) {
+            throw new IllegalArgumentException("date must be yyyy-MM-dd");
+        }
+        HistoryFilter filter = new HistoryFilter(train.isEmpty() ? null : parseInt("train", train), day, param(params, "passenger", null));
+        BookingStore.Query query = bookings.history(filter);
+        int offset = Math.max(0, parseInt("offset", param(params, "offset", "0")));
+        List<HistoryEntry> page = bookings.historyPage(query, offset, Math.min(limit(params), Math.max(0, query.size() - offset)));
+        StringBuilder json = new StringBuilder(64 + page.size() * 200);
+        json.append("{\"total\":").append(query.size()).append(",\"bookings\":[");
+        boolean first = true;
+        for (HistoryEntry entry : page) {
+            // a booking acknowledged after the query was taken may not be readable yet
+            if (entry == null) {
+                continue;
+            }
+            if (!first) {
+                json.append(',');
+            }
+            booking(json, entry);
+            first = false;
+        }
+        send(exchange, 200, json.append("]}"));
+    }
+
+    private StringBuilder train(StringBuilder json, Train train) {
+        json.append("{\"number\":").append(train.trainNumber()).append(",\"name\":");
+        string(json, train.name()).append(",\"source\":");
+        string(json, train.source()).append(",\"destination\":");
+        string(json, train.destination()).append(",\"via\":[");
+        String[] via = train.via();
+        for (int i = 0; i < via.length; i++) {
+            string(i > 0 ? json.append(',') : json, via[i]);
+        }
+        json.append("],\"start\":\"").append(train.startTime())
+                .append("\",\"reach\":\"").append(train.reachTime())
+                .append("\",\"overnight\":").append(train.overnight())
+                .append(",\"totalSeats\":").append(train.totalSeats())
+                .append(",\"available\":").append(timetable.availableSeats(train));
+        return json.append('}');
+    }
+
+    private static StringBuilder booking(StringBuilder json, HistoryEntry entry) {
+        Booking booking = entry.booking;
+        json.append("{\"id\":").append(booking.id).append(",\"train\":").append(booking.trainNumber).append(",\"source\":");
+        string(json, booking.source).append(",\"destination\":");
+        string(json, booking.destination).append(",\"division\":");
+        string(json, SeatInventory.DIVISIONS[booking.division]).append(",\"bookedAt\":\"")
+                .append(BOOKED_AT.format(Instant.ofEpochMilli(booking.timestamp)))
+                .append("\",\"cancelled\":").append(entry.cancelled);
+        if (booking.waitlistId != 0) {
+            json.append(",\"waitlistId\":").append(booking.waitlistId);
+        }
+        json.append(",\"passengers\":[");
+        for (int i = 0; i < booking.passengers.size(); i++) {
+            Passenger passenger = booking.passengers.get(i);
+            json.append(i > 0 ? ",{\"name\":" : "{\"name\":");
+            string(json, passenger.name).append(",\"age\":").append(passenger.age);
+            if (booking.seatNumbers != null) {
+                string(json.append(",\"seat\":"), SeatInventory.seatLabel(booking.division, booking.seatNumbers[i]));
+            }
+            json.append('}');
+        }
+        return json.append("]}");
+    }
+
+    static StringBuilder error(String message) {
+        return string(new StringBuilder("{\"error\":"), message).append('}');
+    }
+
+    static StringBuilder string(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"');
+    }
+
+    static void send(HttpExchange exchange, int status, CharSequence json) throws IOException {
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    // The id after the context path, e.g. 42 in /bookings/42, or null for the context path itself
+    static String pathId(HttpExchange exchange, String context) {
+        String path = exchange.getRequestURI().getPath();
+        if (path.length() <= context.length() + 1) {
+            return null;
+        }
+        return path.substring(context.length() + 1);
+    }
+
+    // Query string parameters followed by those of a form-encoded body; the request body is always drained
+    static Map<String, List<String>> params(HttpExchange exchange) throws IOException {
+        Map<String, List<String>> params = new HashMap<>();
+        decode(exchange.getRequestURI().getRawQuery(), params);
+        try (InputStream in = exchange.getRequestBody()) {
+            decode(new String(in.readAllBytes(), StandardCharsets.UTF_8), params);
+        }
+        return params;
+    }
+
+    // The fields of one form-encoded line
+    static Map<String, List<String>> form(String form) {
+        Map<String, List<String>> params = new HashMap<>();
+        decode(form, params);
+        return params;
+    }
+
+    private static void decode(String form, Map<String, List<String>> params) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            params.computeIfAbsent(name, key -> new ArrayList<>(1)).add(value);
+        }
+    }
+
+    static String param(Map<String, List<String>> params, String name, String missing) {
+        List<String> values = params.get(name);
+        return values == null ? missing : values.get(0).trim();
+    }
+
+    private static TimeWindow window(Map<String, List<String>> params, String fromName, String toName) {
+        String from = param(params, fromName, "");
+        String to = param(params, toName, "");
+        return from.isEmpty() && to.isEmpty() ? null : TimeWindow.parse(from, to);
+    }
+
+    private static int limit(Map<String, List<String>> params) {
+        int limit = parseInt("limit", param(params, "limit", String.valueOf(DEFAULT_LIMIT)));
+        if (limit < 0 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException("limit must be between 0 and " + MAX_LIMIT);
+        }
+        return limit;
+    }
+
+    static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+
+    static long parseLong(String name, String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(name + " must be a number");
+        }
+    }
+}
+
+// Consistent-hash ring of cluster nodes, named host:port. Each node sits at VIRTUAL_NODES points on a ring
+// of 64-bit hashes; a train belongs to the first node clockwise from the hash of its number, and its backups
+// are the next distinct nodes after that. Adding a node moves only the trains that now hash to it, about
+// 1/n of them, taken evenly from every other node.
+class HashRing {
+    static final int VIRTUAL_NODES = 128;
+
+    private final List<String> nodes;
+    private final long[] points; // sorted
+    private final int[] owners;  // node index of each point
+
+    public HashRing(List<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs at least one node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        long[][] placed = new long[nodes.size() * VIRTUAL_NODES][];
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                placed[node * VIRTUAL_NODES + i] = new long[] {hash(nodes.get(node) + "#" + i), node};
+            }
+        }
+        Arrays.sort(placed, Comparator.comparingLong((long[] point) -> point[0]));
+        points = new long[placed.length];
+        owners = new int[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = (int) placed[i][1];
+        }
+    }
+
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    public int indexOf(String node) {
+        return nodes.indexOf(node);
+    }
+
+    // The train's primary followed by its backups: count distinct nodes, or every node if there are fewer
+    public List<String> owners(int trainNumber, int count) {
+        int wanted = Math.min(count, nodes.size());
+        List<String> found = new ArrayList<>(wanted);
+        int at = Arrays.binarySearch(points, mix(trainNumber));
+        at = at < 0 ? -at - 1 : at;
+        for (int step = 0; found.size() < wanted && step < points.length; step++) {
+            String node = nodes.get(owners[(at + step) % points.length]);
+            if (!found.contains(node)) {
+                found.add(node);
+            }
+        }
+        return found;
+    }
+
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L; // FNV-1a, then mixed so nearby names spread over the ring
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    // SplitMix64 finalizer
+    private static long mix(long value) {
+        long z = value + 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
+
+// HTTP transport between cluster members and routers: form posts answered with the compact JSON of HttpApi,
+// plus just enough JSON reading to pick single fields out of those answers.
+class ClusterClient {
+    static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(1);
+    static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+    static class Response {
+        final String node;
+        final int status;
+        final String body;
+
+        Response(String node, int status, String body) {
+            this.node = node;
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+
+    // Throws IOException if the node cannot be reached
+    public Response post(String node, String path, String form) throws IOException {
+        return send(node, path, "application/x-www-form-urlencoded", HttpRequest.BodyPublishers.ofString(form));
+    }
+
+    public Response post(String node, String path, byte[] body) throws IOException {
+        return send(node, path, "application/octet-stream", HttpRequest.BodyPublishers.ofByteArray(body));
+    }
+
+    public Response get(String node, String path) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + node + path)).timeout(REQUEST_TIMEOUT).GET().build();
+        return exchange(node, request);
+    }
+
+    private Response send(String node, String path, String contentType, HttpRequest.BodyPublisher body) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + node + path))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", contentType)
+                .POST(body)
+                .build();
+        return exchange(node, request);
+    }
+
+    private Response exchange(String node, HttpRequest request) throws IOException {
+        try {
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+            return new Response(node, response.statusCode(), response.body());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted talking to " + node, e);
+        }
+    }
+
+    static StringBuilder field(StringBuilder form, String name, Object value) {
+        if (form.length() > 0) {
+            form.append('&');
+        }
+        return form.append(name).append('=').append(URLEncoder.encode(String.valueOf(value), StandardCharsets.UTF_8));
+    }
+
+    // Form fields of a booking request, as HttpApi.bookingRequest reads them
+    static StringBuilder bookingForm(StringBuilder form, int trainNumber, String source, String destination, BookingRequest request) {
+        field(form, "train", trainNumber);
+        field(form, "source", source);
+        field(form, "destination", destination);
+        field(form, "division", request.division);
+        for (Passenger passenger : request.passengers) {
+            field(form, "passenger", passenger.name + ":" + passenger.age);
+        }
+        return form;
+    }
+
+    // The string value of the first "name" field, or null
+    static String jsonString(String json, String name) {
+        int at = json.indexOf("\"" + name + "\":\"");
+        if (at < 0) {
+            return null;
+        }
+        StringBuilder value = new StringBuilder();
+        for (int i = at + name.length() + 4; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c == '\\') {
+                char escaped = json.charAt(++i);
+                if (escaped == 'u') {
+                    value.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    i += 4;
+                } else {
+                    value.append(escaped);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        return null;
+    }
+
+    // The first number after "name": (or after "name":[ for an array), or missing
+    static long jsonLong(String json, String name, long missing) {
+        int at = json.indexOf("\"" + name + "\":");
+        if (at < 0) {
+            return missing;
+        }
+        int start = at + name.length() + 3;
+        if (start < json.length() && json.charAt(start) == '[') {
+            start++;
+        }
+        int end = start;
+        while (end < json.length() && (Character.isDigit(json.charAt(end)) || json.charAt(end) == '-')) {
+            end++;
+        }
+        return end == start ? missing : Long.parseLong(json.substring(start, end));
+    }
+}
+
+// Outcome of a booking made through a ClusterRouter: the node holding each leg and its booking id there
+class ClusterBooking {
+    final BookingResult.Status status;
+    final String message;
+    final String[] nodes;
+    final long[] bookingIds;
+
+    ClusterBooking(BookingResult.Status status, String message, String[] nodes, long[] bookingIds) {
+        this.status = status;
+        this.message = message;
+        this.nodes = nodes;
+        this.bookingIds = bookingIds;
+    }
+
+    static ClusterBooking rejected(BookingResult.Status status, String message) {
+        return new ClusterBooking(status, message, new String[0], new long[0]);
+    }
+
+    boolean isConfirmed() {
+        return status == BookingResult.Status.CONFIRMED;
+    }
+}
+
+// A cluster node's record of its two-phase transactions, one line per step, forced before the step is answered:
+//   P <millis> <txn> <bookingId>   a leg booked here for the transaction
+//   C <millis> <txn>               committed
+//   A <millis> <txn>               aborted, its legs cancelled
+// Opening it reads back the transactions still undecided and those committed within RETAIN_MILLIS, then
+// rewrites the file with just those, so it only ever holds what a restart still needs.
+// A torn last line from a crash is ignored.
+class TransactionLog implements Closeable {
+    static final long RETAIN_MILLIS = 600_000;
+
+    // Legs of one transaction, and when it was last logged
+    static final class Entry {
+        final List<Long> bookingIds = new ArrayList<>();
+        long loggedAt;
+        boolean committed;
+    }
+
+    private final Map<String, Entry> undecided = new LinkedHashMap<>();
+    private final Map<String, Entry> committed = new LinkedHashMap<>();
+    private final FileChannel channel;
+
+    public TransactionLog(Path file) {
+        try {
+            if (Files.exists(file)) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    read(line);
+                }
+            }
+            long now = System.currentTimeMillis();
+            committed.values().removeIf(entry -> entry.loggedAt < now - RETAIN_MILLIS);
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Map<String, Entry> entries : Arrays.asList(undecided, committed)) {
+                    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                        for (long bookingId : entry.getValue().bookingIds) {
+                            out.write(line('P', entry.getValue().loggedAt, entry.getKey(), bookingId));
+                        }
+                        if (entry.getValue().committed) {
+                            out.write(line('C', entry.getValue().loggedAt, entry.getKey(), -1));
+                        }
+                    }
+                }
+            }
+            try (FileChannel written = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                written.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void read(String line) {
+        String[] fields = line.split(" ");
+        if (fields.length < 3 || fields[0].length() != 1) {
+            return;
+        }
+        long at;
+        try {
+            at = Long.parseLong(fields[1]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        String txn = fields[2];
+        switch (fields[0].charAt(0)) {
+            case 'P':
+                if (fields.length == 4) {
+                    try {
+                        long bookingId = Long.parseLong(fields[3]);
+                        Entry entry = undecided.computeIfAbsent(txn, key -> new Entry());
+                        entry.bookingIds.add(bookingId);
+                        entry.loggedAt = at;
+                    } catch (NumberFormatException e) {
+                        // torn
+                    }
+                }
+                break;
+            case 'C': {
+                Entry entry = undecided.remove(txn);
+                if (entry != null) {
+                    entry.committed = true;
+                    entry.loggedAt = at;
+                    committed.put(txn, entry);
+                }
+                break;
+            }
+            case 'A':
+                undecided.remove(txn);
+                committed.remove(txn);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Transactions with legs here and no decision yet, as found on opening
+    public Map<String, Entry> undecided() {
+        return undecided;
+    }
+
+    // Transactions committed here within RETAIN_MILLIS, as found on opening
+    public Map<String, Entry> committed() {
+        return committed;
+    }
+
+    public void prepared(String txn, long bookingId) {
+        append(line('P', System.currentTimeMillis(), txn, bookingId));
+    }
+
+    public void committed(String txn) {
+        append(line('C', System.currentTimeMillis(), txn, -1));
+    }
+
+    public void aborted(String txn) {
+        append(line('A', System.currentTimeMillis(), txn, -1));
+    }
+
+    private static String line(char kind, long at, String txn, long bookingId) {
+        return kind + " " + at + " " + txn + (bookingId < 0 ? "" : " " + bookingId) + "\n";
+    }
+
+    private synchronized void append(String line) {
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
+
+// One member of a cluster, started with --node key=value ...: a full RailwayManagementSystem with its own
+// data directory, serving the HttpApi plus the endpoints a ClusterRouter talks to. Every node loads the same
+// timetable, but a train is only sold by its primary on the HashRing, or by the next live owner once a router
+// finds the primary down. Each booking or cancellation is shipped to the train's other owners, and a booking is
+// only confirmed once at least one of them has journaled it, so whichever owner takes over has every seat sold.
+// A booking no other owner acknowledged is cancelled again and answered UNAVAILABLE: a train whose other owners
+// are all unreachable is not sold, as selling it alone is how a later failover would oversell it.
+// An owner that missed records is behind: its sender keeps what it missed and, at most every RESYNC_MILLIS,
+// posts all of it ahead of anything new, so the owner catches up in order and counts for acknowledgements again.
+//   POST /cluster/book       train, source, destination, division, passenger=name:age (repeated)
+//   POST /cluster/cancel     id
+//   POST /cluster/prepare    txn plus the /cluster/book fields: books the leg, pending the decision
+//   POST /cluster/commit     txn; committing it again answers the same, so a router may retry
+//   POST /cluster/abort      txn: cancels the legs the transaction booked here, even once committed, so a
+//                            router that could not commit every participant can take the others back
+//   POST /cluster/replicate  a batch of REPLICA records from another node
+//   POST /cluster/batch      one operation a line, each a form: op=book with the /cluster/book fields, or
+//                            op=cancel&id=; answered with a line of JSON for each, in the same order
+// A router sends most bookings and cancellations through /cluster/batch, so many users share one request,
+// one journal append and one replication round trip. A node started with capacity= takes no more than that
+// many bookings a second, standing in for a machine of that size when a whole cluster shares one computer.
+// Prepares and decisions go to a TransactionLog before they are answered, so a node that restarts still knows
+// its undecided legs and what it committed. A prepared leg with no decision after HOLD_MILLIS is aborted, so a
+// router that dies mid-transaction does not hold seats forever. A crash after a leg is booked but before its
+// prepare is logged leaves that leg booked. Replication batches like the journal does: one sender per backup
+// posts everything queued for it at once.
+class ClusterNode implements Closeable {
+    static final long HOLD_MILLIS = 30_000;
+    static final long RESYNC_MILLIS = 1_000;
+    static final int DEFAULT_REPLICAS = 2;
+
+    private final BookingService bookings;
+    private final TimetableService timetable;
+    private final String self;
+    private final HashRing ring;
+    private final int replicas;
+    private final ClusterClient client = new ClusterClient();
+    private final BookingPipeline<Replication> replicator;
+    // Per backup, the records it missed, in order; each backup's are only touched by its own sender
+    private final Map<String, List<byte[]>> missed = new ConcurrentHashMap<>();
+    private final Map<String, Long> resyncAt = new ConcurrentHashMap<>();
+    private final Map<String, Prepared> prepared = new ConcurrentHashMap<>();
+    private final Map<String, Prepared> committed = new ConcurrentHashMap<>();
+    private final TransactionLog transactions;
+    private final ScheduledExecutorService sweeper;
+    private final long nanosPerBooking; // 0 when the node's capacity is not limited
+    private final Object pacing = new Object();
+    private long nextBookingAt;
+
+    private static final class Replication {
+        final String backup;
+        final byte[] record;
+        final CompletableFuture<Boolean> acknowledged = new CompletableFuture<>();
+
+        Replication(String backup, byte[] record) {
+            this.backup = backup;
+            this.record = record;
+        }
+    }
+
+    // Legs booked here for a transaction: until its decision, or kept a while after committing it
+    private static final class Prepared {
+        final long deadline;
+        final List<Long> bookingIds = new ArrayList<>();
+
+        Prepared(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+
+    // The transaction log is kept in dataDirectory; capacity is bookings a second, 0 for no limit
+    public ClusterNode(RailwayManagementSystem system, HttpApi api, String self, HashRing ring, int replicas, Path dataDirectory,
+                       int capacity) {
+        this.nanosPerBooking = capacity <= 0 ? 0 : 1_000_000_000L / capacity;
+        this.bookings = system.bookingService();
+        this.timetable = system.timetableService();
+        this.self = self;
+        this.ring = ring;
+        this.replicas = replicas;
+        this.transactions = new TransactionLog(dataDirectory.resolve("transactions.log"));
+        // Undecided legs found on restart get a full hold again, for the router to commit or abort them
+        for (Map.Entry<String, TransactionLog.Entry> entry : transactions.undecided().entrySet()) {
+            Prepared legs = new Prepared(System.currentTimeMillis() + HOLD_MILLIS);
+            legs.bookingIds.addAll(entry.getValue().bookingIds);
+            prepared.put(entry.getKey(), legs);
+        }
+        for (Map.Entry<String, TransactionLog.Entry> entry : transactions.committed().entrySet()) {
+            Prepared legs = new Prepared(entry.getValue().loggedAt + TransactionLog.RETAIN_MILLIS);
+            legs.bookingIds.addAll(entry.getValue().bookingIds);
+            committed.put(entry.getKey(), legs);
+        }
+        // One partition per node, so each backup has a sender of its own
+        this.replicator = new BookingPipeline<>("replicate", ring.nodes().size(), new BookingPipeline.BatchHandler<Replication>() {
+            @Override
+            public void apply(List<Replication> batch) {
+                ship(batch);
+            }
+
+            @Override
+            public void failed(List<Replication> batch, RuntimeException cause) {
+                for (Replication replication : batch) {
+                    replication.acknowledged.complete(false);
+                }
+            }
+        });
+        api.context("/cluster/book", exchange -> handle(exchange, this::book));
+        api.context("/cluster/cancel", exchange -> handle(exchange, this::cancel));
+        api.context("/cluster/prepare", exchange -> handle(exchange, this::prepare));
+        api.context("/cluster/commit", exchange -> handle(exchange, this::commit));
+        api.context("/cluster/abort", exchange -> handle(exchange, this::abort));
+        api.context("/cluster/replicate", exchange -> handle(exchange, this::replicate));
+        api.context("/cluster/batch", exchange -> handle(exchange, this::batch));
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::abortExpired, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // The trains this node is primary for
+    public int ownedTrains() {
+        int owned = 0;
+        for (Train train : timetable.trains()) {
+            if (ring.owners(train.trainNumber(), 1).get(0).equals(self)) {
+                owned++;
+            }
+        }
+        return owned;
+    }
+
+    private interface Endpoint {
+        void serve(HttpExchange exchange) throws IOException;
+    }
+
+    private static void handle(HttpExchange exchange, Endpoint endpoint) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                HttpApi.send(exchange, 405, HttpApi.error("Use POST"));
+                return;
+            }
+            endpoint.serve(exchange);
+        } catch (IllegalArgumentException ex) {
+            HttpApi.send(exchange, 400, HttpApi.error(ex.getMessage()));
+        } catch (RuntimeException ex) {
+            HttpApi.send(exchange, 500, HttpApi.error(String.valueOf(ex.getMessage())));
+        }
+    }
+
+    private void book(HttpExchange exchange) throws IOException {
+        HttpApi.sendResult(exchange, bookLeg(HttpApi.params(exchange), null));
+    }
+
+    private void prepare(HttpExchange exchange) throws IOException {
+        Map<String, List<String>> params = HttpApi.params(exchange);
+        String txn = HttpApi.param(params, "txn", "");
+        if (txn.isEmpty()) {
+            throw new IllegalArgumentException("txn is required");
+        }
+        HttpApi.sendResult(exchange, bookLeg(params, txn));
+    }
+
+    // Books one leg on the named train and replicates it; a leg of a transaction is held until its decision
+    private BookingResult bookLeg(Map<String, List<String>> params, String txn) {
+        int trainNumber = HttpApi.parseInt("train", HttpApi.param(params, "train", ""));
+        Train train = timetable.findByNumber(trainNumber);
+        if (train == null) {
+            return BookingResult.rejected(BookingResult.Status.NO_TRAIN, "No train numbered " + trainNumber);
+        }
+        BookingRequest request = HttpApi.bookingRequest(params);
+        pace();
+        BookingResult result = bookings.bookOn(train, request);
+        if (result.isConfirmed()) {
+            Booking booking = bookings.historyEntry(result.bookingId).booking;
+            if (!replicate(BookingJournal.BOOK, booking)) {
+                withdraw(Collections.singletonList(booking));
+                return unreplicated(trainNumber);
+            }
+            if (txn != null) {
+                Prepared legs = prepared.computeIfAbsent(txn, key -> new Prepared(System.currentTimeMillis() + HOLD_MILLIS));
+                synchronized (legs) {
+                    transactions.prepared(txn, result.bookingId);
+                    legs.bookingIds.add(result.bookingId);
+                }
+            }
+        }
+        return result;
+    }
+
+    // Bookings are matched and validated line by line, then booked, cancelled and replicated all together
+    private void batch(HttpExchange exchange) throws IOException {
+        String[] lines;
+        try (InputStream in = exchange.getRequestBody()) {
+            lines = new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n");
+        }
+        CharSequence[] answers = new CharSequence[lines.length];
+        List<Integer> bookingLines = new ArrayList<>();
+        List<Train> trains = new ArrayList<>();
+        List<BookingRequest> requests = new ArrayList<>();
+        List<Integer> cancelLines = new ArrayList<>();
+        List<Long> cancelIds = new ArrayList<>();
+        for (int line = 0; line < lines.length; line++) {
+            try {
+                Map<String, List<String>> params = HttpApi.form(lines[line]);
+                String op = HttpApi.param(params, "op", "");
+                if (op.equals("book")) {
+                    int trainNumber = HttpApi.parseInt("train", HttpApi.param(params, "train", ""));
+                    Train train = timetable.findByNumber(trainNumber);
+                    if (train == null) {
+                        answers[line] = HttpApi.result(BookingResult.rejected(BookingResult.Status.NO_TRAIN, "No train numbered " + trainNumber));
+                        continue;
+                    }
+                    requests.add(HttpApi.bookingRequest(params));
+                    trains.add(train);
+                    bookingLines.add(line);
+                } else if (op.equals("cancel")) {
+                    cancelIds.add(HttpApi.parseLong("id", HttpApi.param(params, "id", "")));
+                    cancelLines.add(line);
+                } else {
+                    answers[line] = HttpApi.error("op must be book or cancel");
+                }
+            } catch (IllegalArgumentException ex) {
+                answers[line] = HttpApi.error(ex.getMessage());
+            }
+        }
+        for (int i = 0; i < requests.size(); i++) {
+            pace();
+        }
+        List<BookingResult> results = bookings.bookAllOn(trains, requests);
+        long[] ids = new long[cancelIds.size()];
+        List<Booking> cancelling = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = cancelIds.get(i);
+            HistoryEntry entry = bookings.historyEntry(ids[i]);
+            cancelling.add(entry == null ? null : entry.booking);
+        }
+        boolean[] cancelled = bookings.cancelAll(ids);
+
+        List<Byte> types = new ArrayList<>();
+        List<Booking> replicated = new ArrayList<>();
+        List<Integer> replicatedLines = new ArrayList<>(); // the line of each booking replicated
+        for (int i = 0; i < results.size(); i++) {
+            BookingResult result = results.get(i);
+            if (result.isConfirmed()) {
+                types.add(BookingJournal.BOOK);
+                replicated.add(bookings.historyEntry(result.bookingId).booking);
+                replicatedLines.add(bookingLines.get(i));
+            }
+            answers[bookingLines.get(i)] = HttpApi.result(result);
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (cancelled[i]) {
+                types.add(BookingJournal.CANCEL);
+                replicated.add(cancelling.get(i));
+                answers[cancelLines.get(i)] = new StringBuilder("{\"cancelled\":").append(ids[i]).append('}');
+            } else {
+                answers[cancelLines.get(i)] = HttpApi.error("No open booking " + ids[i]);
+            }
+        }
+        boolean[] durable = replicate(types, replicated);
+        List<Booking> withdrawn = new ArrayList<>();
+        for (int i = 0; i < replicatedLines.size(); i++) {
+            if (!durable[i]) {
+                Booking booking = replicated.get(i);
+                withdrawn.add(booking);
+                answers[replicatedLines.get(i)] = HttpApi.result(unreplicated(booking.trainNumber));
+            }
+        }
+        withdraw(withdrawn);
+        HttpApi.send(exchange, 200, String.join("\n", answers));
+    }
+
+    // Holds the caller until the node's capacity allows one more booking
+    private void pace() {
+        if (nanosPerBooking == 0) {
+            return;
+        }
+        long at;
+        synchronized (pacing) {
+            nextBookingAt = Math.max(nextBookingAt, System.nanoTime()) + nanosPerBooking;
+            at = nextBookingAt;
+        }
+        for (long wait = at - System.nanoTime(); wait > 0; wait = at - System.nanoTime()) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private void cancel(HttpExchange exchange) throws IOException {
+        long bookingId = HttpApi.parseLong("id", HttpApi.param(HttpApi.params(exchange), "id", ""));
+        if (cancelLeg(bookingId)) {
+            HttpApi.send(exchange, 200, new StringBuilder("{\"cancelled\":").append(bookingId).append('}'));
+        } else {
+            HttpApi.send(exchange, 404, HttpApi.error("No open booking " + bookingId));
+        }
+    }
+
+    private boolean cancelLeg(long bookingId) {
+        HistoryEntry entry = bookings.historyEntry(bookingId);
+        if (entry == null || !bookings.cancel(bookingId)) {
+            return false;
+        }
+        replicate(BookingJournal.CANCEL, entry.booking);
+        return true;
+    }
+
+    private void commit(HttpExchange exchange) throws IOException {
+        String txn = HttpApi.param(HttpApi.params(exchange), "txn", "");
+        Prepared legs = commit(txn);
+        if (legs == null) {
+            HttpApi.send(exchange, 404, HttpApi.error("No prepared transaction " + txn));
+        } else {
+            HttpApi.send(exchange, 200, new StringBuilder("{\"committed\":").append(legs.bookingIds.size()).append('}'));
+        }
+    }
+
+    // The committed legs, or null if the transaction was aborted or never prepared here
+    private synchronized Prepared commit(String txn) {
+        Prepared legs = prepared.remove(txn);
+        if (legs == null) {
+            return committed.get(txn);
+        }
+        synchronized (legs) {
+            transactions.committed(txn);
+            Prepared kept = new Prepared(System.currentTimeMillis() + TransactionLog.RETAIN_MILLIS);
+            kept.bookingIds.addAll(legs.bookingIds);
+            committed.put(txn, kept);
+            return kept;
+        }
+    }
+
+    private void abort(HttpExchange exchange) throws IOException {
+        String txn = HttpApi.param(HttpApi.params(exchange), "txn", "");
+        Prepared legs;
+        synchronized (this) {
+            legs = prepared.remove(txn);
+            if (legs == null) {
+                legs = committed.remove(txn);
+            }
+        }
+        HttpApi.send(exchange, 200, new StringBuilder("{\"aborted\":").append(legs == null ? 0 : abort(txn, legs)).append('}'));
+    }
+
+    private int abort(String txn, Prepared legs) {
+        synchronized (legs) {
+            for (long bookingId : legs.bookingIds) {
+                cancelLeg(bookingId);
+            }
+            transactions.aborted(txn);
+            return legs.bookingIds.size();
+        }
+    }
+
+    private void abortExpired() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Prepared> entry : prepared.entrySet()) {
+            if (entry.getValue().deadline < now && prepared.remove(entry.getKey(), entry.getValue())) {
+                abort(entry.getKey(), entry.getValue());
+            }
+        }
+        committed.values().removeIf(legs -> legs.deadline < now);
+    }
+
+    // Body: records, each as its length (int) and bytes
+    private void replicate(HttpExchange exchange) throws IOException {
+        ByteBuffer body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = ByteBuffer.wrap(in.readAllBytes());
+        }
+        List<byte[]> records = new ArrayList<>();
+        while (body.hasRemaining()) {
+            byte[] record = new byte[body.getInt()];
+            body.get(record);
+            records.add(record);
+        }
+        bookings.applyReplicas(records);
+        HttpApi.send(exchange, 200, new StringBuilder("{\"applied\":").append(records.size()).append('}'));
+    }
+
+    private boolean replicate(byte type, Booking booking) {
+        return replicate(Collections.singletonList(type), Collections.singletonList(booking))[0];
+    }
+
+    // Ships each record to its train's other owners and waits for their answers. A record is durable once any
+    // of them has journaled it, or at once if the train has no other owner.
+    private boolean[] replicate(List<Byte> types, List<Booking> booked) {
+        List<List<Replication>> sent = new ArrayList<>(booked.size());
+        for (int i = 0; i < booked.size(); i++) {
+            Booking booking = booked.get(i);
+            byte[] record = null;
+            List<Replication> copies = new ArrayList<>(replicas);
+            for (String owner : ring.owners(booking.trainNumber, replicas)) {
+                if (!owner.equals(self)) {
+                    if (record == null) {
+                        record = BookingService.replicaRecord(types.get(i), booking);
+                    }
+                    Replication replication = new Replication(owner, record);
+                    replicator.submit(ring.indexOf(owner), replication);
+                    copies.add(replication);
+                }
+            }
+            sent.add(copies);
+        }
+        boolean[] durable = new boolean[booked.size()];
+        for (int i = 0; i < durable.length; i++) {
+            durable[i] = sent.get(i).isEmpty();
+            for (Replication replication : sent.get(i)) {
+                durable[i] |= replication.acknowledged.join();
+            }
+        }
+        return durable;
+    }
+
+    // Cancels bookings no other owner has, so no owner can take the train over without them; the cancellations
+    // are shipped like any other, reaching owners that did get a booking once they are caught up
+    private void withdraw(List<Booking> withdrawn) {
+        if (withdrawn.isEmpty()) {
+            return;
+        }
+        long[] ids = new long[withdrawn.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = withdrawn.get(i).id;
+        }
+        boolean[] cancelled = bookings.cancelAll(ids);
+        List<Byte> types = new ArrayList<>();
+        List<Booking> replicated = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (cancelled[i]) {
+                types.add(BookingJournal.CANCEL);
+                replicated.add(withdrawn.get(i));
+            }
+        }
+        replicate(types, replicated);
+    }
+
+    private static BookingResult unreplicated(int trainNumber) {
+        return BookingResult.rejected(BookingResult.Status.UNAVAILABLE,
+                "No backup of train " + trainNumber + " could keep the booking. Please try again later.");
+    }
+
+    // Every item in a batch is for the same backup: partitions and nodes correspond one to one. A backup that is
+    // behind gets what it missed first, in the same post; until that gets through, the batch joins what it missed.
+    private void ship(List<Replication> batch) {
+        String backup = batch.get(0).backup;
+        List<byte[]> behind = missed.computeIfAbsent(backup, key -> new ArrayList<>());
+        long now = System.currentTimeMillis();
+        boolean acknowledged = false;
+        if (behind.isEmpty() || now >= resyncAt.getOrDefault(backup, 0L)) {
+            int size = 0;
+            for (byte[] record : behind) {
+                size += Integer.BYTES + record.length;
+            }
+            for (Replication replication : batch) {
+                size += Integer.BYTES + replication.record.length;
+            }
+            ByteBuffer body = ByteBuffer.allocate(size);
+            for (byte[] record : behind) {
+                body.putInt(record.length).put(record);
+            }
+            for (Replication replication : batch) {
+                body.putInt(replication.record.length).put(replication.record);
+            }
+            try {
+                acknowledged = client.post(backup, "/cluster/replicate", body.array()).status == 200;
+            } catch (IOException e) {
+                acknowledged = false;
+            }
+        }
+        if (acknowledged) {
+            behind.clear();
+        } else {
+            // records it may already have are sent again on the resync; replaying them sets the same seats
+            for (Replication replication : batch) {
+                behind.add(replication.record);
+            }
+            resyncAt.put(backup, now + RESYNC_MILLIS);
+        }
+        for (Replication replication : batch) {
+            replication.acknowledged.complete(acknowledged);
+        }
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+        replicator.close();
+        transactions.close();
+    }
+
+    // Runs a node from key=value arguments: port=, nodes=host:port,... (every member, this one included),
+    // host= (default 127.0.0.1), replicas= (owners per train, default 2), data= (default data-<port>),
+    // capacity= (bookings a second, default unlimited)
+    static void main(Map<String, String> options) {
+        int port = Integer.parseInt(options.getOrDefault("port", String.valueOf(HttpApi.DEFAULT_PORT)));
+        String self = options.getOrDefault("host", "127.0.0.1") + ":" + port;
+        List<String> nodes = Arrays.asList(options.getOrDefault("nodes", self).split(","));
+        if (!nodes.contains(self)) {
+            throw new IllegalArgumentException("nodes must include this node, " + self);
+        }
+        int replicas = Integer.parseInt(options.getOrDefault("replicas", String.valueOf(DEFAULT_REPLICAS)));
+        Path data = Paths.get(options.getOrDefault("data", "data-" + port));
+        RailwayManagementSystem system = new RailwayManagementSystem(data);
+        HttpApi api = new HttpApi(system.timetableService(), system.bookingService(), port);
+        int capacity = Integer.parseInt(options.getOrDefault("capacity", "0"));
+        ClusterNode node = new ClusterNode(system, api, self, new HashRing(nodes), replicas, data, capacity);
+        api.start();
+        System.out.println("Railway node " + self + " listening; primary for " + node.ownedTrains() + " of "
+                + system.timetableService().trainCount() + " trains");
+    }
+}
+
+// Client-side router for a cluster of ClusterNodes. It keeps its own copy of the cluster's timetable to match
+// requests to trains and plan journeys, then sends each booking straight to its train's primary on the
+// HashRing, falling over to the next owner when a node does not answer. A node found down stays down for
+// this router's lifetime: its backup may have sold seats meanwhile that it never saw.
+// Single bookings and cancellations queue on a BookingPipeline partition per node, whose sender posts everything
+// queued for that node as one /cluster/batch, so concurrent users share a round trip instead of each paying one.
+// Bookings over several trains run two-phase: every leg is prepared on its owner under one transaction id,
+// then all of them are committed, or, if any leg is refused, the prepared ones are aborted. A commit that does
+// not get through is retried for COMMIT_RETRY_MILLIS; if it still fails, or the participant had already given
+// the transaction up, every participant is told to abort, which takes back legs already committed. Aborts that
+// cannot be delivered are kept and sent again before the next journey.
+class ClusterRouter implements Closeable {
+    static final long COMMIT_RETRY_MILLIS = 5_000;
+    private static final long RETRY_PAUSE_MILLIS = 100;
+
+    private final TimetableService timetable;
+    private final HashRing ring;
+    private final int replicas;
+    private final ClusterClient client = new ClusterClient();
+    private final Set<String> down = ConcurrentHashMap.newKeySet();
+    private final String transactionPrefix = Long.toHexString(new SplittableRandom().nextLong()) + "-";
+    private final AtomicLong nextTransaction = new AtomicLong();
+    // node -> transactions it has yet to hear the abort of
+    private final Map<String, Set<String>> undeliveredAborts = new ConcurrentHashMap<>();
+    private final BookingPipeline<Call> calls;
+
+    // One line of a /cluster/batch for a node, answered with its line of the reply
+    private static final class Call {
+        final String node;
+        final String form;
+        final CompletableFuture<String> answer = new CompletableFuture<>();
+
+        Call(String node, String form) {
+            this.node = node;
+            this.form = form;
+        }
+    }
+
+    public ClusterRouter(List<String> nodes, int replicas, List<TrainSpec> trains) {
+        this.ring = new HashRing(nodes);
+        this.replicas = replicas;
+        // Read only; the router never edits, so it needs no journal
+        this.timetable = new TimetableService(trains, null);
+        // One partition per node, so each node has a sender of its own
+        this.calls = new BookingPipeline<>("route", nodes.size(), new BookingPipeline.BatchHandler<Call>() {
+            @Override
+            public void apply(List<Call> batch) {
+                post(batch);
+            }
+
+            @Override
+            public void failed(List<Call> batch, RuntimeException cause) {
+                for (Call call : batch) {
+                    call.answer.completeExceptionally(cause);
+                }
+            }
+        });
+    }
+
+    public TimetableService timetable() {
+        return timetable;
+    }
+
+    // The owner bookings for the train go to now, or null if every owner is down
+    public String ownerOf(int trainNumber) {
+        for (String node : ring.owners(trainNumber, replicas)) {
+            if (!down.contains(node)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    public ClusterBooking book(BookingRequest request) {
+        Train train = timetable.findExact(request.source, request.destination);
+        if (train == null) {
+            train = timetable.findServing(request.source, request.destination);
+        }
+        if (train == null) {
+            return ClusterBooking.rejected(BookingResult.Status.NO_TRAIN, "Invalid source or destination. Please select from available trains.");
+        }
+        StringBuilder form = ClusterClient.field(new StringBuilder(), "op", "book");
+        ClusterClient.Response response = call(train.trainNumber(),
+                ClusterClient.bookingForm(form, train.trainNumber(), request.source, request.destination, request));
+        if (response == null || !BookingResult.Status.CONFIRMED.name().equals(ClusterClient.jsonString(response.body, "status"))) {
+            return refused(response, train.trainNumber());
+        }
+        return new ClusterBooking(BookingResult.Status.CONFIRMED, ClusterClient.jsonString(response.body, "message"),
+                new String[] {response.node}, new long[] {ClusterClient.jsonLong(response.body, "bookingIds", -1)});
+    }
+
+    public ClusterBooking bookJourney(JourneyPlanner.Journey journey, BookingRequest request) {
+        List<Train> trains = new ArrayList<>(journey.legs.size());
+        String[] sources = new String[journey.legs.size()];
+        String[] destinations = new String[journey.legs.size()];
+        for (int i = 0; i < journey.legs.size(); i++) {
+            JourneyPlanner.Leg leg = journey.legs.get(i);
+            trains.add(leg.train);
+            sources[i] = leg.source;
+            destinations[i] = leg.destination;
+        }
+        return bookLegs(trains, sources, destinations, request);
+    }
+
+    // Books the same passengers on every leg, or on none of them, whichever nodes the legs live on
+    public ClusterBooking bookLegs(List<Train> trains, String[] sources, String[] destinations, BookingRequest request) {
+        deliverAborts();
+        String transaction = transactionPrefix + nextTransaction.incrementAndGet();
+        String[] nodes = new String[trains.size()];
+        long[] bookingIds = new long[trains.size()];
+        ClusterBooking refusal = null;
+        for (int i = 0; i < trains.size() && refusal == null; i++) {
+            int trainNumber = trains.get(i).trainNumber();
+            StringBuilder form = ClusterClient.bookingForm(new StringBuilder(), trainNumber, sources[i], destinations[i], request);
+            ClusterClient.Response vote = send(trainNumber, "/cluster/prepare", ClusterClient.field(form, "txn", transaction));
+            if (vote == null || vote.status != 201) {
+                refusal = refused(vote, trainNumber);
+            } else {
+                nodes[i] = vote.node;
+                bookingIds[i] = ClusterClient.jsonLong(vote.body, "bookingIds", -1);
+            }
+        }
+        Set<String> participants = new LinkedHashSet<>(Arrays.asList(nodes));
+        participants.remove(null);
+        if (refusal != null) {
+            abortAll(participants, transaction);
+            return refusal;
+        }
+        for (String node : participants) {
+            if (!commit(node, transaction)) {
+                abortAll(participants, transaction);
+                return ClusterBooking.rejected(BookingResult.Status.UNAVAILABLE, "Could not confirm every leg of the journey.");
+            }
+        }
+        return new ClusterBooking(BookingResult.Status.CONFIRMED, "Booking Successful!", nodes, bookingIds);
+    }
+
+    // Retries until the node answers; false if it refuses, having given the transaction up, or stays unreachable
+    private boolean commit(String node, String transaction) {
+        long deadline = System.currentTimeMillis() + COMMIT_RETRY_MILLIS;
+        while (true) {
+            try {
+                int status = client.post(node, "/cluster/commit", "txn=" + URLEncoder.encode(transaction, StandardCharsets.UTF_8)).status;
+                if (status != 500) {
+                    return status == 200;
+                }
+            } catch (IOException e) {
+                // it may be restarting; its prepared legs survive that
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                down.add(node);
+                return false;
+            }
+            try {
+                Thread.sleep(RETRY_PAUSE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    private void abortAll(Set<String> participants, String transaction) {
+        for (String node : participants) {
+            if (!abort(node, transaction)) {
+                undeliveredAborts.computeIfAbsent(node, key -> ConcurrentHashMap.newKeySet()).add(transaction);
+            }
+        }
+    }
+
+    private boolean abort(String node, String transaction) {
+        try {
+            return client.post(node, "/cluster/abort", "txn=" + URLEncoder.encode(transaction, StandardCharsets.UTF_8)).status == 200;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Sends again the aborts nodes did not get; a node still unreachable keeps them for next time
+    public void deliverAborts() {
+        for (Map.Entry<String, Set<String>> pending : undeliveredAborts.entrySet()) {
+            for (String transaction : pending.getValue()) {
+                if (abort(pending.getKey(), transaction)) {
+                    pending.getValue().remove(transaction);
+                }
+            }
+        }
+    }
+
+    // Cancels a booking on the node that holds it
+    public boolean cancel(String node, long bookingId) {
+        try {
+            return call(node, "op=cancel&id=" + bookingId).contains("\"cancelled\"");
+        } catch (IOException e) {
+            down.add(node);
+            return false;
+        }
+    }
+
+    // Queues the line for the train's first live owner and waits for its answer; null if no owner answers
+    private ClusterClient.Response call(int trainNumber, CharSequence form) {
+        for (String node : ring.owners(trainNumber, replicas)) {
+            if (down.contains(node)) {
+                continue;
+            }
+            try {
+                return new ClusterClient.Response(node, 200, call(node, form.toString()));
+            } catch (IOException e) {
+                down.add(node);
+            }
+        }
+        return null;
+    }
+
+    private String call(String node, String form) throws IOException {
+        Call call = new Call(node, form);
+        calls.submit(ring.indexOf(node), call);
+        try {
+            return call.answer.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    // Every call in a batch is for the same node: partitions and nodes correspond one to one
+    private void post(List<Call> batch) {
+        String node = batch.get(0).node;
+        StringBuilder body = new StringBuilder();
+        for (Call call : batch) {
+            body.append(body.length() > 0 ? "\n" : "").append(call.form);
+        }
+        try {
+            ClusterClient.Response response = client.post(node, "/cluster/batch", body.toString());
+            String[] answers = response.body.split("\n");
+            for (int i = 0; i < batch.size(); i++) {
+                // a node that failed the whole batch answers once, with the error for every line
+                batch.get(i).answer.complete(response.status == 200 && answers.length == batch.size() ? answers[i] : response.body);
+            }
+        } catch (IOException e) {
+            for (Call call : batch) {
+                call.answer.completeExceptionally(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        calls.close();
+    }
+
+    // Posts to the train's first live owner; null if none answers
+    private ClusterClient.Response send(int trainNumber, String path, CharSequence form) {
+        for (String node : ring.owners(trainNumber, replicas)) {
+            if (down.contains(node)) {
+                continue;
+            }
+            try {
+                return client.post(node, path, form.toString());
+            } catch (IOException e) {
+                down.add(node);
+            }
+        }
+        return null;
+    }
+
+    private static ClusterBooking refused(ClusterClient.Response response, int trainNumber) {
+        if (response == null) {
+            return ClusterBooking.rejected(BookingResult.Status.UNAVAILABLE, "No node holding train " + trainNumber + " is reachable.");
+        }
+        String status = ClusterClient.jsonString(response.body, "status");
+        String message = ClusterClient.jsonString(response.body, "message");
+        return ClusterBooking.rejected(status == null ? BookingResult.Status.INVALID : BookingResult.Status.valueOf(status),
+                message != null ? message : String.valueOf(ClusterClient.jsonString(response.body, "error")));
+    }
+}
+
+// Cluster scaling run, started with --cluster-storm key=value ...
+// For each node count in nodes= it starts that many ClusterNode JVMs on loopback, each with a fresh data
+// directory, and has users= concurrent users book through one ClusterRouter until operations= bookings have
+// been tried. Each user books a random stretch of a uniformly chosen train, or, for journeys= percent of its
+// bookings, two different trains at once through the two-phase path, and cancels whatever it got so the
+// trains never sell out. Afterwards the nodes' own totals are checked against the router's view: bookings
+// minus cancellations summed over every node must equal the router's confirmed legs minus cancelled ones.
+// The report lists one key: value per line; scaling.<n> is steady throughput relative to the first node count,
+// steady throughput counting only the bookings finished in the middle eight tenths of the run, leaving out
+// the time users take to start and the tail while the last of them finish.
+// Nodes sharing one machine share its processors, so unlimited nodes only show how much work the cluster adds
+// per booking: more JVMs on the same cores cannot book faster. capacity= gives every node that many bookings a
+// second instead, as if each had a machine of its own; throughput then grows with the nodes for as long as the
+// machine keeps up with them all. The seed timetable has few trains, so one node may own more of them than
+// another and be saturated first: ideal_scaling.<n> is the scaling the busiest node's share of trains allows,
+// relative to the first node count.
+class ClusterStorm {
+    private static final int PLATFORM_THREADS = 256;
+    private static final int MAX_PASSENGERS = 4;
+    private static final long START_TIMEOUT_MILLIS = 60_000;
+
+    private final Map<String, String> config = new LinkedHashMap<>();
+    private final int[] nodeCounts;
+    private final int users;
+    private final int operations;
+    private final int journeys;
+    private final int replicas;
+    private final int capacity;
+    private final long seed;
+
+    public ClusterStorm(Map<String, String> options) {
+        config.put("nodes", "1,2,4");
+        config.put("users", "64");
+        config.put("operations", "20000");
+        config.put("journeys", "10");
+        config.put("replicas", "2");
+        config.put("capacity", "0");
+        config.put("seed", "42");
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (option.getKey().equals("report")) {
+                continue;
+            }
+            if (!config.containsKey(option.getKey())) {
+                throw new IllegalArgumentException("Unknown option " + option.getKey() + "; expected one of " + config.keySet() + " or report");
+            }
+            config.put(option.getKey(), option.getValue());
+        }
+        nodeCounts = Arrays.stream(config.get("nodes").split(",")).mapToInt(count -> Integer.parseInt(count.trim())).toArray();
+        users = Integer.parseInt(config.get("users"));
+        operations = Integer.parseInt(config.get("operations"));
+        journeys = Integer.parseInt(config.get("journeys"));
+        replicas = Integer.parseInt(config.get("replicas"));
+        capacity = Integer.parseInt(config.get("capacity"));
+        seed = Long.parseLong(config.get("seed"));
+        if (nodeCounts.length == 0 || users <= 0 || operations < 0 || journeys < 0 || journeys > 100 || replicas <= 0 || capacity < 0) {
+            throw new IllegalArgumentException("nodes needs counts; users and replicas must be positive; journeys is a percentage;"
+                    + " capacity cannot be negative");
+        }
+    }
+
+    // What one run saw through the router
+    private static class Tally {
+        final LongAdder attempts = new LongAdder();
+        final LongAdder confirmedLegs = new LongAdder();
+        final LongAdder cancelledLegs = new LongAdder();
+        final LongAdder journeysCommitted = new LongAdder();
+        final LongAdder journeysRefused = new LongAdder();
+        final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicLongArray finishedAt; // nanoTime of each booking tried
+
+        Tally(int operations) {
+            finishedAt = new AtomicLongArray(operations);
+        }
+
+        // Bookings a second over the middle eight tenths of the run from began to began + elapsed
+        double steadyThroughput(long began, long elapsed) {
+            long from = began + elapsed / 10;
+            long to = began + elapsed - elapsed / 10;
+            int count = 0;
+            for (int i = 0; i < finished.get(); i++) {
+                long at = finishedAt.get(i);
+                if (at >= from && at < to) {
+                    count++;
+                }
+            }
+            return to > from ? count * 1e9 / (to - from) : 0;
+        }
+    }
+
+    public String run() throws InterruptedException {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, String> option : config.entrySet()) {
+            report.append("config.").append(option.getKey()).append(": ").append(option.getValue()).append('\n');
+        }
+        report.append("java.version: ").append(System.getProperty("java.version")).append('\n');
+        report.append("processors: ").append(Runtime.getRuntime().availableProcessors()).append('\n');
+        double baseline = 0;
+        double baselineShare = 0;
+        for (int count : nodeCounts) {
+            double[] run = runCluster(count, report);
+            double throughput = run[0];
+            if (baseline == 0) {
+                baseline = throughput;
+                baselineShare = run[1];
+            }
+            report.append("scaling.").append(count).append(": ")
+                    .append(String.format(Locale.ROOT, "%.2f", baseline == 0 ? 0 : throughput / baseline)).append('\n');
+            report.append("ideal_scaling.").append(count).append(": ")
+                    .append(String.format(Locale.ROOT, "%.2f", baselineShare / run[1])).append('\n');
+        }
+        return report.toString();
+    }
+
+    // Returns the throughput and the busiest node's share of the trains
+    private double[] runCluster(int count, StringBuilder report) throws InterruptedException {
+        Path directory;
+        try {
+            directory = Files.createTempDirectory("railway-cluster");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<String> nodes = new ArrayList<>(count);
+        for (int port : freePorts(count)) {
+            nodes.add("127.0.0.1:" + port);
+        }
+        List<Process> processes = new ArrayList<>(count);
+        ClusterRouter router = new ClusterRouter(nodes, replicas, RailwayManagementSystem.seedTrains());
+        try {
+            for (String node : nodes) {
+                processes.add(startNode(node, nodes, directory));
+            }
+            awaitNodes(router, nodes, processes);
+
+            Tally tally = new Tally(operations);
+            List<Train> trains = router.timetable().trains();
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = VirtualThreads.perTaskExecutor("cluster-user", PLATFORM_THREADS);
+            for (int user = 0; user < users; user++) {
+                int share = operations / users + (user < operations % users ? 1 : 0);
+                SplittableRandom random = new SplittableRandom(seed * 1_000_003 + user);
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                        for (int i = 0; i < share; i++) {
+                            step(router, trains, random, tally);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            long began = System.nanoTime();
+            start.countDown();
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            long elapsed = System.nanoTime() - began;
+            double throughput = elapsed == 0 ? 0 : tally.attempts.sum() * 1e9 / elapsed;
+            double steady = tally.steadyThroughput(began, elapsed);
+
+            String prefix = "nodes." + count + ".";
+            report.append(prefix).append("elapsed.ms: ").append(elapsed / 1_000_000).append('\n');
+            report.append(prefix).append("bookings: ").append(tally.attempts.sum()).append('\n');
+            report.append(prefix).append("throughput.bookings_per_s: ").append(Math.round(throughput)).append('\n');
+            report.append(prefix).append("steady.throughput.bookings_per_s: ").append(Math.round(steady)).append('\n');
+            for (double percentile : new double[] {50, 99}) {
+                report.append(prefix).append("book.latency.p").append((int) percentile).append(".us: ")
+                        .append(LatencyHistogram.percentile(tally.latency.counts(), percentile) / 1000).append('\n');
+            }
+            for (Map.Entry<String, LongAdder> outcome : new TreeMap<>(tally.outcomes).entrySet()) {
+                report.append(prefix).append("outcome.").append(outcome.getKey()).append(": ").append(outcome.getValue().sum()).append('\n');
+            }
+            report.append(prefix).append("journeys.committed: ").append(tally.journeysCommitted.sum()).append('\n');
+            report.append(prefix).append("journeys.refused: ").append(tally.journeysRefused.sum()).append('\n');
+            report.append(prefix).append("audit.net_bookings_mismatch: ")
+                    .append(netBookings(router, nodes) - (tally.confirmedLegs.sum() - tally.cancelledLegs.sum())).append('\n');
+            double busiestShare = busiestShare(router, trains);
+            report.append(prefix).append("busiest_node.trains_share: ")
+                    .append(String.format(Locale.ROOT, "%.2f", busiestShare)).append('\n');
+            return new double[] {steady, busiestShare};
+        } finally {
+            router.close();
+            for (Process process : processes) {
+                process.destroy();
+            }
+            for (Process process : processes) {
+                process.waitFor();
+            }
+            deleteRecursively(directory);
+        }
+    }
+
+    private void step(ClusterRouter router, List<Train> trains, SplittableRandom random, Tally tally) {
+        int seats = 1 + random.nextInt(MAX_PASSENGERS);
+        List<Passenger> passengers = new ArrayList<>(seats);
+        for (int i = 0; i < seats; i++) {
+            passengers.add(new Passenger("P" + random.nextInt(100_000), 5 + random.nextInt(80)));
+        }
+        String division = SeatInventory.DIVISIONS[random.nextInt(SeatInventory.DIVISIONS.length)];
+        boolean journey = random.nextInt(100) < journeys && trains.size() > 1;
+        int legs = journey ? 2 : 1;
+        List<Train> picked = new ArrayList<>(legs);
+        String[] sources = new String[legs];
+        String[] destinations = new String[legs];
+        while (picked.size() < legs) {
+            Train train = trains.get(random.nextInt(trains.size()));
+            if (picked.contains(train)) {
+                continue;
+            }
+            int from = random.nextInt(train.stopCount() - 1);
+            sources[picked.size()] = train.stop(from);
+            destinations[picked.size()] = train.stop(from + 1 + random.nextInt(train.stopCount() - 1 - from));
+            picked.add(train);
+        }
+        BookingRequest request = new BookingRequest(sources[0], destinations[0], division, seats, passengers);
+        long started = System.nanoTime();
+        ClusterBooking booking = journey ? router.bookLegs(picked, sources, destinations, request) : router.book(request);
+        long finished = System.nanoTime();
+        tally.latency.record(finished - started);
+        tally.finishedAt.set(tally.finished.getAndIncrement(), finished);
+        tally.attempts.increment();
+        tally.outcomes.computeIfAbsent(booking.status.toString().toLowerCase(Locale.ROOT), key -> new LongAdder()).increment();
+        if (journey) {
+            (booking.isConfirmed() ? tally.journeysCommitted : tally.journeysRefused).increment();
+        }
+        if (booking.isConfirmed()) {
+            tally.confirmedLegs.add(booking.bookingIds.length);
+            for (int i = 0; i < booking.bookingIds.length; i++) {
+                if (router.cancel(booking.nodes[i], booking.bookingIds[i])) {
+                    tally.cancelledLegs.increment();
+                }
+            }
+        }
+    }
+
+    // The largest fraction of the trains any one node is primary for
+    private static double busiestShare(ClusterRouter router, List<Train> trains) {
+        Map<String, Integer> owned = new HashMap<>();
+        int busiest = 0;
+        for (Train train : trains) {
+            busiest = Math.max(busiest, owned.merge(router.ownerOf(train.trainNumber()), 1, Integer::sum));
+        }
+        return trains.isEmpty() ? 1 : (double) busiest / trains.size();
+    }
+
+    // Bookings minus cancellations over every node, from their /stats
+    private static long netBookings(ClusterRouter router, List<String> nodes) {
+        ClusterClient client = new ClusterClient();
+        long net = 0;
+        for (String node : nodes) {
+            try {
+                String stats = client.get(node, "/stats").body;
+                net += ClusterClient.jsonLong(stats, "bookings", 0) - ClusterClient.jsonLong(stats, "cancellations", 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return net;
+    }
+
+    private Process startNode(String node, List<String> nodes, Path directory) {
+        String port = node.substring(node.lastIndexOf(':') + 1);
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(RailwayManagementSystem.class.getName());
+        command.add("--node");
+        command.add("port=" + port);
+        command.add("nodes=" + String.join(",", nodes));
+        command.add("replicas=" + replicas);
+        command.add("capacity=" + capacity);
+        command.add("data=" + directory.resolve("node-" + port));
+        try {
+            return new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(directory.resolve("node-" + port + ".log").toFile())
+                    .start();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void awaitNodes(ClusterRouter router, List<String> nodes, List<Process> processes) throws InterruptedException {
+        ClusterClient client = new ClusterClient();
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        for (int i = 0; i < nodes.size(); i++) {
+            while (true) {
+                try {
+                    if (client.get(nodes.get(i), "/stats").status == 200) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    // not listening yet
+                }
+                if (!processes.get(i).isAlive() || System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Node " + nodes.get(i) + " did not start");
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static int[] freePorts(int count) {
+        List<ServerSocket> sockets = new ArrayList<>(count);
+        try {
+            int[] ports = new int[count];
+            for (int i = 0; i < count; i++) {
+                ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                sockets.add(socket);
+                ports[i] = socket.getLocalPort();
+            }
+            return ports;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (ServerSocket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // the port is only probed
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Runs the scaling run from key=value arguments and prints the report, also writing it to report=<file> if given
+    static void main(Map<String, String> options) throws InterruptedException {
+        String report = new ClusterStorm(options).run();
+        System.out.print(report);
+        if (options.containsKey("report")) {
+            try {
+                Files.write(Paths.get(options.get("report")), report.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
+
+// Measures time to interactive: how long a fresh JVM takes to put the main menu up ("window") and to have the
+// data directory restored behind it ("interactive"), timed from starting the process. Each start is a child
+// JVM running --startup-probe on the same classpath, and every setup is measured on a first start (an empty
+// data directory, so the seed timetable is loaded) and on a restart (the snapshot left by an earlier start):
+// csv parses trains.csv, image uses the bundled timetable image, and cds adds the class-data archive given as
+// cds=<file>, built with -Pfast-start. The report lists the median of runs= starts as one key: value per line.
+class StartupBenchmark {
+    private static final long PROBE_TIMEOUT_SECONDS = 120;
+
+    private final Map<String, String> config = new LinkedHashMap<>();
+    private final int runs;
+    private final String cds;
+
+    public StartupBenchmark(Map<String, String> options) {
+        config.put("runs", "5");
+        config.put("cds", "");
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (option.getKey().equals("report")) {
+                continue;
+            }
+            if (!config.containsKey(option.getKey())) {
+                throw new IllegalArgumentException("Unknown option " + option.getKey() + "; expected one of " + config.keySet() + " or report");
+            }
+            config.put(option.getKey(), option.getValue());
+        }
+        runs = Integer.parseInt(config.get("runs"));
+        cds = config.get("cds");
+        if (runs <= 0) {
+            throw new IllegalArgumentException("runs must be positive");
+        }
+        if (!cds.isEmpty() && !Files.isRegularFile(Paths.get(cds))) {
+            throw new IllegalArgumentException("No class-data archive at " + cds);
+        }
+    }
+
+    public String run() throws InterruptedException {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, String> option : config.entrySet()) {
+            report.append("config.").append(option.getKey()).append(": ").append(option.getValue()).append('\n');
+        }
+        report.append("java.version: ").append(System.getProperty("java.version")).append('\n');
+        report.append("processors: ").append(Runtime.getRuntime().availableProcessors()).append('\n');
+        boolean image = RailwayManagementSystem.class.getClassLoader().getResource(TimetableImage.RESOURCE) != null;
+        report.append("timetable_image.bundled: ").append(image).append('\n');
+
+        Map<String, List<String>> setups = new LinkedHashMap<>();
+        setups.put("csv", Collections.singletonList("-Drailway.timetable.image=false"));
+        if (image) {
+            setups.put("image", Collections.emptyList());
+        }
+        if (!cds.isEmpty()) {
+            // -Xshare:on makes a start fail rather than quietly run without an archive that does not match
+            setups.put("cds", Arrays.asList("-XX:SharedArchiveFile=" + cds, "-Xshare:on"));
+        }
+        for (Map.Entry<String, List<String>> setup : setups.entrySet()) {
+            measure(setup.getKey() + ".first.", setup.getValue(), true, report);
+            measure(setup.getKey() + ".restart.", setup.getValue(), false, report);
+        }
+        return report.toString();
+    }
+
+    private void measure(String prefix, List<String> jvmOptions, boolean firstStart, StringBuilder report) throws InterruptedException {
+        long[] window = new long[runs];
+        long[] interactive = new long[runs];
+        Path directory = tempDirectory();
+        try {
+            if (!firstStart) {
+                start(jvmOptions, directory.resolve("data"));
+            }
+            for (int run = 0; run < runs; run++) {
+                Path data = directory.resolve(firstStart ? "data-" + run : "data");
+                long[] times = start(jvmOptions, data);
+                window[run] = times[0];
+                interactive[run] = times[1];
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+        report.append(prefix).append("window.ms: ").append(median(window) / 1_000_000).append('\n');
+        report.append(prefix).append("interactive.ms: ").append(median(interactive) / 1_000_000).append('\n');
+    }
+
+    // Starts one probe and returns the nanoseconds until it printed window and interactive
+    private static long[] start(List<String> jvmOptions, Path data) throws InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (GraphicsEnvironment.isHeadless()) {
+            command.add("-Djava.awt.headless=true");
+        }
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(RailwayManagementSystem.class.getName());
+        command.add("--startup-probe");
+        command.add("data=" + data);
+        long[] times = new long[2];
+        StringBuilder output = new StringBuilder();
+        long started = System.nanoTime();
+        Process process;
+        try {
+            process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    if (line.equals("window")) {
+                        times[0] = System.nanoTime() - started;
+                    } else if (line.equals("interactive")) {
+                        times[1] = System.nanoTime() - started;
+                    } else {
+                        output.append(line).append('\n');
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!process.waitFor(PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+        }
+        if (times[0] == 0 || times[1] == 0) {
+            throw new IllegalStateException("Startup probe failed: " + String.join(" ", command) + "\n" + output);
+        }
+        return times;
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static Path tempDirectory() {
+        try {
+            return Files.createTempDirectory("railway-startup");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // One measured start: puts the main menu up and prints window, restores data=<dir>, prints interactive
+    // and exits. Headless, the menu is laid out and painted into an image instead of a window. It is also
+    // the training run the class-data archive is dumped from.
+    static void probe(Map<String, String> options) throws InterruptedException {
+        Path data = Paths.get(options.getOrDefault("data", "data"));
+        MainWindow[] window = new MainWindow[1];
+        onEventThread(() -> {
+            if (GraphicsEnvironment.isHeadless()) {
+                paintOffscreen(new MainMenuPanel(screen -> { }));
+            } else {
+                window[0] = new MainWindow();
+                window[0].showScreen(MainWindow.MAIN);
+                JRootPane root = window[0].getRootPane();
+                root.paintImmediately(0, 0, root.getWidth(), root.getHeight());
+            }
+        });
+        System.out.println("window");
+        RailwayManagementSystem system = new RailwayManagementSystem(data);
+        if (window[0] != null) {
+            onEventThread(() -> window[0].ready(system));
+        }
+        System.out.println("interactive");
+        system.close();
+    }
+
+    private static void onEventThread(Runnable action) throws InterruptedException {
+        try {
+            SwingUtilities.invokeAndWait(action);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static void paintOffscreen(JComponent component) {
+        BufferedImage frame = new BufferedImage(1280, 800, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = frame.createGraphics();
+        try {
+            SwingUtilities.paintComponent(g, component, new JPanel(), 0, 0, frame.getWidth(), frame.getHeight());
+        } finally {
+            g.dispose();
+        }
+    }
+
+    // Runs the benchmark from key=value arguments and prints the report, also writing it to report=<file> if given
+    static void main(Map<String, String> options) throws InterruptedException {
+        String report = new StartupBenchmark(options).run();
+        System.out.print(report);
+        if (options.containsKey("report")) {
+            try {
+                Files.write(Paths.get(options.get("report")), report.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
+
+public class RailwayManagementSystem {
+    private static final boolean USE_TIMETABLE_IMAGE = Boolean.parseBoolean(System.getProperty("railway.timetable.image", "true"));
+
+    private PersistenceManager persistence;
+    private ScheduledExecutorService metricsDump;
+    private TimetableService timetableService;
+    private BookingService bookingService;
+    private MainWindow mainWindow;
+
+    public RailwayManagementSystem() {
+        this(Paths.get("data"));
+    }
+
+    // Restores the timetable, seat counters and bookings kept under dataDirectory
+    public RailwayManagementSystem(Path dataDirectory) {
+        this(dataDirectory, StartupProgress.NONE);
+    }
+
+    public RailwayManagementSystem(Path dataDirectory, StartupProgress progress) {
+        persistence = new PersistenceManager(dataDirectory, RailwayManagementSystem::seedTrains, progress);
+        Metrics.register();
+        metricsDump = Metrics.startDump(dataDirectory.resolve("metrics.log"));
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "persistence-shutdown"));
+        timetableService = persistence.timetable();
+        bookingService = persistence.bookings();
+    }
+
+    // Stops the metrics dump and writes a final snapshot of the data directory
+    public void close() {
+        metricsDump.shutdownNow();
+        persistence.close();
+    }
+
+    // Initial timetable from the bundled trains.csv, used when the data directory has no snapshot yet.
+    // Comes from the prebuilt timetable image when one matches the CSV, unless -Drailway.timetable.image=false.
+    static List<TrainSpec> seedTrains() {
+        byte[] csv = seedCsv();
+        if (USE_TIMETABLE_IMAGE) {
+            List<TrainSpec> trains = TimetableImage.load(RailwayManagementSystem.class.getClassLoader(), csv);
+            if (trains != null) {
+                return trains;
+            }
+        }
+        return parseSeed(csv);
+    }
+
+    static byte[] seedCsv() {
+        try (InputStream in = RailwayManagementSystem.class.getClassLoader().getResourceAsStream("trains.csv")) {
+            if (in == null) {
+                throw new IllegalStateException("trains.csv not found on the classpath");
+            }
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static List<TrainSpec> parseSeed(byte[] csv) {
+        ImportReport report = new ImportReport();
+        List<TrainSpec> trains;
+        try (ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(csv))) {
+            trains = TimetableCsv.readCsv(channel, "trains.csv", report);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (report.badRows() > 0) {
+            throw new IllegalStateException("Bad seed timetable: " + report);
+        }
+        return trains;
+    }
+
+    PersistenceManager persistence() {
+        return persistence;
+    }
+
+    public TimetableService timetableService() {
+        return timetableService;
+    }
+
+    public BookingService bookingService() {
+        return bookingService;
+    }
+
+    public void showMainFrame() {
+        showScreen(MainWindow.MAIN);
+    }
+
+    // Puts the main window up straight away and restores dataDirectory behind it on a SwingWorker, so the first
+    // frame does not wait for the snapshot and journal; the menu is enabled once the restore finishes.
+    // Called on the event dispatch thread.
+    static void launch(Path dataDirectory) {
+        MainWindow window = new MainWindow();
+        window.showScreen(MainWindow.MAIN);
+        new SwingWorker<RailwayManagementSystem, String>() {
+            @Override
+            protected RailwayManagementSystem doInBackground() {
+                return new RailwayManagementSystem(dataDirectory, (step, percent) -> {
+                    setProgress(percent);
+                    publish(step);
+                });
+            }
+
+            @Override
+            protected void process(List<String> steps) {
+                window.progress(steps.get(steps.size() - 1), getProgress());
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    RailwayManagementSystem system = get();
+                    system.mainWindow = window;
+                    window.ready(system);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    String message = "Could not open " + dataDirectory + ": " + e.getCause().getMessage();
+                    window.failed(message);
+                    JOptionPane.showMessageDialog(null, message);
+                }
+            }
+        }.execute();
+    }
+
+    // Brings the named MainWindow screen forward, opening the window on first use
+    public void showScreen(String name) {
+        if (mainWindow == null) {
+            mainWindow = new MainWindow(this);
+        }
+        mainWindow.showScreen(name);
+    }
+
+    // --server [port] runs the HTTP API without opening a window; --simulate key=value ... runs a BookingStorm;
+    // --node key=value ... runs a ClusterNode; --cluster-storm key=value ... runs a ClusterStorm;
+    // --build-image key=value ... writes a TimetableImage; --startup-bench key=value ... runs a StartupBenchmark,
+    // whose child JVMs run --startup-probe.
+    // Built with -Pfast-start, the jar bundles a timetable image and target/railway.jsa holds a class-data
+    // archive of a startup: start with java -XX:SharedArchiveFile=app/target/railway.jsa -jar <the same jar>.
+    public static void main(String[] args) {
+        if (args.length > 0 && (args[0].equals("--simulate") || args[0].equals("--cluster-storm")
+                || args[0].equals("--startup-bench") || args[0].equals("--startup-probe"))) {
+            try {
+                if (args[0].equals("--simulate")) {
+                    BookingStorm.main(options(args));
+                } else if (args[0].equals("--cluster-storm")) {
+                    ClusterStorm.main(options(args));
+                } else if (args[0].equals("--startup-bench")) {
+                    StartupBenchmark.main(options(args));
+                } else {
+                    StartupBenchmark.probe(options(args));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.exit(0);
+        }
+        if (args.length > 0 && args[0].equals("--build-image")) {
+            TimetableImage.main(options(args));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--node")) {
+            ClusterNode.main(options(args));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--server")) {
+            RailwayManagementSystem system = new RailwayManagementSystem();
+            HttpApi api = new HttpApi(system.timetableService(), system.bookingService(),
+                    args.length > 1 ? Integer.parseInt(args[1]) : HttpApi.DEFAULT_PORT);
+            api.start();
+            System.out.println("Railway API listening on port " + api.port());
+            return;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                launch(Paths.get("data"));
+            }
+        });
+    }
+
+    // The key=value arguments after the mode flag
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + args[i]);
+            }
+            options.put(args[i].substring(0, equals), args[i].substring(equals + 1));
+        }
+        return options;
+    }
+}
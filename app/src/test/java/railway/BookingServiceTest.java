@@ -0,0 +1,109 @@
+package railway;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Cancelling a booking sold on a train that has since been deleted and inserted again, or replaced with
+// the rest of the timetable, must leave the seats of the train now carrying its number alone.
+class BookingServiceTest {
+    private static final TrainSpec TRAIN = new TrainSpec(301, "Shuttle", "Alpha", "Delta", "06:00", "08:00", 12, 12);
+    private static final int DIVISION = 0;
+
+    @TempDir
+    Path dataDirectory;
+
+    private PersistenceManager persistence;
+
+    @BeforeEach
+    void open() {
+        persistence = new PersistenceManager(dataDirectory, () -> Collections.singletonList(TRAIN));
+    }
+
+    @AfterEach
+    void close() {
+        persistence.close();
+    }
+
+    @Test
+    void cancellingBeforeADeleteLeavesTheReinsertedTrainSold() {
+        List<Long> old = sellOut();
+        persistence.timetable().deleteTrain(TRAIN.trainNumber);
+        persistence.timetable().insertTrain(TRAIN);
+        List<Long> current = sellOut();
+
+        cancelAll(old);
+        assertSoldOut();
+
+        assertTrue(persistence.bookings().cancel(current.get(0)));
+        assertEquals(1, available());
+    }
+
+    @Test
+    void reinsertedTrainOutlivesARestart() {
+        List<Long> old = sellOut();
+        persistence.timetable().deleteTrain(TRAIN.trainNumber);
+        persistence.timetable().insertTrain(TRAIN);
+        sellOut();
+        persistence.close();
+        persistence = new PersistenceManager(dataDirectory, () -> Collections.singletonList(TRAIN));
+
+        cancelAll(old);
+        assertSoldOut();
+    }
+
+    @Test
+    void cancellingBeforeAReplacementLeavesTheNewTimetableSold() {
+        List<Long> old = sellOut();
+        persistence.replaceTimetable(Collections.singletonList(TRAIN));
+        sellOut();
+
+        cancelAll(old);
+        assertSoldOut();
+    }
+
+    private List<Long> sellOut() {
+        List<Long> ids = new ArrayList<>();
+        int capacity = persistence.timetable().inventory().capacity(train(), DIVISION);
+        for (int i = 0; i < capacity; i++) {
+            BookingResult result = book();
+            assertTrue(result.isConfirmed(), result.message);
+            ids.add(result.bookingId);
+        }
+        assertSoldOut();
+        return ids;
+    }
+
+    private void cancelAll(List<Long> ids) {
+        for (long id : ids) {
+            assertTrue(persistence.bookings().cancel(id));
+        }
+    }
+
+    private void assertSoldOut() {
+        assertEquals(0, available());
+        assertEquals(BookingResult.Status.INSUFFICIENT_SEATS, book().status);
+    }
+
+    private BookingResult book() {
+        return persistence.bookings().book(new BookingRequest(TRAIN.source, TRAIN.destination,
+                SeatInventory.DIVISIONS[DIVISION], 1, Collections.singletonList(new Passenger("Passenger", 30))));
+    }
+
+    private int available() {
+        return persistence.timetable().inventory().available(train(), DIVISION);
+    }
+
+    private Train train() {
+        return persistence.timetable().findByNumber(TRAIN.trainNumber);
+    }
+}
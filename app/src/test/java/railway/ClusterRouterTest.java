@@ -0,0 +1,223 @@
+package railway;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Two-phase journeys: a journey is booked on every participant or on none of them, even when a commit
+// does not get through or a participant restarts between prepare and decision. A booking is only confirmed
+// once a backup has it, and a backup that missed records gets them before anything new.
+class ClusterRouterTest {
+    private static final int SEATS = 2;
+
+    @TempDir
+    Path dataDirectory;
+
+    private final List<Runnable> closers = new ArrayList<>();
+
+    @AfterEach
+    void close() {
+        Collections.reverse(closers);
+        for (Runnable closer : closers) {
+            closer.run();
+        }
+    }
+
+    @Test
+    void aRefusedCommitTakesBackTheLegsAlreadyCommitted() throws IOException {
+        RailwayManagementSystem system = new RailwayManagementSystem(dataDirectory);
+        HttpApi api = new HttpApi(system.timetableService(), system.bookingService(), 0);
+        HttpServer refusing = refusingParticipant();
+        List<String> nodes = Arrays.asList(name(api.port()), name(refusing.getAddress().getPort()));
+        HashRing ring = new HashRing(nodes);
+        start(system, api, ring, nodes.get(0));
+
+        Train committed = primaryFor(system, ring, nodes.get(0));
+        Train refused = primaryFor(system, ring, nodes.get(1));
+        int available = system.timetableService().inventory().available(committed);
+        ClusterRouter router = new ClusterRouter(nodes, 1, RailwayManagementSystem.seedTrains());
+        closers.add(router::close);
+        ClusterBooking booking = router.bookLegs(Arrays.asList(committed, refused),
+                new String[] {committed.source(), refused.source()},
+                new String[] {committed.destination(), refused.destination()}, request(committed));
+
+        assertEquals(BookingResult.Status.UNAVAILABLE, booking.status);
+        assertEquals(available, system.timetableService().inventory().available(committed));
+    }
+
+    @Test
+    void preparedLegsOutliveARestart() throws IOException {
+        Node node = startNode();
+        Train train = node.system.timetableService().trains().get(0);
+        int available = node.system.timetableService().inventory().available(train);
+        assertEquals(201, prepare(node, train, "kept").status);
+        assertEquals(201, prepare(node, train, "dropped").status);
+        node = restart(node);
+
+        ClusterClient client = new ClusterClient();
+        assertEquals(200, client.post(node.name, "/cluster/commit", "txn=kept").status);
+        assertEquals(200, client.post(node.name, "/cluster/commit", "txn=kept").status);
+        String aborted = client.post(node.name, "/cluster/abort", "txn=dropped").body;
+        assertEquals(1, ClusterClient.jsonLong(aborted, "aborted", -1));
+        assertEquals(available - SEATS, node.system.timetableService().inventory().available(train));
+
+        // a router that could not commit every participant takes a committed transaction back
+        node = restart(node);
+        assertEquals(1, ClusterClient.jsonLong(client.post(node.name, "/cluster/abort", "txn=kept").body, "aborted", -1));
+        assertEquals(404, client.post(node.name, "/cluster/commit", "txn=kept").status);
+        assertEquals(available, node.system.timetableService().inventory().available(train));
+    }
+
+    @Test
+    void aBookingNoBackupKeepsIsTakenBackUntilTheBackupCatchesUp() throws Exception {
+        RailwayManagementSystem system = new RailwayManagementSystem(dataDirectory);
+        HttpApi api = new HttpApi(system.timetableService(), system.bookingService(), 0);
+        AtomicInteger answer = new AtomicInteger(500);
+        List<Integer> received = Collections.synchronizedList(new ArrayList<>()); // records in each post answered 200
+        HttpServer backup = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        backup.createContext("/cluster/replicate", exchange -> {
+            ByteBuffer body = ByteBuffer.wrap(exchange.getRequestBody().readAllBytes());
+            int records = 0;
+            while (body.hasRemaining()) {
+                int length = body.getInt();
+                body.position(body.position() + length);
+                records++;
+            }
+            if (answer.get() == 200) {
+                received.add(records);
+            }
+            answer(exchange, answer.get(), "{\"applied\":" + records + "}");
+        });
+        backup.start();
+        closers.add(() -> backup.stop(0));
+        List<String> nodes = Arrays.asList(name(api.port()), name(backup.getAddress().getPort()));
+        String self = nodes.get(0);
+        ClusterNode node = new ClusterNode(system, api, self, new HashRing(nodes), 2, dataDirectory, 0);
+        api.start();
+        closers.add(() -> {
+            api.stop();
+            node.close();
+            system.close();
+        });
+
+        Train train = system.timetableService().trains().get(0);
+        int available = system.timetableService().inventory().available(train);
+        ClusterClient client = new ClusterClient();
+        assertEquals(503, book(client, self, train).status);
+        assertEquals(available, system.timetableService().inventory().available(train));
+
+        answer.set(200);
+        Thread.sleep(ClusterNode.RESYNC_MILLIS + 100);
+        assertEquals(201, book(client, self, train).status);
+        assertEquals(available - SEATS, system.timetableService().inventory().available(train));
+        // the refused booking and its cancellation arrive ahead of the new booking
+        assertEquals(Collections.singletonList(3), received);
+    }
+
+    private static final class Node {
+        final RailwayManagementSystem system;
+        final String name;
+        final Runnable stop;
+
+        Node(RailwayManagementSystem system, String name, Runnable stop) {
+            this.system = system;
+            this.name = name;
+            this.stop = stop;
+        }
+    }
+
+    private Node startNode() {
+        RailwayManagementSystem system = new RailwayManagementSystem(dataDirectory);
+        HttpApi api = new HttpApi(system.timetableService(), system.bookingService(), 0);
+        String name = name(api.port());
+        return new Node(system, name, start(system, api, new HashRing(Collections.singletonList(name)), name));
+    }
+
+    private Node restart(Node node) {
+        node.stop.run();
+        closers.remove(node.stop);
+        return startNode();
+    }
+
+    private Runnable start(RailwayManagementSystem system, HttpApi api, HashRing ring, String self) {
+        ClusterNode node = new ClusterNode(system, api, self, ring, 1, dataDirectory, 0);
+        api.start();
+        Runnable stop = () -> {
+            api.stop();
+            node.close();
+            system.close();
+        };
+        closers.add(stop);
+        return stop;
+    }
+
+    private static ClusterClient.Response book(ClusterClient client, String node, Train train) throws IOException {
+        return client.post(node, "/cluster/book",
+                ClusterClient.bookingForm(new StringBuilder(), train.trainNumber(), train.source(), train.destination(),
+                        request(train)).toString());
+    }
+
+    private static ClusterClient.Response prepare(Node node, Train train, String txn) throws IOException {
+        StringBuilder form = ClusterClient.bookingForm(new StringBuilder(), train.trainNumber(), train.source(), train.destination(),
+                request(train));
+        return new ClusterClient().post(node.name, "/cluster/prepare", ClusterClient.field(form, "txn", txn).toString());
+    }
+
+    // A participant that votes yes to every prepare and then refuses the commit, as one that gave the transaction up would
+    private HttpServer refusingParticipant() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/cluster/prepare", exchange -> answer(exchange, 201, "{\"status\":\"CONFIRMED\",\"bookingIds\":[1]}"));
+        server.createContext("/cluster/commit", exchange -> answer(exchange, 404, "{\"error\":\"No prepared transaction\"}"));
+        server.createContext("/cluster/abort", exchange -> answer(exchange, 200, "{\"aborted\":1}"));
+        server.start();
+        closers.add(() -> server.stop(0));
+        return server;
+    }
+
+    private static void answer(HttpExchange exchange, int status, String body) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Train primaryFor(RailwayManagementSystem system, HashRing ring, String node) {
+        for (Train train : system.timetableService().trains()) {
+            if (ring.owners(train.trainNumber(), 1).get(0).equals(node)) {
+                return train;
+            }
+        }
+        throw new AssertionError("No train hashes to " + node);
+    }
+
+    private static BookingRequest request(Train train) {
+        List<Passenger> passengers = new ArrayList<>();
+        for (int i = 0; i < SEATS; i++) {
+            passengers.add(new Passenger("Passenger " + i, 30));
+        }
+        return new BookingRequest(train.source(), train.destination(), SeatInventory.DIVISIONS[0], SEATS, passengers);
+    }
+
+    private static String name(int port) {
+        return "127.0.0.1:" + port;
+    }
+}
@@ -0,0 +1,54 @@
+package railway;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Node JVMs on loopback, each limited to the same bookings a second as if it had a machine of its own:
+// throughput through one router must grow with the nodes, up to what the busiest node's share of the
+// trains allows, and no booking may be lost or counted twice on the way. Run with -Pintegration.
+@Tag("integration")
+class ClusterStormTest {
+    private static final int[] NODES = {1, 2, 4};
+    private static final double EFFICIENCY = 0.7;
+
+    @Test
+    void throughputGrowsWithNodes() throws InterruptedException {
+        StringJoiner nodeCounts = new StringJoiner(",");
+        for (int nodes : NODES) {
+            nodeCounts.add(String.valueOf(nodes));
+        }
+        Map<String, String> options = new HashMap<>();
+        options.put("nodes", nodeCounts.toString());
+        options.put("users", "128");
+        options.put("operations", "300");
+        options.put("capacity", "15");
+        Map<String, String> report = parse(new ClusterStorm(options).run());
+
+        for (int nodes : NODES) {
+            assertEquals("0", report.get("nodes." + nodes + ".audit.net_bookings_mismatch"), "nodes." + nodes);
+            double scaling = Double.parseDouble(report.get("scaling." + nodes));
+            double ideal = Double.parseDouble(report.get("ideal_scaling." + nodes));
+            assertTrue(scaling >= EFFICIENCY * ideal,
+                    nodes + " nodes scaled " + scaling + ", their trains allow " + ideal + "\n" + report);
+        }
+    }
+
+    private static Map<String, String> parse(String report) {
+        Map<String, String> values = new LinkedHashMap<>();
+        for (String line : report.split("\n")) {
+            int colon = line.indexOf(": ");
+            if (colon > 0) {
+                values.put(line.substring(0, colon), line.substring(colon + 2));
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,240 @@
+package railway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Recovery reads the journal up to its last intact record: a torn or corrupted tail is dropped and written
+// over, and VOID records are skipped. A data directory reopened after a clean close, after a crash, or from a
+// snapshot of an older version holds the same trains, seats, history and dashboard totals as before.
+class JournalRecoveryTest {
+    private static final int RECORD_HEADER = 9;
+    private static final List<TrainSpec> SEED = Arrays.asList(
+            new TrainSpec(601, "Valley Stopper", "Alpha", "Delta", "06:00", "09:00", 24, 24, new String[] {"Bravo", "Charlie"}),
+            new TrainSpec(602, "Coast Express", "Delta", "Echo", "10:00", "12:00", 12, 12));
+
+    @TempDir
+    Path dataDirectory;
+
+    @Test
+    void aRecordFailingItsChecksumEndsRecoveryAndIsWrittenOver() throws IOException {
+        Path file = dataDirectory.resolve("journal.bin");
+        long[] positions;
+        try (BookingJournal journal = new BookingJournal(file)) {
+            journal.recover(0, (type, payload, position) -> { });
+            positions = journal.appendAll(BookingJournal.BOOK, Arrays.asList(text("first"), text("second"), text("third")));
+        }
+        // flip a payload byte of the second record, as a write torn by a crash would leave it
+        corrupt(file, positions[1] + RECORD_HEADER);
+
+        try (BookingJournal journal = new BookingJournal(file)) {
+            assertEquals(Collections.singletonList("first"), recover(journal));
+            assertEquals(positions[1], journal.position());
+            journal.awaitDurable(journal.append(BookingJournal.BOOK, text("fourth")));
+        }
+        try (BookingJournal journal = new BookingJournal(file)) {
+            assertEquals(Arrays.asList("first", "fourth"), recover(journal));
+        }
+    }
+
+    @Test
+    void aTornTailIsDroppedAndTheJournalAppendsAfterTheLastIntactRecord() throws IOException {
+        Path file = dataDirectory.resolve("journal.bin");
+        long end;
+        try (BookingJournal journal = new BookingJournal(file)) {
+            journal.recover(0, (type, payload, position) -> { });
+            journal.appendAll(BookingJournal.BOOK, Arrays.asList(text("first"), text("second")));
+            end = journal.position();
+        }
+        // a header written without its payload: the length runs past what was ever written
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(RECORD_HEADER).put(BookingJournal.BOOK).putInt(64).putInt(12345).flip(), end);
+        }
+
+        try (BookingJournal journal = new BookingJournal(file)) {
+            assertEquals(Arrays.asList("first", "second"), recover(journal));
+            assertEquals(end, journal.position());
+            journal.awaitDurable(journal.append(BookingJournal.BOOK, text("third")));
+        }
+        try (BookingJournal journal = new BookingJournal(file)) {
+            assertEquals(Arrays.asList("first", "second", "third"), recover(journal));
+        }
+    }
+
+    @Test
+    void voidRecordsAreSkipped() {
+        Path file = dataDirectory.resolve("journal.bin");
+        try (BookingJournal journal = new BookingJournal(file)) {
+            journal.recover(0, (type, payload, position) -> { });
+            journal.appendAll(new byte[] {BookingJournal.BOOK, BookingJournal.VOID, BookingJournal.CANCEL},
+                    Arrays.asList(text("kept"), text("taken back"), text("also kept")));
+        }
+        try (BookingJournal journal = new BookingJournal(file)) {
+            List<Byte> types = new ArrayList<>();
+            List<String> payloads = new ArrayList<>();
+            journal.recover(0, (type, payload, position) -> {
+                types.add(type);
+                payloads.add(StandardCharsets.UTF_8.decode(payload).toString());
+            });
+            assertEquals(Arrays.asList(BookingJournal.BOOK, BookingJournal.CANCEL), types);
+            assertEquals(Arrays.asList("kept", "also kept"), payloads);
+        }
+    }
+
+    @Test
+    void aReopenedDirectoryHoldsWhatTheRunningOneDid() throws IOException {
+        Path crashed = dataDirectory.resolveSibling(dataDirectory.getFileName() + "-crashed");
+        String expected;
+        PersistenceManager persistence = new PersistenceManager(dataDirectory, () -> SEED);
+        try {
+            mixedWork(persistence);
+            expected = state(persistence);
+            // the files as a crash would leave them: only the first snapshot, everything since in the journal
+            Files.createDirectories(crashed);
+            for (String name : new String[] {"journal.bin", "bookings.idx", "snapshot.bin"}) {
+                Files.copy(dataDirectory.resolve(name), crashed.resolve(name));
+            }
+        } finally {
+            persistence.close();
+        }
+
+        try (PersistenceManager reopened = new PersistenceManager(dataDirectory, () -> SEED)) {
+            assertEquals(expected, state(reopened));
+        }
+        try (PersistenceManager replayed = new PersistenceManager(crashed, () -> SEED)) {
+            assertEquals(expected, state(replayed));
+        }
+    }
+
+    @Test
+    void olderSnapshotVersionsStillOpen() {
+        String expected;
+        try (PersistenceManager persistence = new PersistenceManager(dataDirectory, () -> SEED)) {
+            mixedWork(persistence);
+            expected = state(persistence);
+        }
+        // rewrite the snapshot as version 2, which held only the trains and their seats
+        Path file = dataDirectory.resolve("snapshot.bin");
+        SnapshotFile.State state = SnapshotFile.read(file);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0x524d5353);
+            out.writeInt(2);
+            out.writeLong(state.journalPosition);
+            out.writeLong(state.nextBookingId);
+            out.writeInt(state.trains.size());
+            for (int i = 0; i < state.trains.size(); i++) {
+                out.write(state.trains.get(i).encode());
+                long[] words = state.seatWords.get(i);
+                out.writeInt(words == null ? -1 : words.length);
+                for (int w = 0; words != null && w < words.length; w++) {
+                    out.writeLong(words[w]);
+                }
+            }
+            out.flush();
+            Files.write(file, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // the dashboard totals version 2 lacked are counted again from the journal
+        try (PersistenceManager reopened = new PersistenceManager(dataDirectory, () -> SEED)) {
+            assertEquals(expected, state(reopened));
+        }
+    }
+
+    @Test
+    void anUnknownSnapshotVersionIsRefused() throws IOException {
+        Path file = dataDirectory.resolve("snapshot.bin");
+        Files.write(file, ByteBuffer.allocate(8).putInt(0x524d5353).putInt(99).array());
+        assertThrows(UncheckedIOException.class, () -> SnapshotFile.read(file));
+    }
+
+    // Bookings on whole and partial routes, an inserted, an updated and a deleted train, and cancellations,
+    // including one of a booking on the deleted train
+    private static void mixedWork(PersistenceManager persistence) {
+        BookingService bookings = persistence.bookings();
+        List<Long> ids = new ArrayList<>();
+        ids.add(book(bookings, "Alpha", "Delta", 2));
+        ids.add(book(bookings, "Bravo", "Charlie", 3));
+        ids.add(book(bookings, "Delta", "Echo", 1));
+        persistence.timetable().insertTrain(new TrainSpec(603, "Night Owl", "Echo", "Foxtrot", "22:00", "01:00", 12, 12));
+        long onDeleted = book(bookings, "Echo", "Foxtrot", 2);
+        persistence.timetable().updateTrain(new TrainSpec(602, "Coast Express", "Delta", "Echo", "10:30", "12:45", 12, 12));
+        ids.add(book(bookings, "Delta", "Echo", 2));
+        assertTrue(bookings.cancel(ids.get(1)));
+        persistence.timetable().deleteTrain(603);
+        assertTrue(bookings.cancel(onDeleted));
+        ids.add(book(bookings, "Alpha", "Bravo", 1));
+        assertTrue(bookings.cancel(ids.get(2)));
+    }
+
+    private static long book(BookingService bookings, String source, String destination, int seats) {
+        List<Passenger> passengers = new ArrayList<>();
+        for (int i = 0; i < seats; i++) {
+            passengers.add(new Passenger("Passenger " + i, 30));
+        }
+        BookingResult result = bookings.book(new BookingRequest(source, destination, SeatInventory.DIVISIONS[0], seats, passengers));
+        assertTrue(result.isConfirmed(), result.message);
+        return result.bookingId;
+    }
+
+    // Everything a restart must bring back, as text so a mismatch shows where
+    private static String state(PersistenceManager persistence) {
+        StringBuilder text = new StringBuilder();
+        SeatInventory inventory = persistence.timetable().inventory();
+        for (Train train : persistence.timetable().trains()) {
+            text.append(train.trainNumber()).append(' ').append(train.name()).append(' ').append(train.source())
+                    .append(' ').append(String.join("|", train.via())).append(' ').append(train.destination())
+                    .append(' ').append(train.startTime()).append('-').append(train.reachTime())
+                    .append(" seats ").append(Arrays.toString(inventory.seatWords(train))).append('\n');
+        }
+        BookingService bookings = persistence.bookings();
+        BookingStore.Query all = bookings.history(HistoryFilter.ALL);
+        for (HistoryEntry entry : bookings.historyPage(all, 0, all.size())) {
+            text.append("booking ").append(entry.booking.id).append(' ').append(entry.booking.trainNumber)
+                    .append(entry.cancelled ? " cancelled" : " open").append('\n');
+        }
+        BookingAggregates aggregates = bookings.aggregates();
+        text.append("totals ").append(aggregates.bookings()).append(' ').append(aggregates.cancellations())
+                .append(' ').append(aggregates.seats()).append('\n');
+        text.append("next id ").append(bookings.nextBookingId()).append('\n');
+        return text.toString();
+    }
+
+    private static List<String> recover(BookingJournal journal) {
+        List<String> payloads = new ArrayList<>();
+        journal.recover(0, (type, payload, position) -> payloads.add(StandardCharsets.UTF_8.decode(payload).toString()));
+        return payloads;
+    }
+
+    private static byte[] text(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void corrupt(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            channel.read(one, position);
+            channel.write(ByteBuffer.wrap(new byte[] {(byte) ~one.get(0)}), position);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package railway;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A journey may board and alight at intermediate stops: each leg runs between the stops it uses, and
+// booking the journey takes seats on those segments only, leaving the rest of each train's route for sale.
+// A journey is booked on every leg or on none of them.
+class JourneyLegsTest {
+    private static final TrainSpec THROUGH = new TrainSpec(501, "Valley Stopper", "Alpha", "Delta", "06:00", "09:00", 12, 12,
+            new String[] {"Bravo", "Charlie"});
+    private static final TrainSpec BRANCH = new TrainSpec(502, "Coast Branch", "Charlie", "Echo", "09:00", "10:00", 12, 12);
+    private static final int DIVISION = 0;
+
+    @TempDir
+    Path dataDirectory;
+
+    private PersistenceManager persistence;
+
+    @BeforeEach
+    void open() {
+        persistence = new PersistenceManager(dataDirectory, () -> Arrays.asList(THROUGH, BRANCH));
+    }
+
+    @AfterEach
+    void close() {
+        persistence.close();
+    }
+
+    @Test
+    void legsRunBetweenTheStopsTheJourneyUses() {
+        for (JourneyPlanner.Objective objective : JourneyPlanner.Objective.values()) {
+            JourneyPlanner.Journey journey = persistence.bookings().planJourney("Bravo", "Echo", objective);
+            assertNotNull(journey, objective.name());
+            assertEquals(2, journey.legs.size(), objective.name());
+            JourneyPlanner.Leg first = journey.legs.get(0);
+            assertEquals(THROUGH.trainNumber, first.train.trainNumber());
+            assertEquals("Bravo", first.source);
+            assertEquals("Charlie", first.destination);
+            assertEquals(7 * 60, first.departure);
+            assertEquals(8 * 60, first.arrival);
+            JourneyPlanner.Leg second = journey.legs.get(1);
+            assertEquals(BRANCH.trainNumber, second.train.trainNumber());
+            assertEquals("Charlie", second.source);
+            assertEquals("Echo", second.destination);
+        }
+    }
+
+    @Test
+    void aJourneyBooksOnlyTheSegmentsItRides() {
+        JourneyPlanner.Journey journey = persistence.bookings().planJourney("Bravo", "Echo",
+                JourneyPlanner.Objective.EARLIEST_ARRIVAL);
+        Train through = persistence.timetable().findByNumber(THROUGH.trainNumber);
+        SeatInventory inventory = persistence.timetable().inventory();
+        int[] before = new int[through.stopCount() - 1];
+        for (int segment = 0; segment < before.length; segment++) {
+            before[segment] = inventory.available(through, DIVISION, segment, segment + 1);
+        }
+
+        BookingResult result = persistence.bookings().bookJourney(journey, request("Bravo", "Echo"));
+        assertTrue(result.isConfirmed(), result.message);
+
+        assertEquals(before[0], inventory.available(through, DIVISION, 0, 1), "Alpha - Bravo");
+        assertEquals(before[1] - 1, inventory.available(through, DIVISION, 1, 2), "Bravo - Charlie");
+        assertEquals(before[2], inventory.available(through, DIVISION, 2, 3), "Charlie - Delta");
+    }
+
+    @Test
+    void aJourneyWithASoldOutLegBooksNoLeg() {
+        JourneyPlanner.Journey journey = persistence.bookings().planJourney("Alpha", "Echo",
+                JourneyPlanner.Objective.FEWEST_TRANSFERS);
+        Train through = persistence.timetable().findByNumber(THROUGH.trainNumber);
+        Train branch = persistence.timetable().findByNumber(BRANCH.trainNumber);
+        SeatInventory inventory = persistence.timetable().inventory();
+        for (int seat = inventory.available(branch, DIVISION); seat > 0; seat--) {
+            assertTrue(persistence.bookings().book(request("Charlie", "Echo")).isConfirmed());
+        }
+        int available = inventory.available(through, DIVISION);
+        long bookings = persistence.bookings().aggregates().bookings();
+
+        BookingResult result = persistence.bookings().bookJourney(journey, request("Alpha", "Echo"));
+        assertEquals(BookingResult.Status.INSUFFICIENT_SEATS, result.status, result.message);
+        assertEquals(available, inventory.available(through, DIVISION));
+        assertEquals(bookings, persistence.bookings().aggregates().bookings());
+    }
+
+    private static BookingRequest request(String source, String destination) {
+        return new BookingRequest(source, destination, SeatInventory.DIVISIONS[DIVISION], 1,
+                Collections.singletonList(new Passenger("Passenger", 30)));
+    }
+}
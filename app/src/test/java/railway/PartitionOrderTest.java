@@ -0,0 +1,128 @@
+package railway;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Journeys and cancellations go through the partitions of their trains like any other booking: a journey
+// racing single-train bookings on both of its trains is booked on both or on neither, and a cancellation
+// hands its seats to the waitlist before a later booking can take them.
+class PartitionOrderTest {
+    private static final TrainSpec FIRST = new TrainSpec(401, "Morning Link", "Alpha", "Bravo", "06:00", "08:00", 40, 40);
+    private static final TrainSpec SECOND = new TrainSpec(402, "Onward Link", "Bravo", "Charlie", "09:00", "11:00", 40, 40);
+    private static final int DIVISION = 0;
+    private static final int THREADS = 12;
+    private static final int ATTEMPTS = 40;
+
+    @TempDir
+    Path dataDirectory;
+
+    private PersistenceManager persistence;
+    private BookingService bookings;
+
+    @BeforeEach
+    void open() {
+        persistence = new PersistenceManager(dataDirectory, () -> Arrays.asList(FIRST, SECOND));
+        bookings = persistence.bookings();
+    }
+
+    @AfterEach
+    void close() {
+        persistence.close();
+    }
+
+    @Test
+    void journeysRacingDirectBookingsAreBookedOnEveryLegOrNone() throws Exception {
+        JourneyPlanner.Journey journey = bookings.planJourney("Alpha", "Charlie", JourneyPlanner.Objective.FEWEST_TRANSFERS);
+        assertNotNull(journey);
+        assertEquals(2, journey.legs.size());
+        int[] sold = new int[2];
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<BookingResult[]>> attempts = new ArrayList<>();
+        try {
+            for (int thread = 0; thread < THREADS; thread++) {
+                int kind = thread % 3; // 0: journeys, 1: the first train, 2: the second train
+                attempts.add(executor.submit((Callable<BookingResult[]>) () -> {
+                    start.await();
+                    BookingResult[] results = new BookingResult[ATTEMPTS];
+                    for (int i = 0; i < ATTEMPTS; i++) {
+                        results[i] = kind == 0 ? bookings.bookJourney(journey, request("Alpha", "Charlie"))
+                                : kind == 1 ? bookings.book(request(FIRST.source, FIRST.destination))
+                                : bookings.book(request(SECOND.source, SECOND.destination));
+                    }
+                    return results;
+                }));
+            }
+            start.countDown();
+            for (int thread = 0; thread < THREADS; thread++) {
+                for (BookingResult result : attempts.get(thread).get()) {
+                    if (!result.isConfirmed()) {
+                        assertEquals(BookingResult.Status.INSUFFICIENT_SEATS, result.status, result.message);
+                        continue;
+                    }
+                    int kind = thread % 3;
+                    if (kind == 0) {
+                        assertEquals(2, result.legBookingIds.length);
+                        sold[0]++;
+                        sold[1]++;
+                    } else {
+                        sold[kind - 1]++;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        TrainSpec[] trains = {FIRST, SECOND};
+        for (int i = 0; i < trains.length; i++) {
+            Train train = persistence.timetable().findByNumber(trains[i].trainNumber);
+            int capacity = persistence.timetable().inventory().capacity(train, DIVISION);
+            assertEquals(capacity, sold[i], "train " + trains[i].trainNumber + " sold out exactly once");
+            assertEquals(0, persistence.timetable().inventory().available(train, DIVISION));
+        }
+    }
+
+    @Test
+    void aCancellationBooksTheWaitlistBeforeItReturns() {
+        Train train = persistence.timetable().findByNumber(FIRST.trainNumber);
+        int capacity = persistence.timetable().inventory().capacity(train, DIVISION);
+        List<Long> sold = new ArrayList<>();
+        for (int i = 0; i < capacity; i++) {
+            BookingResult result = bookings.book(request(FIRST.source, FIRST.destination));
+            assertTrue(result.isConfirmed(), result.message);
+            sold.add(result.bookingId);
+        }
+        BookingResult waiting = bookings.bookOrWaitlist(request(FIRST.source, FIRST.destination), 0);
+        assertEquals(BookingResult.Status.WAITLISTED, waiting.status, waiting.message);
+
+        assertTrue(bookings.cancel(sold.get(0)));
+        assertEquals(0, bookings.waitlistPosition(waiting.waitlistId));
+        assertEquals(0, persistence.timetable().inventory().available(train, DIVISION));
+        assertEquals(BookingResult.Status.INSUFFICIENT_SEATS, bookings.book(request(FIRST.source, FIRST.destination)).status);
+        assertFalse(bookings.cancel(sold.get(0)));
+    }
+
+    private static BookingRequest request(String source, String destination) {
+        return new BookingRequest(source, destination, SeatInventory.DIVISIONS[DIVISION], 1,
+                Collections.singletonList(new Passenger("Passenger", 30)));
+    }
+}
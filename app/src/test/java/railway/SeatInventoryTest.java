@@ -0,0 +1,210 @@
+package railway;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+// Many threads released at once against the same trains, as when Tatkal booking opens: every seat must
+// be sold exactly once, on every segment of the route it is sold for, and never more than the division has.
+class SeatInventoryTest {
+    private static final int THREADS = 16;
+
+    @TempDir
+    Path dataDirectory;
+
+    private PersistenceManager persistence;
+    private TimetableService timetable;
+    private SeatInventory inventory;
+
+    @BeforeEach
+    void open() {
+        persistence = new PersistenceManager(dataDirectory, () -> Arrays.asList(
+                new TrainSpec(101, "Through Express", "Alpha", "Delta", "06:00", "12:00", 300, 300),
+                new TrainSpec(102, "Stopping Passenger", "Echo", "Hotel", "07:00", "13:00", 150, 150,
+                        new String[] {"Foxtrot", "Golf"})));
+        timetable = persistence.timetable();
+        inventory = timetable.inventory();
+    }
+
+    @AfterEach
+    void close() {
+        persistence.close();
+    }
+
+    @Test
+    void concurrentReservationsSellEverySeatExactlyOnce() throws Exception {
+        Train train = timetable.findByNumber(101);
+        int[] route = SeatInventory.segments(train, train.source(), train.destination());
+        List<Set<Integer>> sold = new ArrayList<>();
+        for (int division = 0; division < SeatInventory.DIVISIONS.length; division++) {
+            sold.add(ConcurrentHashMap.newKeySet());
+        }
+        runConcurrently(random -> {
+            while (inventory.available(train) > 0) {
+                int division = random.nextInt(SeatInventory.DIVISIONS.length);
+                int[] seats = inventory.reserve(train, division, route[0], route[1], 1 + random.nextInt(4));
+                if (seats != null) {
+                    for (int seat : seats) {
+                        assertTrue(sold.get(division).add(seat), "seat " + seat + " of division " + division + " sold twice");
+                    }
+                }
+            }
+        });
+        for (int division = 0; division < SeatInventory.DIVISIONS.length; division++) {
+            assertEquals(inventory.capacity(train, division), sold.get(division).size(), SeatInventory.DIVISIONS[division]);
+            assertEquals(0, inventory.available(train, division));
+        }
+    }
+
+    @Test
+    void concurrentPartJourneysNeverShareASeatOnASegment() throws Exception {
+        Train train = timetable.findByNumber(102);
+        int segments = train.stopCount() - 1;
+        int divisions = SeatInventory.DIVISIONS.length;
+        int capacity = inventory.capacity(train, 0);
+        // bookings holding each seat on each segment, by division, seat and segment
+        AtomicIntegerArray holders = new AtomicIntegerArray(divisions * capacity * segments);
+        runConcurrently(random -> {
+            List<int[]> held = new ArrayList<>(); // {division, from, to, seats...}
+            for (int i = 0; i < 2000; i++) {
+                if (!held.isEmpty() && random.nextBoolean()) {
+                    int[] booking = held.remove(random.nextInt(held.size()));
+                    int[] seats = Arrays.copyOfRange(booking, 3, booking.length);
+                    // unmarked before the release, so a seat taken again at once is never counted twice
+                    mark(holders, capacity, segments, booking, seats, -1);
+                    assertTrue(inventory.release(train, booking[0], booking[1], booking[2], seats, seats.length));
+                    continue;
+                }
+                int division = random.nextInt(divisions);
+                int from = random.nextInt(segments);
+                int to = from + 1 + random.nextInt(segments - from);
+                int[] seats = inventory.reserve(train, division, from, to, 1 + random.nextInt(3));
+                if (seats != null) {
+                    int[] booking = new int[3 + seats.length];
+                    booking[0] = division;
+                    booking[1] = from;
+                    booking[2] = to;
+                    System.arraycopy(seats, 0, booking, 3, seats.length);
+                    mark(holders, capacity, segments, booking, seats, 1);
+                    held.add(booking);
+                }
+            }
+        });
+        long heldSeatSegments = 0;
+        for (int division = 0; division < divisions; division++) {
+            for (int segment = 0; segment < segments; segment++) {
+                int taken = 0;
+                for (int seat = 0; seat < capacity; seat++) {
+                    taken += holders.get((division * capacity + seat) * segments + segment);
+                }
+                assertEquals(capacity - taken, inventory.available(train, division, segment, segment + 1),
+                        SeatInventory.DIVISIONS[division] + " segment " + segment);
+                heldSeatSegments += taken;
+            }
+        }
+        assertEquals(heldSeatSegments, inventory.soldSeatSegments(train));
+    }
+
+    @Test
+    void concurrentBookingsNeverOversell() throws Exception {
+        Train train = timetable.findByNumber(102);
+        BookingService bookings = persistence.bookings();
+        Set<String> seatLabels = ConcurrentHashMap.newKeySet();
+        runConcurrently(random -> {
+            boolean[] soldOut = new boolean[SeatInventory.DIVISIONS.length];
+            while (!(soldOut[0] && soldOut[1] && soldOut[2])) {
+                int division = random.nextInt(SeatInventory.DIVISIONS.length);
+                int count = 1 + random.nextInt(3);
+                List<Passenger> passengers = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    passengers.add(new Passenger("Passenger " + random.nextInt(1000), 30));
+                }
+                BookingResult result = bookings.book(new BookingRequest("Echo", "Hotel",
+                        SeatInventory.DIVISIONS[division], count, passengers));
+                if (result.isConfirmed()) {
+                    Booking booking = bookings.historyEntry(result.bookingId).booking;
+                    for (int seat : booking.seatNumbers) {
+                        String label = SeatInventory.seatLabel(division, seat);
+                        assertTrue(seatLabels.add(label), label + " booked twice");
+                    }
+                } else {
+                    assertEquals(BookingResult.Status.INSUFFICIENT_SEATS, result.status, result.message);
+                    soldOut[division] = inventory.available(train, division) == 0;
+                }
+            }
+        });
+        int capacity = 0;
+        for (int division = 0; division < SeatInventory.DIVISIONS.length; division++) {
+            capacity += inventory.capacity(train, division);
+        }
+        assertEquals(capacity, seatLabels.size());
+        assertEquals(0, inventory.available(train));
+    }
+
+    private static void mark(AtomicIntegerArray holders, int capacity, int segments, int[] booking, int[] seats, int delta) {
+        for (int seat : seats) {
+            for (int segment = booking[1]; segment < booking[2]; segment++) {
+                int before = holders.getAndAdd((booking[0] * capacity + seat) * segments + segment, delta);
+                if (delta > 0 && before != 0) {
+                    fail("seat " + seat + " of division " + booking[0] + " sold twice on segment " + segment);
+                }
+            }
+        }
+    }
+
+    interface Worker {
+        void run(SplittableRandom random) throws Exception;
+    }
+
+    // Releases THREADS workers at once, each with its own generator, and rethrows the first failure
+    private static void runConcurrently(Worker worker) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Void>> results = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                SplittableRandom random = new SplittableRandom(42 + thread);
+                Callable<Void> task = () -> {
+                    start.await();
+                    worker.run(random);
+                    return null;
+                };
+                results.add(executor.submit(task));
+            }
+            start.countDown();
+            for (Future<Void> result : results) {
+                try {
+                    result.get(60, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw (Exception) e.getCause();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package railway;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Imports keep the good rows and report each bad one with its line, and train numbers stay unique:
+// a file repeating one keeps its first row, and neither an insert nor a replacement may reuse a number.
+class TimetableImportTest {
+    private static final TrainSpec TRAIN = new TrainSpec(701, "Harbour Line", "Alpha", "Bravo", "07:00", "08:00", 12, 12);
+
+    @TempDir
+    Path dataDirectory;
+
+    @Test
+    void badRowsAreReportedAndTheRestImported() throws IOException {
+        Path file = dataDirectory.resolve("trains.csv");
+        Files.write(file, Arrays.asList(
+                "name,train_number,source,destination,start_time,reach_time,total_seats,via",
+                "\"Coast, Express\",801,Alpha,Delta,06:00,09:30,24,Bravo|Charlie",
+                "Night Owl,802,Delta,Echo,23:00,01:15,12,",
+                "No Seats,803,Alpha,Bravo,06:00,07:00,many,",
+                ",804,Alpha,Bravo,06:00,07:00,12,",
+                "Late,805,Alpha,Bravo,25:00,07:00,12,",
+                "",
+                "Repeat,801,Echo,Foxtrot,06:00,07:00,12,"), StandardCharsets.UTF_8);
+
+        ImportReport report = new ImportReport();
+        List<TrainSpec> trains = TimetableCsv.read(file, report);
+
+        assertEquals(2, trains.size());
+        assertEquals(2, report.rows());
+        assertEquals(4, report.badRows());
+        TrainSpec coast = trains.get(0);
+        assertEquals(801, coast.trainNumber);
+        assertEquals("Coast, Express", coast.name);
+        assertArrayEquals(new String[] {"Bravo", "Charlie"}, coast.via);
+        assertEquals(24, coast.balance);
+        assertEquals(0, trains.get(1).via.length);
+        List<String> errors = report.errors();
+        assertTrue(errors.get(0).startsWith("trains.csv:4: "), errors.get(0));
+        assertTrue(errors.get(1).startsWith("trains.csv:5: "), errors.get(1));
+        assertTrue(errors.get(2).startsWith("trains.csv:6: "), errors.get(2));
+        assertTrue(errors.get(3).contains("Duplicate train_number 801"), errors.get(3));
+    }
+
+    @Test
+    void aFileWithoutARequiredColumnIsRefused() throws IOException {
+        Path file = dataDirectory.resolve("trains.csv");
+        Files.write(file, Collections.singletonList("train_number,name,source,destination,start_time,reach_time"),
+                StandardCharsets.UTF_8);
+        IllegalArgumentException refused = assertThrows(IllegalArgumentException.class,
+                () -> TimetableCsv.read(file, new ImportReport()));
+        assertTrue(refused.getMessage().contains("total_seats"), refused.getMessage());
+    }
+
+    @Test
+    void trainNumbersCannotBeReused() {
+        try (PersistenceManager persistence = new PersistenceManager(dataDirectory, () -> Collections.singletonList(TRAIN))) {
+            TimetableService timetable = persistence.timetable();
+            TrainSpec again = new TrainSpec(TRAIN.trainNumber, "Other Line", "Charlie", "Delta", "09:00", "10:00", 12, 12);
+            assertThrows(IllegalArgumentException.class, () -> timetable.insertTrain(again));
+            assertThrows(IllegalArgumentException.class, () -> persistence.replaceTimetable(Arrays.asList(
+                    new TrainSpec(702, "First", "Alpha", "Bravo", "06:00", "07:00", 12, 12),
+                    new TrainSpec(702, "Second", "Bravo", "Charlie", "08:00", "09:00", 12, 12))));
+            assertEquals(1, timetable.trainCount());
+            assertEquals("Harbour Line", timetable.findByNumber(TRAIN.trainNumber).name());
+
+            // a number is free again once its train is deleted
+            timetable.deleteTrain(TRAIN.trainNumber);
+            timetable.insertTrain(again);
+            assertEquals("Other Line", timetable.findByNumber(TRAIN.trainNumber).name());
+        }
+    }
+
+    @Test
+    void olderDataRepeatingANumberKeepsTheFirstTrain() {
+        TimetableService timetable = new TimetableService(Arrays.asList(TRAIN,
+                new TrainSpec(TRAIN.trainNumber, "Shadow", "Charlie", "Delta", "09:00", "10:00", 12, 12)), null);
+        assertEquals(1, timetable.trainCount());
+        assertEquals("Harbour Line", timetable.findByNumber(TRAIN.trainNumber).name());
+    }
+}
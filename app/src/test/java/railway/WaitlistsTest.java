@@ -0,0 +1,70 @@
+package railway;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+// Waitlists of different trains are changed by their own writers at once; every list must keep its
+// entries in priority then arrival order, and no entry may be lost or handed out twice.
+class WaitlistsTest {
+    private static final int TRAINS = 8;
+    private static final int ENTRIES = 2000;
+
+    @Test
+    void concurrentListsKeepTheirOrder() throws Exception {
+        Waitlists waitlists = new Waitlists();
+        ExecutorService executor = Executors.newFixedThreadPool(TRAINS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<WaitlistEntry>>> joined = new ArrayList<>();
+        try {
+            for (int train = 0; train < TRAINS; train++) {
+                int trainNumber = 100 + train;
+                joined.add(executor.submit(() -> {
+                    start.await();
+                    List<WaitlistEntry> entries = new ArrayList<>();
+                    for (int i = 0; i < ENTRIES; i++) {
+                        entries.add(waitlists.join(trainNumber, "Alpha", "Delta", 0,
+                                Collections.singletonList(new Passenger("Passenger " + i, 30)), i % 2));
+                    }
+                    return entries;
+                }));
+            }
+            start.countDown();
+            for (int train = 0; train < TRAINS; train++) {
+                List<WaitlistEntry> entries = joined.get(train).get();
+                int trainNumber = 100 + train;
+                assertEquals(ENTRIES, waitlists.waiting(trainNumber, 0));
+                // priority 1 first, then priority 0, each in the order they joined
+                List<WaitlistEntry> expected = new ArrayList<>();
+                for (int priority = 1; priority >= 0; priority--) {
+                    for (WaitlistEntry entry : entries) {
+                        if (entry.priority == priority) {
+                            expected.add(entry);
+                        }
+                    }
+                }
+                assertEquals(1, waitlists.position(expected.get(0).id));
+                assertEquals(ENTRIES, waitlists.position(expected.get(ENTRIES - 1).id));
+                for (WaitlistEntry entry : expected) {
+                    assertEquals(entry, waitlists.head(trainNumber, 0));
+                    assertEquals(entry, waitlists.remove(entry.id));
+                    assertNull(waitlists.remove(entry.id));
+                }
+                assertNull(waitlists.head(trainNumber, 0));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, waitlists.size());
+        assertEquals(0, waitlists.lists().size());
+    }
+}
@@ -0,0 +1,25 @@
+package railway;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the JMH command line once per thread count, so one invocation gives a thread-scaling baseline:
+//   java -Dthreads=1,4,16 -jar benchmarks/target/benchmarks.jar -rf json -rff results.json
+// Each run writes its own result file, suffixed with the thread count.
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        for (String count : System.getProperty("threads", "1,4").split(",")) {
+            int threads = Integer.parseInt(count.trim());
+            OptionsBuilder options = new OptionsBuilder();
+            options.parent(commandLine).threads(threads);
+            if (commandLine.getResult().hasValue()) {
+                String result = commandLine.getResult().get();
+                int dot = result.lastIndexOf('.');
+                options.result(dot < 0 ? result + "-t" + threads : result.substring(0, dot) + "-t" + threads + result.substring(dot));
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
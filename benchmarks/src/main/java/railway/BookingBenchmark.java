@@ -0,0 +1,35 @@
+package railway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+// The Book Ticket handler: matching the typed stations to a train, and a full durable booking
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookingBenchmark {
+
+    @Benchmark
+    public Train matchTrain(TimetableState state, QueryState query) {
+        Train train = query.anyTrain(state);
+        return state.timetable.findExact(train.source(), train.destination());
+    }
+
+    @Benchmark
+    public BookingResult bookOneSeat(TimetableState state, QueryState query) {
+        Train train = query.anyTrain(state);
+        return state.bookings.book(new BookingRequest(train.source(), train.destination(),
+                SeatInventory.DIVISIONS[query.nextInt(SeatInventory.DIVISIONS.length)], 1,
+                Collections.singletonList(new Passenger("Benchmark Passenger", 30))));
+    }
+}
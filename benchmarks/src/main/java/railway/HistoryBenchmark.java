@@ -0,0 +1,68 @@
+package railway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Booking history rendering: opening the history screen on a page of rows, and filtering by train
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    private static final int BOOKINGS = 10_000;
+    private static final int SCREEN_ROWS = 50;
+
+    @State(Scope.Benchmark)
+    public static class BookedTimetable {
+        int[] bookedTrains;
+
+        @Setup(Level.Trial)
+        public void book(TimetableState state) {
+            Random random = new Random(TimetableState.SEED);
+            List<BookingRequest> requests = new ArrayList<>(BOOKINGS);
+            bookedTrains = new int[BOOKINGS];
+            for (int i = 0; i < BOOKINGS; i++) {
+                Train train = state.timetable.trainAt(random.nextInt(state.timetable.trainCount()));
+                bookedTrains[i] = train.trainNumber();
+                requests.add(new BookingRequest(train.source(), train.destination(), SeatInventory.DIVISIONS[i % 3], 2,
+                        Arrays.asList(new Passenger("Passenger " + i, 30), new Passenger("Companion " + i, 28))));
+            }
+            state.bookings.bookAll(requests);
+        }
+    }
+
+    @Benchmark
+    public void openOnRandomPage(TimetableState state, BookedTimetable booked, QueryState query, Blackhole blackhole) {
+        HistoryTableModel model = new HistoryTableModel(state.bookings);
+        int first = query.nextInt(Math.max(1, model.getRowCount() - SCREEN_ROWS));
+        for (int row = first; row < Math.min(first + SCREEN_ROWS, model.getRowCount()); row++) {
+            for (int column = 0; column < model.getColumnCount(); column++) {
+                blackhole.consume(model.getValueAt(row, column));
+            }
+        }
+    }
+
+    @Benchmark
+    public List<HistoryEntry> filterByTrain(TimetableState state, BookedTimetable booked, QueryState query) {
+        int trainNumber = booked.bookedTrains[query.nextInt(booked.bookedTrains.length)];
+        BookingStore.Query result = state.bookings.history(new HistoryFilter(trainNumber, null, null));
+        return state.bookings.historyPage(result, 0, SCREEN_ROWS);
+    }
+}
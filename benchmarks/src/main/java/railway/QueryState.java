@@ -0,0 +1,31 @@
+package railway;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.SplittableRandom;
+
+// Per-thread source of queries that hit the timetable, drawn from the trains that actually run
+@State(Scope.Thread)
+public class QueryState {
+    private SplittableRandom random;
+
+    @Setup
+    public void seed() {
+        random = new SplittableRandom(TimetableState.SEED + Thread.currentThread().getId());
+    }
+
+    Train anyTrain(TimetableState state) {
+        return state.timetable.trainAt(random.nextInt(state.timetable.trainCount()));
+    }
+
+    // What a user types into a search box: the tail of a station name, e.g. "tion 12"
+    String partialStation(String station) {
+        return station.substring(Math.min(3, station.length() - 1));
+    }
+
+    int nextInt(int bound) {
+        return random.nextInt(bound);
+    }
+}
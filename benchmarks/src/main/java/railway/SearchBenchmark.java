@@ -0,0 +1,40 @@
+package railway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The schedule screen's searchTrainSchedule: substring filters on source and destination,
+// optionally narrowed to a departure window
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+    @Benchmark
+    public List<Train> bySource(TimetableState state, QueryState query) {
+        return state.timetable.search(query.partialStation(query.anyTrain(state).source()), "");
+    }
+
+    @Benchmark
+    public List<Train> bySourceAndDestination(TimetableState state, QueryState query) {
+        Train train = query.anyTrain(state);
+        return state.timetable.search(query.partialStation(train.source()), query.partialStation(train.destination()));
+    }
+
+    @Benchmark
+    public List<Train> bySourceDepartingWithinTwoHours(TimetableState state, QueryState query) {
+        Train train = query.anyTrain(state);
+        TimeWindow departing = new TimeWindow(train.startMinute(), (train.startMinute() + 120) % (24 * 60));
+        return state.timetable.search(query.partialStation(train.source()), "", departing, null);
+    }
+}
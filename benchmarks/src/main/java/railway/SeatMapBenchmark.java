@@ -0,0 +1,66 @@
+package railway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Seat allocation on a long route: a train the size of the Vivek Express (900 seats, 12 segments)
+// kept busy with HELD bookings for random stretches. Each call releases the oldest booking and
+// takes seats for a new one, so the map stays fragmented the way a day of sales leaves it.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SeatMapBenchmark {
+    private static final int SEGMENTS = 12;
+    private static final int HELD = 1024;
+    private static final int MAX_PASSENGERS = 6;
+
+    private final SplittableRandom random = new SplittableRandom(42);
+    private final int[][] seats = new int[HELD][];
+    private final int[][] stretches = new int[HELD][];
+    private SeatMap map;
+    private int oldest;
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        map = new SeatMap(SEGMENTS, new int[] {300, 300, 300});
+        for (int i = 0; i < HELD; i++) {
+            book(i);
+        }
+        oldest = 0;
+    }
+
+    @Benchmark
+    public int[] releaseAndAllocate() {
+        int[] stretch = stretches[oldest];
+        if (seats[oldest] != null) {
+            map.release(stretch[0], stretch[1], stretch[2], seats[oldest]);
+        }
+        book(oldest);
+        int[] taken = seats[oldest];
+        oldest = (oldest + 1) % HELD;
+        return taken;
+    }
+
+    private void book(int i) {
+        int division = random.nextInt(3);
+        int from = random.nextInt(SEGMENTS);
+        int to = from + 1 + random.nextInt(SEGMENTS - from);
+        stretches[i] = new int[] {division, from, to};
+        seats[i] = map.allocate(division, from, to, 1 + random.nextInt(MAX_PASSENGERS));
+    }
+}
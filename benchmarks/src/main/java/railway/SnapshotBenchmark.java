@@ -0,0 +1,43 @@
+package railway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Searches running against a timetable that an admin keeps editing. Readers work on snapshots,
+// so their throughput should not depend on the edit rate.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+    private static final int EDITED_TRAIN = 1;
+
+    @Benchmark
+    @Group("searchWhileEditing")
+    @GroupThreads(3)
+    public List<Train> search(TimetableState state, QueryState query) {
+        return state.timetable.search(query.partialStation(query.anyTrain(state).source()), "");
+    }
+
+    @Benchmark
+    @Group("searchWhileEditing")
+    @GroupThreads(1)
+    public TimetableSnapshot edit(TimetableState state, QueryState query) {
+        Train train = query.anyTrain(state);
+        return state.timetable.apply(new TimetableService.Edit()
+                .delete(EDITED_TRAIN)
+                .insert(new TrainSpec(EDITED_TRAIN, "Edited Express", train.source(), train.destination(),
+                        train.startTime(), train.reachTime(), 100, 100)));
+    }
+}
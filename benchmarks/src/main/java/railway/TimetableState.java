@@ -0,0 +1,76 @@
+package railway;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// A synthetic timetable of the given size, persisted in a throwaway data directory.
+// Station count grows with the square root of the timetable, so larger timetables also get
+// busier stations, as on a real network.
+@State(Scope.Benchmark)
+public class TimetableState {
+    static final long SEED = 42;
+
+    @Param({"100", "1000", "10000", "100000", "1000000"})
+    public int trains;
+
+    Path dataDirectory;
+    PersistenceManager persistence;
+    TimetableService timetable;
+    BookingService bookings;
+    int stations;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        stations = Math.max(10, (int) Math.sqrt(trains) * 2);
+        dataDirectory = Files.createTempDirectory("railway-bench");
+        persistence = new PersistenceManager(dataDirectory, () -> syntheticTrains(trains, stations));
+        timetable = persistence.timetable();
+        bookings = persistence.bookings();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        persistence.close();
+        try (Stream<Path> files = Files.walk(dataDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    static String station(int index) {
+        return "Station " + index;
+    }
+
+    static List<TrainSpec> syntheticTrains(int count, int stations) {
+        Random random = new Random(SEED);
+        List<TrainSpec> trains = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int source = random.nextInt(stations);
+            int destination = (source + 1 + random.nextInt(stations - 1)) % stations;
+            // Plenty of seats so booking benchmarks never run a train dry
+            trains.add(new TrainSpec(10_000 + i, "Express " + i, station(source), station(destination),
+                    TrainSpec.formatTime(random.nextInt(24 * 60)), TrainSpec.formatTime(random.nextInt(24 * 60)),
+                    30_000_000, 30_000_000));
+        }
+        return trains;
+    }
+}
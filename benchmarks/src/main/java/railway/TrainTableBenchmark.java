@@ -0,0 +1,45 @@
+package railway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// populateTrainTable: showing the whole timetable, then producing the cells a JTable asks for.
+// A table only renders the rows in view, so the first screen is measured as well as every row.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrainTableBenchmark {
+    private static final int SCREEN_ROWS = 50;
+
+    @Benchmark
+    public void firstScreen(TimetableState state, Blackhole blackhole) {
+        TrainTableModel model = new TrainTableModel(state.timetable);
+        model.showAll();
+        render(model, Math.min(SCREEN_ROWS, model.getRowCount()), blackhole);
+    }
+
+    @Benchmark
+    public void allRows(TimetableState state, Blackhole blackhole) {
+        TrainTableModel model = new TrainTableModel(state.timetable);
+        model.showAll();
+        render(model, model.getRowCount(), blackhole);
+    }
+
+    private static void render(TrainTableModel model, int rows, Blackhole blackhole) {
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < model.getColumnCount(); column++) {
+                blackhole.consume(model.getValueAt(row, column));
+            }
+        }
+    }
+}
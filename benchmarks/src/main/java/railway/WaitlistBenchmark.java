@@ -0,0 +1,66 @@
+package railway;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// A sold-out train with a long waitlist in one division. promote books the entry at the head of the
+// list and lets a new request join at a random priority, so the list keeps its length; position
+// answers a waiting request asking where it stands. Both should stay flat as waiting grows.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WaitlistBenchmark {
+    private static final int TRAIN = 12951;
+    private static final List<Passenger> PASSENGERS = Collections.singletonList(new Passenger("Waiting", 30));
+
+    @Param({"1000", "100000"})
+    public int waiting;
+
+    private final SplittableRandom random = new SplittableRandom(42);
+    private Waitlists waitlists;
+    private long firstId;
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        waitlists = new Waitlists();
+        firstId = join().id;
+        for (int i = 1; i < waiting; i++) {
+            join();
+        }
+    }
+
+    @Benchmark
+    public WaitlistEntry promote() {
+        WaitlistEntry head = waitlists.head(TRAIN, 0);
+        waitlists.remove(head.id);
+        join();
+        return head;
+    }
+
+    @Benchmark
+    public int position() {
+        return waitlists.position(firstId + random.nextInt(waiting));
+    }
+
+    private WaitlistEntry join() {
+        return waitlists.join(TRAIN, "Mumbai Central", "New Delhi", 0, PASSENGERS, random.nextInt(Waitlists.MAX_PRIORITY + 1));
+    }
+}